@@ -96,6 +96,11 @@ namespace HandwritingRecognition {
         /// </summary>
         private RecognitionAlternates alternatives;
 
+        /// <summary>
+        /// Ink that this client sends us a few strokes at a time, by session id.
+        /// </summary>
+        private Dictionary<String, InkSession> sessions = new Dictionary<String, InkSession>();
+
         /// <summary>
         /// 
         /// </summary>
@@ -122,13 +127,19 @@ namespace HandwritingRecognition {
         /// 
         /// </summary>
         public void talkToClient() {
+            // one reader for the whole connection, so lines that the client sends
+            // back to back (pipelined) are not lost in a discarded reader's buffer
+            NetworkStream networkStream = new NetworkStream(client);
+            StreamWriter streamWriter = new StreamWriter(networkStream);
+            StreamReader streamReader = new StreamReader(networkStream);
             while (true) {
-                NetworkStream networkStream = new NetworkStream(client);
-                StreamWriter streamWriter = new StreamWriter(networkStream);
-                StreamReader streamReader = new StreamReader(networkStream);
-
                 // blocking call to wait for input
                 string line = streamReader.ReadLine();
+                if (line == null) {
+                    log("Client " + id + " disconnected.");
+                    client.Close();
+                    return;
+                }
 
                 String shortMessage;
                 if (line.Length > 20) {
@@ -156,6 +167,45 @@ namespace HandwritingRecognition {
                             log("Exiting the Server.");
                             gui.exit();
                             return;
+                        case "hello":
+                            // tells newer clients that they may pipeline [[recognize]] requests
+                            streamWriter.WriteLine("[[hello]] pipelined");
+                            streamWriter.Flush();
+                            break;
+                        case "recognize":
+                            // [[recognize]] id xml --> [[result]] id<TAB>top<TAB>alternative...
+                            Match request = Regex.Match(line, @"^\[\[recognize\]\]\s+(\d+)\s+(.*)$");
+                            if (request.Success) {
+                                streamWriter.WriteLine(recognizeWithAlternatives(request.Groups[1].ToString(),
+                                    request.Groups[2].ToString()));
+                                streamWriter.Flush();
+                            }
+                            break;
+                        case "addstrokes":
+                            // [[addstrokes]] session xml --> no reply
+                            Match strokes = Regex.Match(line, @"^\[\[addstrokes\]\]\s+(\d+)\s+(.*)$");
+                            if (strokes.Success) {
+                                getSession(strokes.Groups[1].ToString()).addStrokes(strokes.Groups[2].ToString());
+                            }
+                            break;
+                        case "recognizesession":
+                            // [[recognizesession]] id session --> [[result]] id<TAB>top<TAB>alternative...
+                            Match sessionRequest = Regex.Match(line, @"^\[\[recognizesession\]\]\s+(\d+)\s+(\d+)");
+                            if (sessionRequest.Success) {
+                                RecognitionAlternates sessionAlternates;
+                                String sessionTopResult = getSession(sessionRequest.Groups[2].ToString())
+                                    .recognize(out sessionAlternates);
+                                streamWriter.WriteLine(formatResult(sessionRequest.Groups[1].ToString(),
+                                    sessionTopResult, sessionAlternates));
+                                streamWriter.Flush();
+                            }
+                            break;
+                        case "endsession":
+                            Match endSession = Regex.Match(line, @"^\[\[endsession\]\]\s+(\d+)");
+                            if (endSession.Success) {
+                                sessions.Remove(endSession.Groups[1].ToString());
+                            }
+                            break;
                         case "topten":
                             // return nothing if there was no last call...
                             if (alternatives == null) {
@@ -179,7 +229,7 @@ namespace HandwritingRecognition {
                     }
                 }
                 else {
-                    // assume it's just some XML
+                    // assume it's just some XML (the older, one request at a time protocol)
                     log("XML data received...");
                     Recognizer rec = new Recognizer();
                     Strokes strokes = rec.getStrokesFromXML(line);
@@ -199,5 +249,51 @@ namespace HandwritingRecognition {
             }
         }
 
+        /// <summary>
+        /// Always answers, even if the ink could not be recognized, so that the client is not left waiting.
+        /// The first alternative is the top result.
+        /// </summary>
+        private String recognizeWithAlternatives(String requestID, String xml) {
+            try {
+                Recognizer rec = new Recognizer();
+                Strokes strokes = rec.getStrokesFromXML(xml);
+                RecognitionAlternates alternates;
+                String topResult = rec.recognize(strokes, out alternates);
+                return formatResult(requestID, topResult, alternates);
+            }
+            catch (Exception e) {
+                log("Invalid Input Data: " + e.Message);
+            }
+            return formatResult(requestID, null, null);
+        }
+
+        /// <summary>
+        /// [[result]] id<TAB>top<TAB>alternative... (just the id if nothing was recognized)
+        /// </summary>
+        private String formatResult(String requestID, String topResult, RecognitionAlternates alternates) {
+            log("The top result for request " + requestID + " is: " + topResult);
+            StringBuilder response = new StringBuilder("[[result]] " + requestID);
+            if (alternates != null && alternates.Count > 0) {
+                for (int i = 0; i < alternates.Count; i++) {
+                    response.Append("\t").Append(alternates[i].ToString());
+                }
+            }
+            else if (topResult != null) {
+                response.Append("\t").Append(topResult);
+            }
+            return response.ToString();
+        }
+
+        /// <summary>
+        /// Sessions are started by the first strokes that are sent to them.
+        /// </summary>
+        private InkSession getSession(String sessionID) {
+            InkSession session;
+            if (!sessions.TryGetValue(sessionID, out session)) {
+                session = new InkSession();
+                sessions[sessionID] = session;
+            }
+            return session;
+        }
     }
 }
@@ -24,7 +24,16 @@ namespace HandwritingRecognition {
             // ink object for creating pen strokes
             InkCollector inkCollector = new InkCollector();
             Ink ink = new Ink();
+            addStrokesFromXML(xmlString, ink);
+            return ink.Strokes;
+        }
 
+        /// <summary>
+        /// Adds the strokes in the XML to an existing Ink object.
+        /// </summary>
+        /// <returns>only the strokes that were added</returns>
+        public Strokes addStrokesFromXML(String xmlString, Ink ink) {
+            Strokes added = ink.CreateStrokes();
             try {
 
                 // object to parse the xml data
@@ -40,9 +49,9 @@ namespace HandwritingRecognition {
                         case "stroke":
                             // Console.WriteLine("<Stroke>");
                             Stroke stroke = handleStroke(reader, ink);
-                            //if (stroke != null) {
-                            //    Console.WriteLine(stroke.GetPoints().Length + " points in this stroke.");
-                            //}
+                            if (stroke != null) {
+                                added.Add(stroke);
+                            }
                             break;
                         default:
                             break;
@@ -52,8 +61,7 @@ namespace HandwritingRecognition {
             catch (XmlException xe) {
                 Console.WriteLine("Recognizer encountered an exception in parsing the XML data. " + xe.Message);
             }
-            // Console.WriteLine(ink.Strokes.Count + " total strokes.");
-            return ink.Strokes;
+            return added;
         }
 
         /// <summary>
@@ -117,4 +125,48 @@ namespace HandwritingRecognition {
             return null;
         }
     }
+
+    /// <summary>
+    /// The ink of one field, which a client sends us a few strokes at a time. The recognizer context stays
+    /// attached to the strokes, so each recognition builds on the work done for the earlier strokes.
+    /// </summary>
+    class InkSession {
+        private Ink ink = new Ink();
+        private RecognizerContext context = new RecognizerContext();
+        private Recognizer recognizer = new Recognizer();
+
+        public InkSession() {
+            context.Strokes = ink.CreateStrokes();
+        }
+
+        public void addStrokes(String xml) {
+            Strokes added = recognizer.addStrokesFromXML(xml, ink);
+            foreach (Stroke stroke in added) {
+                context.Strokes.Add(stroke);
+            }
+        }
+
+        /// <summary>
+        /// Recognizes all the strokes so far.
+        /// </summary>
+        public String recognize(out RecognitionAlternates alternates) {
+            alternates = null;
+            if (context.Strokes.Count == 0) {
+                return null;
+            }
+            try {
+                RecognitionStatus status;
+                RecognitionResult result = context.Recognize(out status);
+                if (status == RecognitionStatus.NoError) {
+                    alternates = result.GetAlternatesFromSelection();
+                    return result.TopString;
+                }
+                Console.WriteLine("Error in recognition.");
+            }
+            catch {
+                Console.WriteLine("Exception in recognition.");
+            }
+            return null;
+        }
+    }
 }
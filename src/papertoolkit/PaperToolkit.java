@@ -26,6 +26,7 @@ import java.util.InvalidPropertiesFormatException;
 import java.util.List;
 import java.util.Properties;
 
+import javax.print.PrintService;
 import javax.swing.SwingUtilities;
 import javax.swing.UIManager;
 
@@ -47,6 +48,9 @@ import papertoolkit.pen.handwriting.HandwritingRecognitionService;
 import papertoolkit.pen.replay.SaveAndReplay;
 import papertoolkit.pen.streaming.PenServerTrayApp;
 import papertoolkit.pen.synch.BatchedDataDispatcher;
+import papertoolkit.printing.PrintSpooler;
+import papertoolkit.printing.PrinterBridge;
+import papertoolkit.printing.SpooledPrintJob;
 import papertoolkit.tools.ToolExplorer;
 import papertoolkit.tools.design.acrobat.PaperUIDesigner;
 import papertoolkit.tools.design.acrobat.RegionConfiguration;
@@ -598,6 +602,11 @@ public class PaperToolkit {
 	@SuppressWarnings("unused")
 	private static ToolkitMonitoringService monitoringService;
 
+	/**
+	 * Created the first time something is printed.
+	 */
+	private PrintSpooler printSpooler;
+
 	/**
 	 * Whether or not to use handwriting recognition. It will start the HWRec Server...
 	 */
@@ -650,6 +659,17 @@ public class PaperToolkit {
 		return loadedApplications;
 	}
 
+	/**
+	 * @return the spooler that print(...) sends sheets to. Add a PrintJobStatusListener to it to hear about
+	 *         every job.
+	 */
+	public synchronized PrintSpooler getPrintSpooler() {
+		if (printSpooler == null) {
+			printSpooler = new PrintSpooler();
+		}
+		return printSpooler;
+	}
+
 	/**
 	 * @param propertyKey
 	 * @return
@@ -700,13 +720,19 @@ public class PaperToolkit {
 	}
 
 	/**
-	 * TODO: Figure out the easiest way to send a PS/PDF (with or without regions) to the default printer.
+	 * Sends the sheet (with pattern on its active regions) to the default printer, through the toolkit's
+	 * PrintSpooler. Returns once the job is queued; the sheet is rendered and printed in the background.
 	 * 
 	 * @param sheet
+	 * @return the job, or null if there is no default printer
 	 */
-	public void print(Sheet sheet) {
-		// Implement this...
-		DebugUtils.println("Unimplemented Method");
+	public SpooledPrintJob print(Sheet sheet) {
+		final PrintService printer = PrinterBridge.getDefaultPrintService();
+		if (printer == null) {
+			DebugUtils.println("There is no default printer. Not printing " + sheet.getName());
+			return null;
+		}
+		return getPrintSpooler().print(sheet, printer);
 	}
 
 	/**
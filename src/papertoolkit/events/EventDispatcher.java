@@ -9,14 +9,16 @@ import java.util.Map;
 
 import papertoolkit.paper.Region;
 import papertoolkit.paper.Sheet;
+import papertoolkit.pattern.coordinates.PageAddress;
+import papertoolkit.pattern.coordinates.PageAddressIndex;
 import papertoolkit.pattern.coordinates.PatternToSheetMapping;
 import papertoolkit.pattern.coordinates.conversion.PatternCoordinateConverter;
+import papertoolkit.pattern.coordinates.conversion.TiledPatternCoordinateConverter;
 import papertoolkit.pen.InputDevice;
 import papertoolkit.pen.PenSample;
+import papertoolkit.pen.ink.InkStroke;
 import papertoolkit.pen.streaming.listeners.PenListener;
 import papertoolkit.tools.monitor.MonitorInputHandling;
-import papertoolkit.units.Size;
-import papertoolkit.units.coordinates.PercentageCoordinates;
 import papertoolkit.util.DebugUtils;
 
 /**
@@ -37,21 +39,94 @@ import papertoolkit.util.DebugUtils;
  */
 public class EventDispatcher {
 
+	/**
+	 * Where one pen's last sample was handled, so that its pen up (which has no location) goes to the same
+	 * handlers, with that sample's location.
+	 */
+	private static class LastPenLocation {
+		private PatternCoordinateConverter converter;
+
+		private List<EventHandler> handlers = new ArrayList<EventHandler>();
+
+		private PenSample sample;
+	}
+
+	/**
+	 * The regions that a pen's last sample was on, and a rectangle (in streamed pattern dots) that no other
+	 * region reaches into. While the pen stays inside the rectangle and on the same regions (as it does while
+	 * writing), the next sample is on exactly those regions, so we do not need to test every region of every
+	 * sheet again.
+	 */
+	private static class RegionsUnderPen {
+
+		/**
+		 * False if another region might contain the next sample, even if it is on these regions.
+		 */
+		private boolean cacheable = false;
+
+		private List<PatternCoordinateConverter> converters = new ArrayList<PatternCoordinateConverter>();
+
+		/**
+		 * Which configuration of the pattern maps this was found in (see getPatternMapsGeneration()).
+		 */
+		private int generation;
+
+		/**
+		 * The mappings that the converters belong to, in the same order.
+		 */
+		private List<PatternToSheetMapping> maps = new ArrayList<PatternToSheetMapping>();
+
+		private double maxX;
+
+		private double maxY;
+
+		private double minX;
+
+		private double minY;
+
+		/**
+		 * @return true if the sample is on exactly these regions
+		 */
+		private boolean stillContains(double x, double y, double[] location) {
+			if (!cacheable || x < minX || x >= maxX || y < minY || y >= maxY) {
+				return false;
+			}
+			for (PatternCoordinateConverter converter : converters) {
+				if (!converter.locate(x, y, location)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
 	/**
 	 * Send all unmapped events here...
 	 */
 	private List<EventHandler> catchAllHandlers = new ArrayList<EventHandler>();
 
 	/**
-	 * Set when handling regular samples, so that we can set the location of the pen up.
+	 * Set for each pen when handling its regular samples, so that we can send its pen up to the right
+	 * handlers, and set the pen up's location. The location itself is only computed if a handler asks for it.
+	 * Keyed by pen ID. Only used while holding the patternToSheetMaps lock.
+	 */
+	private Map<String, LastPenLocation> lastPenLocations = new HashMap<String, LastPenLocation>();
+
+	/**
+	 * Where each pen (by ID) was last. Only used while holding the patternToSheetMaps lock.
+	 */
+	private Map<String, RegionsUnderPen> lastRegionsUnderPen = new HashMap<String, RegionsUnderPen>();
+
+	/**
+	 * If set, the live pens' events go through here, to be put in the order they were written. Null if each
+	 * pen's thread dispatches its own events as they arrive (the default).
 	 */
-	private PercentageCoordinates lastKnownLocation = new PercentageCoordinates(0, 0, new Size());
+	private volatile EventMerger merger;
 
 	/**
-	 * Used by penUp to notify event handlers. This is because a pen up event has no coordinates, so we cannot
-	 * figure out what region it belongs to.
+	 * Filled in by converters when we test a sample against the cached regions.
 	 */
-	private List<EventHandler> mostRecentEventHandlers = new ArrayList<EventHandler>();
+	private double[] locationScratch = new double[2];
 
 	/**
 	 * Lets us figure out which sheets and regions should handle which events. Interacting with this list
@@ -70,6 +145,13 @@ public class EventDispatcher {
 	 */
 	private Map<InputDevice, PenListener> penToListener = new HashMap<InputDevice, PenListener>();
 
+	/**
+	 * How often a sample was on the same regions as the pen's last sample, so we did not have to look.
+	 */
+	private int numLocalityCacheHits = 0;
+
+	private int numLocalityCacheMisses = 0;
+
 	/**
 	 * Broadcasts toolkit internals to external services.
 	 */
@@ -101,6 +183,191 @@ public class EventDispatcher {
 		pen.addLivePenListener(listener);
 	}
 
+	/**
+	 * Tests every region of every sheet.
+	 * 
+	 * @return the regions under the sample, and if we can, the rectangle around it where no other region is
+	 */
+	private RegionsUnderPen findRegionsUnderSample(PenSample sample, int generation) {
+		final RegionsUnderPen regions = new RegionsUnderPen();
+		regions.generation = generation;
+		for (final PatternToSheetMapping pmap : patternToSheetMaps) {
+			for (PatternCoordinateConverter converter : pmap.getCoordinateConvertersForSample(sample)) {
+				regions.maps.add(pmap);
+				regions.converters.add(converter);
+			}
+		}
+		if (regions.converters.size() == 0) {
+			return regions;
+		}
+
+		// the rectangle is where all the regions under the sample overlap...
+		double minX = Double.NEGATIVE_INFINITY;
+		double minY = Double.NEGATIVE_INFINITY;
+		double maxX = Double.POSITIVE_INFINITY;
+		double maxY = Double.POSITIVE_INFINITY;
+		for (PatternCoordinateConverter converter : regions.converters) {
+			if (!(converter instanceof TiledPatternCoordinateConverter)) {
+				// no fixed bounds (e.g., a flexible converter)
+				return regions;
+			}
+			final TiledPatternCoordinateConverter tiled = (TiledPatternCoordinateConverter) converter;
+			minX = Math.max(minX, tiled.getOriginXInDots());
+			minY = Math.max(minY, tiled.getOriginYInDots());
+			maxX = Math.min(maxX, tiled.getMaxXInDots());
+			maxY = Math.min(maxY, tiled.getMaxYInDots());
+		}
+
+		// ... and no other region may reach into it
+		for (final PatternToSheetMapping pmap : patternToSheetMaps) {
+			for (PatternCoordinateConverter converter : pmap.getRegionToPatternMapping().values()) {
+				if (regions.converters.contains(converter)) {
+					continue;
+				}
+				if (!(converter instanceof TiledPatternCoordinateConverter)) {
+					return regions;
+				}
+				final TiledPatternCoordinateConverter tiled = (TiledPatternCoordinateConverter) converter;
+				if (tiled.getOriginXInDots() < maxX && tiled.getMaxXInDots() > minX
+						&& tiled.getOriginYInDots() < maxY && tiled.getMaxYInDots() > minY) {
+					return regions;
+				}
+			}
+		}
+
+		regions.minX = minX;
+		regions.minY = minY;
+		regions.maxX = maxX;
+		regions.maxY = maxY;
+		regions.cacheable = true;
+		return regions;
+	}
+
+	/**
+	 * Tests only the regions printed on the sample's page.
+	 */
+	private RegionsUnderPen findRegionsOnPage(PenSample sample, PageAddressIndex.Page page) {
+		final RegionsUnderPen regions = new RegionsUnderPen();
+		final List<PatternCoordinateConverter> converters = page.getConverters();
+		for (int i = 0; i < converters.size(); i++) {
+			final PatternCoordinateConverter converter = converters.get(i);
+			if (converter.locate(sample.getX(), sample.getY(), locationScratch)) {
+				regions.maps.add(page.getPatternMaps().get(i));
+				regions.converters.add(converter);
+			}
+		}
+		return regions;
+	}
+
+	/**
+	 * @return where live events are put in order (with its clock offsets and counts), or null
+	 */
+	public EventMerger getEventMerger() {
+		return merger;
+	}
+
+	/**
+	 * @return how many samples were found to be on the same regions as their pen's previous sample, without
+	 *         testing the other regions
+	 */
+	public int getNumLocalityCacheHits() {
+		synchronized (patternToSheetMaps) {
+			return numLocalityCacheHits;
+		}
+	}
+
+	/**
+	 * @return how many samples made us test every region
+	 */
+	public int getNumLocalityCacheMisses() {
+		synchronized (patternToSheetMaps) {
+			return numLocalityCacheMisses;
+		}
+	}
+
+	/**
+	 * Batched data tells us which page it was written on. Look the page up once, and pass it to
+	 * handlePenEvent(...) with each of the page's samples.
+	 * 
+	 * @param index
+	 *            knows the pattern packages that the page may be from
+	 * @param address
+	 * @return the page, with the regions that are printed on it, or null if we do not know the address
+	 */
+	public PageAddressIndex.Page getPage(PageAddressIndex index, PageAddress address) {
+		synchronized (patternToSheetMaps) {
+			index.update(patternToSheetMaps, getPatternMapsGeneration());
+			return index.getPage(address);
+		}
+	}
+
+	/**
+	 * The cached regions under each pen are only good while this number stays the same. It goes up when a
+	 * region gets a new converter, or a converter is configured again (e.g., because its sheet was printed
+	 * again). Adding or removing pattern maps clears the cache instead.
+	 */
+	private int getPatternMapsGeneration() {
+		int generation = TiledPatternCoordinateConverter.getNumConfigurationChanges();
+		for (final PatternToSheetMapping pmap : patternToSheetMaps) {
+			generation += pmap.getModificationCount();
+		}
+		return generation;
+	}
+
+	/**
+	 * Checks the regions that the pen was on first. Only if the sample has left them (or come near another
+	 * region), do we look at every region.
+	 * 
+	 * @param penEvent
+	 * @return the regions (and their mappings) that the sample is on, in the order of the pattern maps
+	 */
+	private RegionsUnderPen getRegionsUnderPen(PenEvent penEvent) {
+		return getRegionsUnderPen(penEvent.getPenID(), penEvent.getOriginalSample());
+	}
+
+	/**
+	 * @param penID
+	 * @param sample
+	 * @return the regions (and their mappings) that the pen's sample is on
+	 */
+	private RegionsUnderPen getRegionsUnderPen(String penID, PenSample sample) {
+		final int generation = getPatternMapsGeneration();
+		final RegionsUnderPen last = lastRegionsUnderPen.get(penID);
+		if (last != null && last.generation == generation
+				&& last.stillContains(sample.getX(), sample.getY(), locationScratch)) {
+			numLocalityCacheHits++;
+			return last;
+		}
+		numLocalityCacheMisses++;
+
+		// a new object, since an event handler may be iterating over the last one
+		final RegionsUnderPen regions = findRegionsUnderSample(sample, generation);
+		lastRegionsUnderPen.put(penID, regions);
+		return regions;
+	}
+
+	/**
+	 * @param page
+	 *            the stroke's page, or null if we do not know it
+	 * @return whether the sample is on exactly these regions, and no others
+	 */
+	private boolean isOnSameRegions(String penID, PenSample sample, RegionsUnderPen regions,
+			PageAddressIndex.Page page) {
+		if (page == null) {
+			return getRegionsUnderPen(penID, sample).converters.equals(regions.converters);
+		}
+		// test the page's few regions, without making a new list for each sample
+		final List<PatternCoordinateConverter> converters = page.getConverters();
+		for (int i = 0; i < converters.size(); i++) {
+			final PatternCoordinateConverter converter = converters.get(i);
+			if (converter.locate(sample.getX(), sample.getY(), locationScratch) != regions.converters
+					.contains(converter)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	/**
 	 * Instead of Calling handlePenEvent directly, we should get a new PenListener and call its methods...
 	 * @param penInputDevice
@@ -118,7 +385,7 @@ public class EventDispatcher {
 		return new PenListener() {
 			public void penDown(PenSample sample) {
 				// DebugUtils.println("D " + sample);
-				handlePenEvent(new PenEvent(penID, penName, sample, PenEventType.DOWN, true));
+				handleLivePenEvent(new PenEvent(penID, penName, sample, PenEventType.DOWN, true));
 			}
 
 			/**
@@ -129,12 +396,12 @@ public class EventDispatcher {
 			 */
 			public void penUp(PenSample sample) {
 				// DebugUtils.println("U " + sample);
-				handlePenEvent(new PenEvent(penID, penName, sample, PenEventType.UP, true));
+				handleLivePenEvent(new PenEvent(penID, penName, sample, PenEventType.UP, true));
 			}
 
 			public void sample(PenSample sample) {
 				// DebugUtils.println("S " + sample);
-				handlePenEvent(new PenEvent(penID, penName, sample, PenEventType.SAMPLE, true));
+				handleLivePenEvent(new PenEvent(penID, penName, sample, PenEventType.SAMPLE, true));
 			}
 			
 			public String toString() {
@@ -143,6 +410,20 @@ public class EventDispatcher {
 		};
 	}
 
+	/**
+	 * Events from the registered pens come in here, each on its pen's thread.
+	 * 
+	 * @param penEvent
+	 */
+	private void handleLivePenEvent(PenEvent penEvent) {
+		final EventMerger eventMerger = merger;
+		if (eventMerger == null) {
+			handlePenEvent(penEvent);
+		} else {
+			eventMerger.add(penEvent);
+		}
+	}
+
 	/**
 	 * All pen events go through here. We dispatch it to the right handlers in this method. Will this have a
 	 * ConcurrentModification problem, because we are iterating through the actual patternToSheetMaps list
@@ -155,72 +436,92 @@ public class EventDispatcher {
 	 * @param penEvent
 	 */
 	public void handlePenEvent(PenEvent penEvent) {
+		handlePenEvent(penEvent, null);
+	}
+
+	/**
+	 * Dispatches an event whose page we know (e.g., from batched data). Only the regions printed on that page
+	 * are tested.
+	 * 
+	 * @param penEvent
+	 *            in streamed coordinates
+	 * @param page
+	 *            from getPage(...), or null to test every region
+	 */
+	public void handlePenEvent(PenEvent penEvent, PageAddressIndex.Page page) {
 
-		// handle Pen UP events differently...
-		// as pen up objects don't actually have a location
-		if (penEvent.isTypePenUp()) {
-			penEvent.setPercentageLocation(lastKnownLocation);
-			for (EventHandler h : mostRecentEventHandlers) {
-				monitoredHandleEvent(h, penEvent);
+		synchronized (patternToSheetMaps) {
+			// handle Pen UP events differently...
+			// as pen up objects don't actually have a location
+			// they go to the handlers that got the same pen's last sample
+			if (penEvent.isTypePenUp()) {
+				final LastPenLocation last = lastPenLocations.get(penEvent.getPenID());
+				if (last != null) {
+					penEvent.setLocation(last.converter, last.sample);
+					for (EventHandler h : last.handlers) {
+						monitoredHandleEvent(h, penEvent);
+					}
+				}
+				return; // done!
 			}
-			return; // done!
-		}
 
-		// handle Pen DOWN and Pen SAMPLE events here...
+			// handle Pen DOWN and Pen SAMPLE events here...
 
-		// System.out.println("Dispatching Event for pen #" + penID + " " + sample);
-		mostRecentEventHandlers.clear();
+			// System.out.println("Dispatching Event for pen #" + penID + " " + sample);
+			LastPenLocation last = lastPenLocations.get(penEvent.getPenID());
+			if (last == null) {
+				last = new LastPenLocation();
+				lastPenLocations.put(penEvent.getPenID(), last);
+			}
+			final List<EventHandler> mostRecentEventHandlers = last.handlers;
+			mostRecentEventHandlers.clear();
 
-		synchronized (patternToSheetMaps) {
 			boolean eventHandledAtLeastOnce = false;
 
 			// for each sample, we first have to convert it to a location on the sheet.
 			// THEN, we will be able to make more interesting events...
-			for (final PatternToSheetMapping pmap : patternToSheetMaps) {
-
-				// this is a key step!
-				// the event engine figures out which patterned regions contains
-				// this sample. This determines the set of event handlers the event
-				// should be sent to...
-				List<PatternCoordinateConverter> coordinateConvertersForSample = pmap
-						.getCoordinateConvertersForSample(penEvent.getOriginalSample());
-
-				for (final PatternCoordinateConverter coordinateConverter : coordinateConvertersForSample) {
-
-					// which sheet are we on?
-					final Sheet sheet = pmap.getSheet();
-
-					// which region are we on?
-					final String regionName = coordinateConverter.getRegionName();
-					final Region region = sheet.getRegion(regionName);
-
-					// where are we on this region?
-					final PercentageCoordinates relativeLocation = coordinateConverter
-							.getRelativeLocation(penEvent.getStreamedPatternCoordinate());
 
-					penEvent.setPercentageLocation(relativeLocation);
-
-					lastKnownLocation = relativeLocation;
-
-					// does this region have any event handlers?
-					// if not, just go onto the next region
-					final List<EventHandler> eventHandlers = region.getEventHandlers();
-					// send the event to every event handler!
-					// so long as the event is not consumed
-					for (EventHandler eh : eventHandlers) {
-						eventHandledAtLeastOnce = true;
-						monitoredHandleEvent(eh, penEvent);
-						mostRecentEventHandlers.add(eh);
-						if (penEvent.isConsumed()) {
-							// we are done handling this event
-							// look at no more event handlers
-							// look at no more pattern maps
-							// DebugUtils.println("Event Consumed");
-							return;
-						}
-					} // check the next event handler
-				} // check the next coordinate converter / matching region
-			} // check the next pattern map
+			// this is a key step!
+			// the event engine figures out which patterned regions contains
+			// this sample. This determines the set of event handlers the event
+			// should be sent to...
+			final RegionsUnderPen regionsUnderPen = (page == null) ? getRegionsUnderPen(penEvent)
+					: findRegionsOnPage(penEvent.getOriginalSample(), page);
+			for (int i = 0; i < regionsUnderPen.converters.size(); i++) {
+				final PatternToSheetMapping pmap = regionsUnderPen.maps.get(i);
+				final PatternCoordinateConverter coordinateConverter = regionsUnderPen.converters.get(i);
+
+				// which sheet are we on?
+				final Sheet sheet = pmap.getSheet();
+
+				// which region are we on?
+				final String regionName = coordinateConverter.getRegionName();
+				final Region region = sheet.getRegion(regionName);
+
+				// where are we on this region? (worked out only if a handler asks)
+				penEvent.setLocation(coordinateConverter, penEvent.getOriginalSample());
+
+				last.converter = coordinateConverter;
+				last.sample = penEvent.getOriginalSample();
+
+				// does this region have any event handlers?
+				// if not, just go onto the next region
+				final List<EventHandler> eventHandlers = region.getEventHandlers();
+				// send the event to every event handler!
+				// so long as the event is not consumed
+				for (EventHandler eh : eventHandlers) {
+					eventHandledAtLeastOnce = true;
+					monitoredHandleEvent(eh, penEvent);
+					mostRecentEventHandlers.add(eh);
+					if (penEvent.isConsumed()) {
+						// we are done handling this event
+						// look at no more event handlers
+						// look at no more pattern maps
+						// DebugUtils.println("Event Consumed");
+						return;
+					}
+				} // check the next event handler
+			} // check the next coordinate converter / matching region (on any pattern map)
 
 			// if none of the handlers own this event, we send the event to our "catch-all" event handlers...
 			if (!eventHandledAtLeastOnce) {
@@ -235,7 +536,8 @@ public class EventDispatcher {
 			// we sent this event to ALL the regions we know about!
 			// TODO: This doesn't really make sense... we should reevaluate it
 			// remove it for now
-			// eventHandledAtLeastOnce = sendEventToAllKnownRegions(penEvent, eventHandledAtLeastOnce);
+			// eventHandledAtLeastOnce = sendEventToAllKnownRegions(penEvent, eventHandledAtLeastOnce,
+			// mostRecentEventHandlers);
 
 			// if this application has no sheets or regions... it'll fall all the way to here
 			if (!eventHandledAtLeastOnce) {
@@ -245,8 +547,101 @@ public class EventDispatcher {
 		}
 	}
 
+	/**
+	 * <p>
+	 * Dispatches a whole stroke at once (e.g., from batched data). We find its regions once, instead of once
+	 * for each sample, and handlers that take whole strokes (see EventHandler.handleStroke(...)) get it in one
+	 * call. Other handlers get a pen down, the samples, and a pen up, as if the stroke were streamed.
+	 * </p>
+	 * <p>
+	 * If the stroke crosses from one region to another, it is split, and each part goes to its own regions.
+	 * </p>
+	 * 
+	 * @param penID
+	 * @param penName
+	 * @param samples
+	 *            in streamed coordinates
+	 * @param page
+	 *            from getPage(...), or null to test every region
+	 * @return true if every handler took the stroke whole; false if some handler got an event for each sample
+	 *         (and so may expect them to come in real time)
+	 */
+	public boolean handleStroke(String penID, String penName, List<PenSample> samples,
+			PageAddressIndex.Page page) {
+		if (samples.size() == 0) {
+			return true;
+		}
+		boolean handledWhole = true;
+		synchronized (patternToSheetMaps) {
+			int partStart = 0;
+			RegionsUnderPen partRegions = (page == null) ? getRegionsUnderPen(penID, samples.get(0))
+					: findRegionsOnPage(samples.get(0), page);
+			for (int i = 1; i <= samples.size(); i++) {
+				if (i < samples.size() && isOnSameRegions(penID, samples.get(i), partRegions, page)) {
+					continue;
+				}
+				// the part ends here, either with the stroke, or where the pen moves onto other regions
+				if (!handleStrokePart(penID, penName, samples.subList(partStart, i), partRegions)) {
+					handledWhole = false;
+				}
+				if (i < samples.size()) {
+					partStart = i;
+					partRegions = (page == null) ? getRegionsUnderPen(penID, samples.get(i))
+							: findRegionsOnPage(samples.get(i), page);
+				}
+			}
+		}
+		return handledWhole;
+	}
+
+	/**
+	 * @param samples
+	 *            the part of a stroke that is on these regions
+	 * @return true if every handler took the part whole
+	 */
+	private boolean handleStrokePart(String penID, String penName, List<PenSample> samples,
+			RegionsUnderPen regions) {
+		final PenSample lastSample = samples.get(samples.size() - 1);
+		final InkStroke stroke = new InkStroke(samples);
+		final PenEvent penUp = new PenEvent(penID, penName, lastSample, PenEventType.UP, false);
+		boolean handledWhole = true;
+		boolean strokeHandledAtLeastOnce = false;
+
+		for (int i = 0; i < regions.converters.size(); i++) {
+			final PatternCoordinateConverter coordinateConverter = regions.converters.get(i);
+			final Region region = regions.maps.get(i).getSheet().getRegion(coordinateConverter.getRegionName());
+			penUp.setLocation(coordinateConverter, lastSample);
+			for (EventHandler eh : region.getEventHandlers()) {
+				strokeHandledAtLeastOnce = true;
+				if (!monitoredHandleStroke(eh, penUp, stroke, coordinateConverter)) {
+					handledWhole = false;
+				}
+				if (penUp.isConsumed()) {
+					return handledWhole;
+				}
+			}
+		}
+
+		if (!strokeHandledAtLeastOnce) {
+			penUp.setLocation(null, lastSample);
+			for (EventHandler eh : catchAllHandlers) {
+				strokeHandledAtLeastOnce = true;
+				if (!monitoredHandleStroke(eh, penUp, stroke, null)) {
+					handledWhole = false;
+				}
+			}
+		}
+
+		if (!strokeHandledAtLeastOnce) {
+			DebugUtils.println("Stroke Not Mapped to any Regions: " + penUp);
+			monitoredHandleEvent(null, penUp);
+		}
+		return handledWhole;
+	}
+
 	@SuppressWarnings("unused")
-	private boolean sendEventToAllKnownRegions(PenEvent penEvent, boolean eventHandledAtLeastOnce) {
+	private boolean sendEventToAllKnownRegions(PenEvent penEvent, boolean eventHandledAtLeastOnce,
+			List<EventHandler> mostRecentEventHandlers) {
 		if (!eventHandledAtLeastOnce) {
 			// before, we would just trash it...
 			// however, this new approach allows us to avoid common errors
@@ -283,13 +678,60 @@ public class EventDispatcher {
 	 */
 	private void monitoredHandleEvent(EventHandler handler, PenEvent event) {
 		if (handler != null) {
-			handler.handleEvent(event);
+			final EventMailbox mailbox = handler.getMailbox();
+			if (mailbox == null) {
+				handler.handleEvent(event);
+			} else {
+				// we change the event's location for the next region, so it gets a copy
+				mailbox.post(event.copy());
+			}
 		}
 		if (toolkitMonitor != null) {
 			toolkitMonitor.eventHandled(handler, event);
 		}
 	}
 
+	/**
+	 * @param handler
+	 * @param penUp
+	 *            located on the handler's region
+	 * @param stroke
+	 * @param converter
+	 *            the handler's region's converter, or null
+	 * @return true if the handler took the stroke whole; false if it got an event for each sample
+	 */
+	private boolean monitoredHandleStroke(EventHandler handler, PenEvent penUp, InkStroke stroke,
+			PatternCoordinateConverter converter) {
+		if (handler.getMailbox() == null && handler.handleStroke(penUp, stroke)) {
+			if (toolkitMonitor != null) {
+				toolkitMonitor.eventHandled(handler, penUp);
+			}
+			return true;
+		}
+
+		// the handler wants the events (or has a mailbox of events to keep them in order with)
+		// a pen down at the first sample, the samples in between, and the pen up at the last sample
+		final List<PenSample> samples = stroke.getSamples();
+		final int numEvents = Math.max(2, samples.size());
+		for (int i = 0; i < numEvents; i++) {
+			final PenEvent event;
+			if (i == numEvents - 1) {
+				event = penUp.copy();
+			} else {
+				final PenSample sample = samples.get(i);
+				event = new PenEvent(penUp.getPenID(), penUp.getPenName(), sample,
+						(i == 0) ? PenEventType.DOWN : PenEventType.SAMPLE, false);
+				event.setLocation(converter, sample);
+			}
+			monitoredHandleEvent(handler, event);
+			if (event.isConsumed()) {
+				// any of the stroke's events being consumed keeps the stroke from lower priority handlers
+				penUp.consume();
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * You cannot register a pen multiple times with the same dispatcher. Otherwise, multiple events would get
 	 * fired by the same pen.
@@ -318,7 +760,10 @@ public class EventDispatcher {
 			// DebugUtils.println("EventEngine is already aware of this pattern map.");
 			return;
 		}
-		patternToSheetMaps.add(mapping);
+		synchronized (patternToSheetMaps) {
+			patternToSheetMaps.add(mapping);
+			lastRegionsUnderPen.clear();
+		}
 	}
 
 	/**
@@ -329,7 +774,10 @@ public class EventDispatcher {
 	public void registerPatternMapsForEventHandling(Collection<PatternToSheetMapping> patternMaps) {
 		// DebugUtils.println("Registering the (Pattern Location --> Sheet Location) Maps " + "[" +
 		// patternMaps + "]");
-		patternToSheetMaps.addAll(patternMaps);
+		synchronized (patternToSheetMaps) {
+			patternToSheetMaps.addAll(patternMaps);
+			lastRegionsUnderPen.clear();
+		}
 		// DebugUtils.println("Registered " + patternMaps.size() + " New Maps");
 	}
 
@@ -355,7 +803,10 @@ public class EventDispatcher {
 	 * To reset the event engine/dispatcher at runtime.
 	 */
 	public void unregisterAllPatternMaps() {
-		patternToSheetMaps.clear();
+		synchronized (patternToSheetMaps) {
+			patternToSheetMaps.clear();
+			lastRegionsUnderPen.clear();
+		}
 	}
 
 	/**
@@ -363,7 +814,10 @@ public class EventDispatcher {
 	 *            forget about this pattern map for this session...
 	 */
 	public void unregisterPatternMapForEventHandling(PatternToSheetMapping patternMap) {
-		patternToSheetMaps.remove(patternMap);
+		synchronized (patternToSheetMaps) {
+			patternToSheetMaps.remove(patternMap);
+			lastRegionsUnderPen.clear();
+		}
 	}
 
 	/**
@@ -372,7 +826,10 @@ public class EventDispatcher {
 	 * @param patternMaps
 	 */
 	public void unregisterPatternMapsForEventHandling(Collection<PatternToSheetMapping> patternMaps) {
-		patternToSheetMaps.removeAll(patternMaps);
+		synchronized (patternToSheetMaps) {
+			patternToSheetMaps.removeAll(patternMaps);
+			lastRegionsUnderPen.clear();
+		}
 	}
 
 	/**
@@ -382,6 +839,10 @@ public class EventDispatcher {
 	 */
 	public void unregisterPen(InputDevice pen) {
 		removePenFromInternalLists(pen, penToListener.get(pen));
+		synchronized (patternToSheetMaps) {
+			lastRegionsUnderPen.remove(pen.getID());
+			lastPenLocations.remove(pen.getID());
+		}
 	}
 
 	/**
@@ -390,4 +851,33 @@ public class EventDispatcher {
 	public void setMonitor(MonitorInputHandling monitor) {
 		toolkitMonitor = monitor;
 	}
+
+	/**
+	 * Puts the registered pens' events in the order they were written (correcting for each pen's clock), and
+	 * handles them on one thread, so a session with several pens (local, remote, simulated, or replayed) is
+	 * handled the same way every time. Each event waits until no pen can send an earlier one, but never longer
+	 * than the maximum latency. See EventMerger.
+	 * 
+	 * @param maxLatencyMillis
+	 *            the longest an event waits for earlier events from other pens
+	 */
+	public void setOrderedMerge(long maxLatencyMillis) {
+		final EventMerger oldMerger = merger;
+		merger = new EventMerger(this, maxLatencyMillis);
+		if (oldMerger != null) {
+			oldMerger.close();
+		}
+	}
+
+	/**
+	 * Go back to dispatching each pen's events on its own thread, as they arrive (once the waiting events are
+	 * handled).
+	 */
+	public void setUnorderedDispatch() {
+		final EventMerger oldMerger = merger;
+		merger = null;
+		if (oldMerger != null) {
+			oldMerger.close();
+		}
+	}
 }
@@ -7,6 +7,7 @@ import java.util.List;
 import papertoolkit.application.Application;
 import papertoolkit.paper.Region;
 import papertoolkit.paper.Sheet;
+import papertoolkit.pen.ink.InkStroke;
 import papertoolkit.tools.debug.DebuggingEnvironment;
 import papertoolkit.util.DebugUtils;
 import papertoolkit.util.files.FileUtils;
@@ -49,6 +50,23 @@ import papertoolkit.util.files.FileUtils;
  */
 public abstract class EventHandler {
 
+	/**
+	 * How many events may wait for a handler that has its samples coalesced. Pen downs and ups are never
+	 * merged, so this is roughly how many strokes it may fall behind.
+	 */
+	private static final int COALESCING_MAILBOX_CAPACITY = 64;
+
+	/**
+	 * Null if the dispatcher calls handleEvent(...) directly (the default).
+	 */
+	private volatile EventMailbox mailbox;
+
+	/**
+	 * Held while we change mailboxes. Not our own monitor, as subclasses may synchronize handleEvent(...), and
+	 * setSynchronous() waits for the old mailbox's thread.
+	 */
+	private final Object mailboxLock = new Object();
+
 	/**
 	 * This is used in debugging visualizations, for traversing up the list to figure out where the event
 	 * handler should be positioned. Why are there multiple parents?? Crazy. I guess you can add a clickhandler to multiple buttons....
@@ -62,6 +80,14 @@ public abstract class EventHandler {
 		parentRegions.add(r);
 	}
 
+	/**
+	 * @return where the dispatcher puts our events if we are asynchronous (with its queue depth and latency),
+	 *         or null
+	 */
+	public EventMailbox getMailbox() {
+		return mailbox;
+	}
+
 	public final String getName() {
 		return toString();
 	}
@@ -79,6 +105,100 @@ public abstract class EventHandler {
 	 */
 	public abstract void handleEvent(PenEvent event);
 
+	/**
+	 * <p>
+	 * Called with a whole stroke at once, when the dispatcher has all of it (e.g., batched data from a pen
+	 * synch). Handlers that only care about finished strokes can override this, and skip the event for each
+	 * sample. The default returns false, so the dispatcher sends handleEvent(...) a pen down, the samples,
+	 * and a pen up instead.
+	 * </p>
+	 * <p>
+	 * A stroke that crosses regions is split, and each region's handlers get only the part on their region.
+	 * Asynchronous handlers always get the events, in order with the rest of their mailbox.
+	 * </p>
+	 * 
+	 * @param penUp
+	 *            the stroke's last sample as a pen up, located on this region. Other samples can be found on
+	 *            the region with penUp.getPercentageLocationOf(...). Consume it to keep the stroke from lower
+	 *            priority handlers.
+	 * @param stroke
+	 *            the samples, in streamed coordinates. Shared with the region's other handlers, so do not
+	 *            change it.
+	 * @return true if we handled the stroke; false if we need an event for each sample
+	 */
+	public boolean handleStroke(PenEvent penUp, InkStroke stroke) {
+		return false;
+	}
+
+	/**
+	 * @return whether our events are handled on our own thread
+	 */
+	public boolean isAsynchronous() {
+		return mailbox != null;
+	}
+
+	/**
+	 * Handle our events on our own thread, so that slow work in handleEvent(...) (e.g., IO, or invoking
+	 * actions on remote devices) does not hold up the other handlers and the pens. The events still come in
+	 * order. As we get a copy of each event, consuming it does not keep it from other handlers.
+	 * 
+	 * @param mailboxCapacity
+	 *            how many events may wait for us
+	 * @param overflowPolicy
+	 *            what to do with new samples when we fall that far behind
+	 */
+	public void setAsynchronous(int mailboxCapacity, EventMailbox.OverflowPolicy overflowPolicy) {
+		synchronized (mailboxLock) {
+			replaceMailbox(new EventMailbox(this, mailboxCapacity, overflowPolicy, false, mailbox));
+		}
+	}
+
+	/**
+	 * For handlers that only need to know where the pen is now (e.g., ones that move something on the
+	 * screen). Our events are handled on our own thread, and if we fall behind, the samples that are waiting
+	 * are merged into the latest one (see PenEvent.getNumSamples() and getPercentageBounds()). Pen downs and
+	 * ups are always delivered. While we keep up, we get every sample.
+	 */
+	public void setCoalescing() {
+		synchronized (mailboxLock) {
+			replaceMailbox(new EventMailbox(this, COALESCING_MAILBOX_CAPACITY,
+					EventMailbox.OverflowPolicy.COALESCE_SAMPLES, true, mailbox));
+		}
+	}
+
+	/**
+	 * Go back to having the dispatcher call handleEvent(...) directly. This waits until the events in our
+	 * mailbox are handled (unless it is called from our own handleEvent(...)).
+	 */
+	public void setSynchronous() {
+		synchronized (mailboxLock) {
+			final EventMailbox oldMailbox = mailbox;
+			if (oldMailbox == null) {
+				return;
+			}
+			// until the dispatcher sees that we are synchronous, events posted to the old mailbox come to us
+			// directly, but only after the ones it has
+			oldMailbox.handOff(null);
+			oldMailbox.awaitDone();
+			mailbox = null;
+		}
+	}
+
+	/**
+	 * The old mailbox keeps the events it has, and hands on later ones. The new mailbox does not start until
+	 * the old one is done, so handleEvent(...) is never called from both threads at once.
+	 * 
+	 * @param newMailbox
+	 *            created with the old mailbox as its predecessor
+	 */
+	private void replaceMailbox(EventMailbox newMailbox) {
+		final EventMailbox oldMailbox = mailbox;
+		mailbox = newMailbox;
+		if (oldMailbox != null) {
+			oldMailbox.handOff(newMailbox);
+		}
+	}
+
 	/**
 	 * @param message
 	 */
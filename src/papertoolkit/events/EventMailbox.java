@@ -0,0 +1,416 @@
+package papertoolkit.events;
+
+import java.util.LinkedList;
+import java.util.ListIterator;
+
+import papertoolkit.util.DebugUtils;
+
+/**
+ * <p>
+ * Holds the events for one asynchronous event handler, which handles them in order on its own thread. The
+ * dispatcher only has to drop a copy of the event in here, so a handler that does slow work (e.g., file or
+ * network IO, or rendering) does not hold up the other handlers, or the pens.
+ * </p>
+ * <p>
+ * The mailbox holds a limited number of events. When it is full, the OverflowPolicy decides what happens to
+ * new samples. Pen downs and ups are always kept (even past the limit), so that the handler sees whole
+ * strokes.
+ * </p>
+ * <p>
+ * A handler that only needs to know where the pen is now (e.g., to move a cursor) can have its samples
+ * coalesced: a new sample is merged into the same pen's sample that is still waiting on the same region, so
+ * the handler gets the latest location and the bounds of the samples it skipped
+ * (PenEvent.getPercentageBounds()). Nothing is merged while the handler keeps up.
+ * </p>
+ * <p>
+ * The counts and times (e.g., getQueueDepth(), getAverageLatencyMillis()) tell you whether a handler is
+ * keeping up with the pens.
+ * </p>
+ * <p>
+ * When a handler changes its mailbox, the old one hands off to the new one: it handles what it already has,
+ * and passes on anything posted to it later. The new mailbox does not start until the old one's thread is
+ * done, so the handler never gets two events at once, and gets them in order.
+ * </p>
+ * <p>
+ * <span class="BSDLicense"> This software is distributed under the <a
+ * href="http://hci.stanford.edu/research/copyright.txt">BSD License</a>. </span>
+ * </p>
+ */
+public class EventMailbox {
+
+	/**
+	 * <p>
+	 * What to do with a new sample when the mailbox is full.
+	 * </p>
+	 */
+	public static enum OverflowPolicy {
+		/**
+		 * The dispatcher waits until the handler makes room. No events are lost, but a slow handler slows down
+		 * everything else.
+		 */
+		BLOCK,
+
+		/**
+		 * Merge the new sample into the same pen's newest waiting sample (if it is on the same region), so the
+		 * handler skips ahead to where the pen is now. If there is no waiting sample to merge into, the new
+		 * sample is dropped.
+		 */
+		COALESCE_SAMPLES,
+
+		/**
+		 * The new sample is dropped.
+		 */
+		DROP
+	}
+
+	/**
+	 * An event, and when it was put in the mailbox.
+	 */
+	private static class Letter {
+		private PenEvent event;
+
+		private long postedNanos;
+
+		public Letter(PenEvent penEvent, long timeNanos) {
+			event = penEvent;
+			postedNanos = timeNanos;
+		}
+	}
+
+	private int capacity;
+
+	private boolean closed = false;
+
+	/**
+	 * If true, samples are merged whenever one of the same pen's is waiting, not only when we are full.
+	 */
+	private boolean coalesceWaitingSamples;
+
+	/**
+	 * Set by handOff(...). After that, events posted to us go to the successor (or straight to the handler).
+	 */
+	private boolean handedOff = false;
+
+	private EventHandler handler;
+
+	private int maxQueueDepth = 0;
+
+	private long maxLatencyNanos = 0;
+
+	private long numCoalesced = 0;
+
+	private long numDelivered = 0;
+
+	private long numDropped = 0;
+
+	private OverflowPolicy policy;
+
+	private LinkedList<Letter> queue = new LinkedList<Letter>();
+
+	/**
+	 * Where events posted after the hand off go. Null to hand them to the handler directly.
+	 */
+	private EventMailbox successor;
+
+	private long totalLatencyNanos = 0;
+
+	private Thread worker;
+
+	/**
+	 * @param eventHandler
+	 *            gets the events, on the mailbox's thread
+	 * @param maxEvents
+	 *            how many events may wait for the handler
+	 * @param overflowPolicy
+	 *            what to do with new samples when that many are waiting
+	 */
+	public EventMailbox(EventHandler eventHandler, int maxEvents, OverflowPolicy overflowPolicy) {
+		this(eventHandler, maxEvents, overflowPolicy, false);
+	}
+
+	/**
+	 * @param eventHandler
+	 *            gets the events, on the mailbox's thread
+	 * @param maxEvents
+	 *            how many events may wait for the handler
+	 * @param overflowPolicy
+	 *            what to do with new samples when that many are waiting
+	 * @param coalesceSamples
+	 *            if true, a new sample is merged into the same pen's waiting sample (if there is one), so the
+	 *            handler only gets the latest location when it falls behind
+	 */
+	public EventMailbox(EventHandler eventHandler, int maxEvents, OverflowPolicy overflowPolicy,
+			boolean coalesceSamples) {
+		this(eventHandler, maxEvents, overflowPolicy, coalesceSamples, null);
+	}
+
+	/**
+	 * @param predecessor
+	 *            the handler's previous mailbox, or null. We hold our events until its thread is done.
+	 */
+	EventMailbox(EventHandler eventHandler, int maxEvents, OverflowPolicy overflowPolicy,
+			boolean coalesceSamples, final EventMailbox predecessor) {
+		handler = eventHandler;
+		capacity = Math.max(1, maxEvents);
+		policy = overflowPolicy;
+		coalesceWaitingSamples = coalesceSamples;
+		worker = new Thread(new Runnable() {
+			public void run() {
+				if (predecessor != null) {
+					predecessor.awaitDone();
+				}
+				deliverEvents();
+			}
+		}, "Events for " + handler);
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Waits until our thread has handled the events in the mailbox and stopped (we must have been closed or
+	 * handed off). Returns right away if called from our own thread.
+	 */
+	void awaitDone() {
+		if (Thread.currentThread() == worker) {
+			return;
+		}
+		while (worker.isAlive()) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Stops the thread once the events already in the mailbox are handled. Later events are dropped.
+	 */
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	/**
+	 * @return whether the new sample was merged into the same pen's waiting sample
+	 */
+	private boolean coalesce(PenEvent event) {
+		final Letter waiting = findSampleToMergeInto(event);
+		if (waiting == null) {
+			return false;
+		}
+		// keep its place in line, and how long it has waited
+		event.coalesce(waiting.event);
+		waiting.event = event;
+		numCoalesced++;
+		return true;
+	}
+
+	/**
+	 * @return the same pen's newest waiting letter, if it is a sample that nothing of that pen's comes after,
+	 *         on the same region as the new sample (percentages of different regions cannot be merged)
+	 */
+	private Letter findSampleToMergeInto(PenEvent sample) {
+		final String penID = sample.getPenID();
+		final ListIterator<Letter> letters = queue.listIterator(queue.size());
+		while (letters.hasPrevious()) {
+			final Letter letter = letters.previous();
+			final String letterPenID = letter.event.getPenID();
+			if (penID == null ? letterPenID == null : penID.equals(letterPenID)) {
+				final boolean canMerge = letter.event.getType() == PenEventType.SAMPLE
+						&& letter.event.isOnSameRegionAs(sample);
+				return canMerge ? letter : null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Runs in the mailbox's thread.
+	 */
+	private void deliverEvents() {
+		while (true) {
+			final Letter letter;
+			synchronized (this) {
+				while (queue.isEmpty() && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+					}
+				}
+				if (queue.isEmpty()) {
+					return;
+				}
+				letter = queue.removeFirst();
+				// there is room for a blocked dispatcher
+				notifyAll();
+			}
+			try {
+				handler.handleEvent(letter.event);
+			} catch (RuntimeException e) {
+				// one bad event should not stop the handler from getting the rest
+				e.printStackTrace();
+			}
+			final long latencyNanos = System.nanoTime() - letter.postedNanos;
+			synchronized (this) {
+				numDelivered++;
+				totalLatencyNanos += latencyNanos;
+				maxLatencyNanos = Math.max(maxLatencyNanos, latencyNanos);
+			}
+		}
+	}
+
+	/**
+	 * @return the average time from when an event was put in the mailbox to when the handler was done with
+	 *         it, or 0 if no events have been handled
+	 */
+	public synchronized double getAverageLatencyMillis() {
+		if (numDelivered == 0) {
+			return 0;
+		}
+		return totalLatencyNanos / (numDelivered * 1000000.0);
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public synchronized double getMaxLatencyMillis() {
+		return maxLatencyNanos / 1000000.0;
+	}
+
+	/**
+	 * @return the most events that have waited at once
+	 */
+	public synchronized int getMaxQueueDepth() {
+		return maxQueueDepth;
+	}
+
+	/**
+	 * @return how many samples were merged into a newer sample
+	 */
+	public synchronized long getNumCoalesced() {
+		return numCoalesced;
+	}
+
+	public synchronized long getNumDelivered() {
+		return numDelivered;
+	}
+
+	/**
+	 * @return how many events never got to the handler
+	 */
+	public synchronized long getNumDropped() {
+		return numDropped;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return policy;
+	}
+
+	/**
+	 * @return whether samples are merged whenever the handler is behind (not only when the mailbox is full)
+	 */
+	public boolean isCoalescingSamples() {
+		return coalesceWaitingSamples;
+	}
+
+	/**
+	 * @return how many events are waiting for the handler now
+	 */
+	public synchronized int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * Stops the thread once the events already in the mailbox are handled, like close(). Events posted to us
+	 * later are not dropped, but passed on.
+	 *
+	 * @param next
+	 *            the handler's new mailbox (created with us as its predecessor), or null if the handler is now
+	 *            synchronous
+	 */
+	synchronized void handOff(EventMailbox next) {
+		closed = true;
+		handedOff = true;
+		successor = next;
+		notifyAll();
+	}
+
+	/**
+	 * Called by the dispatcher. Returns right away, unless the mailbox is full and the policy is BLOCK.
+	 *
+	 * @param event
+	 *            a copy that the dispatcher will not change afterward
+	 */
+	public void post(PenEvent event) {
+		final EventMailbox next;
+		synchronized (this) {
+			if (!closed && enqueue(event)) {
+				return;
+			}
+			if (!handedOff) {
+				numDropped++;
+				return;
+			}
+			next = successor;
+		}
+		if (next != null) {
+			next.post(event);
+		} else {
+			// the handler is synchronous now, once we have handled what we had
+			awaitDone();
+			handler.handleEvent(event);
+		}
+	}
+
+	/**
+	 * Puts the event in line (or merges or drops it). Called while holding our lock.
+	 *
+	 * @return false if we were closed while waiting for room, so the event is still to be dealt with
+	 */
+	private boolean enqueue(PenEvent event) {
+		final boolean isSample = (event.getType() == PenEventType.SAMPLE);
+		if (isSample && coalesceWaitingSamples && coalesce(event)) {
+			return true;
+		}
+		if (isSample && queue.size() >= capacity) {
+			switch (policy) {
+			case BLOCK:
+				while (queue.size() >= capacity && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+						numDropped++;
+						return true;
+					}
+				}
+				if (closed) {
+					return false;
+				}
+				break;
+			case COALESCE_SAMPLES:
+				if (!coalesce(event)) {
+					numDropped++;
+				}
+				return true;
+			case DROP:
+				numDropped++;
+				return true;
+			}
+		}
+		queue.addLast(new Letter(event, System.nanoTime()));
+		maxQueueDepth = Math.max(maxQueueDepth, queue.size());
+		notifyAll();
+		return true;
+	}
+
+	public String toString() {
+		return "EventMailbox for " + handler + " [" + getQueueDepth() + "/" + capacity + " waiting, "
+				+ getNumDelivered() + " handled, " + getNumDropped() + " dropped, " + getNumCoalesced()
+				+ " coalesced, " + String.format("%.1f", getAverageLatencyMillis()) + " ms average, "
+				+ String.format("%.1f", getMaxLatencyMillis()) + " ms max]";
+	}
+}
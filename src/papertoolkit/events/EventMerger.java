@@ -0,0 +1,353 @@
+package papertoolkit.events;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import papertoolkit.pen.PenSample;
+
+/**
+ * <p>
+ * Puts the events of several pens (local, remote, simulated, or replayed, each calling in on its own thread)
+ * in the order they were written, before they go to the dispatcher. Each pen's samples are stamped with its
+ * own clock, so we estimate how far each pen's clock is from ours, and sort by the corrected time. The
+ * events are handled on one thread, so two runs with the same input see the same order.
+ * </p>
+ * <p>
+ * An event is held until no pen can send an earlier one: either every pen is writing, and has sent something
+ * at least as late, or the event has waited the maximum latency. An event that arrives later than that (its
+ * pen was delayed by more than the latency) goes out next, and is counted in getNumLate(). Each pen's own
+ * events always keep their order.
+ * </p>
+ * <p>
+ * A pen's clock offset is the smallest difference between when its samples arrive and their timestamps, over
+ * its last few samples (the sample that arrived fastest was delayed least). It can also be fixed with
+ * setClockOffset(...), e.g., for replayed pens.
+ * </p>
+ * <p>
+ * <span class="BSDLicense"> This software is distributed under the <a
+ * href="http://hci.stanford.edu/research/copyright.txt">BSD License</a>. </span>
+ * </p>
+ */
+public class EventMerger {
+
+	/**
+	 * An event, and where it goes in the merged order.
+	 */
+	private static class PendingEvent {
+		private long correctedTime;
+
+		private PenEvent event;
+
+		private String penID;
+
+		/**
+		 * The event's place among its pen's events.
+		 */
+		private long sequenceNumber;
+
+		public PendingEvent(PenEvent penEvent, String id, long time, long sequence) {
+			event = penEvent;
+			penID = id;
+			correctedTime = time;
+			sequenceNumber = sequence;
+		}
+	}
+
+	/**
+	 * What we know about one pen's clock and stream.
+	 */
+	private static class Source {
+		/**
+		 * Arrival time minus sample time, for the last few samples. Used as a ring.
+		 */
+		private long[] arrivalDifferences = new long[CLOCK_OFFSET_WINDOW];
+
+		private long clockOffset = Long.MAX_VALUE;
+
+		private boolean fixedClockOffset = false;
+
+		/**
+		 * The corrected time of the pen's last event. Its events are never put earlier than this.
+		 */
+		private long lastCorrectedTime = Long.MIN_VALUE;
+
+		private long nextSequenceNumber = 0;
+
+		private int nextSlot = 0;
+
+		private int numDifferences = 0;
+
+		/**
+		 * A writing pen will not send anything earlier than its last event.
+		 */
+		private boolean penDown = false;
+
+		/**
+		 * @return the sample's time on our clock
+		 */
+		private long correct(long sampleTime, long arrivalTime) {
+			if (!fixedClockOffset) {
+				updateClockOffset(arrivalTime - sampleTime);
+			}
+			return sampleTime + clockOffset;
+		}
+
+		private void updateClockOffset(long difference) {
+			final long evicted = arrivalDifferences[nextSlot];
+			final boolean full = (numDifferences == arrivalDifferences.length);
+			arrivalDifferences[nextSlot] = difference;
+			nextSlot = (nextSlot + 1) % arrivalDifferences.length;
+			if (!full) {
+				numDifferences++;
+			}
+			if (difference <= clockOffset) {
+				clockOffset = difference;
+			} else if (full && evicted == clockOffset) {
+				// the smallest one just left the window
+				long smallest = Long.MAX_VALUE;
+				for (int i = 0; i < numDifferences; i++) {
+					smallest = Math.min(smallest, arrivalDifferences[i]);
+				}
+				clockOffset = smallest;
+			}
+		}
+	}
+
+	/**
+	 * How many of a pen's last samples we estimate its clock offset from.
+	 */
+	private static final int CLOCK_OFFSET_WINDOW = 100;
+
+	/**
+	 * Earliest corrected time first. Ties go by pen ID, then by the pen's own order, so the order never
+	 * depends on which thread got here first.
+	 */
+	private static final Comparator<PendingEvent> MERGED_ORDER = new Comparator<PendingEvent>() {
+		public int compare(PendingEvent a, PendingEvent b) {
+			if (a.correctedTime != b.correctedTime) {
+				return (a.correctedTime < b.correctedTime) ? -1 : 1;
+			}
+			final int byPen = a.penID.compareTo(b.penID);
+			if (byPen != 0) {
+				return byPen;
+			}
+			return (a.sequenceNumber < b.sequenceNumber) ? -1 : (a.sequenceNumber == b.sequenceNumber ? 0 : 1);
+		}
+	};
+
+	/**
+	 * Stands in for a missing pen ID.
+	 */
+	private static final String NO_PEN_ID = "";
+
+	private boolean closed = false;
+
+	private EventDispatcher dispatcher;
+
+	private long maxLatencyMillis;
+
+	private long numLate = 0;
+
+	private long numReleased = 0;
+
+	private PriorityQueue<PendingEvent> pending = new PriorityQueue<PendingEvent>(64, MERGED_ORDER);
+
+	/**
+	 * The corrected time of the last event we let go. Nothing after it is put before it.
+	 */
+	private long releasedUpTo = Long.MIN_VALUE;
+
+	private Map<String, Source> sources = new HashMap<String, Source>();
+
+	/**
+	 * @param eventDispatcher
+	 *            gets the events, in order, on our thread
+	 * @param maxLatency
+	 *            the longest we hold an event, waiting for earlier ones from other pens (in milliseconds)
+	 */
+	public EventMerger(EventDispatcher eventDispatcher, long maxLatency) {
+		dispatcher = eventDispatcher;
+		maxLatencyMillis = Math.max(0, maxLatency);
+		final Thread worker = new Thread(new Runnable() {
+			public void run() {
+				releaseEvents();
+			}
+		}, "Event Merger");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Called by each pen's thread. Returns right away.
+	 *
+	 * @param event
+	 *            a live event, whose sample has the pen's timestamp
+	 */
+	public void add(PenEvent event) {
+		synchronized (this) {
+			if (!closed) {
+				hold(event);
+				return;
+			}
+		}
+		// we are no longer merging, so do not lose it
+		dispatcher.handlePenEvent(event);
+	}
+
+	/**
+	 * Lets the waiting events go (in order), and sends later events straight to the dispatcher.
+	 */
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	/**
+	 * @param penID
+	 * @return how many milliseconds we add to the pen's timestamps to get our time, or 0 if we have not seen
+	 *         the pen
+	 */
+	public synchronized long getClockOffset(String penID) {
+		final Source source = sources.get((penID == null) ? NO_PEN_ID : penID);
+		if (source == null || source.clockOffset == Long.MAX_VALUE) {
+			return 0;
+		}
+		return source.clockOffset;
+	}
+
+	public long getMaxLatencyMillis() {
+		return maxLatencyMillis;
+	}
+
+	/**
+	 * @return how many events arrived after later events (from other pens) had already gone out
+	 */
+	public synchronized long getNumLate() {
+		return numLate;
+	}
+
+	/**
+	 * @return how many events are being held
+	 */
+	public synchronized int getNumPending() {
+		return pending.size();
+	}
+
+	public synchronized long getNumReleased() {
+		return numReleased;
+	}
+
+	/**
+	 * @return the latest corrected time that no pen can send anything earlier than
+	 */
+	private long getReleaseBound(long now) {
+		final long latencyBound = now - maxLatencyMillis;
+		long bound = Long.MAX_VALUE;
+		for (Source source : sources.values()) {
+			if (source.penDown) {
+				bound = Math.min(bound, Math.max(source.lastCorrectedTime, latencyBound));
+			} else {
+				// a lifted pen may come down at any time
+				bound = Math.min(bound, latencyBound);
+			}
+		}
+		return bound;
+	}
+
+	private Source getSource(String penID) {
+		Source source = sources.get(penID);
+		if (source == null) {
+			source = new Source();
+			sources.put(penID, source);
+		}
+		return source;
+	}
+
+	/**
+	 * Puts the event in the merged order. Called while holding our lock.
+	 */
+	private void hold(PenEvent event) {
+		final String penID = (event.getPenID() == null) ? NO_PEN_ID : event.getPenID();
+		final Source source = getSource(penID);
+		final PenSample sample = event.getOriginalSample();
+		final long arrivalTime = System.currentTimeMillis();
+		long correctedTime = (sample == null) ? arrivalTime : source.correct(sample.timestamp, arrivalTime);
+
+		// keep the pen's own order, even if its offset estimate went down
+		correctedTime = Math.max(correctedTime, source.lastCorrectedTime);
+		if (correctedTime < releasedUpTo) {
+			// later events have already gone out
+			numLate++;
+			correctedTime = releasedUpTo;
+		}
+		source.lastCorrectedTime = correctedTime;
+		source.penDown = !event.isTypePenUp();
+
+		pending.add(new PendingEvent(event, penID, correctedTime, source.nextSequenceNumber++));
+		notifyAll();
+	}
+
+	/**
+	 * Runs in our thread.
+	 */
+	private void releaseEvents() {
+		while (true) {
+			final PendingEvent next;
+			synchronized (this) {
+				while (true) {
+					if (pending.isEmpty()) {
+						if (closed) {
+							return;
+						}
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							e.printStackTrace();
+						}
+						continue;
+					}
+					final long now = System.currentTimeMillis();
+					final PendingEvent first = pending.peek();
+					if (closed || first.correctedTime <= getReleaseBound(now)) {
+						break;
+					}
+					try {
+						// until it has waited long enough, or another event moves the bound
+						wait(Math.max(1, first.correctedTime + maxLatencyMillis - now));
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+					}
+				}
+				next = pending.poll();
+				releasedUpTo = Math.max(releasedUpTo, next.correctedTime);
+				numReleased++;
+			}
+			try {
+				dispatcher.handlePenEvent(next.event);
+			} catch (RuntimeException e) {
+				// one bad event should not stop the rest
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Stops estimating the pen's clock offset, and uses this one.
+	 *
+	 * @param penID
+	 * @param offsetMillis
+	 *            how many milliseconds to add to the pen's timestamps to get our time
+	 */
+	public synchronized void setClockOffset(String penID, long offsetMillis) {
+		final Source source = getSource((penID == null) ? NO_PEN_ID : penID);
+		source.clockOffset = offsetMillis;
+		source.fixedClockOffset = true;
+	}
+
+	public String toString() {
+		return "EventMerger [" + getNumPending() + " waiting, " + getNumReleased() + " handled, " + getNumLate()
+				+ " late, " + maxLatencyMillis + " ms latency]";
+	}
+}
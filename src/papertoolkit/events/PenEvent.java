@@ -1,5 +1,8 @@
 package papertoolkit.events;
 
+import java.awt.geom.Rectangle2D;
+
+import papertoolkit.pattern.coordinates.conversion.PatternCoordinateConverter;
 import papertoolkit.pen.PenSample;
 import papertoolkit.units.Size;
 import papertoolkit.units.coordinates.PercentageCoordinates;
@@ -27,15 +30,32 @@ public class PenEvent {
 	 */
 	private transient boolean consumed = false;
 
+	/**
+	 * If this sample stands for earlier samples too (see coalesce(...)), the bounds of all their locations,
+	 * in percentages of the region. Null otherwise.
+	 */
+	private transient Rectangle2D coalescedBounds;
+
 	/**
 	 * Was it a pen up or down, or just a regular sample? Regular Sample --> 0 (the default)
 	 */
 	private PenEventType eventType = PenEventType.SAMPLE;
 
 	/**
-	 * Where did the event occur?
+	 * Turns locationSample into locationOnRegion, when someone asks for the location. Most handlers never do.
+	 */
+	private transient PatternCoordinateConverter locationConverter;
+
+	/**
+	 * Where did the event occur? Null until someone asks (see getPercentageLocation()).
+	 */
+	private PercentageCoordinates locationOnRegion;
+
+	/**
+	 * The streamed sample that the location is computed from. For a pen up, this is the last sample before
+	 * it, as pen ups have no location.
 	 */
-	private PercentageCoordinates locationOnRegion = new PercentageCoordinates(0, 0, new Size());
+	private transient PenSample locationSample;
 
 	/**
 	 * Which pen generated this event?
@@ -47,6 +67,11 @@ public class PenEvent {
 	 */
 	private String penName = "Digital Pen";
 
+	/**
+	 * How many samples this event stands for (more than one if a slow handler got only the latest).
+	 */
+	private transient int numSamples = 1;
+
 	/**
 	 * The original sample, if you need to make calculations on the raw streaming coordinates.
 	 */
@@ -86,6 +111,36 @@ public class PenEvent {
 		realtimeFlag = isRealtime;
 	}
 
+	/**
+	 * @return a new event with the same pen, sample, type, time, and location (not consumed)
+	 */
+	public PenEvent copy() {
+		final PenEvent copy = new PenEvent(penID, penName, penSample, eventType, realtimeFlag);
+		copy.creationTimestamp = creationTimestamp;
+		copy.locationConverter = locationConverter;
+		copy.locationOnRegion = locationOnRegion;
+		copy.locationSample = locationSample;
+		copy.numSamples = numSamples;
+		if (coalescedBounds != null) {
+			copy.coalescedBounds = (Rectangle2D) coalescedBounds.clone();
+		}
+		return copy;
+	}
+
+	/**
+	 * Makes this sample stand for an earlier one as well, which the handler will not see. Called when a
+	 * handler falls behind, and only needs to know where the pen is now.
+	 * 
+	 * @param earlierSample
+	 *            from the same pen, on the same region
+	 */
+	public void coalesce(PenEvent earlierSample) {
+		final Rectangle2D bounds = getPercentageBounds();
+		bounds.add(earlierSample.getPercentageBounds());
+		coalescedBounds = bounds;
+		numSamples += earlierSample.numSamples;
+	}
+
 	/**
 	 * Consume this event.
 	 */
@@ -106,6 +161,27 @@ public class PenEvent {
 		return penSample;
 	}
 
+	/**
+	 * @return how many samples this event stands for: one, unless it was coalesced with earlier samples that
+	 *         the handler did not see
+	 */
+	public int getNumSamples() {
+		return numSamples;
+	}
+
+	/**
+	 * @return the bounds of the locations of all the samples that this event stands for, in percentages of
+	 *         the region (just this event's location, if it was not coalesced)
+	 */
+	public Rectangle2D getPercentageBounds() {
+		if (coalescedBounds != null) {
+			return (Rectangle2D) coalescedBounds.clone();
+		}
+		final PercentageCoordinates location = getPercentageLocation();
+		return new Rectangle2D.Double(location.getPercentageInXDirection(), location.getPercentageInYDirection(),
+				0, 0);
+	}
+
 	/**
 	 * @return Which pen generated this event?
 	 */
@@ -125,10 +201,35 @@ public class PenEvent {
 	 * inches, etc). This coordinate will be duplicated when a PEN_UP happens, because the coordinate will be
 	 * set to the last known good coordinate (captured during a regular, non PEN_UP sample).
 	 * 
+	 * It is computed the first time it is asked for, and kept.
+	 * 
 	 * @return the location of the event on the parent region.
 	 */
 	public PercentageCoordinates getPercentageLocation() {
-		return locationOnRegion;
+		PercentageCoordinates location = locationOnRegion;
+		if (location == null) {
+			if (locationConverter == null) {
+				location = new PercentageCoordinates(0, 0, new Size());
+			} else {
+				location = locationConverter.getRelativeLocation(new StreamedPatternCoordinates(locationSample));
+			}
+			locationOnRegion = location;
+		}
+		return location;
+	}
+
+	/**
+	 * Where another streamed sample (e.g., an earlier sample of the same stroke) is on this event's region.
+	 * Lets a handler that gets a whole stroke at once find each of its samples on the region.
+	 * 
+	 * @param streamedSample
+	 * @return the sample's location on this event's region, or 0,0 if this event has no region
+	 */
+	public PercentageCoordinates getPercentageLocationOf(PenSample streamedSample) {
+		if (locationConverter == null) {
+			return new PercentageCoordinates(0, 0, new Size());
+		}
+		return locationConverter.getRelativeLocation(new StreamedPatternCoordinates(streamedSample));
 	}
 
 	/**
@@ -163,6 +264,16 @@ public class PenEvent {
 		return consumed;
 	}
 
+	/**
+	 * @param other
+	 * @return whether the other event was located on the same region as this one. Events that were given
+	 *         their percentage location directly (not by a region's converter) count as being on the same
+	 *         region.
+	 */
+	boolean isOnSameRegionAs(PenEvent other) {
+		return locationConverter == other.locationConverter;
+	}
+
 	/**
 	 * @return
 	 */
@@ -209,10 +320,27 @@ public class PenEvent {
 		penName = name;
 	}
 
+	/**
+	 * The location is not computed until someone calls getPercentageLocation(). Used by the event dispatcher,
+	 * once for each region that the sample is on.
+	 * 
+	 * @param converter
+	 *            the region's converter, or null for no location
+	 * @param streamedSample
+	 *            the sample to find on the region
+	 */
+	public void setLocation(PatternCoordinateConverter converter, PenSample streamedSample) {
+		locationConverter = converter;
+		locationSample = streamedSample;
+		locationOnRegion = null;
+	}
+
 	/**
 	 * @param location
 	 */
 	public void setPercentageLocation(PercentageCoordinates location) {
+		locationConverter = null;
+		locationSample = null;
 		locationOnRegion = location;
 	}
 
@@ -0,0 +1,107 @@
+package papertoolkit.events;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>
+ * The state an event handler keeps for each pen (e.g., the stroke it is writing), by pen ID. When two pens
+ * write in the same region at once, their samples go into their own strokes, instead of one mixed-up stroke.
+ * Events from different pens can then be handled at the same time, as each pen's state is only touched by
+ * that pen's events.
+ * </p>
+ * <p>
+ * Most handlers only ever see one pen, so the last pen's state is kept aside, and is found without a lookup.
+ * Events without a pen ID share one state.
+ * </p>
+ * <p>
+ * <span class="BSDLicense"> This software is distributed under the <a
+ * href="http://hci.stanford.edu/research/copyright.txt">BSD License</a>. </span>
+ * </p>
+ *
+ * @param <S>
+ *            the handler's per-pen state
+ */
+public abstract class PenStates<S> {
+
+	/**
+	 * One pen's state, and which pen it belongs to. Never changed, so it can be swapped in as a whole.
+	 */
+	private static class Entry<S> {
+		private final String penID;
+
+		private final S state;
+
+		public Entry(String id, S penState) {
+			penID = id;
+			state = penState;
+		}
+	}
+
+	/**
+	 * Stands in for a missing pen ID, as the map does not take null keys.
+	 */
+	private static final String NO_PEN_ID = "";
+
+	/**
+	 * The state that was asked for last.
+	 */
+	private volatile Entry<S> last;
+
+	private ConcurrentMap<String, S> states = new ConcurrentHashMap<String, S>();
+
+	/**
+	 * Forgets all pens.
+	 */
+	public void clear() {
+		states.clear();
+		last = null;
+	}
+
+	/**
+	 * @return a new state, for a pen we have not seen before
+	 */
+	protected abstract S createState();
+
+	/**
+	 * @param event
+	 * @return the state of the pen that made this event (new, if we have not seen the pen before)
+	 */
+	public S get(PenEvent event) {
+		return get(event.getPenID());
+	}
+
+	/**
+	 * @param penID
+	 * @return the state of this pen (new, if we have not seen the pen before)
+	 */
+	public S get(String penID) {
+		final String key = (penID == null) ? NO_PEN_ID : penID;
+		final Entry<S> lastEntry = last;
+		if (lastEntry != null && lastEntry.penID.equals(key)) {
+			return lastEntry.state;
+		}
+		S state = states.get(key);
+		if (state == null) {
+			final S newState = createState();
+			state = states.putIfAbsent(key, newState);
+			if (state == null) {
+				state = newState;
+			}
+		}
+		last = new Entry<S>(key, state);
+		return state;
+	}
+
+	/**
+	 * @return the state of each pen we have seen
+	 */
+	public Collection<S> getAll() {
+		return states.values();
+	}
+
+	public String toString() {
+		return "PenStates [" + states.size() + " pens]";
+	}
+}
@@ -2,6 +2,7 @@ package papertoolkit.events.handlers;
 
 import papertoolkit.events.EventHandler;
 import papertoolkit.events.PenEvent;
+import papertoolkit.events.PenStates;
 
 /**
  * <p>
@@ -49,8 +50,11 @@ public abstract class ClickHandler extends EventHandler {
 
 		private PenEvent event;
 
-		public ClickNotifier(PenEvent myEvent) {
+		private PenState pen;
+
+		public ClickNotifier(PenEvent myEvent, PenState penState) {
 			event = myEvent;
+			pen = penState;
 		}
 
 		/**
@@ -68,8 +72,8 @@ public abstract class ClickHandler extends EventHandler {
 			}
 			released(event);
 			clicked(event);
-			lastClickTime = event.getTimestamp();
-			penDownHappened = false;
+			pen.lastClickTime = event.getTimestamp();
+			pen.penDownHappened = false;
 		}
 
 		/**
@@ -80,6 +84,29 @@ public abstract class ClickHandler extends EventHandler {
 		}
 	}
 
+	/**
+	 * <p>
+	 * One pen's clicks, so that two pens tapping at once are not taken as a double click.
+	 * </p>
+	 */
+	private static class PenState {
+		private int consecutiveClickCount = 1;
+
+		private ClickNotifier lastClickNotifier;
+
+		private long lastClickTime = 0;
+
+		/**
+		 * Keeps the most recent event, so that when pen up happens, we can give it an event that does not have
+		 * ZERO coordinates.
+		 */
+		private PenEvent lastEvent;
+
+		private long lastPenUpTime;
+
+		private boolean penDownHappened = false;
+	}
+
 	/**
 	 * We assume a human cannot pen up and down within a 30 ms span. TODO: Move this functionality down into
 	 * the PenServer...
@@ -87,42 +114,30 @@ public abstract class ClickHandler extends EventHandler {
 	private static final long MILLIS_TO_DELAY = 30;
 
 	/**
-	 * Use this variable to see if there was a double click, while handing a clicked() event.
+	 * Use this variable to see if there was a double click, while handing a clicked() event. This is the
+	 * count for the pen that clicked last.
 	 */
-	private int consecutiveClickCount = 1;
+	private volatile int consecutiveClickCount = 1;
 
 	/**
 	 * Whether we should filter out bad data received from bad streaming pens or poorly printed dot patterns.
 	 */
 	private boolean filterJitteryPenEvents = true;
 
-	/**
-	 * 
-	 */
-	private ClickNotifier lastClickNotifier;
-	
-	/**
-	 * If the current click time is really close to the last click time, we can signal a double click.
-	 */
-	private long lastClickTime = 0;
-
-	/**
-	 * Keeps the most recent event, so that when pen up happens, we can give it an event that does not have
-	 * ZERO coordinates.
-	 */
-	private PenEvent lastEvent;
-
-	private long lastPenUpTime;
-
 	/**
 	 * 
 	 */
 	protected int maxMillisBetweenMultipleClicks = 300; // 300 ms for a double-click
 
 	/**
-	 * 
+	 * If the current click time is really close to the same pen's last click time, we can signal a double
+	 * click.
 	 */
-	private boolean penDownHappened = false;
+	private PenStates<PenState> penStates = new PenStates<PenState>() {
+		protected PenState createState() {
+			return new PenState();
+		}
+	};
 
 	/**
 	 * @param e
@@ -146,44 +161,46 @@ public abstract class ClickHandler extends EventHandler {
 	 * @see papertoolkit.events.EventHandler#handleEvent(papertoolkit.events.PenEvent)
 	 */
 	public void handleEvent(PenEvent event) {
+		final PenState pen = penStates.get(event);
 		if (event.isTypePenDown()) {
 			long currPenDownTime = System.currentTimeMillis();
-			long diff = currPenDownTime - lastPenUpTime;
+			long diff = currPenDownTime - pen.lastPenUpTime;
 			if (diff > MILLIS_TO_DELAY) {
 				// long enough... so a new pen down!
 				pressed(event);
-				penDownHappened = true;
+				pen.penDownHappened = true;
 			} else {
 				// just filter this out by cancelling the notifier
-				if (lastClickNotifier != null) {
-					lastClickNotifier.setDoNotNotify(true);
-					lastClickNotifier = null;
+				if (pen.lastClickNotifier != null) {
+					pen.lastClickNotifier.setDoNotNotify(true);
+					pen.lastClickNotifier = null;
 				}
 			}
 		} else if (event.isTypePenUp()) {
 
-			lastPenUpTime = System.currentTimeMillis();
+			pen.lastPenUpTime = System.currentTimeMillis();
 
 			// really, this should always be true
-			if (penDownHappened) {
-				if (event.getTimestamp() - lastClickTime <= maxMillisBetweenMultipleClicks) {
-					consecutiveClickCount++;
+			if (pen.penDownHappened) {
+				if (event.getTimestamp() - pen.lastClickTime <= maxMillisBetweenMultipleClicks) {
+					pen.consecutiveClickCount++;
 				} else {
-					consecutiveClickCount = 1; // reset the click count
+					pen.consecutiveClickCount = 1; // reset the click count
 				}
+				consecutiveClickCount = pen.consecutiveClickCount;
 
 				if (filterJitteryPenEvents) {
-					lastClickNotifier = new ClickNotifier(lastEvent);
-					new Thread(lastClickNotifier).start();
+					pen.lastClickNotifier = new ClickNotifier(pen.lastEvent, pen);
+					new Thread(pen.lastClickNotifier).start();
 				} else {
-					released(lastEvent);
-					clicked(lastEvent);
-					lastClickTime = event.getTimestamp();
-					penDownHappened = false;
+					released(pen.lastEvent);
+					clicked(pen.lastEvent);
+					pen.lastClickTime = event.getTimestamp();
+					pen.penDownHappened = false;
 				}
 			}
 		}
-		lastEvent = event;
+		pen.lastEvent = event;
 
 		// do not consume the event (event has a consumed property that we do not set here)
 	}
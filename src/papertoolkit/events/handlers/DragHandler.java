@@ -1,7 +1,10 @@
 package papertoolkit.events.handlers;
 
+import java.awt.geom.Rectangle2D;
+
 import papertoolkit.events.EventHandler;
 import papertoolkit.events.PenEvent;
+import papertoolkit.events.PenStates;
 import papertoolkit.units.coordinates.PercentageCoordinates;
 
 /**
@@ -20,10 +23,24 @@ import papertoolkit.units.coordinates.PercentageCoordinates;
  */
 public abstract class DragHandler extends EventHandler {
 
-	private double maxXVal;
-	private double maxYVal;
-	private double minXVal;
-	private double minYVal;
+	/**
+	 * The extent of one pen's drag.
+	 */
+	private static class PenState {
+		private double maxXVal;
+		private double maxYVal;
+		private double minXVal;
+		private double minYVal;
+	}
+
+	/**
+	 * Each pen drags on its own.
+	 */
+	private PenStates<PenState> penStates = new PenStates<PenState>() {
+		protected PenState createState() {
+			return new PenState();
+		}
+	};
 
 	protected abstract void handleDragMinMax(double minX, double minY, double maxX, double maxY);
 
@@ -33,27 +50,38 @@ public abstract class DragHandler extends EventHandler {
 		PercentageCoordinates pctLocation = event.getPercentageLocation();
 		double pctX = pctLocation.getPercentageInXDirection();
 		double pctY = pctLocation.getPercentageInYDirection();
+		double pctMaxX = pctX;
+		double pctMaxY = pctY;
+		if (event.getNumSamples() > 1) {
+			// we were behind, so this sample stands in for the ones we skipped
+			final Rectangle2D bounds = event.getPercentageBounds();
+			pctX = bounds.getMinX();
+			pctY = bounds.getMinY();
+			pctMaxX = bounds.getMaxX();
+			pctMaxY = bounds.getMaxY();
+		}
 
+		final PenState pen = penStates.get(event);
 		if (event.isTypePenDown()) {
-			minXVal = Double.MAX_VALUE;
-			minYVal = Double.MAX_VALUE;
-			maxXVal = Double.MIN_VALUE;
-			maxYVal = Double.MIN_VALUE;
+			pen.minXVal = Double.MAX_VALUE;
+			pen.minYVal = Double.MAX_VALUE;
+			pen.maxXVal = Double.MIN_VALUE;
+			pen.maxYVal = Double.MIN_VALUE;
 		} else if (event.isTypePenUp()) {
 			// call the min and max handler
-			handleDragMinMax(minXVal, minYVal, maxXVal, maxYVal);
+			handleDragMinMax(pen.minXVal, pen.minYVal, pen.maxXVal, pen.maxYVal);
 		} else {
-			if (pctX < minXVal) {
-				minXVal = pctX;
+			if (pctX < pen.minXVal) {
+				pen.minXVal = pctX;
 			}
-			if (pctY < minYVal) {
-				minYVal = pctY;
+			if (pctY < pen.minYVal) {
+				pen.minYVal = pctY;
 			}
-			if (pctX > maxXVal) {
-				maxXVal = pctX;
+			if (pctMaxX > pen.maxXVal) {
+				pen.maxXVal = pctMaxX;
 			}
-			if (pctY > maxYVal) {
-				maxYVal = pctY;
+			if (pctMaxY > pen.maxYVal) {
+				pen.maxYVal = pctMaxY;
 			}
 		}
 	}
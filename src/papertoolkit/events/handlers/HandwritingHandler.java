@@ -5,17 +5,23 @@ import java.awt.event.ActionListener;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.swing.Timer;
 
 import papertoolkit.events.EventHandler;
 import papertoolkit.events.PenEvent;
+import papertoolkit.events.PenStates;
+import papertoolkit.paper.Region;
 import papertoolkit.pen.PenSample;
 import papertoolkit.pen.handwriting.HandwritingRecognitionService;
+import papertoolkit.pen.handwriting.RecognitionResult;
+import papertoolkit.pen.handwriting.RecognitionSession;
 import papertoolkit.pen.ink.Ink;
 import papertoolkit.pen.ink.InkStroke;
 import papertoolkit.units.PatternDots;
-import papertoolkit.units.Units;
+import papertoolkit.units.UnitKind;
 import papertoolkit.units.coordinates.PercentageCoordinates;
 import papertoolkit.util.DebugUtils;
 
@@ -38,17 +44,36 @@ public abstract class HandwritingHandler extends EventHandler {
 	private static final PatternDots DOTS = new PatternDots();
 
 	/**
-	 * Samples that compose an ink stroke...
+	 * Samples that compose each pen's current ink stroke...
 	 */
-	private List<PenSample> currentStrokeSamples = new ArrayList<PenSample>();
+	private PenStates<List<PenSample>> currentStrokeSamples = new PenStates<List<PenSample>>() {
+		protected List<PenSample> createState() {
+			return new ArrayList<PenSample>();
+		}
+	};
+
+	/**
+	 * If true, each stroke is sent to the recognizer as soon as it is finished.
+	 */
+	private boolean incremental = false;
 
 	private Timer notificationTimer;
 
+	/**
+	 * The pen that wrote the last stroke. Part of the cache context, along with our regions' names.
+	 */
+	private volatile String penID;
+
 	/**
 	 * This is the client that will connect to the handwriting recognition server...
 	 */
 	private HandwritingRecognitionService recognizerService;
 
+	/**
+	 * Holds this field's strokes on the recognizer, in incremental mode. Null until the first stroke.
+	 */
+	private RecognitionSession session;
+
 	/**
 	 * This should be synchronized, as multiple threads are working on it.
 	 */
@@ -59,7 +84,15 @@ public abstract class HandwritingHandler extends EventHandler {
 	 * Recognition Server.
 	 */
 	public HandwritingHandler() {
-		recognizerService = HandwritingRecognitionService.getInstance();
+		this(HandwritingRecognitionService.getInstance());
+	}
+
+	/**
+	 * @param service
+	 *            recognizes our ink (e.g., one connected to a StubRecognitionServer, for testing)
+	 */
+	public HandwritingHandler(HandwritingRecognitionService service) {
+		recognizerService = service;
 		notificationTimer = new Timer(450, new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
 				notificationTimer.stop();
@@ -71,14 +104,47 @@ public abstract class HandwritingHandler extends EventHandler {
 	/**
 	 * Clear the internal strokes storage.
 	 */
-	public void clear() {
+	public synchronized void clear() {
 		strokes.clear();
+		if (session != null) {
+			session.close();
+			session = null;
+		}
 	}
 
 	/**
 	 * 
 	 */
 	public abstract void contentArrived();
+
+	/**
+	 * The strokes are relative to the region, so the same strokes in another region (or from another pen) are
+	 * kept apart in the recognizer's cache.
+	 * 
+	 * @return the pen and the names of the regions we are attached to
+	 */
+	private String getCacheContext() {
+		final StringBuilder context = new StringBuilder(penID == null ? "" : penID);
+		for (Region region : getParentRegions()) {
+			context.append("|").append(region.getName());
+		}
+		return context.toString();
+	}
+
+	/**
+	 * @return the session that has all of our strokes (sending the strokes we have, if it is new)
+	 */
+	private synchronized RecognitionSession getSession() {
+		if (session == null) {
+			session = recognizerService.openSession(getCacheContext());
+			synchronized (strokes) {
+				for (InkStroke stroke : strokes) {
+					session.addStroke(stroke);
+				}
+			}
+		}
+		return session;
+	}
 	
 	/**
 	 * Capture Ink Strokes and Notify listeners when the user has paused writing. This is to make it more
@@ -86,23 +152,35 @@ public abstract class HandwritingHandler extends EventHandler {
 	 */
 	public void handleEvent(PenEvent event) {
 		final PercentageCoordinates percentageLocation = event.getPercentageLocation();
-		final Units x = percentageLocation.getX();
-		final Units y = percentageLocation.getY();
+		final double xPixels = percentageLocation.getXIn(UnitKind.PIXELS);
+		final double yPixels = percentageLocation.getYIn(UnitKind.PIXELS);
 		final long timestamp = event.getTimestamp();
+		final List<PenSample> penSamples = currentStrokeSamples.get(event);
 
 		// collect the ink strokes
 		if (event.isTypePenDown()) {
 			// not a pen error!
-			currentStrokeSamples.clear();
-			currentStrokeSamples
-					.add(new PenSample(x.getValueInPixels(), y.getValueInPixels(), 128, timestamp));
+			penID = event.getPenID();
+			penSamples.clear();
+			penSamples.add(new PenSample(xPixels, yPixels, 128, timestamp));
 			notificationTimer.stop(); // if the pen down happened within our ~350 ms, then we don't notify anyone
 		} else if (event.isTypePenUp()) {
-			strokes.add(new InkStroke(currentStrokeSamples, DOTS));
+			final InkStroke stroke = new InkStroke(penSamples, DOTS);
+			synchronized (this) {
+				if (incremental) {
+					// open the session before adding the stroke, as a new session is sent all of our strokes
+					final RecognitionSession s = getSession();
+					strokes.add(stroke);
+					s.addStroke(stroke);
+					// start on the result now, so it is ready (or nearly) when contentArrived() is called
+					s.recognize();
+				} else {
+					strokes.add(stroke);
+				}
+			}
 			notificationTimer.restart();
 		} else { // regular sample
-			currentStrokeSamples
-					.add(new PenSample(x.getValueInPixels(), y.getValueInPixels(), 128, timestamp));
+			penSamples.add(new PenSample(xPixels, yPixels, 128, timestamp));
 		}
 	}
 
@@ -113,21 +191,66 @@ public abstract class HandwritingHandler extends EventHandler {
 		if (strokes.size() == 0) {
 			// DebugUtils.println("Num Strokes to Recognize: " + strokes.size());
 			return "";
-		} else {
-			final Ink ink = new Ink(strokes);
-			final String xml = ink.toXMLString(false /* no separator lines */);
-			DebugUtils.println(xml);
-			final String result = recognizerService.recognizeHandwriting(xml);
-			return result;
 		}
+		try {
+			// goes through the cache (and in incremental mode, the session)
+			return recognizeHandwritingInBackground().get().getTopResult();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		} catch (ExecutionException e) {
+			DebugUtils.println("Handwriting recognition failed: " + e.getCause());
+		}
+		return "";
+	}
+
+	/**
+	 * Returns right away, so it is safe to call from contentArrived() (which runs on the Swing thread).
+	 * 
+	 * @return the top result and alternatives for the ink strokes, when they come back
+	 */
+	public synchronized Future<RecognitionResult> recognizeHandwritingInBackground() {
+		if (incremental) {
+			return getSession().recognize();
+		}
+		final Ink ink;
+		synchronized (strokes) {
+			ink = new Ink(new ArrayList<InkStroke>(strokes));
+		}
+		return recognizerService.recognize(ink, getCacheContext());
 	}
 
 	/**
 	 * @return a list of the top ten recognized results (including the top one, at position 0)
 	 */
 	public List<String> recognizeHandwritingWithAlternatives() {
-		recognizeHandwriting();
-		return recognizerService.getAlternatives();
+		if (strokes.size() == 0) {
+			return new ArrayList<String>();
+		}
+		try {
+			// one request gets both the top result and the alternatives
+			return new ArrayList<String>(recognizeHandwritingInBackground().get().getAlternatives());
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		} catch (ExecutionException e) {
+			DebugUtils.println("Handwriting recognition failed: " + e.getCause());
+		}
+		return new ArrayList<String>();
+	}
+
+	/**
+	 * In incremental mode, each stroke is sent to the recognizer when the pen comes up, and the recognizer
+	 * keeps the field's strokes. The whole field is never sent again, and the result for the last stroke is
+	 * usually ready by the time contentArrived() is called. The default is off, which sends the whole field
+	 * each time recognizeHandwriting() is called.
+	 * 
+	 * @param sendEachStroke
+	 */
+	public synchronized void setIncrementalRecognition(boolean sendEachStroke) {
+		incremental = sendEachStroke;
+		if (!incremental && session != null) {
+			session.close();
+			session = null;
+		}
 	}
 
 	/*
@@ -8,10 +8,12 @@ import java.util.List;
 
 import papertoolkit.events.EventHandler;
 import papertoolkit.events.PenEvent;
+import papertoolkit.events.PenStates;
 import papertoolkit.pen.PenSample;
 import papertoolkit.pen.ink.Ink;
 import papertoolkit.pen.ink.InkStroke;
 import papertoolkit.units.PatternDots;
+import papertoolkit.units.UnitKind;
 import papertoolkit.units.Units;
 import papertoolkit.units.coordinates.PercentageCoordinates;
 import papertoolkit.util.MathUtils;
@@ -93,70 +95,65 @@ public abstract class InkHandler extends EventHandler {
 	}
 
 	/**
-	 * For interpreting the samples.
+	 * <p>
+	 * The stroke that one pen is writing, and what we need to filter its false pen ups.
+	 * </p>
 	 */
-	private static final PatternDots DOTS = new PatternDots();
+	private static class PenState {
+		/**
+		 * Samples that compose an ink stroke...
+		 */
+		private List<PenSample> currentStrokeSamples = new ArrayList<PenSample>();
 
-	/**
-	 * Number of milliseconds used to filter out bad pen events.
-	 */
-	private static final int MAX_MILLIS_FOR_PEN_ERROR = 20;
+		/**
+		 * How far has the pen moved since the pen down?
+		 */
+		private double distanceTraveled = 0;
 
-	/**
-	 * The notifier will wait for this many milliseconds before it notifies all listeners of the new ink
-	 * content. Ideally, this number should be a little longer than MAX_MILLIS_FOR_PEN_ERROR.
-	 */
-	private static final int MILLIS_TO_DELAY = 21;
+		private InkNotifier lastInkNotifier;
 
-	/**
-	 * Samples that compose an ink stroke...
-	 */
-	private List<PenSample> currentStrokeSamples = new ArrayList<PenSample>();
+		/**
+		 * The System time of this pen's most recent pen up event.
+		 */
+		private long lastPenUpTime = 0;
 
-	/**
-	 * 
-	 */
-	private long currPenDownTime;
+		private double lastXForDistanceMeasurements;
 
-	/**
-	 * 
-	 */
-	private double distanceThreshold = 0;
+		private double lastYForDistanceMeasurements;
 
-	/**
-	 * How far has the pen moved since the pen down?
-	 */
-	private double distanceTraveled = 0;
+		private InkStroke mostRecentlyAddedTemporaryStroke;
+	}
 
 	/**
-	 * 
+	 * For interpreting the samples.
 	 */
-	private InkNotifier lastInkNotifier;
+	private static final PatternDots DOTS = new PatternDots();
 
 	/**
-	 * The System time of the most recent pen up event.
+	 * Number of milliseconds used to filter out bad pen events.
 	 */
-	private long lastPenUpTime = 0;
+	private static final int MAX_MILLIS_FOR_PEN_ERROR = 20;
 
 	/**
-	 * 
+	 * The notifier will wait for this many milliseconds before it notifies all listeners of the new ink
+	 * content. Ideally, this number should be a little longer than MAX_MILLIS_FOR_PEN_ERROR.
 	 */
-	private double lastXForDistanceMeasurements;
+	private static final int MILLIS_TO_DELAY = 21;
 
 	/**
 	 * 
 	 */
-	private double lastYForDistanceMeasurements;
+	private double distanceThreshold = 0;
 
 	/**
-	 * 
+	 * The System time of the most recent pen up event (of any pen).
 	 */
-	private InkStroke mostRecentlyAddedStroke;
+	private volatile long lastPenUpTime = 0;
 
 	/**
 	 * 
 	 */
-	private InkStroke mostRecentlyAddedTemporaryStroke;
+	private InkStroke mostRecentlyAddedStroke;
 
 	/**
 	 * For tracking ink that we have retrieved.
@@ -170,14 +167,18 @@ public abstract class InkHandler extends EventHandler {
 	private boolean notifyAfterEnoughDistance = false;
 
 	/**
-	 * This should be synchronized, as multiple threads are working on it.
+	 * Each pen gets its own stroke, so two pens writing at once do not mix their samples.
 	 */
-	private List<InkStroke> strokes = Collections.synchronizedList(new ArrayList<InkStroke>());
+	private PenStates<PenState> penStates = new PenStates<PenState>() {
+		protected PenState createState() {
+			return new PenState();
+		}
+	};
 
 	/**
-	 * 
+	 * This should be synchronized, as multiple threads are working on it.
 	 */
-	private long timeDiffBetweenPenUpAndPenDown;
+	private List<InkStroke> strokes = Collections.synchronizedList(new ArrayList<InkStroke>());
 
 	public InkHandler() {
 		// nothing
@@ -194,16 +195,16 @@ public abstract class InkHandler extends EventHandler {
 
 	/**
 	 * @param event
-	 * @param strokeSamples
+	 * @param pen
+	 *            the pen whose stroke is not finished yet
 	 */
-	private synchronized void addStrokeTemporarilyAndNotifyListeners(PenEvent event,
-			List<PenSample> strokeSamples) {
-		if (mostRecentlyAddedTemporaryStroke != null) {
-			strokes.remove(mostRecentlyAddedTemporaryStroke);
+	private synchronized void addStrokeTemporarilyAndNotifyListeners(PenEvent event, PenState pen) {
+		if (pen.mostRecentlyAddedTemporaryStroke != null) {
+			strokes.remove(pen.mostRecentlyAddedTemporaryStroke);
 		}
-		mostRecentlyAddedTemporaryStroke = new InkStroke(strokeSamples, DOTS);
-		strokes.add(mostRecentlyAddedTemporaryStroke);
-		handleInkStroke(event, mostRecentlyAddedTemporaryStroke);
+		pen.mostRecentlyAddedTemporaryStroke = new InkStroke(pen.currentStrokeSamples, DOTS);
+		strokes.add(pen.mostRecentlyAddedTemporaryStroke);
+		handleInkStroke(event, pen.mostRecentlyAddedTemporaryStroke);
 	}
 
 	/**
@@ -211,7 +212,9 @@ public abstract class InkHandler extends EventHandler {
 	 */
 	public void clear() {
 		strokes.clear();
-		currentStrokeSamples.clear();
+		for (PenState pen : penStates.getAll()) {
+			pen.currentStrokeSamples.clear();
+		}
 		newInkMarker = 0;
 	}
 
@@ -271,18 +274,17 @@ public abstract class InkHandler extends EventHandler {
 	public void handleEvent(PenEvent event) {
 
 		final PercentageCoordinates percentageLocation = event.getPercentageLocation();
-		final Units xPct = percentageLocation.getX();
-		final Units yPct = percentageLocation.getY();
 		final long timestamp = event.getTimestamp();
 
 		// collect the ink strokes in default units? (i.e., PatternDots?)
 		// the thing that renders the ink should decide how to scale it
-		final double xDots = xPct.getValueInPatternDots();
-		final double yDots = yPct.getValueInPatternDots();
+		final double xDots = percentageLocation.getXIn(UnitKind.PATTERN_DOTS);
+		final double yDots = percentageLocation.getYIn(UnitKind.PATTERN_DOTS);
 
+		final PenState pen = penStates.get(event);
 		if (event.isTypePenDown()) {
-			currPenDownTime = System.currentTimeMillis();
-			timeDiffBetweenPenUpAndPenDown = currPenDownTime - lastPenUpTime;
+			final long currPenDownTime = System.currentTimeMillis();
+			final long timeDiffBetweenPenUpAndPenDown = currPenDownTime - pen.lastPenUpTime;
 			// DebugUtils.println("The pen was up for " +
 			// timeDiffBetweenPenUpAndPenDown + "
 			// milliseconds");
@@ -293,59 +295,82 @@ public abstract class InkHandler extends EventHandler {
 				// not a pen error!
 
 				// let the last ink notifier run
-				lastInkNotifier = null;
+				pen.lastInkNotifier = null;
 
 				// reset the distance traveled
-				distanceTraveled = 0;
-				lastXForDistanceMeasurements = xDots;
-				lastYForDistanceMeasurements = yDots;
+				pen.distanceTraveled = 0;
+				pen.lastXForDistanceMeasurements = xDots;
+				pen.lastYForDistanceMeasurements = yDots;
 
 				// We should start a new stroke!
-				currentStrokeSamples = new ArrayList<PenSample>();
-				currentStrokeSamples.add(new PenSample(xDots, yDots, 128, timestamp));
+				pen.currentStrokeSamples = new ArrayList<PenSample>();
+				pen.currentStrokeSamples.add(new PenSample(xDots, yDots, 128, timestamp));
 			} else {
 				// we'll assume this is a pen manufacturing error (jitter)!
 
 				// "kill" the last notifier if possible (best effort)
-				lastInkNotifier.setDoNotNotify(true);
-				lastInkNotifier = null;
+				pen.lastInkNotifier.setDoNotNotify(true);
+				pen.lastInkNotifier = null;
 
 				// add this sample back to the current stroke
-				currentStrokeSamples.add(new PenSample(xDots, yDots, 128, timestamp));
+				pen.currentStrokeSamples.add(new PenSample(xDots, yDots, 128, timestamp));
 			}
 		} else if (event.isTypePenUp()) {
 			// the pen is lifted from the page
 
 			// record the time of the pen up
-			lastPenUpTime = System.currentTimeMillis();
+			pen.lastPenUpTime = System.currentTimeMillis();
+			lastPenUpTime = pen.lastPenUpTime;
 
 			// we need to notify our listeners
 			// notify after a short delay, because we may actually update the
 			// current stroke
 			// if there is a pen error
-			lastInkNotifier = new InkNotifier(event, currentStrokeSamples, mostRecentlyAddedTemporaryStroke);
-			new Thread(lastInkNotifier).start();
+			pen.lastInkNotifier = new InkNotifier(event, pen.currentStrokeSamples,
+					pen.mostRecentlyAddedTemporaryStroke);
+			new Thread(pen.lastInkNotifier).start();
 
 			// System.out.println("Collected " + strokes.size() + " strokes so
 			// far.");
 		} else { // regular sample
-			currentStrokeSamples.add(new PenSample(xDots, yDots, 128, timestamp));
+			pen.currentStrokeSamples.add(new PenSample(xDots, yDots, 128, timestamp));
 
 			// are we supposed to notify after enough distance?
 			if (notifyAfterEnoughDistance) {
 				// assume zero distance for now...
-				distanceTraveled += MathUtils.distance(xDots, yDots, //
-						lastXForDistanceMeasurements, lastYForDistanceMeasurements);
-				lastXForDistanceMeasurements = xDots;
-				lastYForDistanceMeasurements = yDots;
+				pen.distanceTraveled += MathUtils.distance(xDots, yDots, //
+						pen.lastXForDistanceMeasurements, pen.lastYForDistanceMeasurements);
+				pen.lastXForDistanceMeasurements = xDots;
+				pen.lastYForDistanceMeasurements = yDots;
 
-				if (distanceTraveled > distanceThreshold) {
-					addStrokeTemporarilyAndNotifyListeners(event, currentStrokeSamples);
+				if (pen.distanceTraveled > distanceThreshold) {
+					addStrokeTemporarilyAndNotifyListeners(event, pen);
 				}
 			}
 		}
 	}
 
+	/**
+	 * Adds the whole stroke (e.g., from batched data) at once. The samples keep their own (pen) timestamps,
+	 * as the events were not created when the ink was written. As the stroke is finished, there is no false
+	 * pen up to wait for.
+	 * 
+	 * @see papertoolkit.events.EventHandler#handleStroke(papertoolkit.events.PenEvent,
+	 *      papertoolkit.pen.ink.InkStroke)
+	 */
+	public boolean handleStroke(PenEvent penUp, InkStroke stroke) {
+		final List<PenSample> streamedSamples = stroke.getSamples();
+		final List<PenSample> strokeSamples = new ArrayList<PenSample>(streamedSamples.size());
+		for (PenSample sample : streamedSamples) {
+			final PercentageCoordinates location = penUp.getPercentageLocationOf(sample);
+			strokeSamples.add(new PenSample(location.getXIn(UnitKind.PATTERN_DOTS), location
+					.getYIn(UnitKind.PATTERN_DOTS), 128, sample.timestamp));
+		}
+		lastPenUpTime = System.currentTimeMillis();
+		addStrokeAndNotifyListeners(penUp, strokeSamples);
+		return true;
+	}
+
 	/**
 	 * @param xmlFile
 	 */
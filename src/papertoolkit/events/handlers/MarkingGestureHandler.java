@@ -2,6 +2,7 @@ package papertoolkit.events.handlers;
 
 import papertoolkit.events.EventHandler;
 import papertoolkit.events.PenEvent;
+import papertoolkit.events.PenStates;
 import papertoolkit.units.Units;
 import papertoolkit.units.coordinates.PercentageCoordinates;
 
@@ -35,13 +36,20 @@ public abstract class MarkingGestureHandler extends EventHandler {
 		// +/- PI (cone from -7PI/8 ... to -PI & from 7PI/8 to PI)
 	}
 
-	private double dx;
+	/**
+	 * Where one pen's mark started, and where it is now.
+	 */
+	private static class PenState {
+		private Units firstPercentageX;
 
-	private double dy;
+		private Units firstPercentageY;
 
-	private Units firstPercentageX;
+		private Units lastPercentageX;
 
-	private Units firstPercentageY;
+		private Units lastPercentageY;
+
+		private int numSamples;
+	}
 
 	/**
 	 * How many samples constitute a gesture? The larger, the more strict we will be (i.e., longer gestures
@@ -49,27 +57,31 @@ public abstract class MarkingGestureHandler extends EventHandler {
 	 */
 	private int gestureThreshold = 4;
 
-	private Units lastPercentageX;
-
-	private Units lastPercentageY;
-
-	private int numSamples;
+	/**
+	 * Each pen makes its own marks.
+	 */
+	private PenStates<PenState> penStates = new PenStates<PenState>() {
+		protected PenState createState() {
+			return new PenState();
+		}
+	};
 
 	/**
 	 * @see papertoolkit.events.EventHandler#handleEvent(papertoolkit.events.PenEvent)
 	 */
 	public void handleEvent(PenEvent event) {
 		PercentageCoordinates percentageLocation = event.getPercentageLocation();
+		final PenState pen = penStates.get(event);
 		if (event.isTypePenDown()) {
-			firstPercentageX = percentageLocation.getActualValueInXDirection();
-			firstPercentageY = percentageLocation.getActualValueInYDirection();
-			numSamples = 0;
+			pen.firstPercentageX = percentageLocation.getActualValueInXDirection();
+			pen.firstPercentageY = percentageLocation.getActualValueInYDirection();
+			pen.numSamples = 0;
 		} else if (event.isTypePenUp()) {
 			// register a gesture on pen up
 			// only if we get more than N samples do we register a gesture
-			if (numSamples > gestureThreshold) {
-				dx = lastPercentageX.getValue() - firstPercentageX.getValue();
-				dy = lastPercentageY.getValue() - firstPercentageY.getValue();
+			if (pen.numSamples > gestureThreshold) {
+				final double dx = pen.lastPercentageX.getValue() - pen.firstPercentageX.getValue();
+				final double dy = pen.lastPercentageY.getValue() - pen.firstPercentageY.getValue();
 
 				// calculate the angle, and decide the compass direction
 				double theta = Math.atan2(dy, dx);
@@ -119,9 +131,9 @@ public abstract class MarkingGestureHandler extends EventHandler {
 
 			}
 		} else {
-			numSamples++;
-			lastPercentageX = percentageLocation.getActualValueInXDirection();
-			lastPercentageY = percentageLocation.getActualValueInYDirection();
+			pen.numSamples++;
+			pen.lastPercentageX = percentageLocation.getActualValueInXDirection();
+			pen.lastPercentageY = percentageLocation.getActualValueInYDirection();
 		}
 	}
 
@@ -2,6 +2,8 @@ package papertoolkit.events.handlers;
 
 import papertoolkit.events.EventHandler;
 import papertoolkit.events.PenEvent;
+import papertoolkit.events.PenEventType;
+import papertoolkit.events.PenStates;
 import papertoolkit.pen.ink.InkStroke;
 import papertoolkit.util.DebugUtils;
 
@@ -20,20 +22,33 @@ import papertoolkit.util.DebugUtils;
 public abstract class StrokeHandler extends EventHandler {
 
 	/**
-	 * Keeps the most recent event, so that when pen up happens, we can give it an event that does not have
-	 * ZERO coordinates.
+	 * The stroke that one pen is writing.
 	 */
-	private PenEvent lastEvent;
+	private static class PenState {
+		/**
+		 * Keeps the most recent event, so that when pen up happens, we can give it an event that does not have
+		 * ZERO coordinates.
+		 */
+		private PenEvent lastEvent;
+
+		private boolean penDownHappened = false;
+
+		private InkStroke stroke;
+	}
 
 	/**
-	 * Keep a single stroke around... throw away older strokes.
+	 * Keep a single stroke around... throw away older strokes. This is the stroke started last, by any pen.
 	 */
-	private InkStroke mostRecentStroke;
+	private volatile InkStroke mostRecentStroke;
 
 	/**
-	 * 
+	 * Each pen gets its own stroke, so two pens writing at once do not mix their samples.
 	 */
-	private boolean penDownHappened = false;
+	private PenStates<PenState> penStates = new PenStates<PenState>() {
+		protected PenState createState() {
+			return new PenState();
+		}
+	};
 
 	/**
 	 * @return the latest stroke
@@ -51,30 +66,51 @@ public abstract class StrokeHandler extends EventHandler {
 			return;
 		}
 
+		final PenState pen = penStates.get(event);
 		if (event.isTypePenDown()) {
-			mostRecentStroke = new InkStroke();
-			penDownHappened = true;
+			pen.stroke = new InkStroke();
+			pen.penDownHappened = true;
+			mostRecentStroke = pen.stroke;
 		} else if (event.isTypePenUp()) {
 			// really, this should always be true
-			if (penDownHappened) {
-				strokeArrived(lastEvent, mostRecentStroke);
-				penDownHappened = false;
+			if (pen.penDownHappened) {
+				strokeArrived(pen.lastEvent, pen.stroke);
+				pen.penDownHappened = false;
 				return;
 			}
 		} else {
-			if (mostRecentStroke == null) {
+			if (pen.stroke == null) {
 				// we must have missed the down... 
 				DebugUtils.println("Most Recent Stroke was null...... assume this was a pendown");
-				penDownHappened = true;
-				mostRecentStroke = new InkStroke();
+				pen.penDownHappened = true;
+				pen.stroke = new InkStroke();
+				mostRecentStroke = pen.stroke;
 			}
 			
-			mostRecentStroke.addSample(event.getOriginalSample());
-			lastEvent = event;
+			pen.stroke.addSample(event.getOriginalSample());
+			pen.lastEvent = event;
 		}
 		// do not consume the event (event has a consumed property that we do not set here)
 	}
 
+	/**
+	 * The dispatcher already has the whole stroke, so we pass it on without collecting its samples. As with
+	 * streamed strokes, strokeArrived(...) gets the last sample, not the pen up.
+	 * 
+	 * @see papertoolkit.events.EventHandler#handleStroke(papertoolkit.events.PenEvent,
+	 *      papertoolkit.pen.ink.InkStroke)
+	 */
+	public boolean handleStroke(PenEvent penUp, InkStroke stroke) {
+		mostRecentStroke = stroke;
+		final PenEvent lastSample = penUp.copy();
+		lastSample.setType(PenEventType.SAMPLE);
+		strokeArrived(lastSample, stroke);
+		if (lastSample.isConsumed()) {
+			penUp.consume();
+		}
+		return true;
+	}
+
 	/**
 	 * This handler is called on every pen up.
 	 * 
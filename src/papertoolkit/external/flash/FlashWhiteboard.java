@@ -14,6 +14,7 @@ import papertoolkit.pen.InputDevice;
 import papertoolkit.pen.PenSample;
 import papertoolkit.pen.ink.Ink;
 import papertoolkit.pen.ink.InkStroke;
+import papertoolkit.pen.streaming.listeners.CoalescingPenListener;
 import papertoolkit.pen.streaming.listeners.PenListener;
 import papertoolkit.util.DebugUtils;
 import papertoolkit.util.files.FileUtils;
@@ -120,7 +121,8 @@ public class FlashWhiteboard {
 
 					for (InputDevice p : pens) {
 						// DebugUtils.println("Adding Pen Listener");
-						p.addLivePenListener(new FlashPenListener(flash));
+						// the GUI only needs the latest samples, if it falls behind
+						p.addLivePenListener(new CoalescingPenListener(new FlashPenListener(flash)));
 						p.addLivePenListener(getInkListener());
 					}
 					return CONSUMED;
@@ -0,0 +1,306 @@
+package papertoolkit.pattern;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import papertoolkit.util.DebugUtils;
+
+/**
+ * <p>
+ * A pattern file packed at two bits per dot (instead of one ASCII u/d/l/r character per dot). The file is a
+ * 16 byte header (magic, version, columns, rows) followed by the rows of dots. Each row starts on a byte
+ * boundary, and four dots go in a byte, the leftmost dot in the high bits.
+ * </p>
+ * <p>
+ * The file is memory mapped. A Slice is a rectangle of dots that reads straight from the mapped buffer, so
+ * getting the pattern for a region does not copy or parse anything.
+ * </p>
+ * <p>
+ * Run main(...) with a pattern package directory to pack its .pattern files ahead of time. Otherwise,
+ * PatternPackage packs each file the first time it is used.
+ * </p>
+ * <p>
+ * <span class="BSDLicense"> This software is distributed under the <a
+ * href="http://hci.stanford.edu/research/copyright.txt">BSD License</a>. </span>
+ * </p>
+ */
+public class PackedPatternFile {
+
+	/**
+	 * A rectangle of dots in a packed file.
+	 */
+	public static class Slice {
+
+		private PackedPatternFile file;
+
+		private int numColumns;
+
+		private int numRows;
+
+		private int originX;
+
+		private int originY;
+
+		private Slice(PackedPatternFile theFile, int x, int y, int w, int h) {
+			file = theFile;
+			originX = x;
+			originY = y;
+			numColumns = w;
+			numRows = h;
+		}
+
+		/**
+		 * @param row
+		 * @param col
+		 * @return one of the PatternJitter directions
+		 */
+		public char getJitter(int row, int col) {
+			return file.getJitter(originY + row, originX + col);
+		}
+
+		public int getNumColumns() {
+			return numColumns;
+		}
+
+		public int getNumRows() {
+			return numRows;
+		}
+
+		/**
+		 * @param row
+		 * @return the row as u/d/l/r characters, as it appears in the text pattern file
+		 */
+		public String getRow(int row) {
+			final char[] chars = new char[numColumns];
+			for (int col = 0; col < numColumns; col++) {
+				chars[col] = getJitter(row, col);
+			}
+			return new String(chars);
+		}
+	}
+
+	/**
+	 * Appended to the name of the text file (N.pattern --> N.pattern.packed).
+	 */
+	public static final String FILE_EXTENSION = ".packed";
+
+	private static final int HEADER_BYTES = 16;
+
+	/**
+	 * The two bit codes, in order.
+	 */
+	private static final char[] JITTERS = { PatternJitter.UP, PatternJitter.DOWN, PatternJitter.LEFT,
+			PatternJitter.RIGHT };
+
+	/**
+	 * "PTPP"
+	 */
+	private static final int MAGIC = 0x50545050;
+
+	private static final int VERSION = 1;
+
+	private static int encode(char jitter) {
+		switch (jitter) {
+		case PatternJitter.UP:
+			return 0;
+		case PatternJitter.DOWN:
+			return 1;
+		case PatternJitter.LEFT:
+			return 2;
+		case PatternJitter.RIGHT:
+			return 3;
+		default:
+			throw new IllegalArgumentException("Not a pattern dot: " + jitter);
+		}
+	}
+
+	/**
+	 * @param numRows
+	 * @return a slice with rows, but no dots (e.g., for a pattern file that does not exist)
+	 */
+	public static Slice getEmptySlice(int numRows) {
+		return new Slice(null, 0, 0, 0, numRows);
+	}
+
+	/**
+	 * Packs the file in memory, without writing anything to disk.
+	 *
+	 * @param textPatternFile
+	 * @return
+	 * @throws IOException
+	 */
+	public static PackedPatternFile load(File textPatternFile) throws IOException {
+		return new PackedPatternFile(textPatternFile, ByteBuffer.wrap(packToBytes(textPatternFile)));
+	}
+
+	/**
+	 * Packs every .pattern file in each of the given pattern package directories.
+	 *
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		for (String dir : args) {
+			for (File f : new File(dir).listFiles()) {
+				if (f.getName().endsWith(".pattern")) {
+					pack(f, new File(f.getPath() + FILE_EXTENSION));
+					DebugUtils.println("Packed " + f);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Maps a packed file.
+	 *
+	 * @param packedFile
+	 * @return
+	 * @throws IOException
+	 *             if the file is not a packed pattern file
+	 */
+	public static PackedPatternFile open(File packedFile) throws IOException {
+		final FileInputStream in = new FileInputStream(packedFile);
+		try {
+			final FileChannel channel = in.getChannel();
+			return new PackedPatternFile(packedFile, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel
+					.size()));
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Converts a text pattern file (one line of u/d/l/r characters per row of dots) to the packed format.
+	 *
+	 * @param textPatternFile
+	 * @param packedFile
+	 * @throws IOException
+	 */
+	public static void pack(File textPatternFile, File packedFile) throws IOException {
+		final byte[] bytes = packToBytes(textPatternFile);
+		// write to a temporary file first, so a reader never maps a half written file
+		final File tempFile = new File(packedFile.getPath() + ".tmp");
+		final FileOutputStream out = new FileOutputStream(tempFile);
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+		if (packedFile.exists() && !packedFile.delete()) {
+			throw new IOException("Could not replace " + packedFile);
+		}
+		if (!tempFile.renameTo(packedFile)) {
+			throw new IOException("Could not create " + packedFile);
+		}
+	}
+
+	/**
+	 * @return the whole packed file, header included
+	 */
+	private static byte[] packToBytes(File textPatternFile) throws IOException {
+		final List<String> lines = new ArrayList<String>();
+		final BufferedReader br = new BufferedReader(new FileReader(textPatternFile));
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				if (line.length() > 0) {
+					lines.add(line);
+				}
+			}
+		} finally {
+			br.close();
+		}
+
+		final int numRows = lines.size();
+		final int numColumns = numRows == 0 ? 0 : lines.get(0).length();
+		final int bytesPerRow = (numColumns + 3) / 4;
+		final ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + numRows * bytesPerRow);
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(numColumns);
+		buffer.putInt(numRows);
+		for (int row = 0; row < numRows; row++) {
+			final String line = lines.get(row);
+			if (line.length() != numColumns) {
+				throw new IOException(textPatternFile + ": row " + row + " has " + line.length()
+						+ " dots; expected " + numColumns + ".");
+			}
+			final int rowStart = HEADER_BYTES + row * bytesPerRow;
+			for (int col = 0; col < numColumns; col++) {
+				final int index = rowStart + col / 4;
+				final int shift = 6 - 2 * (col % 4);
+				buffer.put(index, (byte) (buffer.get(index) | (encode(line.charAt(col)) << shift)));
+			}
+		}
+		return buffer.array();
+	}
+
+	private ByteBuffer buffer;
+
+	private int bytesPerRow;
+
+	private int numColumns;
+
+	private int numRows;
+
+	private PackedPatternFile(File file, ByteBuffer theBuffer) throws IOException {
+		buffer = theBuffer;
+		if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+			throw new IOException(file + " is not a packed pattern file.");
+		}
+		if (buffer.getInt(4) != VERSION) {
+			throw new IOException(file + " has packed pattern version " + buffer.getInt(4) + "; expected "
+					+ VERSION + ".");
+		}
+		numColumns = buffer.getInt(8);
+		numRows = buffer.getInt(12);
+		bytesPerRow = (numColumns + 3) / 4;
+		if (buffer.capacity() < HEADER_BYTES + (long) numRows * bytesPerRow) {
+			throw new IOException(file + " is truncated.");
+		}
+	}
+
+	/**
+	 * @param row
+	 * @param col
+	 * @return one of the PatternJitter directions
+	 */
+	public char getJitter(int row, int col) {
+		// absolute gets do not touch the buffer's position, so many threads can read at once
+		final int b = buffer.get(HEADER_BYTES + row * bytesPerRow + col / 4);
+		return JITTERS[(b >> (6 - 2 * (col % 4))) & 3];
+	}
+
+	public int getNumColumns() {
+		return numColumns;
+	}
+
+	public int getNumRows() {
+		return numRows;
+	}
+
+	/**
+	 * The caller must make sure the rectangle is inside the file.
+	 *
+	 * @param originX
+	 *            leftmost column
+	 * @param originY
+	 *            topmost row
+	 * @param width
+	 *            number of columns
+	 * @param height
+	 *            number of rows
+	 * @return a view of the dots; nothing is copied
+	 */
+	public Slice getSlice(int originX, int originY, int width, int height) {
+		return new Slice(this, originX, originY, width, height);
+	}
+}
@@ -0,0 +1,577 @@
+package papertoolkit.pattern;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import papertoolkit.units.coordinates.StreamedPatternCoordinates;
+import papertoolkit.util.DebugUtils;
+
+/**
+ * <p>
+ * Hands out unique pattern from a pattern package, and remembers what it has handed out in a ledger file.
+ * Every allocation reads the ledger, finds free space, and writes the ledger back, all while holding a lock
+ * on the file. So, renderers in different threads, in different processes, or in later runs of the
+ * application never get the same pattern (as long as they use the same ledger).
+ * </p>
+ * <p>
+ * The ledger is a text file with one reservation per line: the first pattern file, the x and y offset (in
+ * dots) into that file, the width and height (in dots), and the owner (any name, e.g., the sheet or the
+ * .patternInfo.xml file the pattern was rendered for). A reservation that fits in one pattern file is placed
+ * in the first gap that is large enough, scanning files in order, and each file top to bottom, left to right.
+ * A larger reservation takes the first run of consecutive pattern files that nothing has been taken from,
+ * tiled the way TiledPatternGenerator tiles them. Releasing a reservation returns its space to the free
+ * space.
+ * </p>
+ * <p>
+ * Each time we read the ledger, we sort the files that nothing has been taken from into runs (first file
+ * and length, in order). Large reservations take the first run that is long enough, and small ones only look
+ * inside the partly used files that come before the first free run.
+ * </p>
+ * <p>
+ * Use it through TiledPatternGenerator.setAllocator(...). Given a pen sample (or the pattern of a region in a
+ * PatternToSheetMapping), findReservation(...) tells you which reservation, and so which owner, it belongs
+ * to.
+ * </p>
+ * <p>
+ * <span class="BSDLicense"> This software is distributed under the <a
+ * href="http://hci.stanford.edu/research/copyright.txt">BSD License</a>. </span>
+ * </p>
+ */
+public class PatternAllocator {
+
+	/**
+	 * A rectangle of dots (possibly spanning several pattern files) that belongs to one owner.
+	 */
+	public static class Reservation {
+
+		private int firstPatternFile;
+
+		private int height;
+
+		private String owner;
+
+		private int width;
+
+		private int x;
+
+		private int y;
+
+		/**
+		 * @param patternFile
+		 *            the file that the top left dot comes from
+		 * @param xOffset
+		 *            in dots, from the left of that file (0 if the reservation needs more than one file)
+		 * @param yOffset
+		 * @param numDotsX
+		 * @param numDotsY
+		 * @param theOwner
+		 */
+		public Reservation(int patternFile, int xOffset, int yOffset, int numDotsX, int numDotsY,
+				String theOwner) {
+			firstPatternFile = patternFile;
+			x = xOffset;
+			y = yOffset;
+			width = numDotsX;
+			height = numDotsY;
+			owner = theOwner;
+		}
+
+		/**
+		 * @param pkg
+		 * @return the pattern that this reservation refers to
+		 */
+		public TiledPattern createPattern(PatternPackage pkg) {
+			final int cols = pkg.getNumPatternColsPerFile();
+			final int rows = pkg.getNumPatternRowsPerFile();
+			final int numTilesX = getNumTiles(width, cols);
+			final int numTilesY = getNumTiles(height, rows);
+			return new TiledPattern(pkg, firstPatternFile, x, y, numTilesX, numTilesY, //
+					width - (numTilesX - 1) * cols, height - (numTilesY - 1) * rows);
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Reservation)) {
+				return false;
+			}
+			final Reservation r = (Reservation) o;
+			return r.firstPatternFile == firstPatternFile && r.x == x && r.y == y && r.width == width
+					&& r.height == height && r.owner.equals(owner);
+		}
+
+		public int getFirstPatternFile() {
+			return firstPatternFile;
+		}
+
+		public int getHeight() {
+			return height;
+		}
+
+		public String getOwner() {
+			return owner;
+		}
+
+		/**
+		 * @param cols
+		 *            dots across each pattern file
+		 * @param rows
+		 *            dots down each pattern file
+		 * @return the dots this reservation uses in each pattern file (indexed by file number)
+		 */
+		Map<Integer, Rectangle> getRectangles(int cols, int rows) {
+			final Map<Integer, Rectangle> rectangles = new HashMap<Integer, Rectangle>();
+			if (x + width <= cols && y + height <= rows) {
+				rectangles.put(firstPatternFile, new Rectangle(x, y, width, height));
+				return rectangles;
+			}
+			// tiled, as in TiledPattern: row by row, one file per tile
+			final int numTilesX = getNumTiles(width, cols);
+			final int numTilesY = getNumTiles(height, rows);
+			for (int tileRow = 0; tileRow < numTilesY; tileRow++) {
+				for (int tileCol = 0; tileCol < numTilesX; tileCol++) {
+					final int w = (tileCol == numTilesX - 1) ? width - (numTilesX - 1) * cols : cols;
+					final int h = (tileRow == numTilesY - 1) ? height - (numTilesY - 1) * rows : rows;
+					rectangles.put(firstPatternFile + tileRow * numTilesX + tileCol, new Rectangle(0, 0, w, h));
+				}
+			}
+			return rectangles;
+		}
+
+		public int getWidth() {
+			return width;
+		}
+
+		public int getX() {
+			return x;
+		}
+
+		public int getY() {
+			return y;
+		}
+
+		public int hashCode() {
+			return ((firstPatternFile * 31 + x) * 31 + y) * 31 + owner.hashCode();
+		}
+
+		/**
+		 * @return the line that stores this reservation in the ledger
+		 */
+		private String toLedgerLine() {
+			return firstPatternFile + " " + x + " " + y + " " + width + " " + height + " " + owner;
+		}
+
+		public String toString() {
+			return "Reservation{" + owner + ": file " + firstPatternFile + " at (" + x + ", " + y + "), " + width
+					+ " x " + height + " dots}";
+		}
+	}
+
+	/**
+	 * A change to the ledger, made while we hold the lock on the ledger file.
+	 */
+	private static abstract class LedgerChange {
+		/**
+		 * @param reservations
+		 *            everything in the ledger; modify it to change the ledger
+		 * @return what to return to the caller
+		 */
+		abstract Reservation apply(List<Reservation> reservations);
+	}
+
+	/**
+	 * Number of dots we keep between reservations, so that no two reservations are touching each other (same
+	 * as TiledPatternGenerator).
+	 */
+	private static final int BUFFER = 30;
+
+	/**
+	 * The name of the ledger file, when it is kept in the pattern package's directory.
+	 */
+	public static final String DEFAULT_LEDGER_FILE_NAME = "allocations.ledger";
+
+	/**
+	 * One lock for each ledger file (by canonical path) in this JVM. A FileLock only keeps other processes
+	 * out: a second lock on the same file from this JVM throws an OverlappingFileLockException, so allocators
+	 * that share a ledger take this lock first.
+	 */
+	private static final Map<String, Object> LEDGER_LOCKS = new HashMap<String, Object>();
+
+	/**
+	 * @param usedFiles
+	 *            the files that some reservation takes space from, in order
+	 * @param numFiles
+	 * @return the runs of consecutive files that nothing is taken from: first file, and number of files
+	 */
+	private static TreeMap<Integer, Integer> getFreeRuns(TreeSet<Integer> usedFiles, int numFiles) {
+		final TreeMap<Integer, Integer> freeRuns = new TreeMap<Integer, Integer>();
+		int start = 0;
+		for (int n : usedFiles) {
+			if (n >= numFiles) {
+				break;
+			}
+			if (n > start) {
+				freeRuns.put(start, n - start);
+			}
+			start = Math.max(start, n + 1);
+		}
+		if (start < numFiles) {
+			freeRuns.put(start, numFiles - start);
+		}
+		return freeRuns;
+	}
+
+	/**
+	 * @return the lock that every allocator in this JVM takes before touching this ledger file
+	 */
+	private static Object getLedgerLock(File ledger) {
+		String path;
+		try {
+			path = ledger.getCanonicalPath();
+		} catch (IOException e) {
+			path = ledger.getAbsolutePath();
+		}
+		synchronized (LEDGER_LOCKS) {
+			Object lock = LEDGER_LOCKS.get(path);
+			if (lock == null) {
+				lock = new Object();
+				LEDGER_LOCKS.put(path, lock);
+			}
+			return lock;
+		}
+	}
+
+	/**
+	 * @return how many tiles (pattern files) it takes to cover this many dots
+	 */
+	private static int getNumTiles(int numDots, int dotsPerTile) {
+		return Math.max(1, (numDots + dotsPerTile - 1) / dotsPerTile);
+	}
+
+	private File ledgerFile;
+
+	/**
+	 * Shared with the other allocators in this JVM that use the same ledger.
+	 */
+	private Object ledgerLock;
+
+	private PatternPackage patternPackage;
+
+	/**
+	 * What the ledger held the last time we read it.
+	 */
+	private List<Reservation> reservations = new ArrayList<Reservation>();
+
+	/**
+	 * Keeps the ledger in the pattern package's directory, so that everyone who uses the package shares it.
+	 *
+	 * @param pkg
+	 */
+	public PatternAllocator(PatternPackage pkg) {
+		this(pkg, new File(pkg.getLocation(), DEFAULT_LEDGER_FILE_NAME));
+	}
+
+	/**
+	 * @param pkg
+	 * @param theLedgerFile
+	 *            created if it does not exist
+	 */
+	public PatternAllocator(PatternPackage pkg, File theLedgerFile) {
+		patternPackage = pkg;
+		ledgerFile = theLedgerFile;
+		ledgerLock = getLedgerLock(ledgerFile);
+		refresh();
+	}
+
+	/**
+	 * Reserves pattern that nobody else has reserved.
+	 *
+	 * @param numDotsX
+	 * @param numDotsY
+	 * @param owner
+	 *            saved with the reservation (whitespace is replaced with underscores)
+	 * @return the reservation, or null if there is not enough free pattern left in the package (or the
+	 *         ledger cannot be written)
+	 */
+	public Reservation allocate(final int numDotsX, final int numDotsY, String owner) {
+		if (numDotsX <= 0 || numDotsY <= 0) {
+			return null;
+		}
+		final String ownerName = (owner == null || owner.trim().length() == 0) ? "unknown" : owner.trim()
+				.replaceAll("\\s+", "_");
+		return changeLedger(new LedgerChange() {
+			Reservation apply(List<Reservation> all) {
+				final Reservation r = findFreeSpace(all, numDotsX, numDotsY, ownerName);
+				if (r != null) {
+					all.add(r);
+				}
+				return r;
+			}
+		});
+	}
+
+	/**
+	 * Locks the ledger (in this JVM, then the file), reads it, applies the change, and writes it back if
+	 * anything changed.
+	 */
+	private Reservation changeLedger(LedgerChange change) {
+		synchronized (ledgerLock) {
+			RandomAccessFile raf = null;
+			FileLock lock = null;
+			try {
+				raf = new RandomAccessFile(ledgerFile, "rw");
+				// blocks until other processes are done with the ledger
+				lock = raf.getChannel().lock();
+
+				final List<Reservation> all = readLedger(raf);
+				final List<Reservation> before = new ArrayList<Reservation>(all);
+				final Reservation result = change.apply(all);
+				if (!all.equals(before)) {
+					writeLedger(raf, all);
+				}
+				synchronized (this) {
+					reservations = all;
+				}
+				return result;
+			} catch (IOException e) {
+				e.printStackTrace();
+				return null;
+			} finally {
+				try {
+					if (lock != null) {
+						lock.release();
+					}
+					if (raf != null) {
+						raf.close();
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the free spot (or run of files) that comes first, or null if there is none
+	 */
+	private Reservation findFreeSpace(List<Reservation> all, int numDotsX, int numDotsY, String owner) {
+		final int cols = patternPackage.getNumPatternColsPerFile();
+		final int rows = patternPackage.getNumPatternRowsPerFile();
+		final int numFiles = patternPackage.getNumPatternFiles();
+
+		// the space that is already taken in each file, in file order
+		final TreeMap<Integer, List<Rectangle>> used = new TreeMap<Integer, List<Rectangle>>();
+		for (Reservation r : all) {
+			for (Map.Entry<Integer, Rectangle> entry : r.getRectangles(cols, rows).entrySet()) {
+				List<Rectangle> inFile = used.get(entry.getKey());
+				if (inFile == null) {
+					inFile = new ArrayList<Rectangle>();
+					used.put(entry.getKey(), inFile);
+				}
+				inFile.add(entry.getValue());
+			}
+		}
+
+		final TreeMap<Integer, Integer> freeRuns = getFreeRuns(new TreeSet<Integer>(used.keySet()), numFiles);
+
+		if (numDotsX <= cols && numDotsY <= rows) {
+			// every file before the first free one is partly used; look for a gap in those first
+			final int firstFreeFile = freeRuns.isEmpty() ? numFiles : freeRuns.firstKey();
+			for (Map.Entry<Integer, List<Rectangle>> inFile : used.headMap(firstFreeFile).entrySet()) {
+				final Point p = findFreeSpaceInFile(inFile.getValue(), numDotsX, numDotsY, cols, rows);
+				if (p != null) {
+					return new Reservation(inFile.getKey(), p.x, p.y, numDotsX, numDotsY, owner);
+				}
+			}
+			if (firstFreeFile < numFiles) {
+				return new Reservation(firstFreeFile, 0, 0, numDotsX, numDotsY, owner);
+			}
+			return null;
+		}
+
+		final int numTiles = getNumTiles(numDotsX, cols) * getNumTiles(numDotsY, rows);
+		for (Map.Entry<Integer, Integer> run : freeRuns.entrySet()) {
+			if (run.getValue() >= numTiles) {
+				return new Reservation(run.getKey(), 0, 0, numDotsX, numDotsY, owner);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Tries the top left corner of the file, and the spots just right of and just below every reservation.
+	 *
+	 * @return the topmost (then leftmost) free spot, or null if the rectangle does not fit
+	 */
+	private Point findFreeSpaceInFile(List<Rectangle> used, int w, int h, int cols, int rows) {
+		if (used == null) {
+			return new Point(0, 0);
+		}
+		final TreeSet<Integer> xs = new TreeSet<Integer>();
+		final TreeSet<Integer> ys = new TreeSet<Integer>();
+		xs.add(0);
+		ys.add(0);
+		for (Rectangle r : used) {
+			xs.add(r.x + r.width + BUFFER);
+			ys.add(r.y + r.height + BUFFER);
+		}
+		for (int y : ys) {
+			if (y + h > rows) {
+				break;
+			}
+			for (int x : xs) {
+				if (x + w > cols) {
+					break;
+				}
+				if (isFree(used, new Rectangle(x, y, w, h))) {
+					return new Point(x, y);
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param coordinates
+	 *            e.g., a pen sample
+	 * @return the reservation that contains this location, or null if it is not reserved (in the ledger, as
+	 *         of the last time we read it; see refresh())
+	 */
+	public Reservation findReservation(StreamedPatternCoordinates coordinates) {
+		final int cols = patternPackage.getNumPatternColsPerFile();
+		final int rows = patternPackage.getNumPatternRowsPerFile();
+		for (Reservation r : getReservations()) {
+			for (Map.Entry<Integer, Rectangle> entry : r.getRectangles(cols, rows).entrySet()) {
+				final StreamedPatternCoordinates fileOrigin = patternPackage
+						.getPatternCoordinateOfOriginOfFile(entry.getKey());
+				if (entry.getValue().contains(coordinates.getXVal() - fileOrigin.getXVal(),
+						coordinates.getYVal() - fileOrigin.getYVal())) {
+					return r;
+				}
+			}
+		}
+		return null;
+	}
+
+	public File getLedgerFile() {
+		return ledgerFile;
+	}
+
+	public PatternPackage getPatternPackage() {
+		return patternPackage;
+	}
+
+	/**
+	 * @return the reservations in the ledger, as of the last time we read it
+	 */
+	public synchronized List<Reservation> getReservations() {
+		return Collections.unmodifiableList(new ArrayList<Reservation>(reservations));
+	}
+
+	/**
+	 * @param owner
+	 * @return the reservations that were made for this owner
+	 */
+	public List<Reservation> getReservations(String owner) {
+		final List<Reservation> owned = new ArrayList<Reservation>();
+		for (Reservation r : getReservations()) {
+			if (r.getOwner().equals(owner)) {
+				owned.add(r);
+			}
+		}
+		return owned;
+	}
+
+	/**
+	 * @return whether the rectangle is at least BUFFER dots away from every used rectangle
+	 */
+	private boolean isFree(List<Rectangle> used, Rectangle r) {
+		if (used == null) {
+			return true;
+		}
+		final Rectangle withBuffer = new Rectangle(r.x - BUFFER, r.y - BUFFER, r.width + 2 * BUFFER, r.height
+				+ 2 * BUFFER);
+		for (Rectangle u : used) {
+			if (withBuffer.intersects(u)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Skips lines that cannot be parsed (and comments, which start with #).
+	 */
+	private List<Reservation> readLedger(RandomAccessFile raf) throws IOException {
+		final List<Reservation> all = new ArrayList<Reservation>();
+		final byte[] bytes = new byte[(int) raf.length()];
+		raf.seek(0);
+		raf.readFully(bytes);
+		for (String line : new String(bytes, "UTF-8").split("\n")) {
+			line = line.trim();
+			if (line.length() == 0 || line.startsWith("#")) {
+				continue;
+			}
+			final String[] fields = line.split("\\s+", 6);
+			try {
+				all.add(new Reservation(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]), //
+						Integer.parseInt(fields[2]), Integer.parseInt(fields[3]), Integer.parseInt(fields[4]), //
+						fields[5]));
+			} catch (RuntimeException e) {
+				DebugUtils.println("Skipping unreadable line in " + ledgerFile + ": " + line);
+			}
+		}
+		return all;
+	}
+
+	/**
+	 * Re-reads the ledger, to see what other processes have reserved.
+	 */
+	public void refresh() {
+		changeLedger(new LedgerChange() {
+			Reservation apply(List<Reservation> all) {
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Gives the reservation's pattern back, so it can be allocated again. Only do this when nothing printed
+	 * with that pattern is in use anymore.
+	 *
+	 * @param reservation
+	 */
+	public void release(final Reservation reservation) {
+		changeLedger(new LedgerChange() {
+			Reservation apply(List<Reservation> all) {
+				all.remove(reservation);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Replaces the contents of the ledger file.
+	 */
+	private void writeLedger(RandomAccessFile raf, List<Reservation> all) throws IOException {
+		final StringBuilder sb = new StringBuilder();
+		sb.append("# Pattern reserved from the [" + patternPackage.getName() + "] pattern package.\n");
+		sb.append("# firstPatternFile x y width height owner\n");
+		for (Reservation r : all) {
+			sb.append(r.toLedgerLine() + "\n");
+		}
+		final byte[] bytes = sb.toString().getBytes("UTF-8");
+		raf.setLength(0);
+		raf.seek(0);
+		raf.write(bytes);
+	}
+}
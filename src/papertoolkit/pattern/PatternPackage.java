@@ -7,13 +7,24 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.LineNumberReader;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.InvalidPropertiesFormatException;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 
 import papertoolkit.pattern.coordinates.CoordinateTranslator;
+import papertoolkit.pattern.coordinates.PageAddress;
 import papertoolkit.units.PatternDots;
 import papertoolkit.units.Units;
 import papertoolkit.units.coordinates.StreamedPatternCoordinates;
@@ -27,6 +38,11 @@ import papertoolkit.util.files.FileUtils;
  * screen or into little graphics that represent pattern buttons.
  * </p>
  * <p>
+ * The first time a .pattern file is used, it is packed (two bits per dot) into N.pattern.packed next to it, and
+ * the packed file is memory mapped. Pattern is handed out as slices of the mapped files. Different files can be
+ * loaded by different threads at the same time (see loadPackedPatternFiles(...)); each file is loaded once.
+ * </p>
+ * <p>
  * All interaction with the specific pattern files should go in this class. This class also contains the
  * mapping between Streamed Pattern Coordinates and Batched Coordinates (from docking the pen). This mapping
  * is read from the XML file, and determined experimentally, by the Calibration classes.
@@ -41,6 +57,29 @@ import papertoolkit.util.files.FileUtils;
  */
 public class PatternPackage {
 
+	/**
+	 * Loads pattern files in the background, for loadPackedPatternFiles(...). Packing is mostly file IO, so
+	 * we use a few more threads than processors.
+	 */
+	private static ExecutorService loader;
+
+	/**
+	 * @return daemon threads, so that loading pattern never keeps the application running
+	 */
+	private static synchronized ExecutorService getLoader() {
+		if (loader == null) {
+			loader = Executors.newFixedThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors()),
+					new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							final Thread t = new Thread(r, "Pattern File Loader");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		return loader;
+	}
+
 	/**
 	 * @return the Pattern Packages that are available to the system. Packages are stored in the directory
 	 *         (pattern/). We return a Map<String, PatternPackage> so you can address the package by name.
@@ -62,6 +101,33 @@ public class PatternPackage {
 		return packages;
 	}
 
+	/**
+	 * The logical (batched) address of an even page in this package, e.g., 48.0.12.8. The other page
+	 * addresses are found relative to this one. This is a key for the config.xml file.
+	 */
+	private static final String EVEN_PAGE = "evenPage";
+
+	/**
+	 * The physical (streamed) coordinates of the batched origin of the even page.
+	 */
+	private static final String EVEN_PAGE_ORIGIN_X = "evenPageOriginX";
+
+	private static final String EVEN_PAGE_ORIGIN_Y = "evenPageOriginY";
+
+	/**
+	 * How far the origin of odd pages is from where it would be if they were even pages.
+	 */
+	private static final String ODD_PAGE_OFFSET_X = "oddPageOffsetX";
+
+	private static final String ODD_PAGE_OFFSET_Y = "oddPageOffsetY";
+
+	/**
+	 * How far (in streamed dots) the origin of page N+1 is from the origin of page N.
+	 */
+	private static final String PER_PAGE_OFFSET_X = "perPageOffsetX";
+
+	private static final String PER_PAGE_OFFSET_Y = "perPageOffsetY";
+
 	/**
 	 * The pattern X coordinate of the top left of page 0. This is the key for the config.xml file (stored in
 	 * the pattern package's directory, alongside the .pattern files).
@@ -88,6 +154,18 @@ public class PatternPackage {
 	 */
 	private static final String PATTERN_FILE_EXTENSION = ".pattern";
 
+	/**
+	 * Null if the config.xml file does not say which page addresses this package's pages have.
+	 */
+	private PageAddress evenPage;
+
+	/**
+	 * Streamed dots. The origins and offsets are only used if evenPage is known.
+	 */
+	private double evenPageOriginX;
+
+	private double evenPageOriginY;
+
 	/**
 	 * Specified in Anoto Dots.
 	 */
@@ -133,16 +211,30 @@ public class PatternPackage {
 	 */
 	private int numPatternRowsPerFile;
 
+	private double oddPageOffsetX;
+
+	private double oddPageOffsetY;
+
 	/**
 	 * Enables access to a pattern file by the pattern file number N. It will retrieve "N.pattern"
 	 */
 	private Map<Integer, File> numToPatternFile;
 
+	/**
+	 * Packed versions of the pattern files, loaded as they are needed. The first thread to ask for a file
+	 * loads it; other threads that ask for the same file wait for that load.
+	 */
+	private ConcurrentMap<Integer, FutureTask<PackedPatternFile>> numToPackedPatternFile = new ConcurrentHashMap<Integer, FutureTask<PackedPatternFile>>();
+
 	/**
 	 * Where we will find the pattern definition files.
 	 */
 	private File patternDefinitionPath;
 
+	private double perPageOffsetX;
+
+	private double perPageOffsetY;
+
 	/**
 	 * A list of all the files that store pattern definition.
 	 */
@@ -230,6 +322,13 @@ public class PatternPackage {
 		readPropertiesFromConfigFile(new File(patternDefinitionPath, "config.xml"));
 	}
 
+	/**
+	 * @return the directory that holds the .pattern files and config.xml
+	 */
+	public File getLocation() {
+		return patternDefinitionPath;
+	}
+
 	/**
 	 * @return the minimum horizontal physical (streamed) coordinate
 	 */
@@ -244,6 +343,26 @@ public class PatternPackage {
 		return minPatternY;
 	}
 
+	/**
+	 * @param numPatternFile
+	 * @return identifies this copy and version of the pattern file: its full path, when it was last
+	 *         modified, and its length. It changes if the package is regenerated, or is another install's
+	 *         package of the same name.
+	 */
+	public String getPatternFileStamp(int numPatternFile) {
+		final File patternFile = (numToPatternFile == null) ? null : numToPatternFile.get(numPatternFile);
+		if (patternFile == null) {
+			return "missing" + numPatternFile;
+		}
+		String path;
+		try {
+			path = patternFile.getCanonicalPath();
+		} catch (IOException e) {
+			path = patternFile.getAbsolutePath();
+		}
+		return path + "@" + patternFile.lastModified() + ":" + patternFile.length();
+	}
+
 	/**
 	 * @return the name of the package (same as the directory's name)
 	 */
@@ -272,6 +391,13 @@ public class PatternPackage {
 		return numPatternColsPerFile;
 	}
 
+	/**
+	 * @return how many .pattern files there are (numbered 0 to N-1)
+	 */
+	public int getNumPatternFiles() {
+		return numPatternFiles;
+	}
+
 	/**
 	 * @return
 	 */
@@ -294,6 +420,61 @@ public class PatternPackage {
 		return new StreamedPatternCoordinates(x, y);
 	}
 
+	/**
+	 * Batched coordinates are relative to the page they were written on. Add them to this origin to get the
+	 * streamed coordinates that our pattern maps use.
+	 * 
+	 * @param address
+	 *            the logical address of a page (from batched data)
+	 * @return the streamed coordinates of the page's batched origin, or null if the page is not in this
+	 *         package (or we do not know this package's page addresses)
+	 */
+	public StreamedPatternCoordinates getPatternCoordinateOfOriginOfPage(PageAddress address) {
+		if (evenPage == null || address.getSegment() != evenPage.getSegment()
+				|| address.getShelf() != evenPage.getShelf() || address.getBook() != evenPage.getBook()) {
+			return null;
+		}
+		final int pagesAfterEvenPage = address.getPage() - evenPage.getPage();
+		double x = evenPageOriginX + pagesAfterEvenPage * perPageOffsetX;
+		double y = evenPageOriginY + pagesAfterEvenPage * perPageOffsetY;
+		if (pagesAfterEvenPage % 2 != 0) {
+			x += oddPageOffsetX;
+			y += oddPageOffsetY;
+		}
+		return new StreamedPatternCoordinates(new PatternDots(x), new PatternDots(y));
+	}
+
+	/**
+	 * @param address
+	 *            the logical address of a page (from batched data)
+	 * @return the number N of the pattern file (N.pattern) that was printed on this page, or -1 if the page
+	 *         is not in this package
+	 */
+	public int getPatternFileNumber(PageAddress address) {
+		final StreamedPatternCoordinates origin = getPatternCoordinateOfOriginOfPage(address);
+		if (origin == null) {
+			return -1;
+		}
+		// the odd page offsets are a few dots, so we round to the nearest file's origin
+		final double dotsFromFirstFile;
+		final double dotsBetweenFiles;
+		if (numDotsHorizontalBetweenOriginOfPages != 0) {
+			dotsFromFirstFile = origin.getX().getValue() - minPatternX.getValue();
+			dotsBetweenFiles = numDotsHorizontalBetweenOriginOfPages;
+		} else {
+			dotsFromFirstFile = origin.getY().getValue() - minPatternY.getValue();
+			dotsBetweenFiles = numDotsVerticalBetweenOriginOfPages;
+		}
+		if (dotsBetweenFiles == 0) {
+			return -1;
+		}
+		final int fileNumber = (int) Math.round(dotsFromFirstFile / dotsBetweenFiles);
+		if (fileNumber < 0 || fileNumber >= numPatternFiles) {
+			return -1;
+		}
+		return fileNumber;
+	}
+
 	/**
 	 * We verify that numDotsX and numDotsY do not exceed the amount of dots in one file. If so, the requested
 	 * number of dots are modified to fit. Thus, the dimension of the String[] may be smaller than you
@@ -317,6 +498,131 @@ public class PatternPackage {
 	 */
 	public String[] readPatternFromFile(int numPatternFile, Units originX, Units originY, Units width,
 			Units height) {
+		final PackedPatternFile.Slice slice = getPatternSlice(numPatternFile, originX, originY, width, height);
+		final String[] pattern = new String[slice.getNumRows()];
+		for (int i = 0; i < pattern.length; i++) {
+			pattern[i] = slice.getRow(i);
+		}
+		return pattern;
+	}
+
+	/**
+	 * @param numPatternFile
+	 * @return the packed, memory mapped version of the pattern file, or null if it cannot be read
+	 */
+	public PackedPatternFile getPackedPatternFile(final int numPatternFile) {
+		FutureTask<PackedPatternFile> task = numToPackedPatternFile.get(numPatternFile);
+		if (task == null) {
+			final FutureTask<PackedPatternFile> newTask = new FutureTask<PackedPatternFile>(
+					new Callable<PackedPatternFile>() {
+						public PackedPatternFile call() {
+							return loadPackedPatternFile(numPatternFile);
+						}
+					});
+			task = numToPackedPatternFile.putIfAbsent(numPatternFile, newTask);
+			if (task == null) {
+				// we are the first to ask for it
+				task = newTask;
+				task.run();
+			}
+		}
+		try {
+			final PackedPatternFile packed = task.get();
+			if (packed == null) {
+				// let the next caller try again
+				numToPackedPatternFile.remove(numPatternFile, task);
+			}
+			return packed;
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+			numToPackedPatternFile.remove(numPatternFile, task);
+		}
+		return null;
+	}
+
+	/**
+	 * Packs the pattern file (if it has not been packed yet, or has changed), and maps it.
+	 * 
+	 * @param numPatternFile
+	 * @return null if it cannot be read
+	 */
+	private PackedPatternFile loadPackedPatternFile(int numPatternFile) {
+		PackedPatternFile packed = null;
+		final File patternFile = (numToPatternFile == null) ? null : numToPatternFile.get(numPatternFile);
+		if (patternFile == null) {
+			DebugUtils.println("Pattern file " + numPatternFile + " is not in this package.");
+			return null;
+		}
+		final File packedFile = new File(patternFile.getPath() + PackedPatternFile.FILE_EXTENSION);
+		try {
+			if (!packedFile.exists() || packedFile.lastModified() < patternFile.lastModified()) {
+				try {
+					PackedPatternFile.pack(patternFile, packedFile);
+				} catch (IOException e) {
+					// e.g., a read only install; pack it in memory instead
+					DebugUtils.println("Could not write " + packedFile + ". Packing it in memory.");
+					packed = PackedPatternFile.load(patternFile);
+				}
+			}
+			if (packed == null) {
+				packed = PackedPatternFile.open(packedFile);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+		return packed;
+	}
+
+	/**
+	 * Loads several pattern files at the same time, and waits until they are all loaded. Files that do not
+	 * exist in this package are skipped.
+	 * 
+	 * @param firstPatternFile
+	 * @param numFiles
+	 */
+	public void loadPackedPatternFiles(int firstPatternFile, int numFiles) {
+		final List<Future<?>> loads = new ArrayList<Future<?>>();
+		final int end = Math.min(firstPatternFile + numFiles, numPatternFiles);
+		for (int n = Math.max(firstPatternFile, 0); n < end; n++) {
+			final FutureTask<PackedPatternFile> task = numToPackedPatternFile.get(n);
+			if (task != null && task.isDone()) {
+				continue;
+			}
+			final int numPatternFile = n;
+			loads.add(getLoader().submit(new Runnable() {
+				public void run() {
+					getPackedPatternFile(numPatternFile);
+				}
+			}));
+		}
+		try {
+			for (Future<?> load : loads) {
+				load.get();
+			}
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+		}
+	}
+
+	/**
+	 * Same as readPatternFromFile(...), but returns a view into the memory mapped pattern file instead of
+	 * copying the dots into Strings.
+	 * 
+	 * @param numPatternFile
+	 * @param originX
+	 * @param originY
+	 * @param width
+	 * @param height
+	 * @return the requested dots, cropped to fit in the file. If the file does not exist, the slice has no
+	 *         columns.
+	 */
+	public PackedPatternFile.Slice getPatternSlice(int numPatternFile, Units originX, Units originY,
+			Units width, Units height) {
 
 		// regardless of the units, convert them to pattern dots
 		int startDotsX = (int) Math.round(originX.getValueInPatternDots());
@@ -352,11 +658,9 @@ public class PatternPackage {
 		// we can request at max 8-5=3 dots.
 		// So we can get dots numbered 12, 13, and 14... which makes sense in a 15-dot wide file
 		// indexed from 0
-		int rightMostDot = startDotsX + numDotsAcross;
+		final int rightMostDot = startDotsX + numDotsAcross;
 		if (rightMostDot > numPatternColsPerFile) {
 			numDotsAcross = numDotsAcross - (rightMostDot - numPatternColsPerFile);
-			rightMostDot = startDotsX + numDotsAcross; // ends up being startDotsX + numDotsAcross
-			// - rightMostDot + numPatternColsPerFile
 		}
 
 		if (numDotsDown < 0) {
@@ -370,41 +674,17 @@ public class PatternPackage {
 		// end: making sure the units make sense
 		// /////////////////////////////////////
 
-		// create a data structure large enough to store however many dots we need
-		final String[] pattern = new String[numDotsDown];
-
 		// we are asking for pattern from an invalid file.
 		if (numPatternFile < 0 || numPatternFile >= numPatternFiles) {
 			DebugUtils.println("Pattern File " + numPatternFile + " does not exist in this package.");
-			return pattern;
+			return PackedPatternFile.getEmptySlice(numDotsDown);
 		}
 
-		// read the file and populate the array with jitter directions
-		// open up file numPatternFile
-		final File patternFile = numToPatternFile.get(numPatternFile);
-
-		BufferedReader br = null;
-		try {
-			br = new BufferedReader(new FileReader(patternFile));
-
-			// skip the requested number of vertical lines
-			while (startDotsY > 0) {
-				br.readLine();
-				startDotsY--;
-			}
-
-			// for each of the remaining lines, crop out the requested part of the string
-			for (int i = 0; i < numDotsDown; i++) {
-				String line = br.readLine();
-				pattern[i] = line.substring(startDotsX, rightMostDot);
-			}
-
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
+		final PackedPatternFile packed = getPackedPatternFile(numPatternFile);
+		if (packed == null) {
+			return PackedPatternFile.getEmptySlice(numDotsDown);
 		}
-		return pattern;
+		return packed.getSlice(startDotsX, startDotsY, numDotsAcross, numDotsDown);
 	}
 
 	/**
@@ -433,6 +713,20 @@ public class PatternPackage {
 		numDotsVerticalBetweenOriginOfPages = Double.parseDouble(props
 				.getProperty(NUM_VERT_DOTS_BETWEEN_PAGES));
 
+		// older packages do not say which page addresses they have
+		final String evenPageAddress = props.getProperty(EVEN_PAGE);
+		if (evenPageAddress != null) {
+			evenPage = new PageAddress(evenPageAddress.trim());
+			evenPageOriginX = Double.parseDouble(props.getProperty(EVEN_PAGE_ORIGIN_X, "0"));
+			evenPageOriginY = Double.parseDouble(props.getProperty(EVEN_PAGE_ORIGIN_Y, "0"));
+			perPageOffsetX = Double.parseDouble(props.getProperty(PER_PAGE_OFFSET_X,
+					Double.toString(numDotsHorizontalBetweenOriginOfPages)));
+			perPageOffsetY = Double.parseDouble(props.getProperty(PER_PAGE_OFFSET_Y,
+					Double.toString(numDotsVerticalBetweenOriginOfPages)));
+			oddPageOffsetX = Double.parseDouble(props.getProperty(ODD_PAGE_OFFSET_X, "0"));
+			oddPageOffsetY = Double.parseDouble(props.getProperty(ODD_PAGE_OFFSET_Y, "0"));
+		}
+
 		// System.out.println("PatternPackage: minPatternX=" + minPatternX + " minPatternY="
 		// + minPatternY + " numHorizDotsBetweenPages="
 		// + numHorizontalDotsBetweenOriginOfPages);
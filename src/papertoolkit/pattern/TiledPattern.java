@@ -13,6 +13,13 @@ import papertoolkit.units.coordinates.StreamedPatternCoordinates;
  * other classes to determine this information later on, for coordinate transformations, etc.
  * </p>
  * <p>
+ * The dots are not copied. Each tile is a slice of a memory mapped, packed pattern file. The files are not
+ * read until the dots are first needed (or loadPattern() is called), and then all of the tiles' files are
+ * read at the same time. So, a generator can hand out (reserve) pattern for many sheets quickly, and each
+ * sheet can load its own pattern later, in parallel with the others. Once a sheet is rendered, unloadPattern()
+ * lets go of its dots, while the pattern stays reserved.
+ * </p>
+ * <p>
  * <span class="BSDLicense"> This software is distributed under the <a
  * href="http://hci.stanford.edu/research/copyright.txt">BSD License</a>. </span>
  * </p>
@@ -84,10 +91,10 @@ public class TiledPattern {
 	private int numTotalRows;
 
 	/**
-	 * Stores the pattern in strings. One String per row. We use StringBuilder because it is useful for
-	 * reading in the pattern from disk.
+	 * The pattern, as one slice of a pattern file per tile, indexed [tileRow][tileCol]. Null until the pattern
+	 * is loaded.
 	 */
-	private StringBuilder[] pattern;
+	private volatile PackedPatternFile.Slice[][] tiles;
 
 	/**
 	 * 
@@ -176,8 +183,29 @@ public class TiledPattern {
 
 		// DebugUtils.println("Origin for this patch of pattern: " + patternCoordinateOfOrigin);
 
-		// read in the pattern information
-		loadPattern();
+		// the tiles use consecutive pattern files, starting from the initial one
+		// the files are read later, by loadPattern()
+		if (numTilesX * numTilesY > 0) {
+			lastPatternFileUsed = initialPatternFileNum + numTilesX * numTilesY - 1;
+		}
+	}
+
+	/**
+	 * @return identifies the dots of this pattern; two TiledPatterns with the same key have the same dots. The
+	 *         key includes where each pattern file we use is, and when it was modified, so it changes if the
+	 *         package is regenerated (or is a different package with the same name).
+	 */
+	public String getContentKey() {
+		final StringBuilder key = new StringBuilder(patternPackage.getName());
+		key.append("/file").append(initialPatternFileNum);
+		key.append("/offset").append(initialDotXOffset).append(",").append(initialDotYOffset);
+		key.append("/tiles").append(numTilesX).append("x").append(numTilesY);
+		key.append("/dots").append(numDotsXPerFullTile).append("x").append(numDotsYPerFullTile);
+		key.append("/last").append(numDotsXRightMost).append("x").append(numDotsYBottomMost);
+		for (int i = 0; i < numTilesX * numTilesY; i++) {
+			key.append("/").append(patternPackage.getPatternFileStamp(initialPatternFileNum + i));
+		}
+		return key.toString();
 	}
 
 	/**
@@ -274,25 +302,89 @@ public class TiledPattern {
 
 	/**
 	 * @param row
-	 * @return
+	 * @param col
+	 * @return the jitter direction (see PatternJitter) of one dot
+	 */
+	public char getJitter(int row, int col) {
+		final int tileRow = row / numDotsYPerFullTile;
+		final int rowInTile = row - tileRow * numDotsYPerFullTile;
+		for (PackedPatternFile.Slice tile : getTiles()[tileRow]) {
+			if (rowInTile >= tile.getNumRows()) {
+				continue;
+			}
+			if (col < tile.getNumColumns()) {
+				return tile.getJitter(rowInTile, col);
+			}
+			col -= tile.getNumColumns();
+		}
+		throw new IndexOutOfBoundsException("No dot at row " + row + ", column " + col);
+	}
+
+	/**
+	 * @param row
+	 * @return how many dots are on this row (usually getNumTotalColumns())
+	 */
+	public int getNumColumnsOnRow(int row) {
+		final int tileRow = row / numDotsYPerFullTile;
+		final int rowInTile = row - tileRow * numDotsYPerFullTile;
+		int numColumns = 0;
+		for (PackedPatternFile.Slice tile : getTiles()[tileRow]) {
+			if (rowInTile < tile.getNumRows()) {
+				numColumns += tile.getNumColumns();
+			}
+		}
+		return numColumns;
+	}
+
+	/**
+	 * @param row
+	 * @return the row as a String of u/d/l/r characters
 	 */
 	public String getPatternOnRow(int row) {
-		return pattern[row].toString();
+		final int tileRow = row / numDotsYPerFullTile;
+		final int rowInTile = row - tileRow * numDotsYPerFullTile;
+		final StringBuilder sb = new StringBuilder();
+		for (PackedPatternFile.Slice tile : getTiles()[tileRow]) {
+			if (rowInTile < tile.getNumRows()) {
+				sb.append(tile.getRow(rowInTile));
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return the tiles, loading them if this is the first time they are needed
+	 */
+	private PackedPatternFile.Slice[][] getTiles() {
+		PackedPatternFile.Slice[][] loadedTiles = tiles;
+		if (loadedTiles == null) {
+			synchronized (this) {
+				// the lock keeps unloadPattern() from getting in between
+				loadPattern();
+				loadedTiles = tiles;
+			}
+		}
+		return loadedTiles;
 	}
 
 	/**
-	 * Called by the constructor to load in the pattern. Any field set by this method can be safely accessed
-	 * by external classes.
+	 * Reads in the pattern, if it has not been read yet. This is called automatically the first time the dots
+	 * are needed. Call it yourself to load the pattern ahead of time (e.g., on another thread).
 	 */
-	private void loadPattern() {
+	public synchronized void loadPattern() {
+		if (tiles != null) {
+			return;
+		}
 		// System.out.println(this);
 
-		// each string will be numTotalColumns long
-		pattern = new StringBuilder[numTotalRows];
-		for (int row = 0; row < numTotalRows; row++) {
-			pattern[row] = new StringBuilder();
+		// read all the files we need at the same time, before we slice them up
+		if (numTilesX * numTilesY > 1) {
+			patternPackage.loadPackedPatternFiles(initialPatternFileNum, numTilesX * numTilesY);
 		}
 
+		// each slice goes in its own spot, so the result does not depend on which file loaded first
+		final PackedPatternFile.Slice[][] loadedTiles = new PackedPatternFile.Slice[numTilesY][numTilesX];
+
 		// the rectangle of pattern to read from each file goes from
 		// 0,0 to numDotsXPerFullTile,numDotsYPerFullTile in dots
 		final PatternDots originX = new PatternDots(0);
@@ -304,7 +396,7 @@ public class TiledPattern {
 		final PatternDots dotsWRightMost = new PatternDots(numDotsXRightMost);
 		final PatternDots dotsHBottomMost = new PatternDots(numDotsYBottomMost);
 
-		// go through each tile and read in the strings...
+		// go through each tile and slice it out of its pattern file...
 		// start looking at the correct pattern file number
 		// this enables us to get tiled pattern from different parts of our pattern space.
 		int patternFileNumber = initialPatternFileNum;
@@ -338,23 +430,21 @@ public class TiledPattern {
 
 				// if we are on the rightmost or bottommost tile, we need to use alternate bounds
 				// DebugUtils.println("PatternFileNumber: " + patternFileNumber);
-				final String[] patternTile = patternPackage.readPatternFromFile(patternFileNumber, //
+				loadedTiles[tileRow][tileCol] = patternPackage.getPatternSlice(patternFileNumber, //
 						origX, origY, width, height);
 
-				// copy the patternTile into our pattern variable
-				// figure out which actual pattern row we start from...
-				int actualPatternRow = tileRow * numDotsYPerFullTile;
-				for (String patternTileRow : patternTile) {
-					pattern[actualPatternRow].append(patternTileRow);
-					// next row
-					actualPatternRow++;
-				}
-
-				// go to the next file, but keep track of which file we last used.
-				lastPatternFileUsed = patternFileNumber;
+				// go to the next file
 				patternFileNumber++;
 			}
 		}
+		tiles = loadedTiles;
+	}
+
+	/**
+	 * Lets go of the dots we read. They are read again if they are needed again.
+	 */
+	public synchronized void unloadPattern() {
+		tiles = null;
 	}
 
 	/**
@@ -19,6 +19,15 @@ import papertoolkit.util.DebugUtils;
  * increment the patternFile Number, and allow you to get pattern from the next page.
  * </p>
  * <p>
+ * getPattern(...) only reserves pattern files and offsets; it does not read any files. The returned
+ * TiledPattern reads its files when its dots are first needed. So, many sheets can share one generator, reserve
+ * their pattern in order (which keeps it unique and deterministic), and then load it in parallel.
+ * </p>
+ * <p>
+ * The counters in this object only keep pattern unique within one generator. To keep it unique across
+ * generators, processes, and runs of the application, give it a PatternAllocator (see setAllocator(...)).
+ * </p>
+ * <p>
  * <span class="BSDLicense"> This software is distributed under the <a
  * href="http://hci.stanford.edu/research/copyright.txt">BSD License</a>. </span>
  * </p>
@@ -38,6 +47,16 @@ public class TiledPatternGenerator {
 	 */
 	public static final String DEFAULT_PATTERN_PACKAGE_NAME = "default";
 
+	/**
+	 * If not null, pattern comes from here instead of from our counters.
+	 */
+	private PatternAllocator allocator;
+
+	/**
+	 * Saved in the allocator's ledger with each reservation.
+	 */
+	private String allocationOwner;
+
 	/**
 	 * Packages indexed by name.
 	 */
@@ -154,8 +173,12 @@ public class TiledPatternGenerator {
 	 * @param height
 	 * 
 	 * @return
+	 * @throws IllegalStateException
+	 *             if we have an allocator, and it cannot reserve the pattern (the package is full, or the ledger
+	 *             cannot be read or written). We do not fall back to our own counters, as that pattern may
+	 *             already be reserved by someone else.
 	 */
-	public TiledPattern getPattern(Units width, Units height) {
+	public synchronized TiledPattern getPattern(Units width, Units height) {
 		// DebugUtils.println("getPattern Called " + ++numTimesGetPatternCalled + " times...");
 
 		final long numDotsX = Math.round(width.getValueInPatternDots());
@@ -169,6 +192,16 @@ public class TiledPatternGenerator {
 		int numDotsRemainingX = (int) numDotsX;
 		int numDotsRemainingY = (int) numDotsY;
 
+		if (allocator != null) {
+			final PatternAllocator.Reservation reservation = allocator.allocate((int) numDotsX, (int) numDotsY,
+					allocationOwner);
+			if (reservation == null) {
+				throw new IllegalStateException("Could not reserve " + numDotsX + " x " + numDotsY
+						+ " dots of pattern in " + allocator.getLedgerFile() + ".");
+			}
+			return reservation.createPattern(patternPackage);
+		}
+
 		final int numPatternColsPerFile = patternPackage.getNumPatternColsPerFile();
 		final int numPatternRowsPerFile = patternPackage.getNumPatternRowsPerFile();
 
@@ -250,14 +283,34 @@ public class TiledPatternGenerator {
 
 	/**
 	 * Resets the tracked history in this object. The next call to getPattern(...) will start over at the
-	 * default state after calling this function.
+	 * default state after calling this function. This does not release anything reserved through an
+	 * allocator.
 	 */
-	public void resetUniquePatternTracker() {
+	public synchronized void resetUniquePatternTracker() {
 		patternFileNumber = 0;
 		lastDotUsedY = 0;
 		lastDotUsedX = 0;
 	}
 
+	/**
+	 * Get all pattern from an allocator, so that it does not collide with pattern that other generators (or
+	 * other processes) have reserved from the same ledger. This generator switches to the allocator's pattern
+	 * package. If the allocator cannot reserve the pattern, getPattern(...) fails rather than hand out pattern
+	 * that may collide.
+	 * 
+	 * @param theAllocator
+	 *            null to go back to tracking pattern in this object only
+	 * @param owner
+	 *            saved with each reservation (e.g., the name of the application or sheet)
+	 */
+	public synchronized void setAllocator(PatternAllocator theAllocator, String owner) {
+		allocator = theAllocator;
+		allocationOwner = owner;
+		if (allocator != null) {
+			patternPackage = allocator.getPatternPackage();
+		}
+	}
+
 	/**
 	 * Choose the package of pattern data.
 	 * 
@@ -280,7 +333,7 @@ public class TiledPatternGenerator {
 	 * 
 	 * @param num
 	 */
-	public void setPatternFileNumber(int num) {
+	public synchronized void setPatternFileNumber(int num) {
 		resetUniquePatternTracker();
 		patternFileNumber = num;
 	}
@@ -61,6 +61,17 @@ public class PageAddress {
 		}
 	}
 
+	/**
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	public boolean equals(Object obj) {
+		if (!(obj instanceof PageAddress)) {
+			return false;
+		}
+		final PageAddress other = (PageAddress) obj;
+		return segment == other.segment && shelf == other.shelf && book == other.book && page == other.page;
+	}
+
 	/**
 	 * @return the book
 	 */
@@ -89,6 +100,13 @@ public class PageAddress {
 		return shelf;
 	}
 
+	/**
+	 * @see java.lang.Object#hashCode()
+	 */
+	public int hashCode() {
+		return ((segment * 31 + shelf) * 31 + book) * 31 + page;
+	}
+
 	/**
 	 * @see java.lang.Object#toString()
 	 */
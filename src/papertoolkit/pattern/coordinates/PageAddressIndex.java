@@ -0,0 +1,218 @@
+package papertoolkit.pattern.coordinates;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import papertoolkit.paper.Sheet;
+import papertoolkit.pattern.PatternPackage;
+import papertoolkit.pattern.coordinates.conversion.PatternCoordinateConverter;
+import papertoolkit.pattern.coordinates.conversion.TiledPatternCoordinateConverter;
+
+/**
+ * <p>
+ * Finds the sheets and regions that were printed on a logical page (e.g., 48.0.12.8), or on a pattern file
+ * (N.pattern) of a pattern package. Batched data comes to us one page at a time, so we can look up the few
+ * regions that page can hold once, instead of testing every region for every sample.
+ * </p>
+ * <p>
+ * Regions with tiled converters are on the files that their bounds overlap. We do not know where other
+ * converters (e.g., flexible ones) are, so they are on every page.
+ * </p>
+ * <p>
+ * Call update(...) with the current pattern maps before looking up pages; the index is rebuilt when they
+ * change.
+ * </p>
+ * <p>
+ * <span class="BSDLicense"> This software is distributed under the <a
+ * href="http://hci.stanford.edu/research/copyright.txt">BSD License</a>.</span>
+ * </p>
+ */
+public class PageAddressIndex {
+
+	/**
+	 * The regions (and the mappings they belong to) on one pattern file of one pattern package.
+	 */
+	public static class Page {
+
+		private List<PatternCoordinateConverter> converters = new ArrayList<PatternCoordinateConverter>();
+
+		private List<PatternToSheetMapping> maps = new ArrayList<PatternToSheetMapping>();
+
+		private int patternFileNumber;
+
+		private PatternPackage patternPackage;
+
+		private Page(PatternPackage pkg, int fileNumber) {
+			patternPackage = pkg;
+			patternFileNumber = fileNumber;
+		}
+
+		/**
+		 * @return the regions' converters, in the same order as getPatternMaps()
+		 */
+		public List<PatternCoordinateConverter> getConverters() {
+			return converters;
+		}
+
+		public int getPatternFileNumber() {
+			return patternFileNumber;
+		}
+
+		/**
+		 * @return the mapping of each region in getConverters(), in the order they were registered
+		 */
+		public List<PatternToSheetMapping> getPatternMaps() {
+			return maps;
+		}
+
+		public PatternPackage getPatternPackage() {
+			return patternPackage;
+		}
+
+		/**
+		 * @return the sheets with at least one region on this page
+		 */
+		public List<Sheet> getSheets() {
+			final List<Sheet> sheets = new ArrayList<Sheet>();
+			for (PatternToSheetMapping pmap : maps) {
+				if (!sheets.contains(pmap.getSheet())) {
+					sheets.add(pmap.getSheet());
+				}
+			}
+			return sheets;
+		}
+
+		public String toString() {
+			return "Page [" + patternPackage.getName() + " " + patternFileNumber + ".pattern, "
+					+ converters.size() + " regions]";
+		}
+	}
+
+	/**
+	 * Pages we have looked up by their address, since the last rebuild. Null means no package has the
+	 * address.
+	 */
+	private Map<PageAddress, Page> addressToPage = new HashMap<PageAddress, Page>();
+
+	/**
+	 * Pages we have looked up by package name and pattern file number, since the last rebuild.
+	 */
+	private Map<String, Map<Integer, Page>> fileToPage = new HashMap<String, Map<Integer, Page>>();
+
+	/**
+	 * What the index was built from. If the maps or their generation change, we start over.
+	 */
+	private int indexedGeneration;
+
+	private List<PatternToSheetMapping> indexedMaps = new ArrayList<PatternToSheetMapping>();
+
+	/**
+	 * In order of their names, so that the same package wins when two say they have the same address.
+	 */
+	private List<PatternPackage> packages;
+
+	/**
+	 * @param patternPackages
+	 *            the packages that batched pages may come from
+	 */
+	public PageAddressIndex(Collection<PatternPackage> patternPackages) {
+		packages = new ArrayList<PatternPackage>(patternPackages);
+		Collections.sort(packages, new Comparator<PatternPackage>() {
+			public int compare(PatternPackage p1, PatternPackage p2) {
+				return p1.getName().compareTo(p2.getName());
+			}
+		});
+	}
+
+	/**
+	 * @param address
+	 *            the logical address of a batched page
+	 * @return the page, with the regions that were printed on it, or null if none of our pattern packages
+	 *         has this address. If more than one does, we pick the first one with regions on that page.
+	 */
+	public synchronized Page getPage(PageAddress address) {
+		if (addressToPage.containsKey(address)) {
+			return addressToPage.get(address);
+		}
+		Page found = null;
+		for (PatternPackage pkg : packages) {
+			final int fileNumber = pkg.getPatternFileNumber(address);
+			if (fileNumber < 0) {
+				continue;
+			}
+			final Page page = getPage(pkg, fileNumber);
+			if (found == null || (found.converters.size() == 0 && page.converters.size() > 0)) {
+				found = page;
+			}
+		}
+		addressToPage.put(address, found);
+		return found;
+	}
+
+	/**
+	 * @param pkg
+	 * @param patternFileNumber
+	 * @return the regions that were printed with this pattern file (N.pattern)
+	 */
+	public synchronized Page getPage(PatternPackage pkg, int patternFileNumber) {
+		Map<Integer, Page> pages = fileToPage.get(pkg.getName());
+		if (pages == null) {
+			pages = new HashMap<Integer, Page>();
+			fileToPage.put(pkg.getName(), pages);
+		}
+		Page page = pages.get(patternFileNumber);
+		if (page == null) {
+			page = new Page(pkg, patternFileNumber);
+			addRegionsOnFile(page);
+			pages.put(patternFileNumber, page);
+		}
+		return page;
+	}
+
+	/**
+	 * Checks each region's bounds against the pattern file's extent, keeping the order of the maps.
+	 */
+	private void addRegionsOnFile(Page page) {
+		final PatternPackage pkg = page.patternPackage;
+		final double fileMinX = pkg.getPatternCoordinateOfOriginOfFile(page.patternFileNumber).getX().getValue();
+		final double fileMinY = pkg.getPatternCoordinateOfOriginOfFile(page.patternFileNumber).getY().getValue();
+		final double fileMaxX = fileMinX + pkg.getNumPatternColsPerFile();
+		final double fileMaxY = fileMinY + pkg.getNumPatternRowsPerFile();
+		for (PatternToSheetMapping pmap : indexedMaps) {
+			for (PatternCoordinateConverter converter : pmap.getRegionToPatternMapping().values()) {
+				if (converter instanceof TiledPatternCoordinateConverter) {
+					final TiledPatternCoordinateConverter tiled = (TiledPatternCoordinateConverter) converter;
+					if (tiled.getOriginXInDots() >= fileMaxX || tiled.getMaxXInDots() <= fileMinX
+							|| tiled.getOriginYInDots() >= fileMaxY || tiled.getMaxYInDots() <= fileMinY) {
+						continue;
+					}
+				}
+				page.maps.add(pmap);
+				page.converters.add(converter);
+			}
+		}
+	}
+
+	/**
+	 * Forgets the pages we have looked up if the pattern maps have changed since the last call.
+	 *
+	 * @param patternMaps
+	 *            the maps that events are dispatched to, in order
+	 * @param generation
+	 *            a number that changes when any of the maps' regions are reconfigured
+	 */
+	public synchronized void update(List<PatternToSheetMapping> patternMaps, int generation) {
+		if (generation == indexedGeneration && indexedMaps.equals(patternMaps)) {
+			return;
+		}
+		indexedMaps = new ArrayList<PatternToSheetMapping>(patternMaps);
+		indexedGeneration = generation;
+		addressToPage.clear();
+		fileToPage.clear();
+	}
+}
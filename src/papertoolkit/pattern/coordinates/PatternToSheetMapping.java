@@ -12,11 +12,11 @@ import java.util.Set;
 import papertoolkit.PaperToolkit;
 import papertoolkit.paper.Region;
 import papertoolkit.paper.Sheet;
+import papertoolkit.pattern.PatternAllocator;
 import papertoolkit.pattern.coordinates.conversion.PatternCoordinateConverter;
 import papertoolkit.pattern.coordinates.conversion.TiledPatternCoordinateConverter;
 import papertoolkit.pen.PenSample;
 import papertoolkit.units.PatternDots;
-import papertoolkit.units.coordinates.PercentageCoordinates;
 import papertoolkit.units.coordinates.StreamedPatternCoordinates;
 import papertoolkit.util.DebugUtils;
 import papertoolkit.util.MathUtils;
@@ -50,6 +50,11 @@ public class PatternToSheetMapping {
 	 */
 	private static final String[] PATTERN_INFO_EXTENSION_FILTER = new String[] { "patternInfo.xml" };
 
+	/**
+	 * Goes up whenever a region gets a different converter.
+	 */
+	private volatile int modificationCount = 0;
+
 	/**
 	 * Binds regions to pattern bounds, specified in logical (batched) and physical (streamed) coordinates.
 	 */
@@ -90,30 +95,45 @@ public class PatternToSheetMapping {
 	public List<PatternCoordinateConverter> getCoordinateConvertersForSample(PenSample sample) {
 		List<PatternCoordinateConverter> coordinateConverters = new ArrayList<PatternCoordinateConverter>();
 
-		for (Region r : regionToPatternBounds.keySet()) {
-			PatternCoordinateConverter converter = regionToPatternBounds.get(r);
-			final StreamedPatternCoordinates coord = new StreamedPatternCoordinates(sample);
-			if (converter.contains(coord)) {
-				// DebugUtils.println("Sample is on: " + r.getName());
-
-				// where are we on this region?
-				final PercentageCoordinates relativeLocation = converter.getRelativeLocation(coord);
-
-				// currently, this is a FALLBACK HACK to check whether we are actually outside the
-				// region later on, we must fix this and catch it earlier in the process
-				if (relativeLocation.getPercentageInXDirection() > 100
-						|| relativeLocation.getPercentageInYDirection() > 100) {
-					DebugUtils.println("FALLBACK HACK. It's actually outside the bounds. "
-							+ "Going on to check the next region...");
-					continue;
-				} else {
-					coordinateConverters.add(converter);
-				}
+		// locate(...) tests and converts in one pass, and also rejects locations past 100% of the region
+		// (in the unused part of the last tile), which we used to catch here after the fact
+		final double x = sample.getX();
+		final double y = sample.getY();
+		final double[] relativeLocation = new double[2];
+		for (PatternCoordinateConverter converter : regionToPatternBounds.values()) {
+			if (converter.locate(x, y, relativeLocation)) {
+				coordinateConverters.add(converter);
 			}
 		}
 		return coordinateConverters;
 	}
 
+	/**
+	 * Looks up the pattern of each region in an allocator's ledger, e.g., to see who else could be using it, or
+	 * to release the sheet's pattern when the sheet is retired.
+	 * 
+	 * @param allocator
+	 * @return the reservation that each region's pattern came from. Regions whose pattern is not in the
+	 *         ledger are left out.
+	 */
+	public Map<Region, PatternAllocator.Reservation> getReservations(PatternAllocator allocator) {
+		final Map<Region, PatternAllocator.Reservation> reservations = new HashMap<Region, PatternAllocator.Reservation>();
+		for (Region r : regionToPatternBounds.keySet()) {
+			final PatternCoordinateConverter converter = regionToPatternBounds.get(r);
+			if (!(converter instanceof TiledPatternCoordinateConverter)) {
+				continue;
+			}
+			final TiledPatternCoordinateConverter tiled = (TiledPatternCoordinateConverter) converter;
+			final PatternAllocator.Reservation reservation = allocator
+					.findReservation(new StreamedPatternCoordinates(new PatternDots(tiled.getOriginXInDots()),
+							new PatternDots(tiled.getOriginYInDots())));
+			if (reservation != null) {
+				reservations.put(r, reservation);
+			}
+		}
+		return reservations;
+	}
+
 	/**
 	 * @param r
 	 *            find the coordinate converter for this region.
@@ -135,6 +155,13 @@ public class PatternToSheetMapping {
 		return regionToPatternBounds;
 	}
 
+	/**
+	 * @return a number that goes up every time a region is given a different coordinate converter
+	 */
+	public int getModificationCount() {
+		return modificationCount;
+	}
+
 	/**
 	 * @return
 	 */
@@ -150,6 +177,7 @@ public class PatternToSheetMapping {
 	 * @param regions
 	 */
 	public void initializeMap(List<Region> regions) {
+		modificationCount++;
 		regionToPatternBounds.clear();
 		for (final Region r : regions) {
 			if (r.isActive()) {
@@ -203,6 +231,7 @@ public class PatternToSheetMapping {
 				regionToPatternBounds.put(r, regionIDToPattern.get(xmlKey));
 			}
 		}
+		modificationCount++;
 		return true;
 	}
 
@@ -255,6 +284,7 @@ public class PatternToSheetMapping {
 			// updating an already-known region OR
 			// adding a new region (probably added to the sheet after this object was constructed)
 			regionToPatternBounds.put(r, coordinateInfo);
+			modificationCount++;
 		} else {
 			System.err.println("PatternLocationToSheetLocationMapping.java: Region unknown. "
 					+ "Please add it to the sheet before updating this mapping.");
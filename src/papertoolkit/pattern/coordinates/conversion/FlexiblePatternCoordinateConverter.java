@@ -1,7 +1,7 @@
 package papertoolkit.pattern.coordinates.conversion;
 
 import papertoolkit.paper.Region;
-import papertoolkit.units.Percentage;
+import papertoolkit.units.PatternDots;
 import papertoolkit.units.Units;
 import papertoolkit.units.coordinates.PercentageCoordinates;
 import papertoolkit.units.coordinates.StreamedPatternCoordinates;
@@ -108,9 +108,25 @@ public class FlexiblePatternCoordinateConverter implements PatternCoordinateConv
 		final double pctX = (xval - anchorXVal) / widthInDots * 100;
 		final double pctY = (yval - anchorYVal) / heightInDots * 100;
 
-		return new PercentageCoordinates( // 
-				new Percentage(pctX, width), // fraction of width
-				new Percentage(pctY, height)); // fraction of height
+		return new PercentageCoordinates(pctX, pctY, width, height); // fractions of width & height
+	}
+
+	/**
+	 * @see papertoolkit.pattern.coordinates.conversion.PatternCoordinateConverter#locate(double, double,
+	 *      double[])
+	 */
+	public boolean locate(double xValPatternDots, double yValPatternDots, double[] percentageOut) {
+		if (anchor == null) {
+			setAnchor(new StreamedPatternCoordinates(new PatternDots(xValPatternDots), new PatternDots(
+					yValPatternDots)));
+		}
+		if (xValPatternDots < anchorXVal || xValPatternDots >= rightMostBorder || yValPatternDots < anchorYVal
+				|| yValPatternDots >= bottomMostBorder) {
+			return false;
+		}
+		percentageOut[0] = (xValPatternDots - anchorXVal) / widthInDots * 100;
+		percentageOut[1] = (yValPatternDots - anchorYVal) / heightInDots * 100;
+		return true;
 	}
 
 	/**
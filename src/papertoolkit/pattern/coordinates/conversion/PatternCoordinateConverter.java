@@ -23,6 +23,18 @@ public interface PatternCoordinateConverter {
 
 	public PercentageCoordinates getRelativeLocation(StreamedPatternCoordinates coord);
 
+	/**
+	 * contains(...) and getRelativeLocation(...) in one call, for code that tests every region against every
+	 * sample.
+	 * 
+	 * @param xValPatternDots
+	 * @param yValPatternDots
+	 * @param percentageOut
+	 *            receives {percentage across, percentage down}, if the location is on the region
+	 * @return whether the location is on the region
+	 */
+	public boolean locate(double xValPatternDots, double yValPatternDots, double[] percentageOut);
+
 	/**
 	 * @return the area, in pattern dots squared, of this patch.
 	 */
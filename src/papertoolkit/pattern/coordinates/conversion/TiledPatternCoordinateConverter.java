@@ -1,8 +1,9 @@
 package papertoolkit.pattern.coordinates.conversion;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import papertoolkit.pattern.TiledPattern;
 import papertoolkit.units.PatternDots;
-import papertoolkit.units.Percentage;
 import papertoolkit.units.Units;
 import papertoolkit.units.coordinates.Coordinates;
 import papertoolkit.units.coordinates.PercentageCoordinates;
@@ -22,6 +23,20 @@ import papertoolkit.util.DebugUtils;
  */
 public class TiledPatternCoordinateConverter implements PatternCoordinateConverter {
 
+	/**
+	 * Counts changes to the configuration of any converter, so that code that caches which converters
+	 * contain which locations (e.g., the EventDispatcher) knows when to forget.
+	 */
+	private static final AtomicInteger numConfigurationChanges = new AtomicInteger();
+
+	/**
+	 * @return a number that goes up every time any converter is configured (e.g., when a sheet is rendered
+	 *         again, and its regions get new pattern)
+	 */
+	public static int getNumConfigurationChanges() {
+		return numConfigurationChanges.get();
+	}
+
 	private int bottomMostVoidSpaceInDots;
 
 	private double clipH;
@@ -47,6 +62,40 @@ public class TiledPatternCoordinateConverter implements PatternCoordinateConvert
 	 */
 	private boolean hasClippingBounds = false;
 
+	/**
+	 * 1 / tileWidthIncludingPadding, so locate(...) multiplies instead of divides. This and the other
+	 * transient fields are derived from the rest, and are not saved with the pattern information (converters
+	 * read back from XML compute them on first use).
+	 */
+	private transient double inverseTileHeight;
+
+	private transient double inverseTileWidth;
+
+	/**
+	 * Subtracted from the dot location before it is scaled to a percentage (the clip's corner, or 0).
+	 */
+	private transient double percentageOriginX;
+
+	private transient double percentageOriginY;
+
+	/**
+	 * Percent per dot, across the clip, or across the whole pattern.
+	 */
+	private transient double percentagePerDotX;
+
+	private transient double percentagePerDotY;
+
+	/**
+	 * Written last, so a thread that sees it set also sees the values it guards.
+	 */
+	private transient volatile boolean precomputed = false;
+
+	/**
+	 * One tile that is at least as big as the pattern, so there are no gaps and no tile math. This is the
+	 * common case (a region on a sheet).
+	 */
+	private transient boolean singleTile;
+
 	/**
 	 * Right Boundary in Physical Coordinates. Thus, even if your tiling looks like this: <blockquote><code>
 	 *  [0][1][2]<br>
@@ -275,6 +324,8 @@ public class TiledPatternCoordinateConverter implements PatternCoordinateConvert
 		// DebugUtils.println(regionName);
 		// DebugUtils.println("Void Space in X: " + rightMostVoidSpaceInDots);
 		// DebugUtils.println("Void Space in Y: " + bottomMostVoidSpaceInDots);
+
+		precompute();
 	}
 
 	/**
@@ -293,69 +344,81 @@ public class TiledPatternCoordinateConverter implements PatternCoordinateConvert
 	 * 
 	 * TODO: Fix Bug ~Here....
 	 * 
-	 * TODO: Implement a FASTER reject. Contains is called many many times. We want to reject as soon as is
-	 * possible. Also, rejects happen a lot more than accepts.
+	 * If you will also need the relative location, use locate(...).
 	 */
 	public boolean contains(final double xValPatternDots, final double yValPatternDots) {
-		// has to be to the right of the leftmost border
-		final boolean insideLeftBoundary = xValPatternDots >= originX;
-
-		// has to be below the top border
-		final boolean insideTopBoundary = yValPatternDots >= originY;
-
-		// has to be to the left of the rightmost border
-		final boolean insideRightBoundary = xValPatternDots < maxX;
-
-		// has to be above the bottom border
-		final boolean insideBottomBoundary = yValPatternDots < maxY;
-
-		// has to NOT fall in between the gaps between pages...
-		final boolean notInHorizontalGap = ((xValPatternDots - originX) % tileWidthIncludingPadding) < dotsPerTileHorizontal;
-		final boolean notInVerticalGap = ((yValPatternDots - originY) % tileHeightIncludingPadding) < dotsPerTileVertical;
-
-		// if there is a clipping bounds, it has to fall inside the clip
-		boolean inClip = true;
-		if (hasClippingBounds) {
-			// DebugUtils.println("Origin: " + originX + ", " + originY);
-			// DebugUtils.println("Incoming X,Y: " + xValPatternDots + ", " + yValPatternDots);
-
-			// basically a call to get relative location
-
-			final double xOffset = xValPatternDots - originX;
-			final double yOffset = yValPatternDots - originY;
-
-			// DebugUtils.println("Relative X & Y: " + xOffset + ", " + yOffset);
-
-			final int tileNumHoriz = getTileNumHorizontal(xValPatternDots);
-			final int tileNumVert = getTileNumVertical(yValPatternDots);
+		return findDotsFromTopLeft(xValPatternDots, yValPatternDots, new double[2]);
+	}
 
-			// DebugUtils.println("Tile X & Y: " + tileNumHoriz + ", " + tileNumVert);
+	/**
+	 * Finds where the location is, in dots from the top left corner of the (untiled) pattern. This is the math
+	 * of getRelativeLocation(...), with the tile numbers found by integer division of precomputed values.
+	 * 
+	 * @param dotsOut
+	 *            receives {x, y} in dots, if the location is contained
+	 * @return whether the location is inside the pattern (and not in the gap between tiles), and inside the
+	 *         clip, if there is one
+	 */
+	private boolean findDotsFromTopLeft(final double xValPatternDots, final double yValPatternDots,
+			double[] dotsOut) {
+		if (!precomputed) {
+			precompute();
+		}
+		// reject as early as possible; most regions do not contain most samples
+		if (xValPatternDots < originX || xValPatternDots >= maxX || yValPatternDots < originY
+				|| yValPatternDots >= maxY) {
+			return false;
+		}
 
-			final double xRelativeToTile = xOffset - (tileNumHoriz * numDotsHorizontalBetweenTiles);
-			final double yRelativeToTile = yOffset - (tileNumVert * numDotsVerticalBetweenTiles);
+		final double xOffset = xValPatternDots - originX;
+		final double yOffset = yValPatternDots - originY;
+		final double totalDotsX;
+		final double totalDotsY;
+		if (singleTile) {
+			totalDotsX = xOffset;
+			totalDotsY = yOffset;
+		} else {
+			// the offsets are not negative, so casting is the same as Math.floor(...)
+			int tileNumHoriz = (int) (xOffset * inverseTileWidth);
+			double xInTile = xOffset - tileNumHoriz * tileWidthIncludingPadding;
+			// the reciprocal can be off by one ulp, right at a tile's edge
+			if (xInTile >= tileWidthIncludingPadding) {
+				tileNumHoriz++;
+				xInTile -= tileWidthIncludingPadding;
+			} else if (xInTile < 0) {
+				tileNumHoriz--;
+				xInTile += tileWidthIncludingPadding;
+			}
+			int tileNumVert = (int) (yOffset * inverseTileHeight);
+			double yInTile = yOffset - tileNumVert * tileHeightIncludingPadding;
+			if (yInTile >= tileHeightIncludingPadding) {
+				tileNumVert++;
+				yInTile -= tileHeightIncludingPadding;
+			} else if (yInTile < 0) {
+				tileNumVert--;
+				yInTile += tileHeightIncludingPadding;
+			}
+
+			// has to NOT fall in between the gaps between pages...
+			if (xInTile >= dotsPerTileHorizontal || yInTile >= dotsPerTileVertical) {
+				return false;
+			}
 
 			final int tileOffset = Math.max(tileNumHoriz, tileNumVert);
-
-			// DebugUtils.println("Tile Offset: " + tileOffset);
-
 			final int tileRow = tileOffset / numTilesAcross;
 			final int tileCol = tileOffset % numTilesAcross;
-
-			// how many dots are we in x & y
-			// this is the coordinate in absolute dots, relative to the upper left corner of the region
-			final double totalDotsX = tileCol * dotsPerTileHorizontal + xRelativeToTile;
-			final double totalDotsY = tileRow * dotsPerTileVertical + yRelativeToTile;
-
-			// DebugUtils.println(totalDotsX + " in X: [" + clipX + " " + (clipX + clipW) + "]");
-			// DebugUtils.println(totalDotsY + " in Y: [" + clipY + " " + (clipY + clipH) + "]");
-
-			inClip = (totalDotsX >= clipX) && (totalDotsX <= clipX + clipW) && (totalDotsY >= clipY)
-					&& (totalDotsY <= clipY + clipH);
-			// DebugUtils.println("In Clip? " + inClip);
+			totalDotsX = tileCol * dotsPerTileHorizontal + xOffset - tileNumHoriz * numDotsHorizontalBetweenTiles;
+			totalDotsY = tileRow * dotsPerTileVertical + yOffset - tileNumVert * numDotsVerticalBetweenTiles;
 		}
 
-		return insideLeftBoundary && insideTopBoundary && insideRightBoundary && insideBottomBoundary
-				&& notInHorizontalGap && notInVerticalGap && inClip;
+		if (hasClippingBounds
+				&& (totalDotsX < clipX || totalDotsX > clipX + clipW || totalDotsY < clipY || totalDotsY > clipY
+						+ clipH)) {
+			return false;
+		}
+		dotsOut[0] = totalDotsX;
+		dotsOut[1] = totalDotsY;
+		return true;
 	}
 
 	/**
@@ -381,6 +444,36 @@ public class TiledPatternCoordinateConverter implements PatternCoordinateConvert
 		return numTotalDotsAcross * numTotalDotsDown;
 	}
 
+	/**
+	 * Together with the origin, this bounds every location that contains(...) accepts.
+	 * 
+	 * @return the physical (streamed) x coordinate just past the right edge of the pattern
+	 */
+	public double getMaxXInDots() {
+		return maxX;
+	}
+
+	/**
+	 * @return the physical (streamed) y coordinate just past the bottom edge of the pattern
+	 */
+	public double getMaxYInDots() {
+		return maxY;
+	}
+
+	/**
+	 * @return the physical (streamed) x coordinate of the top left dot of the pattern
+	 */
+	public double getOriginXInDots() {
+		return originX;
+	}
+
+	/**
+	 * @return the physical (streamed) y coordinate of the top left dot of the pattern
+	 */
+	public double getOriginYInDots() {
+		return originY;
+	}
+
 	/**
 	 * The name of the SINGLE REGION that this coordinate converter handles.
 	 * 
@@ -422,19 +515,68 @@ public class TiledPatternCoordinateConverter implements PatternCoordinateConvert
 			final double pctX = (totalDotsX - clipX) / clipW * 100;
 			final double pctY = (totalDotsY - clipY) / clipH * 100;
 
-			return new PercentageCoordinates( // 
-					new Percentage(pctX, numTotalDotsAcrossObj), // fraction of width
-					new Percentage(pctY, numTotalDotsDownObj)); // fraction of height
+			return new PercentageCoordinates(pctX, pctY, // fraction of width & height
+					numTotalDotsAcrossObj, numTotalDotsDownObj);
 		} else {
 			final double pctX = totalDotsX / numTotalDotsAcross * 100;
 			final double pctY = totalDotsY / numTotalDotsDown * 100;
 
-			return new PercentageCoordinates( // 
-					new Percentage(pctX, numTotalDotsAcrossObj), // fraction of width
-					new Percentage(pctY, numTotalDotsDownObj)); // fraction of height
+			return new PercentageCoordinates(pctX, pctY, // fraction of width & height
+					numTotalDotsAcrossObj, numTotalDotsDownObj);
 		}
 	}
 
+	/**
+	 * contains(...) and getRelativeLocation(...) in one pass, without creating any objects. The location is
+	 * only accepted if it is at most 100% across and down the region; locations past that fall in the unused
+	 * part of the last tile.
+	 * 
+	 * @param xValPatternDots
+	 *            x value of the location, in PatternDots (physical/streamed coordinates)
+	 * @param yValPatternDots
+	 *            y value of the location, in PatternDots (physical/streamed coordinates)
+	 * @param percentageOut
+	 *            receives {percentage across, percentage down} (0 to 100), if the location is on the region
+	 * @return whether the location is on the region
+	 */
+	public boolean locate(final double xValPatternDots, final double yValPatternDots, double[] percentageOut) {
+		if (!findDotsFromTopLeft(xValPatternDots, yValPatternDots, percentageOut)) {
+			return false;
+		}
+		if (!hasClippingBounds
+				&& (percentageOut[0] > numTotalDotsAcross || percentageOut[1] > numTotalDotsDown)) {
+			return false;
+		}
+		percentageOut[0] = (percentageOut[0] - percentageOriginX) * percentagePerDotX;
+		percentageOut[1] = (percentageOut[1] - percentageOriginY) * percentagePerDotY;
+		return true;
+	}
+
+	/**
+	 * Computes the transient fields that locate(...) uses. Called whenever the configuration changes, and on
+	 * first use after being read from XML.
+	 */
+	private void precompute() {
+		precomputed = false;
+		inverseTileWidth = 1 / tileWidthIncludingPadding;
+		inverseTileHeight = 1 / tileHeightIncludingPadding;
+		singleTile = numTiles == 1 && dotsPerTileHorizontal >= numTotalDotsAcross
+				&& dotsPerTileVertical >= numTotalDotsDown;
+		if (hasClippingBounds) {
+			percentageOriginX = clipX;
+			percentageOriginY = clipY;
+			percentagePerDotX = 100 / clipW;
+			percentagePerDotY = 100 / clipH;
+		} else {
+			percentageOriginX = 0;
+			percentageOriginY = 0;
+			percentagePerDotX = 100 / numTotalDotsAcross;
+			percentagePerDotY = 100 / numTotalDotsDown;
+		}
+		precomputed = true;
+		numConfigurationChanges.incrementAndGet();
+	}
+
 	/**
 	 * It tries to calculate the tile number given an input coordinate.
 	 * 
@@ -473,10 +615,6 @@ public class TiledPatternCoordinateConverter implements PatternCoordinateConvert
 		return (int) Math.floor((coord.getXVal() - originX) / tileWidthIncludingPadding);
 	}
 
-	private int getTileNumHorizontal(double xVal) {
-		return (int) Math.floor((xVal - originX) / tileWidthIncludingPadding);
-	}
-
 	/**
 	 * @param coord
 	 * @return
@@ -485,10 +623,6 @@ public class TiledPatternCoordinateConverter implements PatternCoordinateConvert
 		return (int) Math.floor((coord.getYVal() - originY) / tileHeightIncludingPadding);
 	}
 
-	private int getTileNumVertical(double yVal) {
-		return (int) Math.floor((yVal - originY) / tileHeightIncludingPadding);
-	}
-
 	/**
 	 * @param origin
 	 * @param width
@@ -502,6 +636,7 @@ public class TiledPatternCoordinateConverter implements PatternCoordinateConvert
 		clipH = height.getValueInPatternDots();
 		DebugUtils.println("The Clipping Bounds is set to: x=" + clipX + ", y=" + clipY + " w=" + clipW
 				+ " h=" + clipH);
+		precompute();
 	}
 
 	/**
@@ -606,6 +741,9 @@ public class TiledPatternCoordinateConverter implements PatternCoordinateConvert
 		numTilesAcross = nTilesAcross;
 		numTilesDown = nTilesDown;
 		numTiles = numTilesAcross * numTilesDown;
+
+		// must update some internal state
+		calculateCachedDimensions();
 	}
 
 	/**
@@ -2,8 +2,11 @@ package papertoolkit.pattern.output;
 
 import java.awt.Color;
 import java.awt.geom.AffineTransform;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 import papertoolkit.PaperToolkit;
 import papertoolkit.pattern.PatternJitter;
@@ -12,10 +15,16 @@ import papertoolkit.units.Units;
 import papertoolkit.util.DebugUtils;
 import papertoolkit.util.MathUtils;
 
+import com.lowagie.text.Document;
 import com.lowagie.text.DocumentException;
+import com.lowagie.text.Rectangle;
 import com.lowagie.text.pdf.BaseFont;
 import com.lowagie.text.pdf.PdfContentByte;
+import com.lowagie.text.pdf.PdfImportedPage;
+import com.lowagie.text.pdf.PdfReader;
 import com.lowagie.text.pdf.PdfTemplate;
+import com.lowagie.text.pdf.PdfWriter;
+import com.lowagie.text.pdf.Type3Font;
 
 /**
  * <p>
@@ -38,6 +47,17 @@ import com.lowagie.text.pdf.PdfTemplate;
  * like a dot. =)
  * </p>
  * <p>
+ * A template invocation per dot makes for very large PDFs (a letter page has about 800,000 dots). Two compact
+ * modes write the same dots: INLINE_PATHS draws each dot as a zero length line with round caps, and strokes
+ * each row once; TYPE3_FONT defines one glyph per jitter direction, and shows each row as one string. See
+ * DotRendering and setDotRendering(...).
+ * </p>
+ * <p>
+ * If you give it a PatternFragmentCache, each TiledPattern is rendered once, into a small PDF of its own,
+ * which is then placed on the page as a form XObject. Printing the same pattern again (e.g., a reprint, or
+ * another copy of the same sheet) reuses the cached fragment instead of drawing every dot.
+ * </p>
+ * <p>
  * <span class="BSDLicense"> This software is distributed under the <a
  * href="http://hci.stanford.edu/research/copyright.txt">BSD License</a>. </span>
  * </p>
@@ -46,6 +66,33 @@ import com.lowagie.text.pdf.PdfTemplate;
  */
 public class PDFPatternGenerator {
 
+	/**
+	 * How dots are written to the content stream.
+	 */
+	public enum DotRendering {
+		/**
+		 * One ZapfDingbats bullet per dot.
+		 */
+		FONT,
+
+		/**
+		 * A zero length, round capped line per dot, with one stroke per row of pattern. The PDF spec says these
+		 * are painted as dots, but some older viewers (e.g., JPedal) skip them.
+		 */
+		INLINE_PATHS,
+
+		/**
+		 * One invocation of a circle template per dot. The largest files.
+		 */
+		TEMPLATE,
+
+		/**
+		 * A Type3 font with a glyph for each jitter direction; each row of pattern is one string. The smallest
+		 * files.
+		 */
+		TYPE3_FONT
+	}
+
 	/**
 	 * font creation
 	 */
@@ -82,6 +129,17 @@ public class PDFPatternGenerator {
 	 */
 	private static final int DEFAULT_PADDING = 30;
 
+	/**
+	 * The radius of a dot, and the offset of its center from the grid position, in hundredths of a mm.
+	 */
+	private static final float DEFAULT_DOT_RADIUS = 2.8f; // this is key (the right size)
+
+	/**
+	 * Blank space (in hundredths of a mm) around the dots of a cached fragment, so that jittered dots and font
+	 * glyphs are not clipped by the fragment's bounding box.
+	 */
+	private static final int FRAGMENT_MARGIN = 635;
+
 	/**
 	 * 
 	 */
@@ -140,17 +198,39 @@ public class PDFPatternGenerator {
 	private String dotSymbol;
 
 	/**
-	 * A circle that is drawn over and over again, for the dot pattern.
+	 * Font with one glyph per jitter direction, for TYPE3_FONT rendering. Created on first use.
+	 */
+	private Type3Font dotFont;
+
+	/**
+	 * Changed by adjustPatternSize(...).
+	 */
+	private float dotRadius = DEFAULT_DOT_RADIUS;
+
+	private DotRendering dotRendering = DotRendering.TYPE3_FONT;
+
+	/**
+	 * A circle that is drawn over and over again, for the dot pattern. Created on first use.
 	 */
 	private PdfTemplate dotTemplate;
 
 	private int fontSize;
 
+	/**
+	 * Null if we draw every dot, every time.
+	 */
+	private PatternFragmentCache fragmentCache;
+
 	/**
 	 * The height of the PDF document.
 	 */
 	private Units height;
 
+	/**
+	 * Fragments already imported into this document, so the same pattern placed twice is stored once.
+	 */
+	private Map<String, PdfImportedPage> importedFragments = new HashMap<String, PdfImportedPage>();
+
 	/**
 	 * The default color of pattern dots is Black. You can customize this if you like (useful for testing).
 	 */
@@ -161,11 +241,6 @@ public class PDFPatternGenerator {
 	 */
 	private BaseFont patternFont;
 
-	/**
-	 * Template-based drawing of dots seems better. Use this by default.
-	 */
-	private boolean useTemplateInsteadOfFont = true;
-
 	/**
 	 * The width of the PDFdocument.
 	 */
@@ -194,48 +269,141 @@ public class PDFPatternGenerator {
 		content.transform(AffineTransform.getScaleInstance(convertHundredthsOfMMToPoints,
 				convertHundredthsOfMMToPoints));
 
-		if (useTemplateInsteadOfFont) {
-			createDotTemplate(0 /* default */);
-		}
-
 		// even if we are using templates, initialize fonts... for debugging
 		// initializePatternFont_Tahoma();
 		initializePatternFont_Zapf(); // *slightly* smaller file due to built-in font
 	}
 
+	/**
+	 * For rendering fragments: the content layer is already in hundredths of a mm, and is not transformed.
+	 * 
+	 * @param cb
+	 */
+	private PDFPatternGenerator(PdfContentByte cb) {
+		content = cb;
+		initializePatternFont_Zapf();
+	}
+
 	/**
 	 * 0 means no adjustment. - implies smaller pattern, + implies calls to larger pattern
 	 * 
 	 * @param patternDotSizeAdjustment
 	 */
 	public void adjustPatternSize(int patternDotSizeAdjustment) {
-		if (useTemplateInsteadOfFont) {
-			// if template aproach
-			createDotTemplate(patternDotSizeAdjustment);
-		} else {
+		if (dotRendering == DotRendering.FONT) {
 			// if font approach
 			fontSize += patternDotSizeAdjustment;
+		} else {
+			// circles of a different radius; the template or font is rebuilt on next use
+			dotRadius = DEFAULT_DOT_RADIUS + 0.5f * patternDotSizeAdjustment;
+			dotTemplate = null;
+			dotFont = null;
 		}
 	}
 
 	/**
-	 * defaultRadius = 3 works great
+	 * Each glyph is a circle, offset in the direction of its jitter, and as wide as the space between dots.
 	 * 
+	 * @return
+	 */
+	private Type3Font createDotFont() {
+		final char[] jitters = { PatternJitter.UP, PatternJitter.DOWN, PatternJitter.LEFT, PatternJitter.RIGHT };
+		final Type3Font font = new Type3Font(content.getPdfWriter(), jitters, false);
+		final float extent = DEFAULT_DOT_RADIUS + DEFAULT_JITTER + dotRadius;
+		for (char jitter : jitters) {
+			final PdfContentByte glyph = font.defineGlyph(jitter, DEFAULT_PADDING, -extent, -extent, extent,
+					extent);
+			// y is flipped, as in renderPattern(...)
+			glyph.circle(DEFAULT_DOT_RADIUS + getJitterX(jitter), DEFAULT_DOT_RADIUS - getJitterY(jitter),
+					dotRadius);
+			glyph.fill();
+		}
+		return font;
+	}
+
+	/**
+	 * Renders the pattern by itself into a one page PDF, with the same settings as this generator. The
+	 * fragment's units are hundredths of a mm (not points), so it can be placed on our content layer without
+	 * scaling. The top left dot is FRAGMENT_MARGIN from the top left corner of the page.
 	 * 
-	 * @param adjustment
+	 * @return the PDF, or null if it could not be created
 	 */
-	private void createDotTemplate(float adjustment) {
-		float radiusAdjustment = 0.5f * adjustment;
-		final float defaultRadius = 2.8f; // this is key (the right size)
-		float xCenter = defaultRadius;
-		float yCenter = defaultRadius;
+	private byte[] createFragment(TiledPattern pattern) {
+		final int widthInHundredths = pattern.getNumTotalColumns() * DEFAULT_PADDING + 2 * FRAGMENT_MARGIN;
+		final int heightInHundredths = pattern.getNumTotalRows() * DEFAULT_PADDING + 2 * FRAGMENT_MARGIN;
+		try {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final Document doc = new Document(new Rectangle(0, 0, widthInHundredths, heightInHundredths), 0, 0,
+					0, 0);
+			final PdfWriter writer = PdfWriter.getInstance(doc, bytes);
+			doc.open();
+
+			final PDFPatternGenerator fragmentGenerator = new PDFPatternGenerator(writer.getDirectContent());
+			fragmentGenerator.dotRendering = dotRendering;
+			fragmentGenerator.dotRadius = dotRadius;
+			fragmentGenerator.fontSize = fontSize;
+			fragmentGenerator.patternColor = patternColor;
+			fragmentGenerator.renderDots(pattern, FRAGMENT_MARGIN, FRAGMENT_MARGIN, heightInHundredths);
+
+			doc.close();
+			return bytes.toByteArray();
+		} catch (DocumentException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * defaultRadius = 3 works great
+	 */
+	private void createDotTemplate() {
+		final float xCenter = DEFAULT_DOT_RADIUS;
+		final float yCenter = DEFAULT_DOT_RADIUS;
 
 		// the dot as a pdf template (a rubber stamp)
 		dotTemplate = content.createTemplate(2 * xCenter + 1, 2 * yCenter + 1);
-		dotTemplate.circle(xCenter, yCenter, defaultRadius + radiusAdjustment);
+		dotTemplate.circle(xCenter, yCenter, dotRadius);
 		dotTemplate.fill();
 	}
 
+	/**
+	 * @return everything that affects how the fragment for this pattern looks
+	 */
+	private String getFragmentKey(TiledPattern pattern) {
+		return pattern.getContentKey() + "/" + dotRendering + "/radius" + dotRadius + "/font" + fontSize
+				+ "/color" + Integer.toHexString(patternColor.getRGB());
+	}
+
+	/**
+	 * @param jitter
+	 * @return the horizontal offset of a dot with this jitter direction (+ is right)
+	 */
+	private static int getJitterX(char jitter) {
+		switch (jitter) {
+		case PatternJitter.LEFT:
+			return -DEFAULT_JITTER;
+		case PatternJitter.RIGHT:
+			return DEFAULT_JITTER;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * @param jitter
+	 * @return the vertical offset of a dot with this jitter direction (+ is down)
+	 */
+	private static int getJitterY(char jitter) {
+		switch (jitter) {
+		case PatternJitter.DOWN:
+			return DEFAULT_JITTER;
+		case PatternJitter.UP:
+			return -DEFAULT_JITTER;
+		default:
+			return 0;
+		}
+	}
+
 	/**
 	 * 21 works for both laser and wide-format inkjet.
 	 */
@@ -286,8 +454,36 @@ public class PDFPatternGenerator {
 		// work in hundredths of a millimeter
 		final float heightInHundredths = (float) (heightOfPDF * convertPointsToHundredthsOfMM);
 
+		final int initX = MathUtils.rint(xOrigInPoints * convertPointsToHundredthsOfMM);
+		final int initY = MathUtils.rint(yOrigInPoints * convertPointsToHundredthsOfMM);
+
+		// DebugUtils.println("PDFPatternGenerator: Dot Position is " + initX + " " + initY);
+
+		if (numRows == 0 || numCols == 0) {
+			return;
+		} else if (fragmentCache != null) {
+			renderPatternFromCache(pattern, initX, initY, heightInHundredths);
+		} else {
+			renderDots(pattern, initX, initY, heightInHundredths);
+		}
+	}
+
+	/**
+	 * Draws every dot of the pattern into our content layer.
+	 * 
+	 * @param pattern
+	 * @param initX
+	 *            where the pattern starts, in hundredths of a mm from the left of the page
+	 * @param initY
+	 *            from the top of the page
+	 * @param heightInHundredths
+	 *            of the page
+	 */
+	private void renderDots(TiledPattern pattern, int initX, int initY, float heightInHundredths) {
+		final int numRows = pattern.getNumTotalRows();
+
 		// if we use the font approach
-		if (!useTemplateInsteadOfFont) {
+		if (dotRendering == DotRendering.FONT) {
 			content.beginText();
 			// GRAY, etc. do not work! The printer will do halftoning, which messes things up.
 			content.setFontAndSize(patternFont, fontSize);
@@ -297,12 +493,18 @@ public class PDFPatternGenerator {
 		// content.setColorFill(Color.CYAN);
 		// content.setColorFill(Color.BLACK);
 
-		final int initX = MathUtils.rint(xOrigInPoints * convertPointsToHundredthsOfMM);
-
 		int gridXPosition = initX;
-		int gridYPosition = MathUtils.rint(yOrigInPoints * convertPointsToHundredthsOfMM);
-
-		// DebugUtils.println("PDFPatternGenerator: Dot Position is " + gridXPosition + " " + gridYPosition);
+		int gridYPosition = initY;
+
+		if (dotRendering == DotRendering.INLINE_PATHS) {
+			renderPatternAsPaths(pattern, initX, gridYPosition, heightInHundredths);
+			return;
+		} else if (dotRendering == DotRendering.TYPE3_FONT) {
+			renderPatternAsText(pattern, initX, gridYPosition, heightInHundredths);
+			return;
+		} else if (dotRendering == DotRendering.TEMPLATE && dotTemplate == null) {
+			createDotTemplate();
+		}
 
 		int xJitter = 0;
 		int yJitter = 0;
@@ -310,13 +512,12 @@ public class PDFPatternGenerator {
 
 		for (int row = 0; row < numRows; row++) {
 
-			final String patternRow = pattern.getPatternOnRow(row);
-			final int rowLength = patternRow.length();
+			final int rowLength = pattern.getNumColumnsOnRow(row);
 
 			for (int i = 0; i < rowLength; i++) {
 
 				// read the direction
-				currentJitterDirection = patternRow.charAt(i);
+				currentJitterDirection = pattern.getJitter(row, i);
 
 				// reset the jitters (this is key!)
 				xJitter = 0;
@@ -341,7 +542,7 @@ public class PDFPatternGenerator {
 					break;
 				}
 
-				if (useTemplateInsteadOfFont) {
+				if (dotRendering == DotRendering.TEMPLATE) {
 					content.addTemplate(dotTemplate, gridXPosition + xJitter, //
 							heightInHundredths - (gridYPosition + yJitter));
 				} else {
@@ -358,11 +559,113 @@ public class PDFPatternGenerator {
 			// System.out.println();
 		}
 
-		if (!useTemplateInsteadOfFont) {
+		if (dotRendering == DotRendering.FONT) {
 			content.endText();
 		}
 	}
 
+	/**
+	 * Places the cached fragment for this pattern on the page, rendering (and caching) it first if needed.
+	 */
+	private void renderPatternFromCache(TiledPattern pattern, int initX, int initY, float heightInHundredths) {
+		final String key = getFragmentKey(pattern);
+		PdfImportedPage fragment = importedFragments.get(key);
+		if (fragment == null) {
+			byte[] pdf = fragmentCache.get(key);
+			if (pdf == null) {
+				pdf = createFragment(pattern);
+				if (pdf == null) {
+					renderDots(pattern, initX, initY, heightInHundredths);
+					return;
+				}
+				fragmentCache.put(key, pdf);
+			}
+			try {
+				fragment = content.getPdfWriter().getImportedPage(new PdfReader(pdf), 1);
+			} catch (IOException e) {
+				e.printStackTrace();
+				renderDots(pattern, initX, initY, heightInHundredths);
+				return;
+			}
+			importedFragments.put(key, fragment);
+		}
+
+		// the fragment and our content layer are both in hundredths of a mm
+		content.addTemplate(fragment, initX - FRAGMENT_MARGIN, //
+				heightInHundredths - initY - fragment.getHeight() + FRAGMENT_MARGIN);
+	}
+
+	/**
+	 * Each row is one path of zero length lines, which round caps turn into dots. The row is stroked once.
+	 */
+	private void renderPatternAsPaths(TiledPattern pattern, int initX, int initY, float heightInHundredths) {
+		content.saveState();
+		content.setColorStroke(patternColor);
+		content.setLineWidth(2 * dotRadius);
+		content.setLineCap(PdfContentByte.LINE_CAP_ROUND);
+		// flip y and move to the dots' centers, so that every coordinate we write is a small integer
+		content.concatCTM(1, 0, 0, -1, DEFAULT_DOT_RADIUS, heightInHundredths + DEFAULT_DOT_RADIUS);
+
+		int gridYPosition = initY;
+		for (int row = 0; row < pattern.getNumTotalRows(); row++) {
+			int gridXPosition = initX;
+			final int rowLength = pattern.getNumColumnsOnRow(row);
+			for (int i = 0; i < rowLength; i++) {
+				final char jitter = pattern.getJitter(row, i);
+				final int x = gridXPosition + getJitterX(jitter);
+				final int y = gridYPosition + getJitterY(jitter);
+				content.moveTo(x, y);
+				content.lineTo(x, y);
+				gridXPosition += DEFAULT_PADDING;
+			}
+			content.stroke();
+			gridYPosition += DEFAULT_PADDING;
+		}
+		content.restoreState();
+	}
+
+	/**
+	 * Each row is one string of u/d/l/r glyphs from the dot font.
+	 */
+	private void renderPatternAsText(TiledPattern pattern, int initX, int initY, float heightInHundredths) {
+		if (dotFont == null) {
+			dotFont = createDotFont();
+		}
+		content.beginText();
+		// Type3 glyph units are 1/1000 of the font size, so this makes them hundredths of a mm
+		content.setFontAndSize(dotFont, 1000);
+
+		final char[] rowChars = new char[pattern.getNumTotalColumns()];
+		int gridYPosition = initY;
+		for (int row = 0; row < pattern.getNumTotalRows(); row++) {
+			final int rowLength = pattern.getNumColumnsOnRow(row);
+			for (int i = 0; i < rowLength; i++) {
+				rowChars[i] = pattern.getJitter(row, i);
+			}
+			content.setTextMatrix(initX, heightInHundredths - gridYPosition);
+			content.showText(new String(rowChars, 0, rowLength));
+			gridYPosition += DEFAULT_PADDING;
+		}
+		content.endText();
+	}
+
+	/**
+	 * Choose how dots are written. Call this before adjustPatternSize(...) and renderPattern(...).
+	 * 
+	 * @param rendering
+	 */
+	public void setDotRendering(DotRendering rendering) {
+		dotRendering = rendering;
+	}
+
+	/**
+	 * @param cache
+	 *            where to find (and keep) rendered pattern, or null to draw every dot
+	 */
+	public void setFragmentCache(PatternFragmentCache cache) {
+		fragmentCache = cache;
+	}
+
 	/**
 	 * @param c
 	 */
@@ -0,0 +1,240 @@
+package papertoolkit.pattern.output;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import papertoolkit.util.DebugUtils;
+
+/**
+ * <p>
+ * Keeps rendered pattern, so that printing the same pattern again does not draw every dot again. Each entry
+ * is a small, one page PDF that holds only the dots of one TiledPattern. PDFPatternGenerator imports the page
+ * into the document it is writing (as a form XObject), and places it where the region is.
+ * </p>
+ * <p>
+ * Entries are keyed by what determines the dots: the pattern package, the first pattern file, the dot
+ * offsets and the number of dots (see TiledPattern.getContentKey()), plus the dot rendering settings. The key
+ * also has the full path, modification time and length of each pattern file, so a regenerated package, or
+ * another install's package with the same name, never gets the old dots. The most recently used entries are
+ * kept in memory. If there is a cache directory, entries are also saved there, so a reprint in a later run of
+ * the application can use them.
+ * </p>
+ * <p>
+ * <span class="BSDLicense"> This software is distributed under the <a
+ * href="http://hci.stanford.edu/research/copyright.txt">BSD License</a>. </span>
+ * </p>
+ */
+public class PatternFragmentCache {
+
+	/**
+	 * A letter sized page of pattern is about 200KB (with the TYPE3_FONT dot rendering).
+	 */
+	private static final long DEFAULT_MAX_BYTES_IN_MEMORY = 64 * 1024 * 1024;
+
+	private static final String FILE_EXTENSION = ".fragment.pdf";
+
+	private static PatternFragmentCache sharedCache;
+
+	/**
+	 * @return the cache that SheetRenderers use by default. It saves its entries in the system's temporary
+	 *         directory.
+	 */
+	public static synchronized PatternFragmentCache getSharedCache() {
+		if (sharedCache == null) {
+			sharedCache = new PatternFragmentCache(new File(System.getProperty("java.io.tmpdir"),
+					"papertoolkit_pattern_cache"), DEFAULT_MAX_BYTES_IN_MEMORY);
+		}
+		return sharedCache;
+	}
+
+	/**
+	 * @param bytes
+	 * @return the bytes as a hexadecimal string
+	 */
+	private static String toHex(byte[] bytes) {
+		final StringBuilder sb = new StringBuilder();
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+			sb.append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Null if we only keep entries in memory.
+	 */
+	private File cacheDirectory;
+
+	/**
+	 * Least recently used order.
+	 */
+	private Map<String, byte[]> fragments = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+	private long maxBytesInMemory;
+
+	private int numHits = 0;
+
+	private int numMisses = 0;
+
+	private long numBytesInMemory = 0;
+
+	/**
+	 * @param directory
+	 *            where to save entries (created if needed), or null to keep them in memory only
+	 * @param maxBytes
+	 *            how much rendered pattern to keep in memory
+	 */
+	public PatternFragmentCache(File directory, long maxBytes) {
+		cacheDirectory = directory;
+		maxBytesInMemory = maxBytes;
+	}
+
+	/**
+	 * Removes every entry, from memory and from the cache directory.
+	 */
+	public synchronized void clear() {
+		fragments.clear();
+		numBytesInMemory = 0;
+		if (cacheDirectory != null && cacheDirectory.isDirectory()) {
+			for (File f : cacheDirectory.listFiles()) {
+				if (f.getName().endsWith(FILE_EXTENSION)) {
+					f.delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return the rendered pattern (a one page PDF), or null if we do not have it
+	 */
+	public synchronized byte[] get(String key) {
+		byte[] pdf = fragments.get(key);
+		if (pdf == null && cacheDirectory != null) {
+			pdf = readFile(getFile(key));
+			if (pdf != null) {
+				putInMemory(key, pdf);
+			}
+		}
+		if (pdf == null) {
+			numMisses++;
+		} else {
+			numHits++;
+		}
+		return pdf;
+	}
+
+	/**
+	 * The key can be long, so the file is named by its SHA-1 digest.
+	 */
+	private File getFile(String key) {
+		try {
+			final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			return new File(cacheDirectory, toHex(digest.digest(key.getBytes("UTF-8"))) + FILE_EXTENSION);
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+		} catch (UnsupportedEncodingException e) {
+			e.printStackTrace();
+		}
+		return new File(cacheDirectory, Integer.toHexString(key.hashCode()) + FILE_EXTENSION);
+	}
+
+	public synchronized int getNumHits() {
+		return numHits;
+	}
+
+	public synchronized int getNumMisses() {
+		return numMisses;
+	}
+
+	/**
+	 * @param key
+	 * @param pdf
+	 *            the rendered pattern, as a one page PDF
+	 */
+	public synchronized void put(String key, byte[] pdf) {
+		putInMemory(key, pdf);
+		if (cacheDirectory != null) {
+			writeFile(getFile(key), pdf);
+		}
+	}
+
+	/**
+	 * Adds the entry, and drops the least recently used entries until we are under budget.
+	 */
+	private void putInMemory(String key, byte[] pdf) {
+		final byte[] old = fragments.put(key, pdf);
+		if (old != null) {
+			numBytesInMemory -= old.length;
+		}
+		numBytesInMemory += pdf.length;
+		while (numBytesInMemory > maxBytesInMemory && fragments.size() > 1) {
+			final String eldest = fragments.keySet().iterator().next();
+			numBytesInMemory -= fragments.remove(eldest).length;
+		}
+	}
+
+	/**
+	 * @return the contents of the file, or null if it does not exist or cannot be read
+	 */
+	private byte[] readFile(File file) {
+		if (!file.exists()) {
+			return null;
+		}
+		try {
+			final FileInputStream in = new FileInputStream(file);
+			try {
+				final byte[] bytes = new byte[(int) file.length()];
+				int numRead = 0;
+				while (numRead < bytes.length) {
+					final int n = in.read(bytes, numRead, bytes.length - numRead);
+					if (n < 0) {
+						return null;
+					}
+					numRead += n;
+				}
+				return bytes;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Writes to a temporary file first, so that another process never reads a half written entry. If the
+	 * cache directory cannot be written to, we keep going with the memory cache only.
+	 */
+	private void writeFile(File file, byte[] pdf) {
+		if (!cacheDirectory.isDirectory() && !cacheDirectory.mkdirs()) {
+			DebugUtils.println("Cannot create " + cacheDirectory + ". Pattern will only be cached in memory.");
+			cacheDirectory = null;
+			return;
+		}
+		final File tempFile = new File(file.getPath() + ".tmp");
+		try {
+			final FileOutputStream out = new FileOutputStream(tempFile);
+			try {
+				out.write(pdf);
+			} finally {
+				out.close();
+			}
+			if (!tempFile.renameTo(file)) {
+				// another renderer saved the same entry first
+				tempFile.delete();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			tempFile.delete();
+		}
+	}
+}
@@ -1,5 +1,12 @@
 package papertoolkit.pattern.output;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import papertoolkit.PaperToolkit;
 import papertoolkit.pattern.TiledPattern;
 import papertoolkit.pattern.TiledPatternGenerator;
@@ -14,6 +21,11 @@ import papertoolkit.util.files.FileUtils;
  * WARNING: This class is unfinished. Use the PDF implementation until this works.
  * </p>
  * <p>
+ * The template is split at its placeholders, and the pattern is written to the output one row at a time, so
+ * a large (e.g., plotter sized) sheet takes no more memory than a small one. If clip regions are added, only
+ * the dots inside them are printed; the others are written as spaces, which the Anoto font draws as nothing.
+ * </p>
+ * <p>
  * <span class="BSDLicense"> This software is distributed under the <a
  * href="http://hci.stanford.edu/research/copyright.txt">BSD License</a>. </span>
  * </p>
@@ -22,6 +34,16 @@ import papertoolkit.util.files.FileUtils;
  */
 public class PostscriptPatternGenerator {
 
+	private static final String PATTERN_PLACEHOLDER = "__INSERT_PATTERN_HERE__";
+
+	public static final String SHEET_POSTSCRIPT_PLACEHOLDER = "__INSERT_SHEET_POSTSCRIPT_HERE__";
+
+	/**
+	 * Column and row bounds (in dots, relative to the sheet's top left corner) of the areas that get pattern.
+	 * Each entry is {minCol, minRow, maxCol, maxRow}, exclusive of the max. Empty means the whole sheet.
+	 */
+	private List<int[]> clipRegions = new ArrayList<int[]>();
+
 	private double dotRadiusLarge = 0.040000;
 
 	/**
@@ -37,7 +59,15 @@ public class PostscriptPatternGenerator {
 	 */
 	private TiledPattern pattern;
 
-	private String template;
+	/**
+	 * The template, split into the part before the sheet's graphics, the part between the graphics and the
+	 * pattern, and the part after the pattern.
+	 */
+	private String templateBeforeSheet;
+
+	private String templateBeforePattern;
+
+	private String templateAfterPattern;
 
 	private TiledPatternGenerator tiledPatternGenerator;
 
@@ -65,43 +95,117 @@ public class PostscriptPatternGenerator {
 		pattern = tiledPatternGenerator.getPattern(horizontal, vertical);
 
 		// read in the template file
-		template = FileUtils.readFileIntoStringBuffer(
+		String template = FileUtils.readFileIntoStringBuffer(
 				PaperToolkit.getDataFile("/templates/PostscriptPatternTemplate.txt"), true).toString();
 
 		// add the width, height, and margin
-		template = template.replaceAll("__WIDTH_POINTS__", horizLength.getValueInPoints() + "");
-		template = template.replaceAll("__HEIGHT_POINTS__", vertLength.getValueInPoints() + "");
-		template = template.replaceAll("__WIDTH_POINTS_INT__", (int) Math
-				.ceil(horizLength.getValueInPoints())
+		template = template.replace("__WIDTH_POINTS__", horizLength.getValueInPoints() + "");
+		template = template.replace("__HEIGHT_POINTS__", vertLength.getValueInPoints() + "");
+		template = template.replace("__WIDTH_POINTS_INT__", (int) Math.ceil(horizLength.getValueInPoints())
 				+ "");
-		template = template.replaceAll("__HEIGHT_POINTS_INT__", (int) Math
-				.ceil(vertLength.getValueInPoints())
+		template = template.replace("__HEIGHT_POINTS_INT__", (int) Math.ceil(vertLength.getValueInPoints())
 				+ "");
 
-		template = template.replaceAll("__DOT_RADIUS__", dotRadiusLarge + "");
+		template = template.replace("__DOT_RADIUS__", dotRadiusLarge + "");
+
+		final int sheetIndex = template.indexOf(SHEET_POSTSCRIPT_PLACEHOLDER);
+		final int patternIndex = template.indexOf(PATTERN_PLACEHOLDER);
+		templateBeforeSheet = template.substring(0, sheetIndex);
+		templateBeforePattern = template.substring(sheetIndex + SHEET_POSTSCRIPT_PLACEHOLDER.length(),
+				patternIndex);
+		templateAfterPattern = template.substring(patternIndex + PATTERN_PLACEHOLDER.length());
+	}
 
-		insertPattern();
+	/**
+	 * Only print pattern inside this rectangle (and any others that are added). By default, the whole sheet
+	 * gets pattern.
+	 *
+	 * @param x
+	 *            relative to the sheet's left edge
+	 * @param y
+	 *            relative to the sheet's top edge
+	 * @param width
+	 * @param height
+	 */
+	public void addClipRegion(Units x, Units y, Units width, Units height) {
+		final int minCol = (int) Math.round(x.getValueInPatternDots());
+		final int minRow = (int) Math.round(y.getValueInPatternDots());
+		clipRegions.add(new int[] { minCol, minRow, //
+				minCol + (int) Math.round(width.getValueInPatternDots()), //
+				minRow + (int) Math.round(height.getValueInPatternDots()) });
 	}
 
 	public TiledPattern getPattern() {
 		return pattern;
 	}
 
+	/**
+	 * This builds the whole file in memory. Use writePostscript(...) for large sheets.
+	 *
+	 * @return the pattern postscript, with the sheet's graphics placeholder left in place
+	 */
 	public String getPostscriptPattern() {
-		return template;
+		final StringWriter out = new StringWriter();
+		try {
+			writePostscript(out, SHEET_POSTSCRIPT_PLACEHOLDER);
+		} catch (IOException e) {
+			// a StringWriter does not throw
+			e.printStackTrace();
+		}
+		return out.toString();
 	}
 
 	/**
-	 * @param pattern
+	 * @param out
+	 * @param row
+	 * @param rowChars
+	 *            reused for every row
 	 */
-	private void insertPattern() {
-		// for now, create a string buffer and write to it...
-		StringBuilder patternString = new StringBuilder();
-		for (int row = 0; row < pattern.getNumTotalRows(); row++) {
-			final String patternRow = pattern.getPatternOnRow(row);
-			patternString.append("(" + patternRow + ") n\n");
+	private void writePatternRow(Writer out, int row, char[] rowChars) throws IOException {
+		final int rowLength = pattern.getNumColumnsOnRow(row);
+		int end = 0;
+		if (clipRegions.size() == 0) {
+			for (int col = 0; col < rowLength; col++) {
+				rowChars[col] = pattern.getJitter(row, col);
+			}
+			end = rowLength;
+		} else {
+			Arrays.fill(rowChars, 0, rowLength, ' ');
+			for (int[] clip : clipRegions) {
+				if (row < clip[1] || row >= clip[3]) {
+					continue;
+				}
+				final int maxCol = Math.min(clip[2], rowLength);
+				for (int col = Math.max(clip[0], 0); col < maxCol; col++) {
+					rowChars[col] = pattern.getJitter(row, col);
+				}
+				end = Math.max(end, maxCol);
+			}
 		}
 
-		template = template.replaceAll("__INSERT_PATTERN_HERE__", patternString.toString());
+		// each row is shown as a string of Anoto font characters
+		out.write('(');
+		out.write(rowChars, 0, end);
+		out.write(") n\n");
+	}
+
+	/**
+	 * Writes the complete postscript file: the sheet's graphics, then the pattern, one row at a time.
+	 *
+	 * @param out
+	 *            not closed by this method
+	 * @param sheetPostscript
+	 *            postscript commands that draw the sheet's regions (without a header or showpage)
+	 * @throws IOException
+	 */
+	public void writePostscript(Writer out, String sheetPostscript) throws IOException {
+		out.write(templateBeforeSheet);
+		out.write(sheetPostscript);
+		out.write(templateBeforePattern);
+		final char[] rowChars = new char[pattern.getNumTotalColumns()];
+		for (int row = 0; row < pattern.getNumTotalRows(); row++) {
+			writePatternRow(out, row, rowChars);
+		}
+		out.write(templateAfterPattern);
 	}
 }
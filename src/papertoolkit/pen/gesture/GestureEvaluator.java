@@ -0,0 +1,422 @@
+package papertoolkit.pen.gesture;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import papertoolkit.pen.PenSample;
+import papertoolkit.pen.gesture.dollar.DollarRecognizer;
+import papertoolkit.pen.gesture.shapecontext.Gesture;
+import papertoolkit.pen.gesture.shapecontext.GestureDatabase;
+import papertoolkit.pen.gesture.shapecontext.ShapeContext;
+import papertoolkit.pen.ink.Ink;
+import papertoolkit.pen.ink.InkStroke;
+import papertoolkit.util.DebugUtils;
+import papertoolkit.util.files.FileUtils;
+
+/**
+ * <p>
+ * Headless cross-validation of the gesture recognizers, so that we can pick a recognizer (and thresholds)
+ * without running the interactive GestureDatabase tool.
+ * </p>
+ * <p>
+ * The labeled data is a directory with one subdirectory per gesture class. Each subdirectory contains ink XML
+ * files (as written by {@link Ink#saveToXMLFile(File)}), one example per file. All strokes in a file are
+ * treated as one gesture.
+ * </p>
+ * <p>
+ * Folds are evaluated in parallel, one task per fold. The assignment of examples to folds depends only on the
+ * seed, so results are repeatable.
+ * </p>
+ * <p>
+ * <span class="BSDLicense"> This software is distributed under the <a
+ * href="http://hci.stanford.edu/research/copyright.txt">BSD License</a>. </span>
+ * </p>
+ */
+public class GestureEvaluator {
+
+	/**
+	 * One labeled gesture.
+	 */
+	public static class Example {
+
+		private ShapeContext context;
+
+		private String label;
+
+		private List<PenSample> samples;
+
+		private String source;
+
+		public Example(String label, String source, List<PenSample> samples) {
+			this.label = label;
+			this.source = source;
+			this.samples = samples;
+		}
+
+		/**
+		 * The shape context is built once and shared (read only) by every fold.
+		 */
+		synchronized ShapeContext getContext() {
+			if (context == null) {
+				// ShapeContext smooths the timestamps of the samples it is given, so give it copies
+				final ArrayList<PenSample> copies = new ArrayList<PenSample>(samples.size());
+				for (PenSample s : samples) {
+					copies.add(new PenSample(s.x, s.y, s.force, s.timestamp));
+				}
+				context = new ShapeContext(copies, source);
+			}
+			return context;
+		}
+
+		public String getLabel() {
+			return label;
+		}
+
+		public List<PenSample> getSamples() {
+			return samples;
+		}
+
+		public String getSource() {
+			return source;
+		}
+	}
+
+	/**
+	 * The recognizers that can be evaluated.
+	 */
+	public static enum Recognizer {
+		DOLLAR, SHAPE_CONTEXT
+	}
+
+	/**
+	 * Accuracy, confusion matrix, and classification latency for one recognizer.
+	 */
+	public static class Report {
+
+		private int correct;
+
+		/**
+		 * actual label -> (assigned label -> count)
+		 */
+		private SortedMap<String, SortedMap<String, Integer>> confusion = new TreeMap<String, SortedMap<String, Integer>>();
+
+		private long[] latencies = new long[16];
+
+		private int numLatencies;
+
+		private Recognizer recognizer;
+
+		private boolean sorted;
+
+		private int tested;
+
+		public Report(Recognizer recognizer) {
+			this.recognizer = recognizer;
+		}
+
+		private void add(Report other) {
+			for (String actual : other.confusion.keySet()) {
+				for (String assigned : other.confusion.get(actual).keySet()) {
+					final int count = other.confusion.get(actual).get(assigned);
+					for (int i = 0; i < count; i++) {
+						addToConfusion(actual, assigned);
+					}
+				}
+			}
+			tested += other.tested;
+			correct += other.correct;
+			for (int i = 0; i < other.numLatencies; i++) {
+				addLatency(other.latencies[i]);
+			}
+		}
+
+		private void addLatency(long nanos) {
+			if (numLatencies == latencies.length) {
+				final long[] grown = new long[latencies.length * 2];
+				System.arraycopy(latencies, 0, grown, 0, numLatencies);
+				latencies = grown;
+			}
+			latencies[numLatencies++] = nanos;
+			sorted = false;
+		}
+
+		private void addResult(String actual, String assigned, long nanos) {
+			if (assigned == null) {
+				// the kNN vote can come back empty when a fold has very few training examples
+				assigned = "?";
+			}
+			tested++;
+			if (actual.equals(assigned)) {
+				correct++;
+			}
+			addToConfusion(actual, assigned);
+			addLatency(nanos);
+		}
+
+		private void addToConfusion(String actual, String assigned) {
+			SortedMap<String, Integer> row = confusion.get(actual);
+			if (row == null) {
+				row = new TreeMap<String, Integer>();
+				confusion.put(actual, row);
+			}
+			final Integer count = row.get(assigned);
+			row.put(assigned, count == null ? 1 : count + 1);
+		}
+
+		public double getAccuracy() {
+			return tested == 0 ? 0 : correct / (double) tested;
+		}
+
+		/**
+		 * @return actual label -> (assigned label -> count)
+		 */
+		public SortedMap<String, SortedMap<String, Integer>> getConfusionMatrix() {
+			return confusion;
+		}
+
+		public int getCorrect() {
+			return correct;
+		}
+
+		/**
+		 * @param percentile
+		 *            0 to 100
+		 * @return the classification latency at that percentile, in milliseconds
+		 */
+		public synchronized double getLatencyPercentileMillis(double percentile) {
+			if (numLatencies == 0) {
+				return 0;
+			}
+			if (!sorted) {
+				Arrays.sort(latencies, 0, numLatencies);
+				sorted = true;
+			}
+			final int index = (int) Math.ceil(percentile / 100.0 * numLatencies) - 1;
+			return latencies[Math.max(0, Math.min(numLatencies - 1, index))] / 1000000.0;
+		}
+
+		public Recognizer getRecognizer() {
+			return recognizer;
+		}
+
+		public int getTested() {
+			return tested;
+		}
+
+		public String toString() {
+			final StringBuilder sb = new StringBuilder();
+			sb.append(recognizer + ": " + correct + " / " + tested + " correct (" + (getAccuracy() * 100)
+					+ "%)\n");
+			sb.append("Latency (ms): p50 " + getLatencyPercentileMillis(50) + ", p90 "
+					+ getLatencyPercentileMillis(90) + ", p99 " + getLatencyPercentileMillis(99) + ", max "
+					+ getLatencyPercentileMillis(100) + "\n");
+			sb.append("Confusion (actual -> assigned: count):\n");
+			for (String actual : confusion.keySet()) {
+				sb.append("  " + actual + " ->");
+				for (String assigned : confusion.get(actual).keySet()) {
+					sb.append(" " + assigned + ": " + confusion.get(actual).get(assigned));
+				}
+				sb.append("\n");
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * Fewer samples than this cannot be resampled by either recognizer.
+	 */
+	private static final int MIN_SAMPLES = 2;
+
+	/**
+	 * Reads a directory of labeled ink. Each visible subdirectory is a class; each XML file in it is an
+	 * example.
+	 *
+	 * @param dataDir
+	 * @return
+	 */
+	public static List<Example> loadExamples(File dataDir) {
+		final List<Example> examples = new ArrayList<Example>();
+		for (File classDir : FileUtils.listVisibleDirs(dataDir)) {
+			for (File xmlFile : FileUtils.listVisibleFiles(classDir, "xml")) {
+				final List<PenSample> samples = new ArrayList<PenSample>();
+				for (InkStroke stroke : new Ink(xmlFile).getStrokes()) {
+					samples.addAll(stroke.getSamples());
+				}
+				if (samples.size() < MIN_SAMPLES) {
+					DebugUtils.println("Skipping " + xmlFile + ", as it has too few samples.");
+					continue;
+				}
+				examples.add(new Example(classDir.getName(), xmlFile.getName(), samples));
+			}
+		}
+		return examples;
+	}
+
+	/**
+	 * <code>GestureEvaluator &lt;dataDir&gt; [folds | loo] [dollar | shape | all] [threads]</code>
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) throws InterruptedException, ExecutionException {
+		if (args.length < 1) {
+			System.out.println("Usage: GestureEvaluator <dataDir> [folds | loo] [dollar | shape | all] [threads]");
+			return;
+		}
+		final File dataDir = new File(args[0]);
+		int folds = 10;
+		if (args.length > 1) {
+			folds = args[1].equalsIgnoreCase("loo") ? 0 : Integer.parseInt(args[1]);
+		}
+		final List<Recognizer> recognizers = new ArrayList<Recognizer>();
+		final String which = args.length > 2 ? args[2] : "all";
+		if (which.equalsIgnoreCase("dollar") || which.equalsIgnoreCase("all")) {
+			recognizers.add(Recognizer.DOLLAR);
+		}
+		if (which.equalsIgnoreCase("shape") || which.equalsIgnoreCase("all")) {
+			recognizers.add(Recognizer.SHAPE_CONTEXT);
+		}
+		final int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime()
+				.availableProcessors();
+
+		final List<Example> examples = loadExamples(dataDir);
+		DebugUtils.println("Loaded " + examples.size() + " examples from " + dataDir);
+		final GestureEvaluator evaluator = new GestureEvaluator(threads);
+		try {
+			for (Recognizer r : recognizers) {
+				System.out.println(evaluator.crossValidate(examples, r, folds));
+			}
+		} finally {
+			evaluator.shutdown();
+		}
+	}
+
+	private ExecutorService executor;
+
+	private long seed = 0;
+
+	/**
+	 * @param numThreads
+	 *            how many folds to evaluate at once
+	 */
+	public GestureEvaluator(int numThreads) {
+		executor = Executors.newFixedThreadPool(Math.max(1, numThreads));
+	}
+
+	/**
+	 * Trains on all folds but one and tests on the remaining one, for every fold.
+	 *
+	 * @param examples
+	 * @param recognizer
+	 * @param numFolds
+	 *            k for k-fold cross-validation. Zero (or anything at least as large as the number of examples)
+	 *            means leave-one-out.
+	 * @return
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 *             if a recognizer threw while training or testing
+	 */
+	public Report crossValidate(final List<Example> examples, final Recognizer recognizer, int numFolds)
+			throws InterruptedException, ExecutionException {
+		if (numFolds <= 0 || numFolds > examples.size()) {
+			numFolds = examples.size();
+		}
+
+		// shuffle with a fixed seed, so a given data set always produces the same folds
+		final List<Integer> order = new ArrayList<Integer>();
+		for (int i = 0; i < examples.size(); i++) {
+			order.add(i);
+		}
+		Collections.shuffle(order, new Random(seed));
+		final int[] foldOf = new int[examples.size()];
+		for (int i = 0; i < order.size(); i++) {
+			foldOf[order.get(i)] = i % numFolds;
+		}
+
+		final List<Future<Report>> results = new ArrayList<Future<Report>>();
+		for (int f = 0; f < numFolds; f++) {
+			final int fold = f;
+			results.add(executor.submit(new Callable<Report>() {
+				public Report call() {
+					final List<Example> train = new ArrayList<Example>();
+					final List<Example> test = new ArrayList<Example>();
+					for (int i = 0; i < examples.size(); i++) {
+						(foldOf[i] == fold ? test : train).add(examples.get(i));
+					}
+					return evaluateFold(recognizer, train, test);
+				}
+			}));
+		}
+
+		// merge in fold order, so the report does not depend on thread scheduling
+		final Report report = new Report(recognizer);
+		for (Future<Report> result : results) {
+			report.add(result.get());
+		}
+		return report;
+	}
+
+	private Report evaluateFold(Recognizer recognizer, List<Example> train, List<Example> test) {
+		final Report report = new Report(recognizer);
+		if (train.isEmpty()) {
+			return report;
+		}
+		switch (recognizer) {
+		case DOLLAR:
+			final DollarRecognizer dollar = new DollarRecognizer();
+			dollar.clearTemplates();
+			for (Example e : train) {
+				dollar.addTemplate(e.label, DollarRecognizer.makeArray(new InkStroke(e.samples)));
+			}
+			for (Example e : test) {
+				final long start = System.nanoTime();
+				final String assigned = dollar.recognize(new InkStroke(e.samples)).getName();
+				report.addResult(e.label, assigned, System.nanoTime() - start);
+			}
+			break;
+		case SHAPE_CONTEXT:
+			final List<String> names = new ArrayList<String>();
+			final ArrayList<Gesture> gestures = new ArrayList<Gesture>();
+			for (Example e : train) {
+				int index = names.indexOf(e.label);
+				if (index < 0) {
+					index = names.size();
+					names.add(e.label);
+					gestures.add(new Gesture(e.label));
+				}
+				gestures.get(index).addGesture(e.getContext());
+			}
+			final GestureDatabase classifier = new GestureDatabase("evaluation");
+			for (Example e : test) {
+				final ShapeContext context = e.getContext();
+				final long start = System.nanoTime();
+				final String assigned = classifier.test(context, false, gestures);
+				report.addResult(e.label, assigned, System.nanoTime() - start);
+			}
+			break;
+		}
+		return report;
+	}
+
+	/**
+	 * @param seed
+	 *            used to shuffle examples into folds
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+}
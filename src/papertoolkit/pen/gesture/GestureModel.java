@@ -0,0 +1,355 @@
+package papertoolkit.pen.gesture;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * A versioned, binary store for gesture training data. The file starts with a small header and an index of
+ * entries (kind, class name, author, class parameters, point count, and the offset of the point data). The
+ * point data itself is a packed block of big-endian doubles.
+ * </p>
+ * <p>
+ * Opening a model maps the file read-only and parses only the index. The point arrays of an entry are decoded
+ * from the mapped buffer the first time they are asked for, so an application with thousands of training
+ * examples starts up without touching (or parsing) most of the file.
+ * </p>
+ * <p>
+ * Two kinds of entries are stored:
+ * <ul>
+ * <li>{@link #KIND_DOLLAR_TEMPLATE}: a $1 template, already resampled, rotated, scaled, and translated. The
+ * data is (x, y) pairs.</li>
+ * <li>{@link #KIND_SHAPE_CONTEXT}: a shape context training example, with duplicates removed and time values
+ * smoothed. The data is (x, y, timestamp) triples.</li>
+ * </ul>
+ * </p>
+ * <p>
+ * <span class="BSDLicense"> This software is distributed under the <a
+ * href="http://hci.stanford.edu/research/copyright.txt">BSD License</a>. </span>
+ * </p>
+ */
+public class GestureModel {
+
+	/**
+	 * Collects entries and writes them out in the binary format.
+	 */
+	public static class Writer {
+
+		private List<Entry> entries = new ArrayList<Entry>();
+
+		private List<double[]> data = new ArrayList<double[]>();
+
+		private int dollarNumPoints;
+
+		/**
+		 * @param dollarNumPoints
+		 *            the number of points each $1 template was resampled to. Readers with a different setting
+		 *            will refuse to load the file.
+		 */
+		public Writer(int dollarNumPoints) {
+			this.dollarNumPoints = dollarNumPoints;
+		}
+
+		/**
+		 * @param name
+		 * @param xy
+		 *            interleaved x and y values of the normalized template
+		 */
+		public void addDollarTemplate(String name, double[] xy) {
+			add(new Entry(KIND_DOLLAR_TEMPLATE, name, "", 0, xy.length / 2, 2), xy);
+		}
+
+		/**
+		 * @param className
+		 * @param authorName
+		 * @param flags
+		 *            any combination of {@link GestureModel#FLAG_ROTATION_INVARIANT} and
+		 *            {@link GestureModel#FLAG_TIME_SENSITIVE}
+		 * @param xyt
+		 *            interleaved x, y, and timestamp values of the control points
+		 */
+		public void addShapeContext(String className, String authorName, int flags, double[] xyt) {
+			add(new Entry(KIND_SHAPE_CONTEXT, className, authorName, flags, xyt.length / 3, 3), xyt);
+		}
+
+		private void add(Entry entry, double[] values) {
+			entries.add(entry);
+			data.add(values);
+		}
+
+		/**
+		 * @param file
+		 * @throws IOException
+		 *             if the file cannot be written, or a name or author is longer than 65535 bytes (in UTF-8)
+		 */
+		public void write(File file) throws IOException {
+			final byte[][] names = new byte[entries.size()][];
+			final byte[][] authors = new byte[entries.size()][];
+			int indexSize = 0;
+			for (int i = 0; i < entries.size(); i++) {
+				final Entry entry = entries.get(i);
+				names[i] = encode(entry.name);
+				authors[i] = encode(entry.author);
+				if (names[i].length > MAX_STRING_BYTES || authors[i].length > MAX_STRING_BYTES) {
+					throw new IOException("The name or author of gesture model entry " + i + " is longer than "
+							+ MAX_STRING_BYTES + " bytes.");
+				}
+				indexSize += INDEX_ENTRY_FIXED_BYTES + names[i].length + authors[i].length;
+			}
+
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+					file)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(dollarNumPoints);
+				out.writeInt(entries.size());
+
+				// the data block follows the header and the index, and is 8-byte aligned
+				long offset = align(HEADER_BYTES + indexSize);
+				for (int i = 0; i < entries.size(); i++) {
+					final Entry entry = entries.get(i);
+					out.writeByte(entry.kind);
+					out.writeByte(entry.flags);
+					out.writeByte(entry.dimensions);
+					out.writeInt(entry.numPoints);
+					out.writeLong(offset);
+					out.writeShort(names[i].length);
+					out.write(names[i]);
+					out.writeShort(authors[i].length);
+					out.write(authors[i]);
+					offset += data.get(i).length * 8L;
+				}
+				for (long pad = align(HEADER_BYTES + indexSize) - (HEADER_BYTES + indexSize); pad > 0; pad--) {
+					out.writeByte(0);
+				}
+				for (double[] values : data) {
+					for (double v : values) {
+						out.writeDouble(v);
+					}
+				}
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * One record of the index. The point data is decoded on demand.
+	 */
+	private static class Entry {
+		int dimensions;
+
+		int flags;
+
+		int kind;
+
+		String author;
+
+		String name;
+
+		int numPoints;
+
+		long offset;
+
+		/**
+		 * Filled in lazily by {@link GestureModel#getData(int)}.
+		 */
+		volatile double[] values;
+
+		Entry(int kind, String name, String author, int flags, int numPoints, int dimensions) {
+			this.kind = kind;
+			this.name = name;
+			this.author = author;
+			this.flags = flags;
+			this.numPoints = numPoints;
+			this.dimensions = dimensions;
+		}
+	}
+
+	public static final int FLAG_ROTATION_INVARIANT = 1;
+
+	public static final int FLAG_TIME_SENSITIVE = 2;
+
+	/**
+	 * A normalized $1 template: (x, y) pairs.
+	 */
+	public static final int KIND_DOLLAR_TEMPLATE = 1;
+
+	/**
+	 * A shape context training example: (x, y, timestamp) triples.
+	 */
+	public static final int KIND_SHAPE_CONTEXT = 2;
+
+	/**
+	 * "PTGM"
+	 */
+	private static final int MAGIC = 0x5054474D;
+
+	/**
+	 * Bump this whenever the layout changes. Older files are rejected rather than misread.
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * magic, version, dollar points, entry count
+	 */
+	private static final int HEADER_BYTES = 16;
+
+	/**
+	 * kind, flags, dimensions, numPoints, offset, and the two string lengths
+	 */
+	private static final int INDEX_ENTRY_FIXED_BYTES = 1 + 1 + 1 + 4 + 8 + 2 + 2;
+
+	/**
+	 * String lengths are stored as unsigned shorts.
+	 */
+	private static final int MAX_STRING_BYTES = 0xFFFF;
+
+	private static long align(long position) {
+		return (position + 7) & ~7L;
+	}
+
+	private static String decode(ByteBuffer buffer, int length) {
+		final byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static byte[] encode(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Maps the file and reads its index. No point data is decoded until it is requested.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 *             if the file is not a gesture model, was written by an incompatible version, or is truncated
+	 */
+	public static GestureModel open(File file) throws IOException {
+		final FileInputStream in = new FileInputStream(file);
+		try {
+			final FileChannel channel = in.getChannel();
+			// the mapping stays valid after the channel is closed
+			return new GestureModel(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} finally {
+			in.close();
+		}
+	}
+
+	private ByteBuffer buffer;
+
+	private int dollarNumPoints;
+
+	private Entry[] entries;
+
+	private GestureModel(File file, ByteBuffer mapped) throws IOException {
+		buffer = mapped;
+		final ByteBuffer header = buffer.duplicate();
+		if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC) {
+			throw new IOException(file + " is not a gesture model file.");
+		}
+		final int version = header.getInt();
+		if (version != VERSION) {
+			throw new IOException(file + " has gesture model version " + version + "; expected " + VERSION
+					+ ".");
+		}
+		dollarNumPoints = header.getInt();
+		final int numEntries = header.getInt();
+		if (numEntries < 0 || (long) numEntries * INDEX_ENTRY_FIXED_BYTES > header.remaining()) {
+			throw new IOException(file + " is truncated.");
+		}
+		entries = new Entry[numEntries];
+		try {
+			for (int i = 0; i < entries.length; i++) {
+				final int kind = header.get();
+				final int flags = header.get();
+				final int dimensions = header.get();
+				final int numPoints = header.getInt();
+				final long offset = header.getLong();
+				final String name = decode(header, header.getShort() & MAX_STRING_BYTES);
+				final String author = decode(header, header.getShort() & MAX_STRING_BYTES);
+				// so getData(...) never reads past the end of the file
+				if (dimensions <= 0 || numPoints < 0 || offset < 0
+						|| offset + (long) numPoints * dimensions * 8 > buffer.limit()) {
+					throw new IOException(file + " is truncated: the data of entry " + i
+							+ " is not in the file.");
+				}
+				entries[i] = new Entry(kind, name, author, flags, numPoints, dimensions);
+				entries[i].offset = offset;
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IOException(file + " is truncated: its index ends early.");
+		}
+	}
+
+	public String getAuthor(int index) {
+		return entries[index].author;
+	}
+
+	/**
+	 * Decodes (once) and returns the interleaved point data of an entry. Callers must not modify the array.
+	 *
+	 * @param index
+	 * @return x, y pairs for $1 templates; x, y, timestamp triples for shape contexts
+	 */
+	public double[] getData(int index) {
+		final Entry entry = entries[index];
+		double[] values = entry.values;
+		if (values == null) {
+			values = new double[entry.numPoints * entry.dimensions];
+			final ByteBuffer view = buffer.duplicate();
+			view.position((int) entry.offset);
+			view.asDoubleBuffer().get(values);
+			entry.values = values;
+		}
+		return values;
+	}
+
+	/**
+	 * @return the number of points that the $1 templates in this file were resampled to
+	 */
+	public int getDollarNumPoints() {
+		return dollarNumPoints;
+	}
+
+	public int getFlags(int index) {
+		return entries[index].flags;
+	}
+
+	public int getKind(int index) {
+		return entries[index].kind;
+	}
+
+	public String getName(int index) {
+		return entries[index].name;
+	}
+
+	public int getNumEntries() {
+		return entries.length;
+	}
+
+	public int getNumPoints(int index) {
+		return entries[index].numPoints;
+	}
+}
@@ -1,10 +1,13 @@
 package papertoolkit.pen.gesture.dollar;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 import papertoolkit.pen.PenSample;
+import papertoolkit.pen.gesture.GestureModel;
 import papertoolkit.pen.ink.InkStroke;
 import papertoolkit.util.MathUtils;
 
@@ -83,6 +86,12 @@ public class DollarRecognizer {
 		String Name;
 		ArrayList<Pt> Points;
 
+		/**
+		 * For templates read from a gesture model, the points are decoded on first use.
+		 */
+		private GestureModel model;
+		private int modelIndex;
+
 		public Template(String name, ArrayList<Pt> points) {
 			Name = name;
 			Points = Resample(points, NumPoints);
@@ -90,6 +99,26 @@ public class DollarRecognizer {
 			Points = ScaleToSquare(Points, SquareSize);
 			Points = TranslateToOrigin(Points);
 		}
+
+		/**
+		 * The model already holds the normalized points, so nothing is recomputed here.
+		 */
+		public Template(GestureModel model, int index) {
+			Name = model.getName(index);
+			this.model = model;
+			modelIndex = index;
+		}
+
+		synchronized ArrayList<Pt> getPoints() {
+			if (Points == null) {
+				final double[] xy = model.getData(modelIndex);
+				Points = new ArrayList<Pt>(xy.length / 2);
+				for (int i = 0; i < xy.length; i += 2) {
+					Points.add(new Pt(xy[i], xy[i + 1]));
+				}
+			}
+			return Points;
+		}
 	}
 
 	private static final double AnglePrecision = 2.0;
@@ -139,7 +168,7 @@ public class DollarRecognizer {
 
 	private static double DistanceAtAngle(ArrayList<Pt> points, Template T, double theta) {
 		ArrayList<Pt> newpoints = RotateBy(points, theta);
-		return PathDistance(newpoints, T.Points);
+		return PathDistance(newpoints, T.getPoints());
 	}
 
 	private static double DistanceAtBestAngle(ArrayList<Pt> points, Template T, double a, double b,
@@ -508,6 +537,29 @@ public class DollarRecognizer {
 		originalTemplates = new ArrayList<Template>(templates);
 	}
 
+	/**
+	 * Uses the templates stored in a gesture model (see {@link #saveTemplates(File)}) instead of the predefined
+	 * ones. Only the model's index is read here; each template's points are decoded the first time it is
+	 * compared against.
+	 * 
+	 * @param modelFile
+	 * @throws IOException
+	 */
+	public DollarRecognizer(File modelFile) throws IOException {
+		final GestureModel model = GestureModel.open(modelFile);
+		if (model.getDollarNumPoints() != NumPoints) {
+			throw new IOException(modelFile + " holds templates resampled to " + model.getDollarNumPoints()
+					+ " points; this recognizer uses " + NumPoints + ".");
+		}
+		templates = new ArrayList<Template>();
+		for (int i = 0; i < model.getNumEntries(); i++) {
+			if (model.getKind(i) == GestureModel.KIND_DOLLAR_TEMPLATE) {
+				templates.add(new Template(model, i));
+			}
+		}
+		originalTemplates = new ArrayList<Template>(templates);
+	}
+
 	//
 	// The $1 Gesture Recognizer API begins here -- 3 methods
 	//
@@ -526,11 +578,41 @@ public class DollarRecognizer {
 		return num; // number of templates with this name...
 	}
 
+	/**
+	 * Removes every template, including the predefined ones, so that the recognizer can be trained from
+	 * scratch (e.g., by an evaluation harness).
+	 */
+	public void clearTemplates() {
+		originalTemplates.clear();
+		templates = new ArrayList<Template>();
+	}
+
 	public int deleteUserTemplates() {
 		templates = new ArrayList<Template>(originalTemplates); // clear beyond the original set
 		return templates.size();
 	}
 
+	/**
+	 * Writes all current templates (including user templates) to a binary gesture model, which can be loaded
+	 * much faster than rebuilding the templates from raw points.
+	 * 
+	 * @param modelFile
+	 * @throws IOException
+	 */
+	public void saveTemplates(File modelFile) throws IOException {
+		final GestureModel.Writer writer = new GestureModel.Writer(NumPoints);
+		for (Template t : templates) {
+			final ArrayList<Pt> points = t.getPoints();
+			final double[] xy = new double[points.size() * 2];
+			for (int i = 0; i < points.size(); i++) {
+				xy[2 * i] = points.get(i).X;
+				xy[2 * i + 1] = points.get(i).Y;
+			}
+			writer.addDollarTemplate(t.Name, xy);
+		}
+		writer.write(modelFile);
+	}
+
 	public RecognitionResult recognize(ArrayList<Pt> points) {
 		if (points.size() < 2) {
 			return new RecognitionResult(templates.get(0).Name, 0.1); // too small!
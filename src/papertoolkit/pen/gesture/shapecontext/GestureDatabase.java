@@ -28,6 +28,7 @@ import javax.swing.SpringLayout;
 import javax.swing.WindowConstants;
 
 import papertoolkit.pen.PenSample;
+import papertoolkit.pen.gesture.GestureModel;
 import papertoolkit.pen.ink.Ink;
 import papertoolkit.pen.ink.InkStroke;
 import papertoolkit.render.ink.InkRenderer;
@@ -293,7 +294,7 @@ public class GestureDatabase implements ActionListener, FocusListener {
 		for (Gesture gesture : gestures) {
 			for (ShapeContext context : gesture.contexts) {
 				count++;
-				totalN += context.controlPoints.size();
+				totalN += context.getControlPoints().size();
 			}
 		}
 		System.out.println("Average points per context: " + totalN / count);
@@ -476,6 +477,7 @@ public class GestureDatabase implements ActionListener, FocusListener {
 			Writer writer = new FileWriter(new File("C:\\dev\\quill\\data\\" + databaseName + ".gp"));
 			quillWrite(writer);
 			Save(new FileWriter(new File(databaseName + ".xml")));
+			saveModel(new File(databaseName + ".gm"));
 			break;
 		}
 		// Thread.yield();
@@ -497,7 +499,7 @@ public class GestureDatabase implements ActionListener, FocusListener {
 			double min_y = Double.MAX_VALUE;
 			double max_x = Double.MIN_VALUE;
 			double max_y = Double.MIN_VALUE;
-			for (PenSample sample : bestExamples.get(i).controlPoints) {
+			for (PenSample sample : bestExamples.get(i).getControlPoints()) {
 				min_x = Math.min(sample.x, min_x);
 				min_y = Math.min(sample.y, min_y);
 				max_x = Math.max(sample.x, max_x);
@@ -510,7 +512,7 @@ public class GestureDatabase implements ActionListener, FocusListener {
 		for (int i = 0; i < bestExamples.size(); i++) {
 			ShapeContext context = bestExamples.get(i);
 			display(context, max_range_x * (2 * (i % 3) + 1), max_range_y * (2 * (i / 3) + 1));
-			ink.addStroke(new InkStroke(context.controlPoints, new Points()));
+			ink.addStroke(new InkStroke(context.getControlPoints(), new Points()));
 		}
 		InkRenderer renderer = new InkRenderer(ink);
 		renderer.renderToJPEG(new File("best.jpg"), new PixelsPerInch(300), new Points(max_range_x * 7),
@@ -525,15 +527,15 @@ public class GestureDatabase implements ActionListener, FocusListener {
 	public void display(ShapeContext context, double w, double h) {
 		double min_x = Double.MAX_VALUE;
 		double min_y = Double.MAX_VALUE;
-		for (PenSample sample : context.controlPoints) {
+		for (PenSample sample : context.getControlPoints()) {
 			min_x = Math.min(sample.x, min_x);
 			min_y = Math.min(sample.y, min_y);
 		}
-		for (PenSample sample : context.controlPoints) {
+		for (PenSample sample : context.getControlPoints()) {
 			sample.x += w - min_x;
 			sample.y += h - min_y;
 		}
-		InkStroke stroke = new InkStroke(context.controlPoints, new Points());
+		InkStroke stroke = new InkStroke(context.getControlPoints(), new Points());
 		Ink ink = new Ink();
 		ink.addStroke(stroke);
 		inkPanel.clear();
@@ -556,7 +558,7 @@ public class GestureDatabase implements ActionListener, FocusListener {
 		ShapeContext.bands = 3;
 		int max_points = 0;
 		for (ShapeContext context : bestExamples) {
-			max_points = Math.max(max_points, context.controlPoints.size());
+			max_points = Math.max(max_points, context.getControlPoints().size());
 		}
 		Random random = new Random();
 		ArrayList<PenSample> newSamples = new ArrayList<PenSample>();
@@ -578,7 +580,7 @@ public class GestureDatabase implements ActionListener, FocusListener {
 		for (int i = 0; i < maxIteration; i++) {
 			// pick a random point in testExample
 			int point = random.nextInt(max_points);
-			PenSample sample = testExample.controlPoints.get(point);
+			PenSample sample = testExample.getControlPoints().get(point);
 			// scale is max_points
 			int dim = random.nextInt(2);
 			int mod = random.nextInt(scale) - (scale / 2);
@@ -608,9 +610,9 @@ public class GestureDatabase implements ActionListener, FocusListener {
 			double angleCost = 0;
 			for (int c = 1; c < max_points - 1; c++) {
 				// compute angles
-				PenSample first = testExample.controlPoints.get(c - 1);
-				PenSample second = testExample.controlPoints.get(c);
-				PenSample third = testExample.controlPoints.get(c + 1);
+				PenSample first = testExample.getControlPoints().get(c - 1);
+				PenSample second = testExample.getControlPoints().get(c);
+				PenSample third = testExample.getControlPoints().get(c + 1);
 				double x1 = second.x - first.x;
 				double y1 = second.y - first.y;
 				double x2 = third.x - second.x;
@@ -625,8 +627,8 @@ public class GestureDatabase implements ActionListener, FocusListener {
 			double averageLength = 0;
 			double[] length = new double[max_points - 1];
 			for (int c = 1; c < max_points; c++) {
-				PenSample first = testExample.controlPoints.get(c - 1);
-				PenSample second = testExample.controlPoints.get(c);
+				PenSample first = testExample.getControlPoints().get(c - 1);
+				PenSample second = testExample.getControlPoints().get(c);
 				length[c - 1] = Math.sqrt(Math.pow(first.x - second.x, 2) + Math.pow(first.y - second.y, 2));
 				averageLength += length[c - 1];
 			}
@@ -660,7 +662,7 @@ public class GestureDatabase implements ActionListener, FocusListener {
 				System.out.println("Accepted " + acceptedWeak + " weak samples.");
 				display(testExample, max_points * max_points, max_points * max_points);
 				Ink ink = new Ink();
-				ink.addStroke(new InkStroke(testExample.controlPoints, new Points()));
+				ink.addStroke(new InkStroke(testExample.getControlPoints(), new Points()));
 				InkRenderer renderer = new InkRenderer(ink);
 				renderer.renderToJPEG(new File(databaseName + "_generated_" + (i / 100) + ".jpg"),
 						new PixelsPerInch(300), new Points(max_points * max_points * 3), new Points(
@@ -685,7 +687,7 @@ public class GestureDatabase implements ActionListener, FocusListener {
 		while (unlabeledContexts.size() > 0) {
 			ShapeContext context = unlabeledContexts.get(unlabeledContexts.size() - 1);
 			if (context.authorName.contains("jerry"))
-				for (PenSample sample : context.controlPoints) { // that clown
+				for (PenSample sample : context.getControlPoints()) { // that clown
 					sample.x *= -1;
 					sample.y *= -1;
 				}
@@ -867,6 +869,74 @@ public class GestureDatabase implements ActionListener, FocusListener {
 		writer.close();
 	}
 
+	/**
+	 * Reads a database saved with {@link #saveModel(File)}. This is much faster than reading the XStream
+	 * format, as the control points are stored already filtered and smoothed.
+	 * 
+	 * @param modelFile
+	 * @param databaseName
+	 * @return
+	 * @throws IOException
+	 */
+	public static GestureDatabase loadModel(File modelFile, String databaseName) throws IOException {
+		final GestureModel model = GestureModel.open(modelFile);
+		final GestureDatabase database = new GestureDatabase(databaseName);
+		final HashMap<String, Gesture> gesturesByName = new HashMap<String, Gesture>();
+		for (int i = 0; i < model.getNumEntries(); i++) {
+			if (model.getKind(i) != GestureModel.KIND_SHAPE_CONTEXT) {
+				continue;
+			}
+			final String name = model.getName(i);
+			Gesture gesture = gesturesByName.get(name);
+			if (gesture == null) {
+				gesture = new Gesture(name);
+				gesture.rotationInvariant = (model.getFlags(i) & GestureModel.FLAG_ROTATION_INVARIANT) != 0;
+				gesture.timeSensitive = (model.getFlags(i) & GestureModel.FLAG_TIME_SENSITIVE) != 0;
+				gesturesByName.put(name, gesture);
+				if (!name.endsWith("TEST")) {
+					database.gestures.add(gesture);
+				}
+			}
+			gesture.addGesture(new ShapeContext(model, i, model.getAuthor(i)));
+		}
+		// empty test classes are not stored, but autotest expects one test class per training class
+		database.testGestures.clear();
+		for (Gesture gesture : database.gestures) {
+			Gesture testGesture = gesturesByName.get(gesture.name + "TEST");
+			if (testGesture == null) {
+				testGesture = new Gesture(gesture.name + "TEST");
+			}
+			database.testGestures.add(testGesture);
+		}
+		return database;
+	}
+
+	/**
+	 * Writes the training and test gestures (with their class parameters) to a binary gesture model.
+	 * 
+	 * @param modelFile
+	 * @throws IOException
+	 */
+	public void saveModel(File modelFile) throws IOException {
+		final GestureModel.Writer writer = new GestureModel.Writer(0);
+		final ArrayList<Gesture> all = new ArrayList<Gesture>(gestures);
+		all.addAll(testGestures);
+		for (Gesture gesture : all) {
+			int flags = 0;
+			if (gesture.rotationInvariant) {
+				flags |= GestureModel.FLAG_ROTATION_INVARIANT;
+			}
+			if (gesture.timeSensitive) {
+				flags |= GestureModel.FLAG_TIME_SENSITIVE;
+			}
+			for (ShapeContext context : gesture.contexts) {
+				writer.addShapeContext(gesture.name, context.authorName == null ? "" : context.authorName,
+						flags, context.packControlPoints());
+			}
+		}
+		writer.write(modelFile);
+	}
+
 	public void Save(Writer writer) throws IOException {
 		XStream xstream = new XStream();
 		xstream.toXML(this, writer);
@@ -964,4 +1034,4 @@ public class GestureDatabase implements ActionListener, FocusListener {
 			System.out.println("Elapsed time was: " + secondsElapsed);
 		}
 	}
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -6,6 +6,7 @@ import java.text.DecimalFormat;
 import java.util.ArrayList;
 
 import papertoolkit.pen.PenSample;
+import papertoolkit.pen.gesture.GestureModel;
 
 
 /**
@@ -52,7 +53,17 @@ public class ShapeContext {
 
 	String authorName;
 
-	ArrayList<PenSample> controlPoints = new ArrayList<PenSample>();
+	/**
+	 * Null until first used, for contexts read from a gesture model. Use {@link #getControlPoints()}.
+	 */
+	private volatile ArrayList<PenSample> controlPoints = new ArrayList<PenSample>();
+
+	/**
+	 * Where the control points are stored, until they are decoded.
+	 */
+	private GestureModel model;
+
+	private int modelIndex;
 
 	public ShapeContext(ArrayList<PenSample> controlPointsInput, String authorName) {
 		this.authorName = authorName;
@@ -81,6 +92,22 @@ public class ShapeContext {
 		// ANN ann = new ANN();
 	}
 
+	/**
+	 * A context whose control points are stored (already de-duplicated and smoothed) in a gesture model.
+	 * They are only decoded when the context is first used.
+	 * 
+	 * @param gestureModel
+	 * @param index
+	 *            the model entry that holds interleaved x, y, and timestamp values
+	 * @param authorName
+	 */
+	ShapeContext(GestureModel gestureModel, int index, String authorName) {
+		this.authorName = authorName;
+		controlPoints = null;
+		model = gestureModel;
+		modelIndex = index;
+	}
+
 	double blend(int i, double t) {
 		switch (i) {
 		case 0:
@@ -97,6 +124,7 @@ public class ShapeContext {
 
 	// Catmull-Rom FTW
 	PenSample blendHelper(int i, double t) {
+		final ArrayList<PenSample> controlPoints = getControlPoints();
 		PenSample[] samples = new PenSample[4];
 		PenSample blendedSample = new PenSample(0, 0, (int) 0, (long) 0);
 		if (i == 0) // double up the first
@@ -132,6 +160,28 @@ public class ShapeContext {
 		return 0; // we only get here if an invalid i is specified
 	}
 
+	/**
+	 * @return the control points, decoded from the gesture model the first time they are needed
+	 */
+	ArrayList<PenSample> getControlPoints() {
+		ArrayList<PenSample> points = controlPoints;
+		if (points == null) {
+			synchronized (this) {
+				points = controlPoints;
+				if (points == null) {
+					final double[] xyt = model.getData(modelIndex);
+					points = new ArrayList<PenSample>(xyt.length / 3);
+					for (int i = 0; i < xyt.length; i += 3) {
+						points.add(new PenSample(xyt[i], xyt[i + 1], 0, (long) xyt[i + 2]));
+					}
+					controlPoints = points;
+					model = null;
+				}
+			}
+		}
+		return points;
+	}
+
 	public ArrayList<ShapeHistogram> generateShapeHistogram(int points, int dummy_padding,
 			boolean rotationInvariant, boolean timeSensitive) {
 		// histogram for each point
@@ -231,6 +281,21 @@ public class ShapeContext {
 		return histograms;
 	}
 
+	/**
+	 * @return interleaved x, y, and timestamp values of the control points, for saving to a gesture model
+	 */
+	double[] packControlPoints() {
+		final ArrayList<PenSample> controlPoints = getControlPoints();
+		final double[] xyt = new double[controlPoints.size() * 3];
+		for (int i = 0; i < controlPoints.size(); i++) {
+			final PenSample sample = controlPoints.get(i);
+			xyt[3 * i] = sample.x;
+			xyt[3 * i + 1] = sample.y;
+			xyt[3 * i + 2] = sample.timestamp;
+		}
+		return xyt;
+	}
+
 	public double[][] points() {
 		return points(size());
 	}
@@ -246,6 +311,7 @@ public class ShapeContext {
 	}
 
 	public void quillWrite(Writer writer) throws IOException {
+		final ArrayList<PenSample> controlPoints = getControlPoints();
 		final DecimalFormat df = new DecimalFormat("#");
 		boolean normalized = false;
 		writer.write("normalized\t" + normalized + "\n");
@@ -279,6 +345,7 @@ public class ShapeContext {
 	 */
 
 	public ArrayList<PenSample> resample(int samples) {
+		final ArrayList<PenSample> controlPoints = getControlPoints();
 		// special case
 		if (samples == controlPoints.size())
 			return (ArrayList<PenSample>) controlPoints.clone();
@@ -293,9 +360,12 @@ public class ShapeContext {
 		 */
 		// resample for even spacing in time
 		int points = controlPoints.size();
-		for (int i = 1; i < points; i++) {
-			while (controlPoints.get(i).timestamp <= controlPoints.get(i - 1).timestamp)
-				controlPoints.get(i).timestamp++;
+		// only the first call changes anything; the lock keeps concurrent matchers from racing on it
+		synchronized (controlPoints) {
+			for (int i = 1; i < points; i++) {
+				while (controlPoints.get(i).timestamp <= controlPoints.get(i - 1).timestamp)
+					controlPoints.get(i).timestamp++;
+			}
 		}
 		double t0 = controlPoints.get(0).timestamp;
 		double t1 = controlPoints.get(points - 1).timestamp;
@@ -314,11 +384,12 @@ public class ShapeContext {
 	}
 
 	public int size() {
-		return 2 * controlPoints.size();
+		return 2 * getControlPoints().size();
 	}
 
 	// all I actually need is x and y, or even angle. but this will do
 	PenSample tangent(int i, double t) {
+		final ArrayList<PenSample> controlPoints = getControlPoints();
 		PenSample[] samples = new PenSample[4];
 		PenSample blendedSample = new PenSample(0, 0, (int) 0, (long) 0);
 		if (i == 0) // double up the first
@@ -341,6 +412,7 @@ public class ShapeContext {
 	}
 
 	public ArrayList<PenSample> tangents(int samples) {
+		final ArrayList<PenSample> controlPoints = getControlPoints();
 		// want to return something with time information
 		ArrayList<PenSample> sampledPoints = new ArrayList<PenSample>();
 		assert (controlPoints.size() > 1);
@@ -31,7 +31,11 @@ public class ShapeHistogram {
 
 	public static double costWeighting = .3;
 
-	static Pair Z0;
+	/**
+	 * Passes the uncovered zero from step 4 to step 5. Kept per thread, so that several matchings can run at
+	 * the same time (e.g., during cross-validation).
+	 */
+	private static final ThreadLocal<Pair> Z0 = new ThreadLocal<Pair>();
 
 	// ah, point arrays
 	static public DoubleMatrix2D bookstein(int N, double[][] X, double[][] X2, double beta_k,
@@ -458,7 +462,7 @@ public class ShapeHistogram {
 				R_cov[pair.row] = 1;
 				C_cov[col] = 0;
 			} else {
-				Z0 = pair;
+				Z0.set(pair);
 				return 5;
 			}
 		}
@@ -467,7 +471,7 @@ public class ShapeHistogram {
 	static public int step5(int n, double[][] C, int[][] M, int[] R_cov, int[] C_cov) {
 		int count = 1;
 		ArrayList<Pair> path = new ArrayList<Pair>();
-		path.add(Z0);
+		path.add(Z0.get());
 		boolean done = false;
 		while (!done) {
 			Pair last = path.get(path.size() - 1);
@@ -9,13 +9,29 @@ import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.Socket;
-import java.net.UnknownHostException;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import papertoolkit.PaperToolkit;
 import papertoolkit.application.config.Constants;
 import papertoolkit.pen.ink.Ink;
+import papertoolkit.pen.ink.InkStroke;
 import papertoolkit.util.DebugUtils;
 import papertoolkit.util.files.FileUtils;
 
@@ -23,7 +39,23 @@ import papertoolkit.util.files.FileUtils;
  * <p>
  * Allows us to use the HWRecognition server (written in C#/.NET) from Java. This acts as a client that relays
  * messages to our Handwriting Recognition Server.
- * 
+ * </p>
+ * <p>
+ * recognize(...) returns right away with a Future. Requests are spread over a small pool of connections (the
+ * server gives each connection its own thread). Each request has an id, so many of them can be sent down one
+ * connection before the first reply comes back, and each reply holds the top result and its alternatives.
+ * Requests that get no reply within the timeout fail with a TimeoutException. Older servers do not know about
+ * ids; with them, each connection does one request at a time, the old way.
+ * </p>
+ * <p>
+ * A field that is written a stroke at a time can use a RecognitionSession (see openSession()) instead, which
+ * sends each stroke as it is finished rather than the whole field each time.
+ * </p>
+ * <p>
+ * To test without the real recognizer, start a StubRecognitionServer and connect to it with the public
+ * constructor.
+ * </p>
+ * <p>
  * TODO: The Handwriting Recognition Server should stay ON between runs of PaperToolkit apps, because it takes
  * some time to start. We should check if it's still running by connecting to the port. If it doesn't respond,
  * then we call the exe again to start up the server.
@@ -32,11 +64,504 @@ import papertoolkit.util.files.FileUtils;
  * <span class="BSDLicense"> This software is distributed under the <a
  * href="http://hci.stanford.edu/research/copyright.txt">BSD License</a>. </span>
  * </p>
- * 
+ *
  * @author <a href="http://graphics.stanford.edu/~ronyeh">Ron B Yeh</a> (ronyeh(AT)cs.stanford.edu)
  */
 public class HandwritingRecognitionService {
 
+	/**
+	 * One socket to the recognizer. Its sender thread connects and writes the requests. If the server takes
+	 * pipelined requests, a reader thread matches the replies to the requests by their ids. Otherwise, the
+	 * sender does each request's whole round trip before it sends the next one.
+	 */
+	private class Connection {
+
+		private String name;
+
+		/**
+		 * Counts the sockets we have opened. Sessions use it to tell whether the server has their strokes.
+		 */
+		private int numSockets = 0;
+
+		/**
+		 * Requests sent down (or waiting to be sent down) this connection, by id.
+		 */
+		private Map<Integer, PendingRecognition> pending = new ConcurrentHashMap<Integer, PendingRecognition>();
+
+		private boolean pipelined;
+
+		private BufferedReader reader;
+
+		private ExecutorService sender;
+
+		private Socket socket;
+
+		private PrintWriter writer;
+
+		public Connection(int number) {
+			name = "Handwriting Recognition Connection " + number;
+			sender = Executors.newSingleThreadExecutor(createThreadFactory(name));
+		}
+
+		/**
+		 * Fails its requests and closes the socket.
+		 */
+		public void close() {
+			sender.shutdownNow();
+			disconnect(getSocket());
+			for (Integer id : pending.keySet()) {
+				final PendingRecognition request = pending.remove(id);
+				if (request != null) {
+					request.fail(new IOException("The handwriting recognition service was closed."));
+				}
+			}
+		}
+
+		/**
+		 * Runs in the sender thread. Asks the server whether it takes pipelined requests; older servers do not
+		 * answer.
+		 */
+		private void connect() throws IOException {
+			waitForServer();
+			final Socket s = new Socket(host, port);
+			final PrintWriter w = new PrintWriter(new BufferedWriter(new OutputStreamWriter(s.getOutputStream())));
+			final BufferedReader r = new BufferedReader(new InputStreamReader(s.getInputStream()));
+			boolean serverPipelines = false;
+			w.println(HELLO_COMMAND);
+			w.flush();
+			s.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+			try {
+				final String reply = r.readLine();
+				if (reply == null) {
+					s.close();
+					throw new IOException("The handwriting recognizer closed the connection.");
+				}
+				serverPipelines = reply.startsWith(HELLO_COMMAND);
+			} catch (SocketTimeoutException e) {
+				// an older server, which recognizes one request at a time
+			}
+			s.setSoTimeout(0);
+			synchronized (this) {
+				socket = s;
+				writer = w;
+				reader = r;
+				pipelined = serverPipelines;
+				numSockets++;
+			}
+			if (serverPipelines) {
+				final Thread replyReader = new Thread(new Runnable() {
+					public void run() {
+						readReplies(s, r);
+					}
+				}, name + " Reader");
+				replyReader.setDaemon(true);
+				replyReader.start();
+			} else {
+				DebugUtils.println("The handwriting recognizer does not take pipelined requests.");
+			}
+		}
+
+		private synchronized void disconnect(Socket s) {
+			if (s == null || s != socket) {
+				return;
+			}
+			try {
+				s.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			socket = null;
+			writer = null;
+			reader = null;
+		}
+
+		/**
+		 * A pipelined connection lost its socket. Requests that were sent will never be answered; requests
+		 * that are still waiting to be sent will go out on a new socket.
+		 */
+		private void failSentRequests() {
+			for (PendingRecognition request : pending.values()) {
+				if (request.sent && pending.remove(request.id) != null) {
+					request.fail(new IOException("Lost the connection to the handwriting recognizer."));
+				}
+			}
+		}
+
+		public int getNumPending() {
+			return pending.size();
+		}
+
+		private synchronized Socket getSocket() {
+			return socket;
+		}
+
+		/**
+		 * Runs in the reader thread of a pipelined connection, until the socket is closed.
+		 */
+		private void readReplies(Socket s, BufferedReader r) {
+			try {
+				String line;
+				while ((line = r.readLine()) != null) {
+					if (!line.startsWith(RESULT_REPLY)) {
+						continue;
+					}
+					// [[result]] id<TAB>top result<TAB>alternative...
+					final String[] fields = line.substring(RESULT_REPLY.length()).split("\t", -1);
+					final int id;
+					try {
+						id = Integer.parseInt(fields[0].trim());
+					} catch (NumberFormatException e) {
+						DebugUtils.println("Bad reply from the handwriting recognizer: " + line);
+						continue;
+					}
+					final PendingRecognition request = pending.remove(id);
+					if (request == null) {
+						// it timed out, or was canceled
+						continue;
+					}
+					final List<String> alternatives = new ArrayList<String>();
+					for (int i = 1; i < fields.length; i++) {
+						alternatives.add(fields[i]);
+					}
+					request.finish(new RecognitionResult(alternatives));
+				}
+			} catch (IOException e) {
+				// the socket was closed
+			}
+			disconnect(s);
+			failSentRequests();
+		}
+
+		/**
+		 * Runs in the sender thread.
+		 */
+		private void send(PendingRecognition request) {
+			if (request.isDone()) {
+				// it timed out (or was canceled) while it waited
+				pending.remove(request.id);
+				return;
+			}
+			Socket s = null;
+			try {
+				if (getSocket() == null) {
+					connect();
+				}
+				final PrintWriter w;
+				final BufferedReader r;
+				final boolean serverPipelines;
+				final int socketNumber;
+				synchronized (this) {
+					s = socket;
+					w = writer;
+					r = reader;
+					serverPipelines = pipelined;
+					socketNumber = numSockets;
+				}
+				if (s == null) {
+					throw new IOException("Lost the connection to the handwriting recognizer.");
+				}
+				request.sent = true;
+				final RecognitionSession session = request.session;
+				if (serverPipelines) {
+					if (session != null) {
+						sendNewStrokes(w, session, socketNumber);
+						w.println(RECOGNIZE_SESSION_COMMAND + " " + request.id + " " + session.getID());
+					} else {
+						w.println(RECOGNIZE_COMMAND + " " + request.id + " " + request.xml);
+					}
+					if (w.checkError()) {
+						throw new IOException("Could not send the ink to the handwriting recognizer.");
+					}
+				} else {
+					final String xml = (session != null) ? session.toXMLString() : request.xml;
+					final RecognitionResult result = sendAndWait(w, r, xml);
+					pending.remove(request.id);
+					request.finish(result);
+				}
+			} catch (IOException e) {
+				pending.remove(request.id);
+				request.fail(e);
+				disconnect(s);
+			}
+		}
+
+		/**
+		 * The older protocol: send the ink, read the top result, then ask for the alternatives.
+		 */
+		private RecognitionResult sendAndWait(PrintWriter w, BufferedReader r, String xml) throws IOException {
+			w.println(xml);
+			w.flush();
+			final String topResult = r.readLine();
+			if (topResult == null) {
+				throw new IOException("The handwriting recognizer closed the connection.");
+			}
+			w.println(TOP_TEN_COMMAND);
+			w.flush();
+			final List<String> alternatives = new ArrayList<String>();
+			String line;
+			while ((line = r.readLine()) != null && !line.equals(END_OF_ALTERNATIVES)) {
+				alternatives.add(line);
+			}
+			if (line == null) {
+				throw new IOException("The handwriting recognizer closed the connection.");
+			}
+			if (alternatives.size() == 0 || !alternatives.get(0).equals(topResult)) {
+				alternatives.add(0, topResult);
+			}
+			return new RecognitionResult(alternatives);
+		}
+
+		/**
+		 * Runs in the sender thread of a pipelined connection.
+		 */
+		private void sendNewStrokes(PrintWriter w, RecognitionSession session, int socketNumber) {
+			final List<InkStroke> strokes = session.getStrokesToSend(socketNumber);
+			if (strokes.size() > 0) {
+				w.println(ADD_STROKES_COMMAND + " " + session.getID() + " "
+						+ new Ink(strokes).toXMLString(false /* no separator lines */));
+			}
+		}
+
+		/**
+		 * Fails a request that could not be sent or watched, because the service was closed as it was
+		 * submitted.
+		 */
+		public void rejected(PendingRecognition request) {
+			pending.remove(request.id);
+			request.fail(new IOException("The handwriting recognition service was closed."));
+		}
+
+		public void submit(final PendingRecognition request) {
+			pending.put(request.id, request);
+			sender.execute(new Runnable() {
+				public void run() {
+					send(request);
+				}
+			});
+		}
+
+		/**
+		 * Tells the server to forget the session's strokes, if it has them.
+		 */
+		public void submitEndSession(final RecognitionSession session) {
+			sender.execute(new Runnable() {
+				public void run() {
+					final PrintWriter w;
+					synchronized (Connection.this) {
+						if (socket == null || !pipelined || !session.hasSentOn(numSockets)) {
+							return;
+						}
+						w = writer;
+					}
+					w.println(END_SESSION_COMMAND + " " + session.getID());
+					w.flush();
+				}
+			});
+		}
+
+		/**
+		 * Sends the session's new strokes now, so that they are on the server before the result is asked for.
+		 * An older server gets them all when the result is asked for.
+		 */
+		public void submitStrokes(final RecognitionSession session) {
+			sender.execute(new Runnable() {
+				public void run() {
+					Socket s = null;
+					try {
+						if (getSocket() == null) {
+							connect();
+						}
+						final PrintWriter w;
+						final int socketNumber;
+						synchronized (Connection.this) {
+							if (socket == null || !pipelined) {
+								return;
+							}
+							s = socket;
+							w = writer;
+							socketNumber = numSockets;
+						}
+						sendNewStrokes(w, session, socketNumber);
+						if (w.checkError()) {
+							throw new IOException("Could not send the ink to the handwriting recognizer.");
+						}
+					} catch (IOException e) {
+						// the strokes will be sent again, on the next socket
+						DebugUtils.println("Could not send strokes: " + e.getLocalizedMessage());
+						disconnect(s);
+					}
+				}
+			});
+		}
+
+		/**
+		 * Runs in the watchdog thread. An older server's connection is closed, as the reply we gave up on
+		 * would be read as the answer to the next request.
+		 */
+		public void timedOut(PendingRecognition request) {
+			if (pending.remove(request.id) == null) {
+				return;
+			}
+			request.fail(new TimeoutException("No reply from the handwriting recognizer after "
+					+ requestTimeoutMillis + " ms."));
+			final boolean serverPipelines;
+			synchronized (this) {
+				serverPipelines = pipelined;
+			}
+			if (request.sent && !serverPipelines) {
+				disconnect(getSocket());
+			}
+		}
+	}
+
+	/**
+	 * A request that the caller can wait on. The connection completes it with finish(...) or fail(...); the
+	 * first of those (or of a cancel(...)) wins, and the rest are ignored.
+	 */
+	private static class PendingRecognition implements Future<RecognitionResult> {
+
+		/**
+		 * Where the result goes when it comes back, if we are caching results.
+		 */
+		private RecognitionCache cache;
+
+		private String cacheKey;
+
+		private boolean cancelled = false;
+
+		/**
+		 * Let go once the result (or failure) is set, and saved to the cache.
+		 */
+		private CountDownLatch completed = new CountDownLatch(1);
+
+		/**
+		 * Set once, by the first of finish(...), fail(...) and cancel(...).
+		 */
+		private boolean done = false;
+
+		private Throwable failure;
+
+		private int id;
+
+		/**
+		 * Requests for the same ink wait on the first one, while it is in here.
+		 */
+		private ConcurrentMap<String, PendingRecognition> inFlight;
+
+		/**
+		 * Set by the sender thread once the request has gone to the server.
+		 */
+		private RecognitionResult result;
+
+		private volatile boolean sent = false;
+
+		/**
+		 * The field to recognize, or null if the ink is in xml.
+		 */
+		private RecognitionSession session;
+
+		private String xml;
+
+		public PendingRecognition(int requestID, String inkXML, RecognitionSession inkSession) {
+			id = requestID;
+			xml = inkXML;
+			session = inkSession;
+		}
+
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return complete(null, null, true);
+		}
+
+		/**
+		 * Saves the result to the cache (before it stops standing in for other requests for the same ink), and
+		 * lets the waiting threads go.
+		 * 
+		 * @return false if the request was already done
+		 */
+		private boolean complete(RecognitionResult recognitionResult, Throwable cause, boolean cancel) {
+			synchronized (this) {
+				if (done) {
+					return false;
+				}
+				done = true;
+				result = recognitionResult;
+				failure = cause;
+				cancelled = cancel;
+			}
+			if (cacheKey != null) {
+				if (recognitionResult != null) {
+					cache.put(cacheKey, recognitionResult);
+				}
+				inFlight.remove(cacheKey, this);
+			}
+			completed.countDown();
+			return true;
+		}
+
+		public void fail(Throwable cause) {
+			complete(null, cause, false);
+		}
+
+		public void finish(RecognitionResult recognitionResult) {
+			complete(recognitionResult, null, false);
+		}
+
+		public RecognitionResult get() throws InterruptedException, ExecutionException {
+			completed.await();
+			return getResult();
+		}
+
+		public RecognitionResult get(long timeout, TimeUnit unit) throws InterruptedException,
+				ExecutionException, TimeoutException {
+			if (!completed.await(timeout, unit)) {
+				throw new TimeoutException();
+			}
+			return getResult();
+		}
+
+		/**
+		 * Only called once the request is done.
+		 */
+		private synchronized RecognitionResult getResult() throws ExecutionException {
+			if (cancelled) {
+				throw new CancellationException();
+			}
+			if (failure != null) {
+				throw new ExecutionException(failure);
+			}
+			return result;
+		}
+
+		public boolean isCancelled() {
+			return completed.getCount() == 0 && cancelled;
+		}
+
+		public boolean isDone() {
+			return completed.getCount() == 0;
+		}
+	}
+
+	private static final String ADD_STROKES_COMMAND = "[[addstrokes]]";
+
+	/**
+	 * How many results the default service remembers.
+	 */
+	private static final int DEFAULT_CACHE_SIZE = 1000;
+
+	private static final String END_SESSION_COMMAND = "[[endsession]]";
+
+	/**
+	 * Ends the list of alternatives that an older server sends after a [[topten]] command.
+	 */
+	private static final String END_OF_ALTERNATIVES = "[[endofalternatives]]";
+
+	/**
+	 * How long we wait for a server to say that it takes pipelined requests.
+	 */
+	private static final int HANDSHAKE_TIMEOUT_MILLIS = 2000;
+
+	private static final String HELLO_COMMAND = "[[hello]]";
+
 	private static final int HWREC_PORT = Constants.Ports.HANDWRITING_RECOGNITION;
 
 	private static final String HWREC_SERVER = "localhost";
@@ -45,8 +570,28 @@ public class HandwritingRecognitionService {
 
 	private static final String HW_REC_SERVER_EXE = "HandwritingRecognition.exe";
 
+	private static final String QUIT_SERVER_COMMAND = "[[quitserver]]";
+
+	private static final String RECOGNIZE_COMMAND = "[[recognize]]";
+
+	private static final String RECOGNIZE_SESSION_COMMAND = "[[recognizesession]]";
+
 	private static final String REL_PATH_TO_HWREC_SERVER = "handwritingRec/HWRecServer/bin/Release/";
 
+	private static final String RESULT_REPLY = "[[result]]";
+
+	private static final String TOP_TEN_COMMAND = "[[topten]]";
+
+	private static ThreadFactory createThreadFactory(final String name) {
+		return new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				final Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
 	/**
 	 * @return access to the HWRec Server.
 	 */
@@ -57,16 +602,46 @@ public class HandwritingRecognitionService {
 		return instance;
 	}
 
-	private boolean clientInitialized;
+	/**
+	 * Results for ink we have seen before. Null if we do not cache results.
+	 */
+	private volatile RecognitionCache cache;
+
+	/**
+	 * Opened as they are needed, up to maxConnections.
+	 */
+	private List<Connection> connections = new ArrayList<Connection>();
+
+	/**
+	 * Set by exitServer() and close().
+	 */
+	private boolean closed = false;
 
-	private BufferedReader clientReader;
+	private String host;
+
+	/**
+	 * The result of each thread's last recognizeHandwriting(...) call, for getAlternatives().
+	 */
+	private ThreadLocal<RecognitionResult> lastResult = new ThreadLocal<RecognitionResult>() {
+		protected RecognitionResult initialValue() {
+			return RecognitionResult.EMPTY;
+		}
+	};
 
-	private Socket clientSocket;
+	private int maxConnections;
 
 	/**
-	 * Write to this to send information to the server.
+	 * Requests that results will be cached for, while they are being recognized, by their cache keys.
 	 */
-	private PrintWriter clientWriter;
+	private ConcurrentMap<String, PendingRecognition> inFlight = new ConcurrentHashMap<String, PendingRecognition>();
+
+	private AtomicInteger nextRequestID = new AtomicInteger(0);
+
+	private AtomicInteger nextSessionID = new AtomicInteger(0);
+
+	private int port;
+
+	private volatile long requestTimeoutMillis = 10000;
 
 	/**
 	 * Has the server been started?
@@ -74,92 +649,159 @@ public class HandwritingRecognitionService {
 	private boolean serverStarted;
 
 	/**
-	 * This should only ever be called once, so we will start one server and one client.
+	 * The server keeps a session's strokes with the connection they came in on, so each session sticks to
+	 * one connection.
+	 */
+	private Map<RecognitionSession, Connection> sessionConnections = new ConcurrentHashMap<RecognitionSession, Connection>();
+
+	/**
+	 * Fails requests that were not answered in time.
+	 */
+	private ScheduledExecutorService watchdog = Executors
+			.newSingleThreadScheduledExecutor(createThreadFactory("Handwriting Recognition Watchdog"));
+
+	/**
+	 * This should only ever be called once, so we will start one server. The connections are opened when the
+	 * first requests come in, once the server has started up.
 	 */
 	private HandwritingRecognitionService() {
+		host = HWREC_SERVER;
+		port = HWREC_PORT;
+		maxConnections = 4;
+		cache = new RecognitionCache(DEFAULT_CACHE_SIZE);
 		initializeServer();
-		connectToServer();
 
 		// Exit the Server upon shutdown...
+		final HandwritingRecognitionService service = this;
 		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
 			public void run() {
-				HandwritingRecognitionService.getInstance().exitServer();
+				service.exitServer();
 			}
 		}));
 	}
 
 	/**
-	 * Connect to the HWRecognition Server...
+	 * Connects to a recognizer that is already running (e.g., a StubRecognitionServer), instead of starting
+	 * HandwritingRecognition.exe.
+	 *
+	 * @param serverHost
+	 * @param serverPort
+	 * @param numConnections
+	 *            how many sockets to spread the requests over
 	 */
-	private synchronized void connectToServer() {
-		if (clientInitialized) {
-			return;
-		}
+	public HandwritingRecognitionService(String serverHost, int serverPort, int numConnections) {
+		host = serverHost;
+		port = serverPort;
+		maxConnections = Math.max(1, numConnections);
+		serverStarted = true;
+	}
 
-		while (!serverStarted) {
-			try {
-				// DebugUtils.println("Waiting for the server to start up...");
-				wait();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+	/**
+	 * Fails the requests that are waiting, and closes the connections. The server keeps running.
+	 */
+	public void close() {
+		final List<Connection> toClose;
+		synchronized (this) {
+			if (closed) {
+				return;
 			}
+			closed = true;
+			toClose = new ArrayList<Connection>(connections);
+			connections.clear();
+			sessionConnections.clear();
+			// senders still waiting for the server give up
+			notifyAll();
 		}
-
-		try {
-			clientSocket = new Socket(HWREC_SERVER, HWREC_PORT);
-			clientWriter = new PrintWriter(new BufferedWriter(new OutputStreamWriter(clientSocket
-					.getOutputStream())));
-			clientReader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-			clientInitialized = true;
-		} catch (UnknownHostException e) {
-			DebugUtils.println("Unknown Host: " + e.getLocalizedMessage());
-			clientInitialized = false;
-		} catch (IOException e) {
-			DebugUtils.println("IOException: " + e.getLocalizedMessage());
-			clientInitialized = false;
+		for (Connection connection : toClose) {
+			connection.close();
 		}
+		watchdog.shutdownNow();
 	}
 
 	/**
-	 * 
+	 * Ask the server to exit.... You can only call this once!
 	 */
-	private void disconnectClient() {
+	public void exitServer() {
+		final boolean askServerToQuit;
+		synchronized (this) {
+			askServerToQuit = !closed && serverStarted;
+		}
+		close();
+		if (!askServerToQuit) {
+			return;
+		}
 		try {
-			clientSocket.close();
+			final Socket s = new Socket(host, port);
+			final PrintWriter w = new PrintWriter(new OutputStreamWriter(s.getOutputStream()));
+			w.println(QUIT_SERVER_COMMAND);
+			w.flush();
+			s.close();
 		} catch (IOException e) {
-			e.printStackTrace();
+			DebugUtils.println("Could not ask the handwriting recognizer to exit: " + e.getLocalizedMessage());
 		}
 	}
 
 	/**
-	 * Ask the server to exit.... You can only call this once!
+	 * @return the results we remember, or null
 	 */
-	public void exitServer() {
-		clientWriter.println("[[quitserver]]");
-		clientWriter.flush();
-		disconnectClient();
+	public RecognitionCache getCache() {
+		return cache;
 	}
 
 	/**
-	 * @return ask the server to provide the top ten alternatives... The server will respond with a list, and
-	 *         terminate that list with a token [[endofalternatives]]
+	 * @return the alternatives from this thread's last recognizeHandwriting(...) call (the top result is at
+	 *         position 0). They came back with the top result, so this does not ask the server again.
 	 */
 	public List<String> getAlternatives() {
-		clientWriter.println("[[topten]]");
-		clientWriter.flush();
-		String line = null;
-		final List<String> alternatives = new ArrayList<String>();
-		try {
-			while ((line = clientReader.readLine()) != null) {
-				if (line.equals("[[endofalternatives]]")) {
-					break;
-				}
-				alternatives.add(line);
+		return new ArrayList<String>(lastResult.get().getAlternatives());
+	}
+
+	/**
+	 * @return the connection with the fewest requests, or a new one if they are all busy
+	 */
+	private synchronized Connection getConnection() {
+		Connection leastBusy = null;
+		for (Connection connection : connections) {
+			if (leastBusy == null || connection.getNumPending() < leastBusy.getNumPending()) {
+				leastBusy = connection;
 			}
-		} catch (IOException e) {
+		}
+		if ((leastBusy == null || leastBusy.getNumPending() > 0) && connections.size() < maxConnections) {
+			leastBusy = new Connection(connections.size());
+			connections.add(leastBusy);
+		}
+		return leastBusy;
+	}
+
+	/**
+	 * @return the cached result (as a Future that is done), the request that is already recognizing the same
+	 *         ink, or null if we have to ask the server
+	 */
+	private Future<RecognitionResult> getKnownResult(RecognitionCache resultCache, String key) {
+		if (key == null) {
+			return null;
+		}
+		final RecognitionResult cached = resultCache.get(key);
+		if (cached != null) {
+			final PendingRecognition done = new PendingRecognition(-1, null, null);
+			done.finish(cached);
+			return done;
+		}
+		return inFlight.get(key);
+	}
+
+	/**
+	 * Waits for the result, which may be empty if the recognition failed.
+	 */
+	private RecognitionResult getResult(Future<RecognitionResult> futureResult) {
+		try {
+			return futureResult.get();
+		} catch (InterruptedException e) {
 			e.printStackTrace();
+		} catch (ExecutionException e) {
+			DebugUtils.println("Handwriting recognition failed: " + e.getCause());
 		}
-		return alternatives;
+		return RecognitionResult.EMPTY;
 	}
 
 	/**
@@ -204,6 +846,115 @@ public class HandwritingRecognitionService {
 		}).start();
 	}
 
+	/**
+	 * Returns right away. The result comes back with its alternatives, or fails with a TimeoutException if
+	 * the server does not answer in time.
+	 *
+	 * @param ink
+	 * @return
+	 */
+	public Future<RecognitionResult> recognize(Ink ink) {
+		return recognize(ink, null);
+	}
+
+	/**
+	 * @param ink
+	 * @param context
+	 *            for the cache: what else tells this ink apart from the same ink elsewhere (e.g., the pen ID and
+	 *            region name), or null
+	 * @return
+	 */
+	public Future<RecognitionResult> recognize(Ink ink, String context) {
+		final RecognitionCache resultCache = cache;
+		final String key = (resultCache == null) ? null : RecognitionCache.getKey(ink, context);
+		return recognize(ink.toXMLString(false /* no separator lines */), resultCache, key);
+	}
+
+	/**
+	 * @param xml
+	 *            the ink, as one line of XML
+	 * @return
+	 */
+	public Future<RecognitionResult> recognize(String xml) {
+		final RecognitionCache resultCache = cache;
+		final String key = (resultCache == null) ? null : RecognitionCache.getKey(xml);
+		return recognize(xml, resultCache, key);
+	}
+
+	/**
+	 * Called by the session.
+	 */
+	Future<RecognitionResult> recognize(RecognitionSession session) {
+		final RecognitionCache resultCache = cache;
+		final String key = (resultCache == null) ? null : RecognitionCache.getKey(session.getInk(), session
+				.getContext());
+		final Future<RecognitionResult> known = getKnownResult(resultCache, key);
+		if (known != null) {
+			return known;
+		}
+		final PendingRecognition request = new PendingRecognition(nextRequestID.getAndIncrement(), null, session);
+		final Connection connection = sessionConnections.get(session);
+		if (connection == null) {
+			request.fail(new IOException("The recognition session was closed."));
+			return request;
+		}
+		return submit(request, connection, resultCache, key);
+	}
+
+	private Future<RecognitionResult> recognize(String xml, RecognitionCache resultCache, String key) {
+		final Future<RecognitionResult> known = getKnownResult(resultCache, key);
+		if (known != null) {
+			return known;
+		}
+		// a line break would end the request early
+		final PendingRecognition request = new PendingRecognition(nextRequestID.getAndIncrement(), xml.replace(
+				'\n', ' ').replace('\r', ' '), null);
+		final Connection connection;
+		synchronized (this) {
+			if (closed) {
+				request.fail(new IOException("The handwriting recognition service was closed."));
+				return request;
+			}
+			connection = getConnection();
+		}
+		return submit(request, connection, resultCache, key);
+	}
+
+	/**
+	 * Called by the session.
+	 */
+	void closeSession(RecognitionSession session) {
+		final Connection connection = sessionConnections.remove(session);
+		if (connection != null) {
+			connection.submitEndSession(session);
+		}
+	}
+
+	/**
+	 * Starts a field that will be sent to the recognizer a stroke at a time.
+	 * 
+	 * @return
+	 */
+	public RecognitionSession openSession() {
+		return openSession(null);
+	}
+
+	/**
+	 * @param context
+	 *            for the cache: what tells this field apart from others with the same ink (e.g., the pen ID and
+	 *            region name), or null
+	 * @return
+	 */
+	public RecognitionSession openSession(String context) {
+		final RecognitionSession session = new RecognitionSession(this, nextSessionID.getAndIncrement(), context);
+		synchronized (this) {
+			if (!closed) {
+				sessionConnections.put(session, getConnection());
+			}
+		}
+		return session;
+	}
+
 	/**
 	 * @param xmlFile
 	 * @return
@@ -212,26 +963,97 @@ public class HandwritingRecognitionService {
 		return recognizeHandwriting(FileUtils.readFileIntoStringBuffer(xmlFile, false).toString());
 	}
 
+	public String recognizeHandwriting(Ink ink) {
+		final String xml = ink.toXMLString(false /* no separator lines */);
+		return recognizeHandwriting(xml);
+	}
+
 	/**
-	 * This recognize call should return as fast as possible... as an end user will experience this...
-	 * 
+	 * Blocks until the result comes back. This recognize call should return as fast as possible... as an end
+	 * user will experience this... Use recognize(...) to avoid blocking (e.g., on the Swing thread).
+	 *
 	 * @param xml
-	 * @return
+	 * @return the top result, or "" if the recognition failed
 	 */
 	public String recognizeHandwriting(String xml) {
-		clientWriter.println(xml);
-		clientWriter.flush();
+		final RecognitionResult result = getResult(recognize(xml));
+		lastResult.set(result);
+		return result.getTopResult();
+	}
+
+	/**
+	 * @param resultCache
+	 *            remembers results, so the same ink is not recognized twice (e.g., when batched data is imported
+	 *            again), or null to always ask the server
+	 */
+	public void setCache(RecognitionCache resultCache) {
+		cache = resultCache;
+	}
+
+	/**
+	 * @param timeoutMillis
+	 *            how long a request may wait for its reply (including time spent waiting to be sent)
+	 */
+	public void setRequestTimeout(long timeoutMillis) {
+		requestTimeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Called by the session.
+	 */
+	void strokesAdded(RecognitionSession session) {
+		final Connection connection = sessionConnections.get(session);
+		if (connection != null) {
+			connection.submitStrokes(session);
+		}
+	}
+
+	/**
+	 * @return the request to wait on (an earlier one, if the same ink is already being recognized)
+	 */
+	private Future<RecognitionResult> submit(final PendingRecognition request, final Connection connection,
+			RecognitionCache resultCache, String key) {
+		if (key != null) {
+			request.cache = resultCache;
+			request.cacheKey = key;
+			request.inFlight = inFlight;
+			final PendingRecognition earlier = inFlight.putIfAbsent(key, request);
+			if (earlier != null) {
+				return earlier;
+			}
+		}
 		try {
-			final String returnVal = clientReader.readLine();
-			return returnVal;
-		} catch (IOException e) {
-			e.printStackTrace();
+			connection.submit(request);
+			watchdog.schedule(new Runnable() {
+				public void run() {
+					connection.timedOut(request);
+				}
+			}, requestTimeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// close() shut the sender or the watchdog down under us
+			connection.rejected(request);
 		}
-		return "";
+		return request;
 	}
-	
-	public String recognizeHandwriting(Ink ink) {
-		final String xml = ink.toXMLString(false /* no separator lines */);
-		return recognizeHandwriting(xml);
+
+	/**
+	 * Runs in a connection's sender thread, before it connects for the first time. Gives up when the service
+	 * is closed.
+	 */
+	private synchronized void waitForServer() throws IOException {
+		while (true) {
+			if (closed) {
+				throw new IOException("The handwriting recognition service was closed.");
+			}
+			if (serverStarted) {
+				return;
+			}
+			try {
+				// DebugUtils.println("Waiting for the server to start up...");
+				wait();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while waiting for the handwriting recognizer to start.");
+			}
+		}
 	}
 }
@@ -0,0 +1,328 @@
+package papertoolkit.pen.handwriting;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import papertoolkit.pen.ink.Ink;
+import papertoolkit.pen.ink.InkStroke;
+import papertoolkit.util.DebugUtils;
+
+/**
+ * <p>
+ * Remembers what the recognizer said about ink it has already seen, so that re-imported or replayed ink (or
+ * two applications listening to the same region) does not go to the recognizer again. Keeps the most
+ * recently used results, up to a maximum number.
+ * </p>
+ * <p>
+ * The key is a hash of the ink's strokes, with the samples rounded to whole units (the recognizer only sees
+ * whole units), plus its page address and a context string (e.g., the pen and region it came from). Times
+ * and forces are left out, as they do not change what the recognizer says.
+ * </p>
+ * <p>
+ * If given a file, the cache loads it, and adds each new result to the end of it, so that results survive
+ * between runs. The file is rewritten without the old entries when it gets too long.
+ * </p>
+ * <p>
+ * <span class="BSDLicense"> This software is distributed under the <a
+ * href="http://hci.stanford.edu/research/copyright.txt">BSD License</a>. </span>
+ * </p>
+ */
+public class RecognitionCache {
+
+	/**
+	 * Access ordered, so the least recently used result is dropped once there are too many.
+	 */
+	private static class RecentResults extends LinkedHashMap<String, RecognitionResult> {
+		private static final long serialVersionUID = 1L;
+
+		private int maxEntries;
+
+		RecentResults(int maxResults) {
+			super(16, 0.75f, true);
+			maxEntries = maxResults;
+		}
+
+		protected boolean removeEldestEntry(Map.Entry<String, RecognitionResult> eldest) {
+			return size() > maxEntries;
+		}
+	}
+
+	private static final String DIGEST_ALGORITHM = "SHA-1";
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance(DIGEST_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @param ink
+	 * @param context
+	 *            what else makes this ink different from the same ink elsewhere (e.g., the pen ID and region
+	 *            name), or null
+	 * @return the key for this ink's result
+	 */
+	public static String getKey(Ink ink, String context) {
+		final MessageDigest digest = createDigest();
+		update(digest, (context == null) ? "" : context);
+		update(digest, (ink.getSourcePageAddress() == null) ? "" : ink.getSourcePageAddress().toString());
+		final List<InkStroke> strokes = ink.getStrokes();
+		update(digest, strokes.size());
+		for (InkStroke stroke : strokes) {
+			final double[] x = stroke.getXSamples();
+			final double[] y = stroke.getYSamples();
+			update(digest, x.length);
+			for (int i = 0; i < x.length; i++) {
+				update(digest, Math.round(x[i]));
+				update(digest, Math.round(y[i]));
+			}
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * @param xml
+	 *            ink that we only have as XML
+	 * @return the key for the result of this exact XML
+	 */
+	public static String getKey(String xml) {
+		final MessageDigest digest = createDigest();
+		update(digest, xml);
+		return toHex(digest.digest());
+	}
+
+	private static String toHex(byte[] bytes) {
+		final char[] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+			hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xF];
+		}
+		return new String(hex);
+	}
+
+	private static void update(MessageDigest digest, long value) {
+		for (int i = 0; i < 8; i++) {
+			digest.update((byte) (value >>> (8 * i)));
+		}
+	}
+
+	private static void update(MessageDigest digest, String value) {
+		try {
+			final byte[] bytes = value.getBytes("UTF-8");
+			update(digest, bytes.length);
+			digest.update(bytes);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Adds each new result to the end of the file. Null if we are not saving results.
+	 */
+	private PrintWriter appender;
+
+	private int maxEntries;
+
+	private int numHits = 0;
+
+	/**
+	 * How many results the file holds, including ones that were replaced.
+	 */
+	private int numLinesInFile = 0;
+
+	private int numMisses = 0;
+
+	private File persistentFile;
+
+	/**
+	 * Most recently used last.
+	 */
+	private LinkedHashMap<String, RecognitionResult> results;
+
+	/**
+	 * @param maxResults
+	 *            how many results to keep
+	 */
+	public RecognitionCache(int maxResults) {
+		this(maxResults, null);
+	}
+
+	/**
+	 * @param maxResults
+	 *            how many results to keep
+	 * @param file
+	 *            where to save results between runs (loaded now if it exists), or null
+	 */
+	public RecognitionCache(int maxResults, File file) {
+		maxEntries = Math.max(1, maxResults);
+		results = new RecentResults(maxEntries);
+		persistentFile = file;
+		if (persistentFile != null) {
+			load();
+			if (numLinesInFile > maxEntries * 2) {
+				rewriteFile();
+			}
+			openAppender();
+		}
+	}
+
+	/**
+	 * Forgets all results (and empties the file).
+	 */
+	public synchronized void clear() {
+		results.clear();
+		if (persistentFile != null) {
+			rewriteFile();
+		}
+	}
+
+	/**
+	 * Stops saving results to the file.
+	 */
+	public synchronized void close() {
+		if (appender != null) {
+			appender.close();
+			appender = null;
+		}
+	}
+
+	/**
+	 * @param key
+	 *            from getKey(...)
+	 * @return the result, or null if we have not seen this ink
+	 */
+	public synchronized RecognitionResult get(String key) {
+		final RecognitionResult result = results.get(key);
+		if (result == null) {
+			numMisses++;
+		} else {
+			numHits++;
+		}
+		return result;
+	}
+
+	public synchronized int getNumHits() {
+		return numHits;
+	}
+
+	public synchronized int getNumMisses() {
+		return numMisses;
+	}
+
+	/**
+	 * Reads key<TAB>top result<TAB>alternative... lines. Later lines replace earlier ones.
+	 */
+	private void load() {
+		if (!persistentFile.exists()) {
+			return;
+		}
+		try {
+			final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(
+					persistentFile), "UTF-8"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					final String[] fields = line.split("\t", -1);
+					final List<String> alternatives = new ArrayList<String>();
+					for (int i = 1; i < fields.length; i++) {
+						alternatives.add(fields[i]);
+					}
+					results.put(fields[0], new RecognitionResult(alternatives));
+					numLinesInFile++;
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		DebugUtils.println("Loaded " + results.size() + " handwriting recognition results from "
+				+ persistentFile);
+	}
+
+	private void openAppender() {
+		try {
+			appender = new PrintWriter(new OutputStreamWriter(new FileOutputStream(persistentFile, true), "UTF-8"));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @param key
+	 *            from getKey(...)
+	 * @param result
+	 */
+	public synchronized void put(String key, RecognitionResult result) {
+		results.put(key, result);
+		if (appender != null) {
+			appender.println(toLine(key, result));
+			appender.flush();
+			numLinesInFile++;
+			if (numLinesInFile > maxEntries * 2) {
+				rewriteFile();
+			}
+		}
+	}
+
+	/**
+	 * Writes out only the results we are keeping.
+	 */
+	private void rewriteFile() {
+		final boolean wasAppending = (appender != null);
+		close();
+		try {
+			final File tempFile = new File(persistentFile.getPath() + ".tmp");
+			final PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tempFile),
+					"UTF-8"));
+			for (Map.Entry<String, RecognitionResult> entry : results.entrySet()) {
+				writer.println(toLine(entry.getKey(), entry.getValue()));
+			}
+			writer.close();
+			persistentFile.delete();
+			if (!tempFile.renameTo(persistentFile)) {
+				DebugUtils.println("Could not replace " + persistentFile);
+			}
+			numLinesInFile = results.size();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (wasAppending) {
+			openAppender();
+		}
+	}
+
+	public synchronized int size() {
+		return results.size();
+	}
+
+	private String toLine(String key, RecognitionResult result) {
+		final StringBuilder line = new StringBuilder(key);
+		for (String alternative : result.getAlternatives()) {
+			line.append("\t").append(alternative);
+		}
+		return line.toString();
+	}
+
+	public String toString() {
+		return "RecognitionCache [" + size() + " results, " + getNumHits() + " hits, " + getNumMisses()
+				+ " misses]";
+	}
+}
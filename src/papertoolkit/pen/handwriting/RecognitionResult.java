@@ -0,0 +1,54 @@
+package papertoolkit.pen.handwriting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>
+ * What the handwriting recognizer made of some ink: the top result, and the alternatives it considered (the
+ * top result is the first of them).
+ * </p>
+ * <p>
+ * <span class="BSDLicense"> This software is distributed under the <a
+ * href="http://hci.stanford.edu/research/copyright.txt">BSD License</a>. </span>
+ * </p>
+ */
+public class RecognitionResult {
+
+	/**
+	 * For ink that could not be recognized.
+	 */
+	public static final RecognitionResult EMPTY = new RecognitionResult(new ArrayList<String>());
+
+	private List<String> alternatives;
+
+	/**
+	 * @param topResultFirst
+	 *            the top result, followed by the other alternatives, best first
+	 */
+	public RecognitionResult(List<String> topResultFirst) {
+		alternatives = Collections.unmodifiableList(new ArrayList<String>(topResultFirst));
+	}
+
+	/**
+	 * @return the top ten (or so) results, including the top one at position 0
+	 */
+	public List<String> getAlternatives() {
+		return alternatives;
+	}
+
+	/**
+	 * @return the top-ranked ASCII translation, or "" if nothing was recognized
+	 */
+	public String getTopResult() {
+		if (alternatives.size() == 0) {
+			return "";
+		}
+		return alternatives.get(0);
+	}
+
+	public String toString() {
+		return "RecognitionResult " + alternatives;
+	}
+}
@@ -0,0 +1,164 @@
+package papertoolkit.pen.handwriting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import papertoolkit.pen.ink.Ink;
+import papertoolkit.pen.ink.InkStroke;
+
+/**
+ * <p>
+ * The ink of one field (e.g., one handwriting region), sent to the recognizer a stroke at a time as it is
+ * written. The server keeps the field's strokes, so asking for a result does not send the whole field again.
+ * Get one from HandwritingRecognitionService.openSession(), and close it when the field is cleared.
+ * </p>
+ * <p>
+ * If the connection is lost, the strokes are sent again on the new one. Older servers do not keep sessions;
+ * with them, recognize() sends the whole field, as recognizeHandwriting(...) does.
+ * </p>
+ * <p>
+ * <span class="BSDLicense"> This software is distributed under the <a
+ * href="http://hci.stanford.edu/research/copyright.txt">BSD License</a>. </span>
+ * </p>
+ */
+public class RecognitionSession {
+
+	private String context;
+
+	private int id;
+
+	/**
+	 * The result for the first lastResultNumStrokes strokes.
+	 */
+	private Future<RecognitionResult> lastResult;
+
+	private int lastResultNumStrokes;
+
+	/**
+	 * How many strokes the server has, and on which of the connection's sockets it got them.
+	 */
+	private int numStrokesSent = 0;
+
+	private int sentOnSocket = -1;
+
+	private HandwritingRecognitionService service;
+
+	private List<InkStroke> strokes = new ArrayList<InkStroke>();
+
+	RecognitionSession(HandwritingRecognitionService recognizer, int sessionID, String cacheContext) {
+		service = recognizer;
+		id = sessionID;
+		context = cacheContext;
+	}
+
+	/**
+	 * Sends the stroke to the recognizer, in the background.
+	 *
+	 * @param stroke
+	 *            a finished stroke
+	 */
+	public void addStroke(InkStroke stroke) {
+		synchronized (this) {
+			strokes.add(stroke);
+		}
+		service.strokesAdded(this);
+	}
+
+	/**
+	 * Tells the server that it can forget this field's strokes.
+	 */
+	public void close() {
+		service.closeSession(this);
+	}
+
+	/**
+	 * @return what tells this field apart from others with the same ink, for the cache (may be null)
+	 */
+	public String getContext() {
+		return context;
+	}
+
+	public int getID() {
+		return id;
+	}
+
+	public synchronized int getNumStrokes() {
+		return strokes.size();
+	}
+
+	/**
+	 * @param socketNumber
+	 *            which socket the strokes will be sent on
+	 * @return the strokes that the server does not have yet (all of them, if this is a new socket)
+	 */
+	synchronized List<InkStroke> getStrokesToSend(int socketNumber) {
+		if (socketNumber != sentOnSocket) {
+			sentOnSocket = socketNumber;
+			numStrokesSent = 0;
+		}
+		final List<InkStroke> toSend = new ArrayList<InkStroke>(strokes.subList(numStrokesSent, strokes.size()));
+		numStrokesSent = strokes.size();
+		return toSend;
+	}
+
+	/**
+	 * @param socketNumber
+	 * @return whether the server got any of our strokes on this socket
+	 */
+	synchronized boolean hasSentOn(int socketNumber) {
+		return sentOnSocket == socketNumber && numStrokesSent > 0;
+	}
+
+	/**
+	 * Asks for the result for all the strokes so far. If no strokes were added since the last call, you get
+	 * the same result back (so it is cheap to ask for a result after every stroke, and again when the field is
+	 * done).
+	 *
+	 * @return the top result and alternatives, when they come back
+	 */
+	public synchronized Future<RecognitionResult> recognize() {
+		if (lastResult != null && lastResultNumStrokes == strokes.size() && !failed(lastResult)) {
+			return lastResult;
+		}
+		lastResult = service.recognize(this);
+		lastResultNumStrokes = strokes.size();
+		return lastResult;
+	}
+
+	private static boolean failed(Future<RecognitionResult> result) {
+		if (result.isCancelled()) {
+			return true;
+		}
+		if (!result.isDone()) {
+			return false;
+		}
+		try {
+			result.get();
+			return false;
+		} catch (InterruptedException e) {
+			return true;
+		} catch (ExecutionException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * @return a copy of the strokes so far
+	 */
+	public synchronized Ink getInk() {
+		return new Ink(new ArrayList<InkStroke>(strokes));
+	}
+
+	/**
+	 * @return the whole field, for servers that do not keep sessions
+	 */
+	String toXMLString() {
+		return getInk().toXMLString(false /* no separator lines */);
+	}
+
+	public String toString() {
+		return "RecognitionSession " + id + " [" + getNumStrokes() + " strokes]";
+	}
+}
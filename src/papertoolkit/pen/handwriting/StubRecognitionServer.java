@@ -0,0 +1,212 @@
+package papertoolkit.pen.handwriting;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import papertoolkit.util.DebugUtils;
+
+/**
+ * <p>
+ * Speaks the Handwriting Recognition Server's protocol, so that the HandwritingRecognitionService can be
+ * tried on machines without the Tablet PC recognizer. It does not read handwriting: it answers with the
+ * number of strokes in the ink (e.g., "3 strokes"), after a pretend recognition time. It keeps the ink of
+ * recognition sessions, as the real server does.
+ * </p>
+ * <p>
+ * Run it with a port (and optionally, the recognition time in ms), or start it from code. Pass false for
+ * takePipelinedRequests to act like the older server, which answers one request at a time and does not know
+ * about ids.
+ * </p>
+ * <p>
+ * <span class="BSDLicense"> This software is distributed under the <a
+ * href="http://hci.stanford.edu/research/copyright.txt">BSD License</a>. </span>
+ * </p>
+ */
+public class StubRecognitionServer {
+
+	private static final Pattern PATTERN_ADD_STROKES = Pattern.compile("^\\[\\[addstrokes\\]\\]\\s+(\\d+)\\s+(.*)$");
+
+	private static final Pattern PATTERN_END_SESSION = Pattern.compile("^\\[\\[endsession\\]\\]\\s+(\\d+)");
+
+	private static final Pattern PATTERN_RECOGNIZE = Pattern.compile("^\\[\\[recognize\\]\\]\\s+(\\d+)\\s+(.*)$");
+
+	private static final Pattern PATTERN_RECOGNIZE_SESSION = Pattern
+			.compile("^\\[\\[recognizesession\\]\\]\\s+(\\d+)\\s+(\\d+)");
+
+	private static final Pattern PATTERN_STROKE = Pattern.compile("<stroke");
+
+	/**
+	 * @param args
+	 *            port [recognitionTimeMillis]
+	 */
+	public static void main(String[] args) {
+		final int port = Integer.parseInt(args[0]);
+		final long recognitionTime = (args.length > 1) ? Long.parseLong(args[1]) : 0;
+		try {
+			new StubRecognitionServer(port, recognitionTime, true);
+			// the server's threads are daemons, so keep running until we are killed
+			Thread.sleep(Long.MAX_VALUE);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private boolean pipelined;
+
+	private long recognitionTimeMillis;
+
+	private ServerSocket serverSocket;
+
+	/**
+	 * Starts accepting connections right away, on a daemon thread.
+	 *
+	 * @param port
+	 *            0 to pick any free port
+	 * @param recognitionTime
+	 *            how long each request takes
+	 * @param takePipelinedRequests
+	 * @throws IOException
+	 */
+	public StubRecognitionServer(int port, long recognitionTime, boolean takePipelinedRequests)
+			throws IOException {
+		serverSocket = new ServerSocket(port);
+		recognitionTimeMillis = recognitionTime;
+		pipelined = takePipelinedRequests;
+		final Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				acceptClients();
+			}
+		}, "Stub Recognition Server");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		DebugUtils.println("Stub Recognition Server on port " + getPort());
+	}
+
+	private void acceptClients() {
+		int clientCount = 0;
+		while (!serverSocket.isClosed()) {
+			try {
+				final Socket client = serverSocket.accept();
+				final Thread worker = new Thread(new Runnable() {
+					public void run() {
+						talkToClient(client);
+					}
+				}, "Stub Recognition Client " + clientCount++);
+				worker.setDaemon(true);
+				worker.start();
+			} catch (IOException e) {
+				// closed
+			}
+		}
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * @return the top result first
+	 */
+	private String[] recognize(CharSequence xml) {
+		if (recognitionTimeMillis > 0) {
+			try {
+				Thread.sleep(recognitionTimeMillis);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+		int numStrokes = 0;
+		final Matcher matcher = PATTERN_STROKE.matcher(xml);
+		while (matcher.find()) {
+			numStrokes++;
+		}
+		return new String[] { numStrokes + " strokes", numStrokes + " stroke", "" + numStrokes };
+	}
+
+	public void stop() {
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * One client's requests, in order.
+	 */
+	private void talkToClient(Socket client) {
+		try {
+			final BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream()));
+			final PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(client
+					.getOutputStream())));
+			String[] lastAlternatives = null;
+			// the ink of each session, by session id
+			final Map<String, StringBuilder> sessions = new HashMap<String, StringBuilder>();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				final Matcher recognizeRequest = PATTERN_RECOGNIZE.matcher(line);
+				final Matcher addStrokes = PATTERN_ADD_STROKES.matcher(line);
+				final Matcher sessionRequest = PATTERN_RECOGNIZE_SESSION.matcher(line);
+				final Matcher endSession = PATTERN_END_SESSION.matcher(line);
+				if (line.equals("[[exit]]")) {
+					break;
+				} else if (line.equals("[[quitserver]]")) {
+					stop();
+					break;
+				} else if (line.equals("[[hello]]")) {
+					if (pipelined) {
+						writer.println("[[hello]] pipelined");
+					}
+				} else if (pipelined && recognizeRequest.matches()) {
+					final StringBuilder reply = new StringBuilder("[[result]] " + recognizeRequest.group(1));
+					for (String alternative : recognize(recognizeRequest.group(2))) {
+						reply.append("\t").append(alternative);
+					}
+					writer.println(reply);
+				} else if (pipelined && addStrokes.matches()) {
+					StringBuilder ink = sessions.get(addStrokes.group(1));
+					if (ink == null) {
+						ink = new StringBuilder();
+						sessions.put(addStrokes.group(1), ink);
+					}
+					ink.append(addStrokes.group(2));
+				} else if (pipelined && sessionRequest.find()) {
+					final StringBuilder reply = new StringBuilder("[[result]] " + sessionRequest.group(1));
+					final StringBuilder ink = sessions.get(sessionRequest.group(2));
+					for (String alternative : recognize(ink == null ? "" : ink)) {
+						reply.append("\t").append(alternative);
+					}
+					writer.println(reply);
+				} else if (pipelined && endSession.find()) {
+					sessions.remove(endSession.group(1));
+				} else if (line.equals("[[topten]]")) {
+					if (lastAlternatives != null) {
+						for (String alternative : lastAlternatives) {
+							writer.println(alternative);
+						}
+						writer.println("[[endofalternatives]]");
+					}
+				} else if (!line.startsWith("[[")) {
+					lastAlternatives = recognize(line);
+					writer.println(lastAlternatives[0]);
+				}
+				writer.flush();
+			}
+			client.close();
+		} catch (IOException e) {
+			// the client went away
+		}
+	}
+}
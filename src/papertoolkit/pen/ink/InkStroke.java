@@ -1,5 +1,6 @@
 package papertoolkit.pen.ink;
 
+import java.awt.Shape;
 import java.awt.geom.Rectangle2D;
 import java.util.ArrayList;
 import java.util.Calendar;
@@ -35,6 +36,24 @@ import papertoolkit.util.MathUtils;
  */
 public class InkStroke {
 
+	/**
+	 * Geometry a rendering technique built from our samples, with the technique's key and how many samples
+	 * there were. It is never changed, so another rendering thread sees all three together or none of them.
+	 */
+	private static class RenderedShape {
+		final Object key;
+
+		final int numSamples;
+
+		final Shape shape;
+
+		RenderedShape(Object theKey, int theNumSamples, Shape theShape) {
+			key = theKey;
+			numSamples = theNumSamples;
+			shape = theShape;
+		}
+	}
+
 	/**
 	 * Assume data represents pattern dots by default.
 	 */
@@ -60,6 +79,12 @@ public class InkStroke {
 	 */
 	private double minY = Double.MAX_VALUE;
 
+	/**
+	 * The geometry a rendering technique built from our samples, so that repaints can reuse it. It is dropped
+	 * whenever the samples change. The sample count catches samples appended through getSamples().
+	 */
+	private volatile RenderedShape renderedShape;
+
 	/**
 	 * How to interpret our units.
 	 */
@@ -111,6 +136,7 @@ public class InkStroke {
 	 */
 	public void addSample(double x, double y, int force, long ts) {
 		samples.add(new PenSample(x, y, force, ts));
+		invalidateRenderedShape();
 
 		// update maxs and mins
 		minX = Math.min(x, minX);
@@ -124,6 +150,7 @@ public class InkStroke {
 	 */
 	public void addSample(PenSample penSample) {
 		samples.add(penSample);
+		invalidateRenderedShape();
 
 		// update maxs and mins
 		minX = Math.min(penSample.x, minX);
@@ -249,6 +276,20 @@ public class InkStroke {
 		return samples.size();
 	}
 
+	/**
+	 * @param key
+	 *            identifies the rendering technique asking (techniques with equal keys build the same shape)
+	 * @return the shape that technique cached for this stroke, or null if there is none or the samples have
+	 *         changed since
+	 */
+	public Shape getRenderedShape(Object key) {
+		final RenderedShape rendered = renderedShape;
+		if (rendered == null || !rendered.key.equals(key) || rendered.numSamples != samples.size()) {
+			return null;
+		}
+		return rendered.shape;
+	}
+
 	/**
 	 * @return
 	 */
@@ -337,6 +378,14 @@ public class InkStroke {
 		return yInts;
 	}
 
+	/**
+	 * Drops the cached rendering geometry. This happens automatically when samples are added or replaced
+	 * through this class; call it yourself if you move the PenSample objects in place.
+	 */
+	public void invalidateRenderedShape() {
+		renderedShape = null;
+	}
+
 	/**
 	 * @param minStrokeX
 	 * @param minStrokeY
@@ -382,8 +431,22 @@ public class InkStroke {
 		minY = mnY;
 	}
 
+	/**
+	 * Caches the geometry that a rendering technique built from our samples.
+	 * 
+	 * @param key
+	 *            identifies the rendering technique
+	 * @param numSamples
+	 *            how many samples the shape was built from
+	 * @param shape
+	 */
+	public void setRenderedShape(Object key, int numSamples, Shape shape) {
+		renderedShape = new RenderedShape(key, numSamples, shape);
+	}
+
 	public void setSamples(List<PenSample> newSamples) {
 		samples = newSamples;
+		invalidateRenderedShape();
 	}
 
 	/*
@@ -151,6 +151,8 @@ public class PenClient {
 							// Currently, sample's time field is set to the PenServer's time...
 							// this might result in some clock skew between different pens...
 							// should there be an option to do this?
+							// (EventDispatcher.setOrderedMerge(...) estimates each pen's offset, and orders
+							// the pens' events by the corrected time)
 
 							// basically implements a state machine... =)
 							if (!penIsDown && !penIsUp) {
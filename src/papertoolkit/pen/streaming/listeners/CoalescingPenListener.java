@@ -0,0 +1,162 @@
+package papertoolkit.pen.streaming.listeners;
+
+import java.util.LinkedList;
+
+import papertoolkit.pen.PenSample;
+
+/**
+ * <p>
+ * Wraps a slow pen listener (e.g., one that draws on the screen or sends samples over a socket), so that it
+ * does not hold up the pen. The wrapped listener is called on its own thread. If it falls behind, the samples
+ * that are waiting are merged into the latest one, so it skips ahead to where the pen is now. Pen downs and
+ * ups are always passed on, in order. While the listener keeps up, it gets every sample.
+ * </p>
+ * <p>
+ * <span class="BSDLicense"> This software is distributed under the <a
+ * href="http://hci.stanford.edu/research/copyright.txt">BSD License</a>. </span>
+ * </p>
+ */
+public class CoalescingPenListener implements PenListener {
+
+	/**
+	 * What the pen did.
+	 */
+	private static enum Callback {
+		DOWN, SAMPLE, UP
+	}
+
+	/**
+	 * A callback that is waiting for the listener.
+	 */
+	private static class PendingCallback {
+		private Callback callback;
+
+		private PenSample sample;
+
+		public PendingCallback(Callback type, PenSample penSample) {
+			callback = type;
+			sample = penSample;
+		}
+	}
+
+	private boolean closed = false;
+
+	private PenListener listener;
+
+	private long numCoalesced = 0;
+
+	private long numDelivered = 0;
+
+	private LinkedList<PendingCallback> pending = new LinkedList<PendingCallback>();
+
+	/**
+	 * @param slowListener
+	 *            gets the callbacks, on our thread
+	 */
+	public CoalescingPenListener(PenListener slowListener) {
+		listener = slowListener;
+		final Thread worker = new Thread(new Runnable() {
+			public void run() {
+				deliverCallbacks();
+			}
+		}, "Coalescing " + listener);
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Stops the thread once the waiting callbacks are delivered.
+	 */
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	/**
+	 * Runs in our thread.
+	 */
+	private void deliverCallbacks() {
+		while (true) {
+			final PendingCallback next;
+			synchronized (this) {
+				while (pending.isEmpty() && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+					}
+				}
+				if (pending.isEmpty()) {
+					return;
+				}
+				next = pending.removeFirst();
+			}
+			try {
+				switch (next.callback) {
+				case DOWN:
+					listener.penDown(next.sample);
+					break;
+				case SAMPLE:
+					listener.sample(next.sample);
+					break;
+				case UP:
+					listener.penUp(next.sample);
+					break;
+				}
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+			synchronized (this) {
+				numDelivered++;
+			}
+		}
+	}
+
+	/**
+	 * @return how many samples were skipped, because a newer one came in before the listener got to them
+	 */
+	public synchronized long getNumCoalesced() {
+		return numCoalesced;
+	}
+
+	public synchronized long getNumDelivered() {
+		return numDelivered;
+	}
+
+	/**
+	 * @return how many callbacks are waiting for the listener
+	 */
+	public synchronized int getNumWaiting() {
+		return pending.size();
+	}
+
+	public void penDown(PenSample sample) {
+		post(Callback.DOWN, sample);
+	}
+
+	public void penUp(PenSample sample) {
+		post(Callback.UP, sample);
+	}
+
+	private synchronized void post(Callback callback, PenSample sample) {
+		if (closed) {
+			return;
+		}
+		if (callback == Callback.SAMPLE && !pending.isEmpty() && pending.getLast().callback == Callback.SAMPLE) {
+			// the listener has not gotten to the last sample yet, so it only needs this one
+			pending.getLast().sample = sample;
+			numCoalesced++;
+			return;
+		}
+		pending.addLast(new PendingCallback(callback, sample));
+		notifyAll();
+	}
+
+	public void sample(PenSample sample) {
+		post(Callback.SAMPLE, sample);
+	}
+
+	public String toString() {
+		return "CoalescingPenListener [" + listener + "]";
+	}
+}
@@ -18,12 +18,12 @@ import java.util.regex.Pattern;
 import papertoolkit.PaperToolkit;
 import papertoolkit.application.config.Constants;
 import papertoolkit.events.EventDispatcher;
-import papertoolkit.events.PenEvent;
-import papertoolkit.events.PenEventType;
 import papertoolkit.pattern.PatternPackage;
 import papertoolkit.pattern.coordinates.PageAddress;
+import papertoolkit.pattern.coordinates.PageAddressIndex;
 import papertoolkit.pen.PenSample;
 import papertoolkit.units.PatternDots;
+import papertoolkit.units.coordinates.StreamedPatternCoordinates;
 import papertoolkit.util.DebugUtils;
 import papertoolkit.util.files.FileUtils;
 
@@ -78,12 +78,17 @@ public class BatchedDataDispatcher {
 	private boolean exitFlag = false;
 
 	/**
-	 * TODO: Used for converting batched coordinates to streaming coordinates, which can be passed to our
-	 * event handlers.
+	 * Used for converting batched coordinates to streaming coordinates, which can be passed to our event
+	 * handlers.
 	 */
 	private Map<String, PatternPackage> patternPackages = PatternPackage
 			.getAvailablePatternPackages(PaperToolkit.getPatternPath());
 
+	/**
+	 * Finds the regions printed on each batched page, so that we do not test every region for every sample.
+	 */
+	private PageAddressIndex pageIndex = new PageAddressIndex(patternPackages.values());
+
 	private PatternDots referenceUnit = new PatternDots();
 
 	/**
@@ -134,8 +139,9 @@ public class BatchedDataDispatcher {
 		final Matcher matcherPageBegin = PATTERN_BEGIN_PAGE.matcher(requestBuffer);
 		final Matcher matcherPageEnd = PATTERN_END_PAGE.matcher(requestBuffer);
 
-		// for simulating realtime
+		// for simulating realtime, when a handler gets the strokes one event at a time
 		long lastPenUpTimestamp = 0L;
+		boolean lastStrokeHandledWhole = true;
 		final String penName = "Batched Pen";
 
 		while (matcherPageBegin.find() && matcherPageEnd.find()) {
@@ -156,6 +162,20 @@ public class BatchedDataDispatcher {
 			// save where we got this ink, so we will know later on...
 			final PageAddress address = new PageAddress(pageAddress);
 
+			// route the whole page to the regions printed on it, and translate its samples to streamed
+			// coordinates. If we do not know the address, the samples go out as they are.
+			final PageAddressIndex.Page page = eventDispatcher.getPage(pageIndex, address);
+			double originX = 0;
+			double originY = 0;
+			if (page != null) {
+				final StreamedPatternCoordinates origin = page.getPatternPackage()
+						.getPatternCoordinateOfOriginOfPage(address);
+				originX = origin.getX().getValue();
+				originY = origin.getY().getValue();
+			} else {
+				DebugUtils.println("No pattern package has the page " + address);
+			}
+
 			// extract front and end matter
 			// final String beginText = requestBuffer.substring(beginTagStartIndex, beginTagEndIndex);
 			// final String endText = requestBuffer.substring(endTagStartIndex, endTagEndIndex);
@@ -191,44 +211,34 @@ public class BatchedDataDispatcher {
 					// make samples and stuff.... add it to the ink
 					// DebugUtils.println(x + " " + y + " f=" + f + " ts=" + t);
 
-					final PenSample sample = new PenSample(Double.parseDouble(x), Double.parseDouble(y),
-							Integer.parseInt(f), Long.parseLong(t));
+					final PenSample sample = new PenSample(originX + Double.parseDouble(x), originY
+							+ Double.parseDouble(y), Integer.parseInt(f), Long.parseLong(t));
 					samples.add(sample);
 				}
 
+				if (samples.size() == 0) {
+					continue;
+				}
+
 				// dispatch the whole pen stroke
 				// TODO Figure out the handling with multiple pens, etc... at some point
-				// Figure out how to handle this in simulated REAL-TIME
-				for (int i = 0; i < samples.size(); i++) {
-					if (i == 0) {
-						long timeDiff = samples.get(i).timestamp - lastPenUpTimestamp;
-						if (timeDiff > 1000) { // 1 second, then we just wait one second
-							timeDiff = 1000L;
-						}
-						try {
-							// pause a bit, up to 1 second... before triggering a new down sample
-							// this avoids the jitter filtering we have in some of the handler classes...
-							// TODO: We should remove that filtering, as we now have it in PenClient =\
-							Thread.sleep(timeDiff);
-						} catch (InterruptedException e) {
-							e.printStackTrace();
-						}
-
-						// DebugUtils.println("DOWN");
-						eventDispatcher.handlePenEvent(new PenEvent(penID, penName, samples.get(i),
-								PenEventType.DOWN, false));
-
-					} else if (i == samples.size() - 1) {
-						// DebugUtils.println("UP");
-						eventDispatcher.handlePenEvent(new PenEvent(penID, penName, samples.get(i),
-								PenEventType.UP, false));
-						lastPenUpTimestamp = samples.get(i).timestamp;
-					} else {
-						// DebugUtils.println("P");
-						eventDispatcher.handlePenEvent(new PenEvent(penID, penName, samples.get(i),
-								PenEventType.SAMPLE, false));
+				if (!lastStrokeHandledWhole) {
+					// a handler got the last stroke one event at a time, so simulate REAL-TIME
+					long timeDiff = samples.get(0).timestamp - lastPenUpTimestamp;
+					if (timeDiff > 1000) { // 1 second, then we just wait one second
+						timeDiff = 1000L;
+					}
+					try {
+						// pause a bit, up to 1 second... before triggering a new down sample
+						// this avoids the jitter filtering we have in some of the handler classes...
+						// TODO: We should remove that filtering, as we now have it in PenClient =\
+						Thread.sleep(Math.max(0L, timeDiff));
+					} catch (InterruptedException e) {
+						e.printStackTrace();
 					}
 				}
+				lastStrokeHandledWhole = eventDispatcher.handleStroke(penID, penName, samples, page);
+				lastPenUpTimestamp = samples.get(samples.size() - 1).timestamp;
 			}
 		}
 	}
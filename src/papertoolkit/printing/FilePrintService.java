@@ -0,0 +1,274 @@
+package papertoolkit.printing;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.print.Doc;
+import javax.print.DocFlavor;
+import javax.print.DocPrintJob;
+import javax.print.PrintException;
+import javax.print.PrintService;
+import javax.print.ServiceUIFactory;
+import javax.print.attribute.Attribute;
+import javax.print.attribute.AttributeSet;
+import javax.print.attribute.HashPrintJobAttributeSet;
+import javax.print.attribute.HashPrintServiceAttributeSet;
+import javax.print.attribute.PrintJobAttributeSet;
+import javax.print.attribute.PrintRequestAttributeSet;
+import javax.print.attribute.PrintServiceAttribute;
+import javax.print.attribute.PrintServiceAttributeSet;
+import javax.print.attribute.standard.PrinterName;
+import javax.print.event.PrintJobAttributeListener;
+import javax.print.event.PrintJobEvent;
+import javax.print.event.PrintJobListener;
+import javax.print.event.PrintServiceAttributeListener;
+
+/**
+ * <p>
+ * A stand-in printer that saves each job to a directory (as job_N.pdf or job_N.ps), so that printing can be
+ * tried and tested without a real printer. Like a real printer, it takes the job, and later (after a
+ * simulated print time) tells the job's listeners that the job completed.
+ * </p>
+ * <p>
+ * <span class="BSDLicense"> This software is distributed under the <a
+ * href="http://hci.stanford.edu/research/copyright.txt">BSD License</a>. </span>
+ * </p>
+ */
+public class FilePrintService implements PrintService {
+
+	/**
+	 * Saves one document, and reports on it.
+	 */
+	private class FilePrintJob implements DocPrintJob {
+
+		private List<PrintJobListener> jobListeners = new ArrayList<PrintJobListener>();
+
+		public void addPrintJobAttributeListener(PrintJobAttributeListener listener,
+				PrintJobAttributeSet attributes) {
+			// our attributes never change
+		}
+
+		public synchronized void addPrintJobListener(PrintJobListener listener) {
+			if (listener != null) {
+				jobListeners.add(listener);
+			}
+		}
+
+		public PrintJobAttributeSet getAttributes() {
+			return new HashPrintJobAttributeSet();
+		}
+
+		public PrintService getPrintService() {
+			return FilePrintService.this;
+		}
+
+		/**
+		 * Copies the document to the directory now, and completes the job after the simulated print time.
+		 */
+		public void print(Doc doc, PrintRequestAttributeSet attributes) throws PrintException {
+			final DocFlavor flavor = doc.getDocFlavor();
+			if (!isDocFlavorSupported(flavor)) {
+				throw new PrintException(getName() + " does not take " + flavor);
+			}
+			final String extension = flavor.equals(DocFlavor.INPUT_STREAM.POSTSCRIPT) ? ".ps" : ".pdf";
+			final File file = new File(directory, "job_" + nextFileNumber() + extension);
+			try {
+				final InputStream in = doc.getStreamForBytes();
+				final OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+				try {
+					final byte[] buffer = new byte[8192];
+					int n;
+					while ((n = in.read(buffer)) > 0) {
+						out.write(buffer, 0, n);
+					}
+				} finally {
+					out.close();
+				}
+			} catch (IOException e) {
+				fireJobEvent(PrintJobEvent.JOB_FAILED);
+				throw new PrintException(e);
+			}
+			fireJobEvent(PrintJobEvent.DATA_TRANSFER_COMPLETE);
+
+			final Thread printer = new Thread(new Runnable() {
+				public void run() {
+					try {
+						Thread.sleep(printTimeMillis);
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+					}
+					fireJobEvent(PrintJobEvent.JOB_COMPLETE);
+					fireJobEvent(PrintJobEvent.NO_MORE_EVENTS);
+				}
+			}, getName());
+			printer.setDaemon(true);
+			printer.start();
+		}
+
+		private void fireJobEvent(int reason) {
+			final List<PrintJobListener> listenersToNotify;
+			synchronized (this) {
+				listenersToNotify = new ArrayList<PrintJobListener>(jobListeners);
+			}
+			final PrintJobEvent event = new PrintJobEvent(this, reason);
+			for (PrintJobListener listener : listenersToNotify) {
+				switch (reason) {
+				case PrintJobEvent.DATA_TRANSFER_COMPLETE:
+					listener.printDataTransferCompleted(event);
+					break;
+				case PrintJobEvent.JOB_COMPLETE:
+					listener.printJobCompleted(event);
+					break;
+				case PrintJobEvent.JOB_FAILED:
+					listener.printJobFailed(event);
+					break;
+				case PrintJobEvent.NO_MORE_EVENTS:
+					listener.printJobNoMoreEvents(event);
+					break;
+				}
+			}
+		}
+
+		public void removePrintJobAttributeListener(PrintJobAttributeListener listener) {
+		}
+
+		public synchronized void removePrintJobListener(PrintJobListener listener) {
+			jobListeners.remove(listener);
+		}
+	}
+
+	private static final DocFlavor[] SUPPORTED_FLAVORS = { DocFlavor.INPUT_STREAM.PDF,
+			DocFlavor.INPUT_STREAM.POSTSCRIPT, DocFlavor.INPUT_STREAM.AUTOSENSE };
+
+	private File directory;
+
+	private String name;
+
+	private int numJobs = 0;
+
+	/**
+	 * How long a job takes to "print," after it is saved.
+	 */
+	private long printTimeMillis;
+
+	/**
+	 * @param dir
+	 *            where jobs are saved (created if needed)
+	 */
+	public FilePrintService(File dir) {
+		this(dir, "File Printer: " + dir.getName(), 0);
+	}
+
+	/**
+	 * @param dir
+	 *            where jobs are saved (created if needed)
+	 * @param printerName
+	 * @param simulatedPrintTimeMillis
+	 *            how long after a job is saved that it completes
+	 */
+	public FilePrintService(File dir, String printerName, long simulatedPrintTimeMillis) {
+		directory = dir;
+		name = printerName;
+		printTimeMillis = simulatedPrintTimeMillis;
+		directory.mkdirs();
+	}
+
+	public void addPrintServiceAttributeListener(PrintServiceAttributeListener listener) {
+		// our attributes never change
+	}
+
+	public DocPrintJob createPrintJob() {
+		return new FilePrintJob();
+	}
+
+	public <T extends PrintServiceAttribute> T getAttribute(Class<T> category) {
+		if (category == PrinterName.class) {
+			return category.cast(new PrinterName(name, null));
+		}
+		return null;
+	}
+
+	public PrintServiceAttributeSet getAttributes() {
+		final PrintServiceAttributeSet attributes = new HashPrintServiceAttributeSet();
+		attributes.add(new PrinterName(name, null));
+		return attributes;
+	}
+
+	public Object getDefaultAttributeValue(Class<? extends Attribute> category) {
+		return null;
+	}
+
+	/**
+	 * @return where jobs are saved
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return how many jobs this printer has been sent
+	 */
+	public synchronized int getNumJobs() {
+		return numJobs;
+	}
+
+	public ServiceUIFactory getServiceUIFactory() {
+		return null;
+	}
+
+	public Class<?>[] getSupportedAttributeCategories() {
+		return new Class<?>[0];
+	}
+
+	public Object getSupportedAttributeValues(Class<? extends Attribute> category, DocFlavor flavor,
+			AttributeSet attributes) {
+		return null;
+	}
+
+	public DocFlavor[] getSupportedDocFlavors() {
+		return SUPPORTED_FLAVORS.clone();
+	}
+
+	public AttributeSet getUnsupportedAttributes(DocFlavor flavor, AttributeSet attributes) {
+		// we ignore attributes, rather than reject them
+		return null;
+	}
+
+	public boolean isAttributeCategorySupported(Class<? extends Attribute> category) {
+		return false;
+	}
+
+	public boolean isAttributeValueSupported(Attribute attrval, DocFlavor flavor, AttributeSet attributes) {
+		return true;
+	}
+
+	public boolean isDocFlavorSupported(DocFlavor flavor) {
+		for (DocFlavor f : SUPPORTED_FLAVORS) {
+			if (f.equals(flavor)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private synchronized int nextFileNumber() {
+		return numJobs++;
+	}
+
+	public void removePrintServiceAttributeListener(PrintServiceAttributeListener listener) {
+	}
+
+	public String toString() {
+		return name + " (" + directory + ")";
+	}
+}
@@ -0,0 +1,21 @@
+package papertoolkit.printing;
+
+/**
+ * <p>
+ * Told about each step a SpooledPrintJob takes through the PrintSpooler (rendered, submitted, completed...).
+ * Callbacks come from the spooler's threads, so do not do slow work in them, and use
+ * SwingUtilities.invokeLater(...) to update a GUI.
+ * </p>
+ * <p>
+ * <span class="BSDLicense"> This software is distributed under the <a
+ * href="http://hci.stanford.edu/research/copyright.txt">BSD License</a>.</span>
+ * </p>
+ */
+public interface PrintJobStatusListener {
+
+	/**
+	 * @param job
+	 *            ask it for the new status, and for the error if the job failed
+	 */
+	public void statusChanged(SpooledPrintJob job);
+}
@@ -0,0 +1,453 @@
+package papertoolkit.printing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.print.Doc;
+import javax.print.DocFlavor;
+import javax.print.DocPrintJob;
+import javax.print.PrintException;
+import javax.print.PrintService;
+import javax.print.SimpleDoc;
+import javax.print.attribute.HashPrintRequestAttributeSet;
+import javax.print.attribute.PrintRequestAttributeSet;
+import javax.print.attribute.standard.JobName;
+import javax.print.event.PrintJobAdapter;
+import javax.print.event.PrintJobEvent;
+
+import papertoolkit.paper.Bundle;
+import papertoolkit.paper.Sheet;
+import papertoolkit.pattern.TiledPatternGenerator;
+import papertoolkit.pattern.output.PatternFragmentCache;
+import papertoolkit.printing.SpooledPrintJob.Status;
+import papertoolkit.render.SheetRenderer;
+import papertoolkit.util.DebugUtils;
+
+/**
+ * <p>
+ * Prints sheets without making the caller wait. Each job goes through three stages, which run on their own
+ * threads:
+ * <ol>
+ * <li>Render: a pool of threads renders sheets (at the same time) to temporary PDF files, or PostScript
+ * files for printers that do not take PDF.</li>
+ * <li>Submit: each printer has one thread, which sends it its jobs in order. Different printers are sent
+ * jobs at the same time.</li>
+ * <li>Watch: the printer's job events complete (or fail) the job. We do not block on them; if a printer
+ * never reports back, the job times out.</li>
+ * </ol>
+ * </p>
+ * <p>
+ * At most maxJobsInFlight jobs are between print(...) and done. When that many are, print(...) blocks until
+ * one is done, so a large batch does not fill the temporary directory. Listen for status changes to find out
+ * when each job is rendered, submitted, or done (see SpooledPrintJob).
+ * </p>
+ * <p>
+ * To try it without paper, print to a FilePrintService, which saves each job to a directory.
+ * </p>
+ * <p>
+ * <span class="BSDLicense"> This software is distributed under the <a
+ * href="http://hci.stanford.edu/research/copyright.txt">BSD License</a>. </span>
+ * </p>
+ */
+public class PrintSpooler {
+
+	/**
+	 * Queued jobs are held in memory, and each one holds a temporary file for a while.
+	 */
+	private static final int DEFAULT_MAX_JOBS_IN_FLIGHT = 16;
+
+	/**
+	 * Ten minutes. Long enough for a plotter.
+	 */
+	private static final long DEFAULT_JOB_TIMEOUT_MILLIS = 10 * 60 * 1000;
+
+	/**
+	 * @param name
+	 * @return daemon threads, so that a queued job never keeps the application running
+	 */
+	private static ThreadFactory createThreadFactory(final String name) {
+		return new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				final Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * One permit for each job that may be in flight.
+	 */
+	private Semaphore jobSlots;
+
+	private long jobTimeoutMillis = DEFAULT_JOB_TIMEOUT_MILLIS;
+
+	private List<PrintJobStatusListener> listeners = new CopyOnWriteArrayList<PrintJobStatusListener>();
+
+	private int maxJobsInFlight;
+
+	private int nextJobID = 0;
+
+	private PatternFragmentCache patternFragmentCache = PatternFragmentCache.getSharedCache();
+
+	private ExecutorService renderPool;
+
+	/**
+	 * One thread per printer, so each printer gets its jobs in order, but printers do not wait for each
+	 * other.
+	 */
+	private Map<PrintService, ExecutorService> submitters = new HashMap<PrintService, ExecutorService>();
+
+	/**
+	 * Where the rendered files go. Null for the system's temporary directory.
+	 */
+	private File tempDirectory;
+
+	/**
+	 * Times out jobs that the printer never finishes.
+	 */
+	private ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(createThreadFactory(
+			"Print Job Watchdog"));
+
+	/**
+	 * Renders as many sheets at a time as there are processors.
+	 */
+	public PrintSpooler() {
+		this(Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_JOBS_IN_FLIGHT);
+	}
+
+	/**
+	 * @param numRenderThreads
+	 *            how many sheets to render at the same time
+	 * @param maxJobs
+	 *            how many jobs may be queued, rendering, or printing before print(...) blocks
+	 */
+	public PrintSpooler(int numRenderThreads, int maxJobs) {
+		renderPool = Executors.newFixedThreadPool(Math.max(1, numRenderThreads),
+				createThreadFactory("Print Job Renderer"));
+		maxJobsInFlight = Math.max(1, maxJobs);
+		jobSlots = new Semaphore(maxJobsInFlight);
+	}
+
+	/**
+	 * @param listener
+	 *            told about every job's status changes
+	 */
+	public void addStatusListener(PrintJobStatusListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Cleans up after a job, the first time it is done, and then tells its listeners.
+	 *
+	 * @return false if the job was already done
+	 */
+	private boolean finish(SpooledPrintJob job, Status status, Throwable cause, InputStream printerStream) {
+		if (!job.claimFinish()) {
+			return false;
+		}
+		if (printerStream != null) {
+			try {
+				printerStream.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		final File file = job.getRenderedFile();
+		if (file != null) {
+			file.delete();
+			job.setRenderedFile(null);
+		}
+		jobSlots.release();
+		job.setStatus(status, cause);
+		if (status == Status.FAILED) {
+			DebugUtils.println(job + " failed: " + cause);
+		}
+		return true;
+	}
+
+	/**
+	 * @return the first flavor (PDF, then PostScript) that the printer takes. If it takes neither, we send
+	 *         PDF and let the printer try to figure it out.
+	 */
+	private DocFlavor getFlavor(PrintService printer) {
+		if (printer.isDocFlavorSupported(DocFlavor.INPUT_STREAM.PDF)) {
+			return DocFlavor.INPUT_STREAM.PDF;
+		} else if (printer.isDocFlavorSupported(DocFlavor.INPUT_STREAM.POSTSCRIPT)) {
+			return DocFlavor.INPUT_STREAM.POSTSCRIPT;
+		} else {
+			return DocFlavor.INPUT_STREAM.AUTOSENSE;
+		}
+	}
+
+	/**
+	 * @return the number of jobs that are queued, rendering, or printing
+	 */
+	public int getNumJobsInFlight() {
+		return maxJobsInFlight - jobSlots.availablePermits();
+	}
+
+	/**
+	 * @param printer
+	 * @return the thread that sends jobs to this printer
+	 */
+	private synchronized ExecutorService getSubmitter(PrintService printer) {
+		ExecutorService submitter = submitters.get(printer);
+		if (submitter == null) {
+			submitter = Executors.newSingleThreadExecutor(createThreadFactory("Print Job Submitter: "
+					+ printer.getName()));
+			submitters.put(printer, submitter);
+		}
+		return submitter;
+	}
+
+	/**
+	 * Renders every sheet of the bundle with pattern from one TiledPatternGenerator (reserved in page order,
+	 * like BundleRenderer does), and queues one job per sheet.
+	 *
+	 * @param bundle
+	 * @param printer
+	 * @param listener
+	 *            told about the status changes of these jobs (may be null)
+	 * @return the jobs, in page order
+	 */
+	public List<SpooledPrintJob> print(Bundle bundle, PrintService printer, PrintJobStatusListener listener) {
+		final TiledPatternGenerator sharedPatternGenerator = new TiledPatternGenerator();
+		final List<SpooledPrintJob> jobs = new ArrayList<SpooledPrintJob>();
+		for (Sheet s : bundle.getSheets()) {
+			final SheetRenderer sr = new SheetRenderer(s, sharedPatternGenerator);
+			sr.reservePattern();
+			jobs.add(queue(s, sr, printer, listener));
+		}
+		return jobs;
+	}
+
+	/**
+	 * @param sheet
+	 * @param printer
+	 * @return
+	 */
+	public SpooledPrintJob print(Sheet sheet, PrintService printer) {
+		return print(sheet, printer, null);
+	}
+
+	/**
+	 * Queues the sheet, and returns right away, unless maxJobsInFlight jobs are already in flight.
+	 *
+	 * @param sheet
+	 * @param printer
+	 * @param listener
+	 *            told about this job's status changes (may be null)
+	 * @return the job, to check on or wait for
+	 */
+	public SpooledPrintJob print(Sheet sheet, PrintService printer, PrintJobStatusListener listener) {
+		return queue(sheet, new SheetRenderer(sheet), printer, listener);
+	}
+
+	/**
+	 * The first stage: wait for a slot, then render to a temporary file on the render pool.
+	 */
+	private SpooledPrintJob queue(Sheet sheet, final SheetRenderer sr, PrintService printer,
+			PrintJobStatusListener listener) {
+		final SpooledPrintJob job;
+		synchronized (this) {
+			job = new SpooledPrintJob(nextJobID++, sheet, printer);
+		}
+		for (PrintJobStatusListener l : listeners) {
+			job.addStatusListener(l);
+		}
+		if (listener != null) {
+			job.addStatusListener(listener);
+		}
+
+		try {
+			jobSlots.acquire();
+		} catch (InterruptedException e) {
+			// we never took a slot, so do not finish(...) the job
+			job.setStatus(Status.CANCELED, e);
+			Thread.currentThread().interrupt();
+			return job;
+		}
+
+		sr.setPatternFragmentCache(patternFragmentCache);
+		try {
+			renderPool.execute(new Runnable() {
+				public void run() {
+					render(job, sr);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			finish(job, Status.FAILED, e, null);
+		}
+		return job;
+	}
+
+	/**
+	 * @param listener
+	 */
+	public void removeStatusListener(PrintJobStatusListener listener) {
+		listeners.remove(listener);
+	}
+
+	private void render(final SpooledPrintJob job, SheetRenderer sr) {
+		job.setStatus(Status.RENDERING, null);
+		final DocFlavor flavor = getFlavor(job.getPrinter());
+		final boolean postScript = flavor.equals(DocFlavor.INPUT_STREAM.POSTSCRIPT);
+		try {
+			final File file = File.createTempFile("PaperToolkitPrintJob_" + job.getID() + "_", postScript ? ".ps"
+					: ".pdf", tempDirectory);
+			job.setRenderedFile(file);
+
+			// rendering a sheet updates its pattern mapping, so two jobs of one sheet take turns
+			synchronized (job.getSheet()) {
+				final BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+				try {
+					if (postScript) {
+						sr.renderToPostScript(out);
+					} else {
+						sr.renderToPDF(out);
+					}
+				} finally {
+					out.close();
+				}
+			}
+		} catch (IOException e) {
+			finish(job, Status.FAILED, e, null);
+			return;
+		} catch (RuntimeException e) {
+			finish(job, Status.FAILED, e, null);
+			return;
+		}
+		if (!job.setStatus(Status.RENDERED, null)) {
+			return;
+		}
+
+		try {
+			getSubmitter(job.getPrinter()).execute(new Runnable() {
+				public void run() {
+					submit(job, flavor);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			finish(job, Status.FAILED, e, null);
+		}
+	}
+
+	/**
+	 * @param millis
+	 *            how long to wait for a printer to report that a job is done, before we give up on it
+	 */
+	public void setJobTimeout(long millis) {
+		jobTimeoutMillis = millis;
+	}
+
+	/**
+	 * @param cache
+	 *            where to find (and keep) rendered pattern, or null to draw every dot of every sheet
+	 */
+	public void setPatternFragmentCache(PatternFragmentCache cache) {
+		patternFragmentCache = cache;
+	}
+
+	/**
+	 * @param dir
+	 *            where to put the rendered files while they print (null for the system's temporary directory)
+	 */
+	public void setTempDirectory(File dir) {
+		tempDirectory = dir;
+	}
+
+	/**
+	 * The second stage, on the printer's own thread: send the file, and watch the job from the printer's
+	 * events (the third stage).
+	 */
+	private void submit(final SpooledPrintJob job, DocFlavor flavor) {
+		final InputStream in;
+		try {
+			in = new BufferedInputStream(new FileInputStream(job.getRenderedFile()));
+		} catch (IOException e) {
+			finish(job, Status.FAILED, e, null);
+			return;
+		}
+
+		final DocPrintJob printJob = job.getPrinter().createPrintJob();
+		printJob.addPrintJobListener(new PrintJobAdapter() {
+			public void printJobCanceled(PrintJobEvent pje) {
+				finish(job, Status.CANCELED, null, in);
+			}
+
+			public void printJobCompleted(PrintJobEvent pje) {
+				finish(job, Status.COMPLETED, null, in);
+			}
+
+			public void printJobFailed(PrintJobEvent pje) {
+				finish(job, Status.FAILED, new PrintException("The printer reported that the job failed."), in);
+			}
+
+			/**
+			 * Many printers only report this (and not completed), once they have the whole file.
+			 */
+			public void printJobNoMoreEvents(PrintJobEvent pje) {
+				finish(job, Status.COMPLETED, null, in);
+			}
+
+			public void printJobRequiresAttention(PrintJobEvent pje) {
+				DebugUtils.println(job + " requires attention.");
+			}
+		});
+
+		final PrintRequestAttributeSet attributes = new HashPrintRequestAttributeSet();
+		attributes.add(new JobName("PaperToolkit Sheet " + job.getID(), null));
+
+		boolean printing = false;
+		try {
+			if (!job.setStatus(Status.SUBMITTED, null)) {
+				// canceled while it waited for the printer
+				return;
+			}
+			final Doc doc = new SimpleDoc(in, flavor, null);
+			printJob.print(doc, attributes);
+			printing = true;
+		} catch (PrintException e) {
+			finish(job, Status.FAILED, e, in);
+			return;
+		} catch (RuntimeException e) {
+			finish(job, Status.FAILED, e, in);
+			return;
+		} finally {
+			if (!printing) {
+				// the listener closes it once the printer is done with it
+				try {
+					in.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		if (jobTimeoutMillis > 0) {
+			watchdog.schedule(new Runnable() {
+				public void run() {
+					finish(job, Status.TIMED_OUT, null, in);
+				}
+			}, jobTimeoutMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+}
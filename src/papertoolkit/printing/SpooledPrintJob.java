@@ -0,0 +1,181 @@
+package papertoolkit.printing;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.print.PrintService;
+
+import papertoolkit.paper.Sheet;
+
+/**
+ * <p>
+ * One sheet on its way to a printer, through the PrintSpooler. The status goes QUEUED, RENDERING, RENDERED,
+ * SUBMITTED, and then one of COMPLETED, FAILED, CANCELED, or TIMED_OUT (the printer never told us).
+ * </p>
+ * <p>
+ * <span class="BSDLicense"> This software is distributed under the <a
+ * href="http://hci.stanford.edu/research/copyright.txt">BSD License</a>. </span>
+ * </p>
+ */
+public class SpooledPrintJob {
+
+	public static enum Status {
+		CANCELED, COMPLETED, FAILED, QUEUED, RENDERED, RENDERING, SUBMITTED, TIMED_OUT;
+
+		/**
+		 * @return true if the job will not change anymore
+		 */
+		public boolean isDone() {
+			return this == CANCELED || this == COMPLETED || this == FAILED || this == TIMED_OUT;
+		}
+	}
+
+	private Throwable error;
+
+	/**
+	 * Set when the spooler starts cleaning up after the job, just before it is done.
+	 */
+	private boolean finishing = false;
+
+	private int id;
+
+	private List<PrintJobStatusListener> listeners = new ArrayList<PrintJobStatusListener>();
+
+	private PrintService printer;
+
+	/**
+	 * The temporary PDF or PostScript file, while the job has one.
+	 */
+	private File renderedFile;
+
+	private Sheet sheet;
+
+	private Status status = Status.QUEUED;
+
+	SpooledPrintJob(int jobID, Sheet s, PrintService service) {
+		id = jobID;
+		sheet = s;
+		printer = service;
+	}
+
+	synchronized void addStatusListener(PrintJobStatusListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Only one stage may finish a job (e.g., the printer's completed event and the timeout can race).
+	 *
+	 * @return true if the caller should finish the job
+	 */
+	synchronized boolean claimFinish() {
+		if (finishing || status.isDone()) {
+			return false;
+		}
+		finishing = true;
+		return true;
+	}
+
+	/**
+	 * @return why the job FAILED, if we know
+	 */
+	public synchronized Throwable getError() {
+		return error;
+	}
+
+	/**
+	 * @return the spooler's number for this job, in the order jobs were submitted
+	 */
+	public int getID() {
+		return id;
+	}
+
+	public PrintService getPrinter() {
+		return printer;
+	}
+
+	/**
+	 * @return the temporary file that is sent to the printer (deleted when the job is done)
+	 */
+	public synchronized File getRenderedFile() {
+		return renderedFile;
+	}
+
+	public Sheet getSheet() {
+		return sheet;
+	}
+
+	public synchronized Status getStatus() {
+		return status;
+	}
+
+	public synchronized boolean isDone() {
+		return status.isDone();
+	}
+
+	synchronized void setRenderedFile(File file) {
+		renderedFile = file;
+	}
+
+	/**
+	 * Once a job is done (or is being finished), its status does not change again (e.g., a completed event
+	 * that comes after we gave up waiting is ignored).
+	 *
+	 * @param newStatus
+	 * @param cause
+	 * @return false if the job was already done
+	 */
+	boolean setStatus(Status newStatus, Throwable cause) {
+		final List<PrintJobStatusListener> listenersToNotify;
+		synchronized (this) {
+			if (status.isDone() || (finishing && !newStatus.isDone())) {
+				return false;
+			}
+			status = newStatus;
+			if (cause != null) {
+				error = cause;
+			}
+			if (status.isDone()) {
+				notifyAll();
+			}
+			listenersToNotify = new ArrayList<PrintJobStatusListener>(listeners);
+		}
+		// do not hold the lock while running other people's code
+		for (PrintJobStatusListener listener : listenersToNotify) {
+			try {
+				listener.statusChanged(this);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+		return true;
+	}
+
+	public String toString() {
+		return "SpooledPrintJob " + id + " [" + getStatus() + " on " + printer.getName() + "]";
+	}
+
+	/**
+	 * Blocks until the job is done.
+	 *
+	 * @param timeoutMillis
+	 *            0 to wait forever
+	 * @return the status, which is not done if we timed out
+	 * @throws InterruptedException
+	 */
+	public synchronized Status waitForDone(long timeoutMillis) throws InterruptedException {
+		final long giveUpTime = System.currentTimeMillis() + timeoutMillis;
+		while (!status.isDone()) {
+			if (timeoutMillis <= 0) {
+				wait();
+			} else {
+				final long timeLeft = giveUpTime - System.currentTimeMillis();
+				if (timeLeft <= 0) {
+					break;
+				}
+				wait(timeLeft);
+			}
+		}
+		return status;
+	}
+}
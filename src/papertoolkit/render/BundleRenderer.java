@@ -1,59 +1,234 @@
 package papertoolkit.render;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import papertoolkit.paper.Bundle;
 import papertoolkit.paper.Sheet;
 import papertoolkit.pattern.TiledPatternGenerator;
+import papertoolkit.pattern.output.PatternFragmentCache;
 import papertoolkit.util.DebugUtils;
 
+import com.lowagie.text.Document;
+import com.lowagie.text.DocumentException;
+import com.lowagie.text.pdf.PdfCopy;
+import com.lowagie.text.pdf.PdfReader;
+
 
 /**
  * <p>
  * Renders bundles of sheets.
  * </p>
  * <p>
+ * Sheets are rendered in parallel. Before any rendering starts, the pattern for every sheet is reserved from
+ * one shared TiledPatternGenerator, in page order, so the output does not depend on which thread finishes
+ * first. Reserving does not read any pattern files: a sheet's dots are read by the worker that renders it
+ * (only if the fragment cache does not have them), once its page is submitted, and let go when the page has
+ * been written. So only the pages in flight hold pattern in memory.
+ * </p>
+ * <p>
  * <span class="BSDLicense"> This software is distributed under the <a
  * href="http://hci.stanford.edu/research/copyright.txt">BSD License</a>. </span>
  * </p>
- * 
+ *
  * @author <a href="http://graphics.stanford.edu/~ronyeh">Ron B Yeh</a> (ronyeh(AT)cs.stanford.edu)
  */
 public class BundleRenderer {
 
 	private Bundle bundle;
 
+	/**
+	 * How many sheets to render at the same time.
+	 */
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Given to every SheetRenderer, so that the pattern of sheets we have printed before is reused.
+	 */
+	private PatternFragmentCache patternFragmentCache = PatternFragmentCache.getSharedCache();
+
 	public BundleRenderer(Bundle b) {
 		bundle = b;
 	}
 
 	/**
-	 * Names them X1.pdf, X2.pdf, X3.pdf, etc...
-	 * 
+	 * @return one renderer per sheet, with pattern already reserved (but not yet read)
+	 */
+	private List<SheetRenderer> createRenderers() {
+		final TiledPatternGenerator sharedPatternGenerator = new TiledPatternGenerator();
+		final List<SheetRenderer> renderers = new ArrayList<SheetRenderer>();
+		for (Sheet s : bundle.getSheets()) {
+			final SheetRenderer sr = new SheetRenderer(s, sharedPatternGenerator);
+			sr.setPatternFragmentCache(patternFragmentCache);
+			sr.reservePattern();
+			renderers.add(sr);
+		}
+		return renderers;
+	}
+
+	/**
+	 * @param sr
+	 * @return a task that renders the sheet to a one page PDF in memory
+	 */
+	private Callable<byte[]> renderPage(final SheetRenderer sr) {
+		return new Callable<byte[]>() {
+			public byte[] call() throws IOException {
+				final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				sr.renderToPDF(bytes);
+				return bytes.toByteArray();
+			}
+		};
+	}
+
+	/**
+	 * Names them X_0.pdf, X_1.pdf, X_2.pdf, etc...
+	 *
 	 * @param parentPath
 	 * @param fileNameWithoutExtension
 	 */
 	public void renderToIndividualPDFs(File parentPath, String fileNameWithoutExtension) {
-		final List<Sheet> sheets = bundle.getSheets();
-		final TiledPatternGenerator sharedPatternGenerator = new TiledPatternGenerator();
-		int n = 0;
-		for (Sheet s : sheets) {
-			final File destFile = new File(parentPath, fileNameWithoutExtension + "_" + n + ".pdf");
-//			DebugUtils.println("Rendering " + destFile);
-			final SheetRenderer sr = new SheetRenderer(s, sharedPatternGenerator);
-			sr.renderToPDF(destFile);
-			n++;
+		final List<SheetRenderer> renderers = createRenderers();
+		final ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		try {
+			final List<Future<?>> pages = new ArrayList<Future<?>>();
+			for (int n = 0; n < renderers.size(); n++) {
+				final SheetRenderer sr = renderers.get(n);
+				final File destFile = new File(parentPath, fileNameWithoutExtension + "_" + n + ".pdf");
+				pages.add(pool.submit(new Runnable() {
+					public void run() {
+						sr.renderToPDF(destFile);
+						sr.unloadReservedPattern();
+					}
+				}));
+			}
+			for (Future<?> page : pages) {
+				page.get();
+			}
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+		} finally {
+			pool.shutdown();
 		}
 	}
 
 	/**
-	 * Renders a Multi-Page PDF!
-	 * 
+	 * Renders a Multi-Page PDF! Pages are rendered in parallel, but written in order. Only a few pages are
+	 * held in memory at once, however large the bundle. The pattern information of page n is saved next to
+	 * the PDF, as X_n.patternInfo.xml.
+	 * <p>
+	 * If any page cannot be rendered, nothing is left behind: the partly written PDF and the pattern
+	 * information saved so far are deleted.
+	 * </p>
+	 *
 	 * @param destPDFFile
 	 */
 	public void renderToPDF(File destPDFFile) {
-		
+		final List<SheetRenderer> renderers = createRenderers();
+		if (renderers.size() == 0) {
+			DebugUtils.println("The bundle has no sheets. Not writing " + destPDFFile);
+			return;
+		}
+		final String baseName = destPDFFile.getName().replaceAll("\\.pdf$", "");
+		final int maxPagesInFlight = numThreads * 2;
+
+		final ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		final LinkedList<Future<byte[]>> pagesInFlight = new LinkedList<Future<byte[]>>();
+		final List<File> patternInfoFiles = new ArrayList<File>();
+		int nextPageToSubmit = 0;
+		final Document doc = new Document();
+		BufferedOutputStream out = null;
+		boolean written = false;
+		try {
+			out = new BufferedOutputStream(new FileOutputStream(destPDFFile));
+			final PdfCopy copy = new PdfCopy(doc, out);
+			doc.open();
+			for (int n = 0; n < renderers.size(); n++) {
+				// keep the workers busy, but do not get too far ahead of the writer
+				while (nextPageToSubmit < renderers.size() && pagesInFlight.size() < maxPagesInFlight) {
+					pagesInFlight.add(pool.submit(renderPage(renderers.get(nextPageToSubmit))));
+					nextPageToSubmit++;
+				}
+
+				// each page has its own size, which PdfCopy takes from the imported page
+				final PdfReader reader = new PdfReader(pagesInFlight.removeFirst().get());
+				copy.addPage(copy.getImportedPage(reader, 1));
+				copy.freeReader(reader);
+
+				final File patternInfoFile = new File(destPDFFile.getParentFile(), baseName + "_" + n
+						+ ".patternInfo.xml");
+				patternInfoFiles.add(patternInfoFile);
+				renderers.get(n).savePatternInformation(patternInfoFile);
+				renderers.get(n).unloadReservedPattern();
+			}
+			doc.close();
+			written = true;
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (DocumentException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+		} finally {
+			pool.shutdownNow();
+			if (!written) {
+				closeQuietly(doc, out);
+				destPDFFile.delete();
+				for (File f : patternInfoFiles) {
+					f.delete();
+				}
+				DebugUtils.println("Could not render the bundle. Deleted " + destPDFFile);
+			}
+		}
+	}
+
+	/**
+	 * Closes a document that failed part way through, and the stream under it.
+	 */
+	private static void closeQuietly(Document doc, BufferedOutputStream out) {
+		try {
+			if (doc.isOpen()) {
+				doc.close();
+			}
+		} catch (RuntimeException e) {
+			// the writer may refuse to finish a document that is missing pages
+		}
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * @param n
+	 *            how many sheets to render at the same time (defaults to the number of processors)
+	 */
+	public void setNumThreads(int n) {
+		numThreads = Math.max(1, n);
 	}
 
+	/**
+	 * @param cache
+	 *            where to find (and keep) rendered pattern, or null to draw every dot of every sheet
+	 */
+	public void setPatternFragmentCache(PatternFragmentCache cache) {
+		patternFragmentCache = cache;
+	}
 }
@@ -4,10 +4,16 @@ import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.geom.AffineTransform;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.media.jai.TiledImage;
 
@@ -20,6 +26,7 @@ import papertoolkit.pattern.TiledPatternGenerator;
 import papertoolkit.pattern.coordinates.PatternToSheetMapping;
 import papertoolkit.pattern.coordinates.conversion.TiledPatternCoordinateConverter;
 import papertoolkit.pattern.output.PDFPatternGenerator;
+import papertoolkit.pattern.output.PatternFragmentCache;
 import papertoolkit.pattern.output.PostscriptPatternGenerator;
 import papertoolkit.units.Pixels;
 import papertoolkit.units.Points;
@@ -27,7 +34,6 @@ import papertoolkit.units.Units;
 import papertoolkit.units.coordinates.Coordinates;
 import papertoolkit.util.DebugUtils;
 import papertoolkit.util.MathUtils;
-import papertoolkit.util.files.FileUtils;
 import papertoolkit.util.graphics.GraphicsUtils;
 import papertoolkit.util.graphics.ImageUtils;
 import papertoolkit.util.graphics.JAIUtils;
@@ -70,12 +76,23 @@ public class SheetRenderer {
 	 */
 	private Color patternColor = Color.BLACK;
 
+	/**
+	 * How pattern dots are written into PDFs. Null means the PDFPatternGenerator's default.
+	 */
+	private PDFPatternGenerator.DotRendering patternDotRendering;
+
 	/**
 	 * You can make the pattern bigger or smaller depending on your printer... 0 == default. - --> smaller, +
 	 * --> bigger. Each unit corresponds to two font points.
 	 */
 	private int patternDotSizeAdjustment = 0;
 
+	/**
+	 * Rendered pattern that we can reuse, so reprinting a sheet does not draw every dot again. Null to always
+	 * draw the dots.
+	 */
+	private PatternFragmentCache patternFragmentCache = PatternFragmentCache.getSharedCache();
+
 	/**
 	 * Populate this only when we render the pattern (renderToPDF). After we render to pdf, we can save the
 	 * information to a file, for so that we can run the application in the future without rendering more
@@ -89,6 +106,12 @@ public class SheetRenderer {
 	 */
 	protected boolean renderActiveRegionsWithPattern = true;
 
+	/**
+	 * Pattern assigned to each active region ahead of time by reservePattern(). Empty if we should ask the
+	 * generator while rendering.
+	 */
+	private Map<Region, TiledPattern> reservedPatterns = new HashMap<Region, TiledPattern>();
+
 	/**
 	 * The sheet we are to render.
 	 */
@@ -141,6 +164,10 @@ public class SheetRenderer {
 		// this object will generate the right PDF (itext) calls to create pattern
 		final PDFPatternGenerator pgen = new PDFPatternGenerator(cb, sheet.getWidth(), sheet.getHeight());
 		pgen.setPatternColor(patternColor);
+		pgen.setFragmentCache(patternFragmentCache);
+		if (patternDotRendering != null) {
+			pgen.setDotRendering(patternDotRendering);
+		}
 
 		// adjust the font size of the pattern...
 		pgen.adjustPatternSize(patternDotSizeAdjustment);
@@ -167,7 +194,10 @@ public class SheetRenderer {
 			// by default, the pattern returned will be unique if possible (and a warning thrown
 			// otherwise). If you want to use the same pattern in different places, you will
 			// need to keep the returned pattern object around
-			final TiledPattern pattern = generator.getPattern(scaledWidth, scaledHeight);
+			TiledPattern pattern = reservedPatterns.get(r);
+			if (pattern == null) {
+				pattern = generator.getPattern(scaledWidth, scaledHeight);
+			}
 
 			// DebugUtils.println("Rendering Pattern for " + r.getName());
 			// render the pattern starting at the region's origin
@@ -205,9 +235,11 @@ public class SheetRenderer {
 	}
 
 	/**
-	 * @param file
+	 * Assigns pattern to the active regions, and clips the sheet's pattern to them.
+	 * 
+	 * @return a generator that can stream the pattern postscript
 	 */
-	private String renderPatternToPostScript() {
+	private PostscriptPatternGenerator renderPatternToPostScript() {
 		Units width = sheet.getWidth();
 		Units height = sheet.getHeight();
 
@@ -233,9 +265,12 @@ public class SheetRenderer {
 			// the sheet's upper left corner
 			patternCoordinateConverter.setPatternInformationByReadingItFrom(pgen.getPattern(),
 					regionLocation, r.getWidth(), r.getHeight());
+
+			// only this region's part of the sheet gets printed with pattern
+			pgen.addClipRegion(regionLocation.getX(), regionLocation.getY(), r.getWidth(), r.getHeight());
 		}
 
-		return pgen.getPostscriptPattern();
+		return pgen;
 	}
 
 	/**
@@ -322,13 +357,41 @@ public class SheetRenderer {
 	public void renderToPDF(File destPDFFile) {
 		try {
 			final FileOutputStream fileOutputStream = new FileOutputStream(destPDFFile);
+			writePDF(fileOutputStream, destPDFFile);
+
+			// save the pattern info to the same directory automatically
+			savePatternInformation(); // do this automatically
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
 
+	/**
+	 * Renders a one page PDF to a stream (e.g., a byte array that will be merged into a bundle's PDF). The
+	 * pattern information is not saved automatically; call savePatternInformation(File) afterward.
+	 * 
+	 * @param out
+	 *            closed when the PDF is done
+	 * @throws IOException
+	 *             if the PDF could not be written; the stream then holds no usable PDF
+	 */
+	public void renderToPDF(OutputStream out) throws IOException {
+		writePDF(out, null);
+	}
+
+	/**
+	 * @param out
+	 * @param destPDFFile
+	 *            where the stream goes, if it is a file
+	 */
+	private void writePDF(OutputStream out, File destPDFFile) throws IOException {
+		try {
 			final Rectangle pageSize = new Rectangle(0, 0, (int) Math.round(sheet.getWidth()
 					.getValueInPoints()), (int) Math.round(sheet.getHeight().getValueInPoints()));
 
 			// create a document with these margins (worry about margins later)
 			final Document doc = new Document(pageSize, 0, 0, 0, 0);
-			final PdfWriter writer = PdfWriter.getInstance(doc, fileOutputStream);
+			final PdfWriter writer = PdfWriter.getInstance(doc, out);
 			doc.open();
 
 			final PdfContentByte topLayer = writer.getDirectContent();
@@ -336,13 +399,10 @@ public class SheetRenderer {
 			renderToPDFContentLayers(destPDFFile, topLayer, bottomLayer);
 
 			doc.close();
-
-			// save the pattern info to the same directory automatically
-			savePatternInformation(); // do this automatically
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
 		} catch (DocumentException e) {
-			e.printStackTrace();
+			final IOException failure = new IOException("Could not write the PDF: " + e.getMessage());
+			failure.initCause(e);
+			throw failure;
 		}
 	}
 
@@ -385,6 +445,35 @@ public class SheetRenderer {
 	 * @param file
 	 */
 	public void renderToPostScript(File file) {
+		try {
+			writePostScript(new FileOutputStream(file), file);
+
+			// save the pattern info to the same directory automatically
+			savePatternInformation(); // do this automatically
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Renders PostScript to a stream (e.g., a temporary file that goes to a printer). The pattern information
+	 * is not saved automatically; call savePatternInformation(File) afterward.
+	 * 
+	 * @param out
+	 *            closed when the PostScript is done
+	 * @throws IOException
+	 *             if the PostScript could not be written
+	 */
+	public void renderToPostScript(OutputStream out) throws IOException {
+		writePostScript(out, null);
+	}
+
+	/**
+	 * @param stream
+	 * @param file
+	 *            where the stream goes, if it is a file
+	 */
+	private void writePostScript(OutputStream stream, File file) throws IOException {
 		mostRecentlyRenderedFile = file;
 
 		// layer for regions
@@ -399,29 +488,46 @@ public class SheetRenderer {
 		renderToG2D(g2d);
 		String graphicsPostscript = g2d.toString();
 
-		// create an associated pattern file
-		if (renderActiveRegionsWithPattern) {
-			String patternPostscript = renderPatternToPostScript();
-
-			// then, merge the two!
-
-			// remove the junk from graphicsPostscript
-			// remove the opening junk
-			graphicsPostscript = graphicsPostscript.replaceAll("(?s)%.*EndComments", "");
-			// remove the closing junk, including the showpage
-			graphicsPostscript = graphicsPostscript.replaceAll("(?s)showpage.*EOF", "");
-			// DebugUtils.println(graphicsPostscript);
-
-			// paste these graphics into our pattern
-			String output = patternPostscript.replace("__INSERT_SHEET_POSTSCRIPT_HERE__", graphicsPostscript);
-			FileUtils.writeStringToFile(output, file);
-		} else {
-			// just write the graphics to a file
-			FileUtils.writeStringToFile(graphicsPostscript, file);
+		final Writer out = new BufferedWriter(new OutputStreamWriter(stream));
+		try {
+			// create an associated pattern file
+			if (renderActiveRegionsWithPattern) {
+				final PostscriptPatternGenerator pgen = renderPatternToPostScript();
+
+				// then, merge the two!
+
+				// remove the junk from graphicsPostscript
+				// remove the opening junk
+				graphicsPostscript = graphicsPostscript.replaceAll("(?s)%.*EndComments", "");
+				// remove the closing junk, including the showpage
+				graphicsPostscript = graphicsPostscript.replaceAll("(?s)showpage.*EOF", "");
+				// DebugUtils.println(graphicsPostscript);
+
+				// stream the graphics and the pattern into the file, without building the whole file in
+				// memory
+				pgen.writePostscript(out, graphicsPostscript);
+			} else {
+				// just write the graphics
+				out.write(graphicsPostscript);
+			}
+		} finally {
+			out.close();
 		}
+	}
 
-		// save the pattern info to the same directory automatically
-		savePatternInformation(); // do this automatically
+	/**
+	 * Asks the pattern generator for the pattern of every active region now, instead of while rendering. Call
+	 * this (in page order) on the renderers of many sheets that share a generator, and the sheets can then be
+	 * rendered in any order, or at the same time, and still get the same pattern. Rendering this sheet again
+	 * reuses the reserved pattern.
+	 */
+	public void reservePattern() {
+		reservedPatterns.clear();
+		for (Region r : sheet.getRegions()) {
+			if (r.isActive()) {
+				reservedPatterns.put(r, generator.getPattern(r.getWidth(), r.getHeight()));
+			}
+		}
 	}
 
 	/**
@@ -469,6 +575,25 @@ public class SheetRenderer {
 		patternColor = pColor;
 	}
 
+	/**
+	 * Choose how pattern dots are written into PDFs (e.g., TEMPLATE, to get the older, larger output).
+	 * 
+	 * @param rendering
+	 */
+	public void setPatternDotRendering(PDFPatternGenerator.DotRendering rendering) {
+		patternDotRendering = rendering;
+	}
+
+	/**
+	 * By default, rendered pattern is kept in PatternFragmentCache.getSharedCache().
+	 * 
+	 * @param cache
+	 *            where to find (and keep) rendered pattern, or null to draw every dot, every time
+	 */
+	public void setPatternFragmentCache(PatternFragmentCache cache) {
+		patternFragmentCache = cache;
+	}
+
 	/**
 	 * Useful for when rendering many sheets at a time. This can guarantee that the pattern is unique across
 	 * sheets. If you want to reset the pattern, or pick a particular sheet, you may, by interacting with the
@@ -489,6 +614,16 @@ public class SheetRenderer {
 		renderActiveRegionsWithPattern = activeWithPattern;
 	}
 
+	/**
+	 * Lets go of the dots of the reserved pattern, once this sheet has been rendered. The pattern stays
+	 * reserved, and is read again if the sheet is rendered again.
+	 */
+	public void unloadReservedPattern() {
+		for (TiledPattern pattern : reservedPatterns.values()) {
+			pattern.unloadPattern();
+		}
+	}
+
 	/**
 	 * Call this one or more times before rendering. It's a hint to the renderer.
 	 */
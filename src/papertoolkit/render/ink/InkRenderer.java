@@ -2,6 +2,7 @@ package papertoolkit.render.ink;
 
 import java.awt.Color;
 import java.awt.Graphics2D;
+import java.awt.Stroke;
 import java.awt.geom.AffineTransform;
 import java.io.File;
 import java.util.List;
@@ -35,6 +36,11 @@ public class InkRenderer {
 
 	private Ink ink;
 
+	/**
+	 * If not null, all ink is drawn with this, whatever technique we use.
+	 */
+	private Stroke inkStroke;
+
 	private boolean invertedColors = false;
 
 	private RenderingTechnique renderingTechnique = new RenderingTechniqueHybrid();
@@ -50,6 +56,20 @@ public class InkRenderer {
 		ink = theInk;
 	}
 
+	/**
+	 * @return the technique that builds and draws stroke geometry (used by the tile cache)
+	 */
+	RenderingTechnique getRenderingTechnique() {
+		return renderingTechnique;
+	}
+
+	/**
+	 * @return whether ink colors are inverted (used by the tile cache)
+	 */
+	boolean isUsingInvertedColors() {
+		return invertedColors;
+	}
+
 	/**
 	 * @param g2d
 	 */
@@ -58,6 +78,21 @@ public class InkRenderer {
 			DebugUtils.println("Ink Object is NULL");
 			return;
 		}
+		renderStrokesToG2D(g2d, ink.getStrokes());
+	}
+
+	/**
+	 * Renders only some strokes, in the color of the current Ink object. Used to composite new strokes onto
+	 * an existing image.
+	 * 
+	 * @param g2d
+	 * @param strokes
+	 */
+	public void renderStrokesToG2D(Graphics2D g2d, List<InkStroke> strokes) {
+		if (ink == null) {
+			DebugUtils.println("Ink Object is NULL");
+			return;
+		}
 
 		// anti-aliased, high quality rendering
 		g2d.setRenderingHints(GraphicsUtils.getBestRenderingHints());
@@ -71,7 +106,6 @@ public class InkRenderer {
 		// DebugUtils.println("Rendering Ink with Color == " + inkColor);
 		g2d.setColor(inkColor);
 
-		final List<InkStroke> strokes = ink.getStrokes();
 		renderingTechnique.render(g2d, strokes);
 	}
 
@@ -161,11 +195,23 @@ public class InkRenderer {
 		ink = theInk;
 	}
 
+	/**
+	 * @param stroke
+	 *            draw all ink with this, instead of at each stroke's own width (null to go back)
+	 */
+	public void setInkStroke(Stroke stroke) {
+		inkStroke = stroke;
+		renderingTechnique.setFixedStroke(stroke);
+	}
+
 	/**
 	 * @param rt
 	 */
 	public void setRenderingTechnique(RenderingTechnique rt) {
 		renderingTechnique = rt;
+		if (inkStroke != null) {
+			renderingTechnique.setFixedStroke(inkStroke);
+		}
 	}
 
 	/**
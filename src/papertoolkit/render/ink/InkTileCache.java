@@ -0,0 +1,334 @@
+package papertoolkit.render.ink;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Stroke;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import papertoolkit.pen.ink.Ink;
+import papertoolkit.pen.ink.InkStroke;
+
+/**
+ * <p>
+ * A back buffer for displaying ink. The ink is rasterized into fixed size tiles, one set of tiles per zoom
+ * level. Repainting, panning, or returning to a zoom level that was seen recently just copies tiles to the
+ * screen.
+ * </p>
+ * <p>
+ * The cache remembers which strokes it has drawn (and how many samples each had). On every paint, strokes
+ * that are new are composited onto the tiles that already exist. Strokes that grew, changed color, or were
+ * removed invalidate only the tiles they overlap; those tiles are rendered again the next time they are
+ * visible. So, with live pens, the cost of a repaint is proportional to the new ink, not all the ink.
+ * </p>
+ * <p>
+ * The cache is used when the Graphics2D transform is a uniform scale plus a translation (which covers
+ * InkPanel and Piccolo cameras). Otherwise, the ink is rendered directly.
+ * </p>
+ * <p>
+ * <span class="BSDLicense"> This software is distributed under the <a
+ * href="http://hci.stanford.edu/research/copyright.txt">BSD License</a>. </span>
+ * </p>
+ */
+public class InkTileCache {
+
+	/**
+	 * Access ordered, so the least recently used tile is dropped once there are too many.
+	 */
+	private static class RecentTiles extends LinkedHashMap<TileKey, Tile> {
+		private static final long serialVersionUID = 1L;
+
+		private int maxTiles;
+
+		RecentTiles(int max) {
+			super(max, 0.75f, true);
+			maxTiles = max;
+		}
+
+		protected boolean removeEldestEntry(Map.Entry<TileKey, Tile> eldest) {
+			return size() > maxTiles;
+		}
+	}
+
+	/**
+	 * What we knew about a stroke when we last drew it.
+	 */
+	private static class StrokeRecord {
+		Rectangle2D bounds;
+
+		Color color;
+
+		int generation;
+
+		Ink ink;
+
+		int numSamples;
+	}
+
+	/**
+	 * A tile that no stroke touches has no image.
+	 */
+	private static class Tile {
+		BufferedImage image;
+	}
+
+	/**
+	 * Identifies a tile by its zoom level and its column and row in scaled (device) space.
+	 */
+	private static class TileKey {
+		final int col;
+
+		final int row;
+
+		final double scale;
+
+		TileKey(double theScale, int theCol, int theRow) {
+			scale = theScale;
+			col = theCol;
+			row = theRow;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof TileKey)) {
+				return false;
+			}
+			final TileKey k = (TileKey) o;
+			return k.scale == scale && k.col == col && k.row == row;
+		}
+
+		/**
+		 * @return the area of ink space that this tile displays, grown by a pixel on every side to account
+		 *         for anti-aliasing
+		 */
+		Rectangle2D getInkBounds() {
+			return new Rectangle2D.Double((col * TILE_SIZE - 1) / scale, (row * TILE_SIZE - 1) / scale,
+					(TILE_SIZE + 2) / scale, (TILE_SIZE + 2) / scale);
+		}
+
+		public int hashCode() {
+			final long bits = Double.doubleToLongBits(scale);
+			return (int) (bits ^ (bits >>> 32)) * 31 * 31 + col * 31 + row;
+		}
+	}
+
+	/**
+	 * 256 x 256 ARGB tiles take 256KB each.
+	 */
+	private static final int DEFAULT_MAX_TILES = 128;
+
+	private static final int TILE_SIZE = 256;
+
+	private int generation = 0;
+
+	/**
+	 * The renderer's settings when the tiles were drawn. If any of them change, we start over.
+	 */
+	private boolean lastDebug;
+
+	private Stroke lastFixedStroke;
+
+	private boolean lastInverted;
+
+	private RenderingTechnique lastTechnique;
+
+	private Map<InkStroke, StrokeRecord> strokes = new IdentityHashMap<InkStroke, StrokeRecord>();
+
+	/**
+	 * Least recently used order, so the tiles of zoom levels we have left behind are dropped first.
+	 */
+	private Map<TileKey, Tile> tiles;
+
+	/**
+	 * Keeps up to 128 tiles (32 MB).
+	 */
+	public InkTileCache() {
+		this(DEFAULT_MAX_TILES);
+	}
+
+	/**
+	 * @param maxTiles
+	 *            the most tiles to keep in memory, across all zoom levels
+	 */
+	public InkTileCache(int maxTiles) {
+		tiles = new RecentTiles(maxTiles);
+	}
+
+	/**
+	 * Drops all tiles. Call this if you change the look of the ink in a way the cache cannot see.
+	 */
+	public synchronized void clear() {
+		tiles.clear();
+		strokes.clear();
+	}
+
+	/**
+	 * Draws the strokes that overlap the tile, in list order, on top of what the tile already shows.
+	 */
+	private void draw(Tile tile, TileKey key, List<Ink> inks, InkRenderer renderer,
+			Map<InkStroke, StrokeRecord> which) {
+		final Rectangle2D tileBounds = key.getInkBounds();
+		Graphics2D g2d = null;
+		for (Ink ink : inks) {
+			final List<InkStroke> overlapping = new ArrayList<InkStroke>();
+			for (InkStroke s : ink.getStrokes()) {
+				final StrokeRecord r = which.get(s);
+				if (r != null && r.ink == ink && r.bounds.intersects(tileBounds)) {
+					overlapping.add(s);
+				}
+			}
+			if (overlapping.size() == 0) {
+				continue;
+			}
+			if (g2d == null) {
+				if (tile.image == null) {
+					tile.image = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB_PRE);
+				}
+				g2d = tile.image.createGraphics();
+				g2d.translate(-key.col * TILE_SIZE, -key.row * TILE_SIZE);
+				g2d.scale(key.scale, key.scale);
+			}
+			renderer.setInk(ink);
+			renderer.renderStrokesToG2D(g2d, overlapping);
+		}
+		if (g2d != null) {
+			g2d.dispose();
+		}
+	}
+
+	/**
+	 * Removes the tiles (at every zoom level) that overlap this region of ink space.
+	 */
+	private void invalidate(Rectangle2D bounds) {
+		for (Iterator<TileKey> it = tiles.keySet().iterator(); it.hasNext();) {
+			if (it.next().getInkBounds().intersects(bounds)) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Paints the inks to the graphics context, using (and updating) the cached tiles.
+	 *
+	 * @param g2d
+	 *            its transform maps ink coordinates to the screen, as it would for InkRenderer.renderToG2D
+	 * @param inks
+	 * @param renderer
+	 *            renders tiles; its ink is changed while painting
+	 */
+	public synchronized void paint(Graphics2D g2d, List<Ink> inks, InkRenderer renderer) {
+		final AffineTransform transform = g2d.getTransform();
+		final double scale = transform.getScaleX();
+		if (transform.getShearX() != 0 || transform.getShearY() != 0 || scale <= 0
+				|| scale != transform.getScaleY()) {
+			// rotated or stretched: tiles would not line up with the screen's pixels
+			for (Ink ink : inks) {
+				renderer.setInk(ink);
+				renderer.renderToG2D(g2d);
+			}
+			return;
+		}
+
+		final RenderingTechnique technique = renderer.getRenderingTechnique();
+		if (technique != lastTechnique || renderer.isUsingInvertedColors() != lastInverted
+				|| technique.isDebug() != lastDebug || technique.getFixedStroke() != lastFixedStroke) {
+			clear();
+			lastTechnique = technique;
+			lastInverted = renderer.isUsingInvertedColors();
+			lastDebug = technique.isDebug();
+			lastFixedStroke = technique.getFixedStroke();
+		}
+
+		final Map<InkStroke, StrokeRecord> added = update(inks, technique);
+
+		// composite the new strokes onto the tiles we already have
+		if (added.size() > 0) {
+			for (Map.Entry<TileKey, Tile> entry : tiles.entrySet()) {
+				draw(entry.getValue(), entry.getKey(), inks, renderer, added);
+			}
+		}
+
+		// copy the visible tiles to the screen; the ink's offset is rounded to whole pixels
+		Rectangle2D visible = g2d.getClipBounds();
+		if (visible == null) {
+			visible = new Rectangle2D.Double();
+			for (StrokeRecord r : strokes.values()) {
+				visible.add(r.bounds);
+			}
+		}
+		final int minCol = (int) Math.floor(visible.getMinX() * scale / TILE_SIZE);
+		final int maxCol = (int) Math.floor(visible.getMaxX() * scale / TILE_SIZE);
+		final int minRow = (int) Math.floor(visible.getMinY() * scale / TILE_SIZE);
+		final int maxRow = (int) Math.floor(visible.getMaxY() * scale / TILE_SIZE);
+
+		g2d.setTransform(AffineTransform.getTranslateInstance(Math.round(transform.getTranslateX()), Math
+				.round(transform.getTranslateY())));
+		for (int row = minRow; row <= maxRow; row++) {
+			for (int col = minCol; col <= maxCol; col++) {
+				final TileKey key = new TileKey(scale, col, row);
+				Tile tile = tiles.get(key);
+				if (tile == null) {
+					tile = new Tile();
+					draw(tile, key, inks, renderer, strokes);
+					tiles.put(key, tile);
+				}
+				if (tile.image != null) {
+					g2d.drawImage(tile.image, col * TILE_SIZE, row * TILE_SIZE, null);
+				}
+			}
+		}
+		g2d.setTransform(transform);
+	}
+
+	/**
+	 * Compares the inks against what we drew last time. Invalidates the tiles under strokes that changed or
+	 * disappeared.
+	 *
+	 * @return the strokes that are not yet drawn on any existing tile
+	 */
+	private Map<InkStroke, StrokeRecord> update(List<Ink> inks, RenderingTechnique technique) {
+		generation++;
+		final Map<InkStroke, StrokeRecord> added = new IdentityHashMap<InkStroke, StrokeRecord>();
+		for (Ink ink : inks) {
+			final Color color = ink.getColor();
+			for (InkStroke s : ink.getStrokes()) {
+				StrokeRecord r = strokes.get(s);
+				if (r != null && r.ink == ink && r.numSamples == s.getNumSamples() && r.color.equals(color)) {
+					r.generation = generation;
+					continue;
+				}
+				if (r == null) {
+					r = new StrokeRecord();
+					strokes.put(s, r);
+				} else {
+					invalidate(r.bounds);
+				}
+				r.ink = ink;
+				r.color = color;
+				r.numSamples = s.getNumSamples();
+				r.generation = generation;
+				final double margin = technique.getDrawnWidth(s) / 2 + 1;
+				final Rectangle2D shapeBounds = technique.getShape(s).getBounds2D();
+				r.bounds = new Rectangle2D.Double(shapeBounds.getX() - margin, shapeBounds.getY() - margin,
+						shapeBounds.getWidth() + 2 * margin, shapeBounds.getHeight() + 2 * margin);
+				added.put(s, r);
+			}
+		}
+
+		// strokes that are gone
+		for (Iterator<StrokeRecord> it = strokes.values().iterator(); it.hasNext();) {
+			final StrokeRecord r = it.next();
+			if (r.generation != generation) {
+				invalidate(r.bounds);
+				it.remove();
+			}
+		}
+		return added;
+	}
+}
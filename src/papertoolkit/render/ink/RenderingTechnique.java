@@ -3,8 +3,12 @@ package papertoolkit.render.ink;
 import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Graphics2D;
+import java.awt.Shape;
 import java.awt.Stroke;
+import java.awt.geom.Path2D;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import papertoolkit.pen.ink.InkStroke;
 
@@ -14,6 +18,11 @@ import papertoolkit.pen.ink.InkStroke;
  * stroke to write to the Graphics2D object.
  * </p>
  * <p>
+ * The geometry a technique builds for a stroke is cached on the InkStroke (and rebuilt only when the stroke's
+ * samples change), so repainting the same ink just draws the cached shapes. Strokes of the same width share one
+ * BasicStroke object, unless a fixed stroke is set, in which case every stroke is drawn with that.
+ * </p>
+ * <p>
  * <span class="BSDLicense"> This software is distributed under the <a
  * href="http://hci.stanford.edu/research/copyright.txt">BSD License</a>.</span>
  * </p>
@@ -29,11 +38,141 @@ public class RenderingTechnique {
 	public static final Stroke DEFAULT_INK_STROKE = new BasicStroke(1.0f, BasicStroke.CAP_BUTT,
 			BasicStroke.JOIN_ROUND);
 	
+	/**
+	 * BasicStrokes are immutable, so strokes of the same width can share one.
+	 */
+	private static final Map<Float, Stroke> INK_STROKES_BY_WIDTH = new HashMap<Float, Stroke>();
+
+	/**
+	 * @param width
+	 * @return a shared BasicStroke of this width, with butt caps and round joins
+	 */
+	protected static Stroke getInkStroke(double width) {
+		final Float key = (float) width;
+		synchronized (INK_STROKES_BY_WIDTH) {
+			Stroke stroke = INK_STROKES_BY_WIDTH.get(key);
+			if (stroke == null) {
+				stroke = new BasicStroke(key, BasicStroke.CAP_BUTT, BasicStroke.JOIN_ROUND);
+				INK_STROKES_BY_WIDTH.put(key, stroke);
+			}
+			return stroke;
+		}
+	}
+
 	private boolean debug = false;
 
+	/**
+	 * If not null, all strokes are drawn with this, whatever their width.
+	 */
+	private Stroke fixedStroke;
+
+	/**
+	 * Builds the geometry for one stroke. Subclasses override this to choose how samples are connected. By
+	 * default, samples are connected with line segments.
+	 * 
+	 * @param stroke
+	 * @param x
+	 *            the stroke's x samples
+	 * @param y
+	 *            the stroke's y samples
+	 * @return
+	 */
+	protected Shape createShape(InkStroke stroke, double[] x, double[] y) {
+		final Path2D.Double path = new Path2D.Double(Path2D.WIND_NON_ZERO, Math.max(1, x.length));
+		if (x.length > 0) {
+			path.moveTo(x[0], y[0]);
+			for (int i = 1; i < x.length; i++) {
+				path.lineTo(x[i], y[i]);
+			}
+		}
+		return path;
+	}
+
+	/**
+	 * @param stroke
+	 * @return the cached geometry for this stroke, building it if the stroke is new or has changed
+	 */
+	protected Shape getShape(InkStroke stroke) {
+		final Object key = getShapeKey();
+		Shape shape = stroke.getRenderedShape(key);
+		if (shape == null) {
+			final double[] x = stroke.getXSamples();
+			shape = createShape(stroke, x, stroke.getYSamples());
+			stroke.setRenderedShape(key, x.length, shape);
+		}
+		return shape;
+	}
+
+	/**
+	 * Techniques with equal keys build the same shape for a stroke, so they share the one cached on it. By
+	 * default, that is every technique of the same class. Subclasses with settings that change the geometry
+	 * add those settings to the key.
+	 * 
+	 * @return
+	 */
+	protected Object getShapeKey() {
+		return getClass();
+	}
+
+	/**
+	 * Draws each stroke's cached shape, using a stroke of the ink stroke's own width.
+	 * 
+	 * @param g2d
+	 * @param strokes
+	 */
+	protected void drawShapes(Graphics2D g2d, final List<InkStroke> strokes) {
+		if (fixedStroke != null) {
+			g2d.setStroke(fixedStroke);
+			for (InkStroke stroke : strokes) {
+				g2d.draw(getShape(stroke));
+			}
+			return;
+		}
+		double currentWidth = Double.NaN;
+		for (InkStroke stroke : strokes) {
+			final double width = stroke.getWidth();
+			if (width != currentWidth) {
+				g2d.setStroke(getInkStroke(width));
+				currentWidth = width;
+			}
+			g2d.draw(getShape(stroke));
+		}
+	}
+
+	/**
+	 * @param stroke
+	 * @return how wide the stroke is drawn (used by the tile cache to find the pixels it covers)
+	 */
+	double getDrawnWidth(InkStroke stroke) {
+		if (fixedStroke instanceof BasicStroke) {
+			return ((BasicStroke) fixedStroke).getLineWidth();
+		}
+		return stroke.getWidth();
+	}
+
+	/**
+	 * @return the stroke that all ink is drawn with, or null if each stroke is drawn at its own width
+	 */
+	public Stroke getFixedStroke() {
+		return fixedStroke;
+	}
+
+	boolean isDebug() {
+		return debug;
+	}
+
 	public void setDebug(boolean b) {
 		debug = b;
 	}
+
+	/**
+	 * @param stroke
+	 *            draw all ink with this (e.g., to match other ink on the screen), or null to draw each stroke
+	 *            at its own width
+	 */
+	public void setFixedStroke(Stroke stroke) {
+		fixedStroke = stroke;
+	}
 	
 	public void render(Graphics2D g2d, final List<InkStroke> strokes) {
 		if (!debug) {
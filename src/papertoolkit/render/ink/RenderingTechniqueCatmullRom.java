@@ -1,7 +1,7 @@
 package papertoolkit.render.ink;
 
-import java.awt.BasicStroke;
 import java.awt.Graphics2D;
+import java.awt.Shape;
 import java.util.List;
 
 import papertoolkit.pen.ink.InkStroke;
@@ -20,16 +20,12 @@ import papertoolkit.util.geometry.CatmullRomSpline;
  */
 class RenderingTechniqueCatmullRom extends RenderingTechnique {
 
+	protected Shape createShape(InkStroke stroke, double[] x, double[] y) {
+		return CatmullRomSpline.createPath(x, y, x.length, CatmullRomSpline.DEFAULT_TENSION);
+	}
+
 	public void render(Graphics2D g2d, List<InkStroke> strokes) {
 		super.render(g2d, strokes);
-		for (InkStroke stroke : strokes) {
-			double width = stroke.getWidth();
-			g2d.setStroke(new BasicStroke((float) width, BasicStroke.CAP_BUTT, BasicStroke.JOIN_ROUND));
-			final CatmullRomSpline crspline = new CatmullRomSpline();
-			final double[] x = stroke.getXSamples();
-			final double[] y = stroke.getYSamples();
-			crspline.setPoints(x, y);
-			g2d.draw(crspline.getShape());
-		}
+		drawShapes(g2d, strokes);
 	}
 }
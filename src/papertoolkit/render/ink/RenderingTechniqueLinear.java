@@ -1,7 +1,6 @@
 package papertoolkit.render.ink;
 
 import java.awt.Graphics2D;
-import java.awt.geom.Path2D;
 import java.util.List;
 
 import papertoolkit.pen.ink.InkStroke;
@@ -23,16 +22,9 @@ class RenderingTechniqueLinear extends RenderingTechnique {
 	public void render(Graphics2D g2d, List<InkStroke> strokes) {
 		super.render(g2d, strokes);
 		
-		g2d.setStroke(DEFAULT_INK_STROKE);
+		g2d.setStroke(getFixedStroke() == null ? DEFAULT_INK_STROKE : getFixedStroke());
 		for (InkStroke stroke : strokes) {
-			final Path2D.Double path = new Path2D.Double();
-			final double[] x = stroke.getXSamples();
-			final double[] y = stroke.getYSamples();
-			path.moveTo(x[0], y[0]);
-			for (int i = 1; i < stroke.getNumSamples(); i++) {
-				path.lineTo(x[i], y[i]);
-			}
-			g2d.draw(path);
+			g2d.draw(getShape(stroke));
 		}
 	}
 }
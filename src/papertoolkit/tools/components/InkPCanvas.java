@@ -9,7 +9,6 @@ import java.util.List;
 
 import papertoolkit.pen.ink.Ink;
 import papertoolkit.pen.ink.InkStroke;
-import papertoolkit.util.geometry.CatmullRomSpline;
 
 import edu.umd.cs.piccolo.PCanvas;
 import edu.umd.cs.piccolo.PNode;
@@ -17,7 +16,8 @@ import edu.umd.cs.piccolo.nodes.PPath;
 
 /**
  * <p>
- * A Piccolo Canvas. Uses simple quadTo rendering for now, but allows some interactivity.
+ * A Piccolo Canvas. The ink is drawn by an InkTilesNode, so panning and zooming reuse cached tiles, but the
+ * canvas still allows some interactivity.
  * </p>
  * <p>
  * <span class="BSDLicense"> This software is distributed under the <a
@@ -51,6 +51,8 @@ public class InkPCanvas extends PCanvas {
 
 	private PNode strokesContainer;
 
+	private InkTilesNode tilesNode;
+
 	/**
 	 * 
 	 */
@@ -58,6 +60,8 @@ public class InkPCanvas extends PCanvas {
 		setPreferredSize(new Dimension(320, 240));
 		setMinimumSize(new Dimension(320, 240));
 		strokesContainer = new PNode();
+		tilesNode = new InkTilesNode(DEFAULT_STROKE);
+		strokesContainer.addChild(tilesNode);
 		getLayer().addChild(strokesContainer);
 		useDefaultTheme();
 	}
@@ -69,7 +73,7 @@ public class InkPCanvas extends PCanvas {
 	 */
 	public void addInk(Ink ink) {
 		inkWell.add(ink);
-		addInkPaths(ink.getStrokes(), ink.getColor());
+		tilesNode.addInk(ink);
 		getLayer().repaint();
 	}
 
@@ -145,32 +149,6 @@ public class InkPCanvas extends PCanvas {
 		strokesContainer.repaint();
 	}
 
-	/**
-	 * Internal method for adding ink paths to the strokes layer.
-	 * 
-	 * @param strokes
-	 */
-	private void addInkPaths(List<InkStroke> strokes, Color inkColor) {
-		// Each Stroke will be One PPath (it's just more efficient this way)
-		for (final InkStroke s : strokes) {
-			final CatmullRomSpline crspline = new CatmullRomSpline();
-			final double[] x = s.getXSamples();
-			final double[] y = s.getYSamples();
-			crspline.setPoints(x, y);
-
-			final PPath strokePath = new PPath(crspline.getShape());
-
-			// ink stroke style
-			strokePath.setStroke(DEFAULT_STROKE);
-
-			// the ink color
-			strokePath.setStrokePaint(inkColor);
-			strokePath.addAttribute("timestamp", new Long(s.getFirstTimestamp()));
-			strokesContainer.addChild(strokePath);
-		}
-		strokesContainer.repaint();
-	}
-
 	/**
 	 * Use the default color to override the ink object's color.
 	 * 
@@ -178,7 +156,10 @@ public class InkPCanvas extends PCanvas {
 	 */
 	public void addInkWithDefaultColor(Ink ink) {
 		inkWell.add(ink);
-		addInkPaths(ink.getStrokes(), defaultInkColor);
+		// shares the strokes, so ink that grows later is still displayed
+		final Ink recolored = new Ink(ink.getStrokes());
+		recolored.setColor(defaultInkColor);
+		tilesNode.addInk(recolored);
 		getLayer().repaint();
 	}
 
@@ -195,8 +176,8 @@ public class InkPCanvas extends PCanvas {
 	public void setInk(Ink ink) {
 		inkWell.clear();
 		inkWell.add(ink);
-		strokesContainer.removeAllChildren();
-		addInkPaths(ink.getStrokes(), ink.getColor());
+		tilesNode.clear();
+		tilesNode.addInk(ink);
 		getLayer().repaint();
 	}
 
@@ -21,6 +21,7 @@ import javax.swing.SwingUtilities;
 import papertoolkit.pen.ink.Ink;
 import papertoolkit.pen.ink.InkStroke;
 import papertoolkit.render.ink.InkRenderer;
+import papertoolkit.render.ink.InkTileCache;
 import papertoolkit.util.DebugUtils;
 import papertoolkit.util.graphics.GraphicsUtils;
 
@@ -100,6 +101,13 @@ public class InkPanel extends JPanel {
 
 	private int tempDY = 0;
 
+	/**
+	 * Keeps the rendered ink as tiles, so that repainting, panning, and zooming do not redraw every stroke.
+	 */
+	private InkTileCache tileCache = new InkTileCache();
+
+	private boolean useTileCache = true;
+
 	private int zoomLevel = 0;
 
 	/**
@@ -309,11 +317,15 @@ public class InkPanel extends JPanel {
 		synchronized (inkWell) {
 			recenter(g2d, inkWell);
 
+			if (invertInkColors) {
+				renderer.useInvertedInkColors();
+			}
+			if (useTileCache) {
+				tileCache.paint(g2d, inkWell, renderer);
+				return;
+			}
 			for (Ink ink : inkWell) {
 				renderer.setInk(ink);
-				if (invertInkColors) {
-					renderer.useInvertedInkColors();
-				}
 				renderer.renderToG2D(g2d);
 			}
 		}
@@ -397,6 +409,18 @@ public class InkPanel extends JPanel {
 	public void setScale(double theScale) {
 		inkScale = theScale;
 	}
+
+	/**
+	 * Turn this off to render all the ink on every repaint (e.g., if you modify strokes in place without
+	 * adding samples).
+	 * 
+	 * @param flag
+	 */
+	public void setTileCaching(boolean flag) {
+		useTileCache = flag;
+		tileCache.clear();
+		repaint();
+	}
 	
 	public void useLinearRendering() {
 		renderer.useLineRendering();
@@ -0,0 +1,109 @@
+package papertoolkit.tools.components;
+
+import java.awt.Graphics2D;
+import java.awt.Stroke;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import papertoolkit.pen.ink.Ink;
+import papertoolkit.render.ink.InkRenderer;
+import papertoolkit.render.ink.InkTileCache;
+import edu.umd.cs.piccolo.PNode;
+import edu.umd.cs.piccolo.util.PPaintContext;
+
+/**
+ * <p>
+ * A Piccolo node that displays a list of Ink objects through an InkTileCache. Instead of one PPath per
+ * stroke, the whole list is one node, and zooming and panning the camera reuses the cached tiles. Ink that
+ * grows after it is added shows up when the node is repainted.
+ * </p>
+ * <p>
+ * <span class="BSDLicense"> This software is distributed under the <a
+ * href="http://hci.stanford.edu/research/copyright.txt">BSD License</a>. </span>
+ * </p>
+ */
+public class InkTilesNode extends PNode {
+
+	private static final long serialVersionUID = 1L;
+
+	private List<Ink> inks = Collections.synchronizedList(new LinkedList<Ink>());
+
+	private InkRenderer renderer;
+
+	private InkTileCache tileCache = new InkTileCache();
+
+	/**
+	 * Catmull-Rom rendering, with each stroke at its own width.
+	 */
+	public InkTilesNode() {
+		renderer = new InkRenderer();
+		renderer.useCatmullRomRendering();
+	}
+
+	/**
+	 * Catmull-Rom rendering.
+	 * 
+	 * @param inkStroke
+	 *            all of the ink is drawn with this
+	 */
+	public InkTilesNode(Stroke inkStroke) {
+		this();
+		renderer.setInkStroke(inkStroke);
+	}
+
+	/**
+	 * @param ink
+	 */
+	public void addInk(Ink ink) {
+		inks.add(ink);
+		updateBounds();
+	}
+
+	/**
+	 * Remove all the ink from this node.
+	 */
+	public void clear() {
+		inks.clear();
+		updateBounds();
+	}
+
+	/**
+	 * @see edu.umd.cs.piccolo.PNode#paint(edu.umd.cs.piccolo.util.PPaintContext)
+	 */
+	protected void paint(PPaintContext paintContext) {
+		final Graphics2D g2d = paintContext.getGraphics();
+		synchronized (inks) {
+			tileCache.paint(g2d, inks, renderer);
+		}
+	}
+
+	/**
+	 * Grows the node's bounds to cover all of its ink, so Piccolo knows where to repaint. Call this if you add
+	 * strokes to an Ink object after adding it here.
+	 */
+	public void updateBounds() {
+		double minX = Double.MAX_VALUE;
+		double minY = Double.MAX_VALUE;
+		double maxX = -Double.MAX_VALUE;
+		double maxY = -Double.MAX_VALUE;
+		synchronized (inks) {
+			for (Ink ink : inks) {
+				if (ink.getNumStrokes() == 0) {
+					continue;
+				}
+				minX = Math.min(ink.getMinX(), minX);
+				minY = Math.min(ink.getMinY(), minY);
+				maxX = Math.max(ink.getMaxX(), maxX);
+				maxY = Math.max(ink.getMaxY(), maxY);
+			}
+		}
+		if (minX > maxX) {
+			setBounds(0, 0, 0, 0);
+		} else {
+			// leave room for the width of the strokes
+			setBounds(minX - 5, minY - 5, maxX - minX + 10, maxY - minY + 10);
+		}
+		invalidatePaint();
+	}
+}
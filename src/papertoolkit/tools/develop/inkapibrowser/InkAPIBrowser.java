@@ -19,6 +19,7 @@ import papertoolkit.pen.Pen;
 import papertoolkit.pen.ink.Ink;
 import papertoolkit.pen.ink.InkUtils;
 import papertoolkit.pen.synch.PenSynch;
+import papertoolkit.pen.streaming.listeners.CoalescingPenListener;
 import papertoolkit.pen.synch.PenSynchManager;
 import papertoolkit.util.ArrayUtils;
 import papertoolkit.util.DebugUtils;
@@ -77,7 +78,8 @@ public class InkAPIBrowser {
 		startFlashAPIBrowser();
 
 		Pen p = new Pen(); // local pen
-		p.addLivePenListener(new FlashPenListener(flash));
+		// the GUI only needs the latest samples, if it falls behind
+		p.addLivePenListener(new CoalescingPenListener(new FlashPenListener(flash)));
 		p.startLiveMode();
 	}
 
@@ -12,6 +12,7 @@ import papertoolkit.paper.Sheet;
 import papertoolkit.pen.InputDevice;
 import papertoolkit.pen.PenSample;
 import papertoolkit.pen.streaming.listeners.PenListener;
+import papertoolkit.units.UnitKind;
 import papertoolkit.util.DebugUtils;
 
 /**
@@ -128,8 +129,8 @@ public class MonitorInputHandling {
 				// same handler... send ink over instead!
 
 				monitoringService.outputToClients("<penSampleHandled xInches=\""
-						+ event.getPercentageLocation().getX().getValueInInches() + "\" yInches=\""
-						+ event.getPercentageLocation().getY().getValueInInches() + "\" />");
+						+ event.getPercentageLocation().getXIn(UnitKind.INCHES) + "\" yInches=\""
+						+ event.getPercentageLocation().getYIn(UnitKind.INCHES) + "\" />");
 
 			}
 		} else {
@@ -33,6 +33,13 @@ public class Centimeters extends Units {
 		super(cm);
 	}
 
+	/**
+	 * @see papertoolkit.units.Units#getKind()
+	 */
+	public UnitKind getKind() {
+		return UnitKind.CENTIMETERS;
+	}
+
 	/**
 	 * @see papertoolkit.units.Units#getNumberOfUnitsInOneInch()
 	 */
@@ -31,6 +31,13 @@ public class Feet extends Units {
 		super(ft);
 	}
 
+	/**
+	 * @see papertoolkit.units.Units#getKind()
+	 */
+	public UnitKind getKind() {
+		return UnitKind.FEET;
+	}
+
 	/**
 	 * @see papertoolkit.units.Units#getNumberOfUnitsInOneInch()
 	 */
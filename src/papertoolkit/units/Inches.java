@@ -29,6 +29,13 @@ public class Inches extends Units {
 		super(inches);
 	}
 
+	/**
+	 * @see papertoolkit.units.Units#getKind()
+	 */
+	public UnitKind getKind() {
+		return UnitKind.INCHES;
+	}
+
 	/**
 	 * @see papertoolkit.units.Units#getNumberOfUnitsInOneInch()
 	 */
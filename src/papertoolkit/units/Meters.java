@@ -31,6 +31,13 @@ public class Meters extends Units {
 		super(m);
 	}
 
+	/**
+	 * @see papertoolkit.units.Units#getKind()
+	 */
+	public UnitKind getKind() {
+		return UnitKind.METERS;
+	}
+
 	/**
 	 * @see papertoolkit.units.Units#getNumberOfUnitsInOneInch()
 	 */
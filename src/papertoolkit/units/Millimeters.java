@@ -34,6 +34,13 @@ public class Millimeters extends Units {
 		super(mm);
 	}
 
+	/**
+	 * @see papertoolkit.units.Units#getKind()
+	 */
+	public UnitKind getKind() {
+		return UnitKind.MILLIMETERS;
+	}
+
 	/**
 	 * @see papertoolkit.units.Units#getNumberOfUnitsInOneInch()
 	 */
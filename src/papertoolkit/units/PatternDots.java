@@ -56,6 +56,13 @@ public class PatternDots extends Units {
 		super(dots);
 	}
 
+	/**
+	 * @see papertoolkit.units.Units#getKind()
+	 */
+	public UnitKind getKind() {
+		return UnitKind.PATTERN_DOTS;
+	}
+
 	/**
 	 * How many pattern dots per inch?
 	 * 
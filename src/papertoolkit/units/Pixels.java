@@ -86,6 +86,14 @@ public class Pixels extends Units {
 		pixelsPerInch = pixPerInch.getValue();
 	}
 
+	/**
+	 * @return PIXELS, unless we were made with our own pixels per inch
+	 * @see papertoolkit.units.Units#getKind()
+	 */
+	public UnitKind getKind() {
+		return (pixelsPerInch == DEFAULT_PIXELS_PER_INCH) ? UnitKind.PIXELS : null;
+	}
+
 	/**
 	 * @see papertoolkit.units.Units#getNumberOfUnitsInOneInch()
 	 */
@@ -0,0 +1,74 @@
+package papertoolkit.units;
+
+/**
+ * <p>
+ * The units that always have the same length, with a table of the factors between every two of them. Code
+ * that converts a value for every pen sample can use convert(...) (or Units.getValueIn(UnitKind)), which
+ * creates no objects.
+ * </p>
+ * <p>
+ * Percentages and PrinterDots are not here, as their length depends on something else (the maximum value, or
+ * the printer). Pixels means pixels at the default pixels per inch.
+ * </p>
+ * <p>
+ * <span class="BSDLicense"> This software is distributed under the <a
+ * href="http://hci.stanford.edu/research/copyright.txt">BSD License</a>. </span>
+ * </p>
+ */
+public enum UnitKind {
+	CENTIMETERS(2.54), //
+	FEET(1 / 12.0), //
+	INCHES(1.0), //
+	METERS(.0254), //
+	MILLIMETERS(25.4), //
+	PATTERN_DOTS(PatternDots.ONE.getNumberOfUnitsInOneInch()), //
+	PIXELS(Pixels.ONE.getPixelsPerInch()), //
+	POINTS(Units.POINTS_PER_INCH);
+
+	/**
+	 * [from][to]: multiply a value in the first kind by this, to get the same length in the second.
+	 */
+	private static final double[][] FACTORS;
+
+	static {
+		final UnitKind[] kinds = values();
+		FACTORS = new double[kinds.length][kinds.length];
+		for (UnitKind from : kinds) {
+			for (UnitKind to : kinds) {
+				FACTORS[from.ordinal()][to.ordinal()] = to.unitsPerInch / from.unitsPerInch;
+			}
+		}
+	}
+
+	/**
+	 * @param value
+	 * @param from
+	 * @param to
+	 * @return the same length, in the destination units
+	 */
+	public static double convert(double value, UnitKind from, UnitKind to) {
+		return value * FACTORS[from.ordinal()][to.ordinal()];
+	}
+
+	private final double unitsPerInch;
+
+	private UnitKind(double numUnitsInOneInch) {
+		unitsPerInch = numUnitsInOneInch;
+	}
+
+	/**
+	 * @param to
+	 * @return the number to multiply a value in these units by, to get the same length in the destination
+	 *         units
+	 */
+	public double getFactorTo(UnitKind to) {
+		return FACTORS[ordinal()][to.ordinal()];
+	}
+
+	/**
+	 * @return how many of these units fit in one inch
+	 */
+	public double getUnitsPerInch() {
+		return unitsPerInch;
+	}
+}
@@ -1,6 +1,7 @@
 package papertoolkit.units.coordinates;
 
 import papertoolkit.units.Inches;
+import papertoolkit.units.UnitKind;
 import papertoolkit.units.Units;
 
 /**
@@ -57,6 +58,14 @@ public class Coordinates {
 		return x;
 	}
 
+	/**
+	 * @param kind
+	 * @return the x value in those units, without creating any objects
+	 */
+	public double getXIn(UnitKind kind) {
+		return getX().getValueIn(kind);
+	}
+
 	/**
 	 * @return the y value of this 2D coordinate
 	 */
@@ -64,6 +73,14 @@ public class Coordinates {
 		return y;
 	}
 
+	/**
+	 * @param kind
+	 * @return the y value in those units, without creating any objects
+	 */
+	public double getYIn(UnitKind kind) {
+		return getY().getValueIn(kind);
+	}
+
 	/**
 	 * Subclasses of Coordinates should verify that the passed-in unit is in fact of the right type!
 	 * 
@@ -2,6 +2,7 @@ package papertoolkit.units.coordinates;
 
 import papertoolkit.units.Percentage;
 import papertoolkit.units.Size;
+import papertoolkit.units.UnitKind;
 import papertoolkit.units.Units;
 
 /**
@@ -18,37 +19,73 @@ import papertoolkit.units.Units;
  */
 public class PercentageCoordinates extends Coordinates {
 
+	/**
+	 * What 100% is, in each direction.
+	 */
+	private Units maximumX;
+
+	private Units maximumY;
+
+	private double percentageX;
+
+	private double percentageY;
+
 	/**
 	 * @param pctInX
+	 *            [0, 100]
 	 * @param pctInY
+	 *            [0, 100]
+	 * @param size
 	 */
-	public PercentageCoordinates(Percentage pctInX, Percentage pctInY) {
-		super(pctInX, pctInY);
+	public PercentageCoordinates(double pctInX, double pctInY, Size size) {
+		this(pctInX, pctInY, size.getWidth(), size.getHeight());
 	}
 
 	/**
+	 * The Percentage objects are only made if someone calls getX() or getY(). The primitive methods (e.g.,
+	 * getXIn(UnitKind)) do not need them.
+	 * 
 	 * @param pctInX
 	 *            [0, 100]
 	 * @param pctInY
 	 *            [0, 100]
-	 * @param size
+	 * @param maxX
+	 *            100% in the horizontal direction
+	 * @param maxY
+	 *            100% in the vertical direction
 	 */
-	public PercentageCoordinates(double pctInX, double pctInY, Size size) {
-		this(new Percentage(pctInX, size.getWidth()), new Percentage(pctInY, size.getHeight()));
+	public PercentageCoordinates(double pctInX, double pctInY, Units maxX, Units maxY) {
+		super(null, null);
+		percentageX = pctInX;
+		percentageY = pctInY;
+		maximumX = maxX;
+		maximumY = maxY;
+	}
+
+	/**
+	 * @param pctInX
+	 * @param pctInY
+	 */
+	public PercentageCoordinates(Percentage pctInX, Percentage pctInY) {
+		super(pctInX, pctInY);
+		percentageX = pctInX.getValue();
+		percentageY = pctInY.getValue();
+		maximumX = pctInX.getMaximumValue();
+		maximumY = pctInY.getMaximumValue();
 	}
 
 	/**
 	 * @return
 	 */
 	public Units getActualValueInXDirection() {
-		return ((Percentage) x).getActualValue();
+		return ((Percentage) getX()).getActualValue();
 	}
 
 	/**
 	 * @return
 	 */
 	public Units getActualValueInYDirection() {
-		return ((Percentage) y).getActualValue();
+		return ((Percentage) getY()).getActualValue();
 	}
 
 	/**
@@ -58,14 +95,48 @@ public class PercentageCoordinates extends Coordinates {
 	 * @return the percentage value in the horizontal direction.
 	 */
 	public double getPercentageInXDirection() {
-		return x.getValue();
+		return percentageX;
 	}
 
 	/**
 	 * @return the percentage value in the vertical direction.
 	 */
 	public double getPercentageInYDirection() {
-		return y.getValue();
+		return percentageY;
+	}
+
+	/**
+	 * @see papertoolkit.units.coordinates.Coordinates#getX()
+	 */
+	public Units getX() {
+		if (x == null) {
+			x = new Percentage(percentageX, maximumX);
+		}
+		return x;
+	}
+
+	/**
+	 * @see papertoolkit.units.coordinates.Coordinates#getXIn(papertoolkit.units.UnitKind)
+	 */
+	public double getXIn(UnitKind kind) {
+		return maximumX.getValueIn(kind) * percentageX / 100.0;
+	}
+
+	/**
+	 * @see papertoolkit.units.coordinates.Coordinates#getY()
+	 */
+	public Units getY() {
+		if (y == null) {
+			y = new Percentage(percentageY, maximumY);
+		}
+		return y;
+	}
+
+	/**
+	 * @see papertoolkit.units.coordinates.Coordinates#getYIn(papertoolkit.units.UnitKind)
+	 */
+	public double getYIn(UnitKind kind) {
+		return maximumY.getValueIn(kind) * percentageY / 100.0;
 	}
 
 	/**
@@ -77,6 +148,8 @@ public class PercentageCoordinates extends Coordinates {
 	public void setX(Units xCoord) {
 		if (xCoord instanceof Percentage) {
 			x = xCoord;
+			percentageX = xCoord.getValue();
+			maximumX = ((Percentage) xCoord).getMaximumValue();
 		} else {
 			System.err.println("PercentageCoordinates: Incorrect type passed to setX(). ["
 					+ xCoord.getClass() + "]");
@@ -92,6 +165,8 @@ public class PercentageCoordinates extends Coordinates {
 	public void setY(Units yCoord) {
 		if (yCoord instanceof Percentage) {
 			y = yCoord;
+			percentageY = yCoord.getValue();
+			maximumY = ((Percentage) yCoord).getMaximumValue();
 		} else {
 			System.err.println("PercentageCoordinates: Incorrect type passed to setY(). ["
 					+ yCoord.getClass() + "]");
@@ -102,8 +177,8 @@ public class PercentageCoordinates extends Coordinates {
 	 * @see java.lang.Object#toString()
 	 */
 	public String toString() {
-		String xString = x.toString(2);
-		String yString = y.toString(2);
+		String xString = getX().toString(2);
+		String yString = getY().toString(2);
 		return "PercentageCoordinates { \n" //
 				+ "\t" + xString + ", \n" //
 				+ "\t" + yString + "\n}";
@@ -19,6 +19,79 @@ import java.util.List;
  */
 public class CatmullRomSpline {
 
+	/**
+	 * .3 is pretty good :)
+	 */
+	public static final double DEFAULT_TENSION = .3;
+
+	/**
+	 * Builds the same piecewise bezier curve as {@link #setPoints(List)}, but works directly on the sample
+	 * arrays, without creating intermediate points, vectors, or tangent lists. Use this when you only need the
+	 * shape (e.g., for rendering ink). The segments form one connected subpath, so a wide stroke is joined
+	 * smoothly between segments.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param n
+	 *            the number of samples to use from x and y
+	 * @param tension
+	 * @return
+	 */
+	public static Path2D.Double createPath(double[] x, double[] y, int n, double tension) {
+		final Path2D.Double curve = new Path2D.Double(Path2D.WIND_NON_ZERO, Math.max(2, n * 3));
+		if (n == 0) {
+			return curve;
+		}
+		curve.moveTo(x[0], y[0]);
+		if (n == 1) {
+			// a single point: draw a dot
+			curve.lineTo(x[0], y[0]);
+			return curve;
+		}
+		if (n == 2) {
+			curve.lineTo(x[1], y[1]);
+			return curve;
+		}
+
+		// For the segment from p[i] to p[i+1], the first control point is p[i] plus its forward tangent, and
+		// the second is p[i+1] plus its backward tangent. The points before the first and after the last
+		// sample are reflections of their neighbors.
+		for (int i = 0; i < n - 1; i++) {
+			// p[i-1], p[i], p[i+1]
+			final double ax = (i == 0) ? 2 * x[0] - x[1] : x[i - 1];
+			final double ay = (i == 0) ? 2 * y[0] - y[1] : y[i - 1];
+			final double bx = x[i];
+			final double by = y[i];
+			final double cx = x[i + 1];
+			final double cy = y[i + 1];
+			// p[i+2]
+			final double dx = (i + 2 < n) ? x[i + 2] : 2 * x[n - 1] - x[n - 2];
+			final double dy = (i + 2 < n) ? y[i + 2] : 2 * y[n - 1] - y[n - 2];
+
+			// forward tangent at p[i]: along (p[i+1] - p[i-1]), with length tension * |p[i+1] - p[i]|
+			final double segmentLength = Math.hypot(cx - bx, cy - by);
+			double scale = scaleFor(tension * segmentLength, cx - ax, cy - ay);
+			final double c1x = bx + (cx - ax) * scale;
+			final double c1y = by + (cy - ay) * scale;
+
+			// backward tangent at p[i+1]: along (p[i] - p[i+2]), with length tension * |p[i] - p[i+1]|
+			scale = scaleFor(tension * segmentLength, bx - dx, by - dy);
+			final double c2x = cx + (bx - dx) * scale;
+			final double c2y = cy + (by - dy) * scale;
+
+			curve.curveTo(c1x, c1y, c2x, c2y, cx, cy);
+		}
+		return curve;
+	}
+
+	/**
+	 * @return the factor that scales (vx, vy) to the desired length, or 0 for a zero vector
+	 */
+	private static double scaleFor(double desiredLength, double vx, double vy) {
+		final double magnitude = Math.hypot(vx, vy);
+		return magnitude == 0 ? 0 : desiredLength / magnitude;
+	}
+
 	private List<Vector2D> backwardTangents = new ArrayList<Vector2D>();
 
 	private List<Point2D> controlPoints = new ArrayList<Point2D>();
@@ -31,8 +104,7 @@ public class CatmullRomSpline {
 
 	private List<Point2D> pathPoints = new ArrayList<Point2D>();
 
-	// .3 is pretty good :)
-	private double tension = .3;
+	private double tension = DEFAULT_TENSION;
 
 	public List<Vector2D> getBackwardTangents() {
 		return backwardTangents;
@@ -0,0 +1,133 @@
+package papertoolkit.events;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import papertoolkit.PaperToolkit;
+import papertoolkit.paper.Region;
+import papertoolkit.paper.Sheet;
+import papertoolkit.pen.PenSample;
+import papertoolkit.units.Inches;
+import papertoolkit.units.PatternDots;
+
+/**
+ * <p>
+ * Two pens writing at once, each on its own region.
+ * </p>
+ * <p>
+ * <span class="BSDLicense"> This software is distributed under the <a
+ * href="http://hci.stanford.edu/research/copyright.txt">BSD License</a>. </span>
+ * </p>
+ */
+public class EventDispatcherTest {
+
+	/**
+	 * Where region A starts, in streamed pattern dots. Region B is to its right.
+	 */
+	private static final double ORIGIN_X = 100000;
+
+	private static final double ORIGIN_Y = 50000;
+
+	/**
+	 * Sheets look for saved pattern mappings here, and the directory is not in a fresh checkout.
+	 */
+	@BeforeClass
+	public static void createMappingsDirectory() {
+		PaperToolkit.getToolkitFile("mappings").mkdirs();
+	}
+
+	private EventDispatcher dispatcher;
+
+	private List<String> handled;
+
+	private Region addRegion(Sheet sheet, final String name, double x) {
+		final Region region = new Region(name, 0, 0, 1, 1);
+		region.addEventHandler(new EventHandler() {
+			public void handleEvent(PenEvent event) {
+				handled.add(name + ":" + event.getPenID() + ":" + event.getType());
+			}
+
+			public String toString() {
+				return "Recorder " + name;
+			}
+		});
+		sheet.addRegion(region, new PatternDots(x), new PatternDots(ORIGIN_Y), new PatternDots(300),
+				new PatternDots(300));
+		return region;
+	}
+
+	private PenEvent event(String penID, double x, PenEventType type) {
+		return new PenEvent(penID, "Pen " + penID, new PenSample(x, ORIGIN_Y + 100, 128, 0), type, false);
+	}
+
+	@Before
+	public void setUp() {
+		handled = new ArrayList<String>();
+		dispatcher = new EventDispatcher();
+		final Sheet sheet = new Sheet(new Inches(8.5), new Inches(11));
+		addRegion(sheet, "A", ORIGIN_X);
+		addRegion(sheet, "B", ORIGIN_X + 1000);
+		dispatcher.registerPatternMapForEventHandling(sheet.getPatternToSheetMapping());
+	}
+
+	@Test
+	public void strokeIsReplayedWithEachSampleOnce() {
+		final List<PenSample> samples = new ArrayList<PenSample>();
+		for (int i = 0; i < 4; i++) {
+			samples.add(new PenSample(ORIGIN_X + 100 + 10 * i, ORIGIN_Y + 100, 128, i));
+		}
+		dispatcher.handleStroke("0", "Pen 0", samples, null);
+
+		assertEquals(Arrays.asList("A:0:DOWN", "A:0:SAMPLE", "A:0:SAMPLE", "A:0:UP"), handled);
+	}
+
+	@Test
+	public void penUpGoesToThatPensRegion() {
+		dispatcher.handlePenEvent(event("0", ORIGIN_X + 100, PenEventType.DOWN));
+		dispatcher.handlePenEvent(event("1", ORIGIN_X + 1100, PenEventType.DOWN));
+		dispatcher.handlePenEvent(event("0", ORIGIN_X + 110, PenEventType.SAMPLE));
+		dispatcher.handlePenEvent(event("1", ORIGIN_X + 1110, PenEventType.SAMPLE));
+		dispatcher.handlePenEvent(event("0", 0, PenEventType.UP));
+		dispatcher.handlePenEvent(event("1", 0, PenEventType.UP));
+
+		assertEquals(Arrays.asList("A:0:DOWN", "B:1:DOWN", "A:0:SAMPLE", "B:1:SAMPLE", "A:0:UP", "B:1:UP"),
+				handled);
+	}
+
+	@Test
+	public void penUpIsLocatedAtThatPensLastSample() {
+		final List<Double> upLocations = new ArrayList<Double>();
+		final Sheet sheet = new Sheet(new Inches(8.5), new Inches(11));
+		final Region region = new Region("C", 0, 0, 1, 1);
+		region.addEventHandler(new EventHandler() {
+			public void handleEvent(PenEvent event) {
+				if (event.isTypePenUp()) {
+					upLocations.add(event.getPercentageLocation().getPercentageInXDirection());
+				}
+			}
+
+			public String toString() {
+				return "UpRecorder";
+			}
+		});
+		sheet.addRegion(region, new PatternDots(ORIGIN_X + 5000), new PatternDots(ORIGIN_Y), new PatternDots(
+				100), new PatternDots(300));
+		dispatcher.registerPatternMapForEventHandling(sheet.getPatternToSheetMapping());
+
+		dispatcher.handlePenEvent(event("0", ORIGIN_X + 5010, PenEventType.DOWN));
+		dispatcher.handlePenEvent(event("1", ORIGIN_X + 5090, PenEventType.DOWN));
+		dispatcher.handlePenEvent(event("0", 0, PenEventType.UP));
+		dispatcher.handlePenEvent(event("1", 0, PenEventType.UP));
+
+		assertEquals(2, upLocations.size());
+		assertEquals(10, upLocations.get(0), 0.5);
+		assertEquals(90, upLocations.get(1), 0.5);
+	}
+}
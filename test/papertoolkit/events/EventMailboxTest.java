@@ -0,0 +1,261 @@
+package papertoolkit.events;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import papertoolkit.paper.Region;
+import papertoolkit.pattern.coordinates.conversion.FlexiblePatternCoordinateConverter;
+import papertoolkit.pattern.coordinates.conversion.PatternCoordinateConverter;
+import papertoolkit.pen.PenSample;
+import papertoolkit.units.Size;
+import papertoolkit.units.coordinates.PercentageCoordinates;
+
+/**
+ * <p>
+ * Asynchronous handlers: what happens to samples when a handler falls behind, and changing mailboxes while
+ * events are waiting.
+ * </p>
+ * <p>
+ * <span class="BSDLicense"> This software is distributed under the <a
+ * href="http://hci.stanford.edu/research/copyright.txt">BSD License</a>. </span>
+ * </p>
+ */
+public class EventMailboxTest {
+
+	/**
+	 * Holds on to the first event until it is let go, so the rest wait in the mailbox.
+	 */
+	private static class BlockedHandler extends EventHandler {
+		private List<PenEvent> events = Collections.synchronizedList(new ArrayList<PenEvent>());
+
+		private CountDownLatch firstEventArrived = new CountDownLatch(1);
+
+		private CountDownLatch letGo = new CountDownLatch(1);
+
+		private CountDownLatch upArrived = new CountDownLatch(1);
+
+		public void handleEvent(PenEvent event) {
+			events.add(event);
+			firstEventArrived.countDown();
+			try {
+				letGo.await();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+			if (event.isTypePenUp()) {
+				upArrived.countDown();
+			}
+		}
+
+		/**
+		 * Sends the first event (a pen down), waits for the handler to be busy with it, sends the rest, and
+		 * lets the handler go.
+		 * 
+		 * @param stroke
+		 *            ends with a pen up
+		 * @return the events the handler got
+		 */
+		public List<PenEvent> handle(List<PenEvent> stroke) throws InterruptedException {
+			final EventMailbox mailbox = getMailbox();
+			mailbox.post(stroke.get(0));
+			firstEventArrived.await();
+			for (PenEvent event : stroke.subList(1, stroke.size())) {
+				mailbox.post(event);
+			}
+			letGo.countDown();
+			upArrived.await();
+			return events;
+		}
+
+		/**
+		 * @return the events the handler got for a stroke with this many samples
+		 */
+		public List<PenEvent> stroke(int numSamples) throws InterruptedException {
+			final List<PenEvent> stroke = new ArrayList<PenEvent>();
+			stroke.add(event(0, PenEventType.DOWN));
+			for (int i = 1; i <= numSamples; i++) {
+				stroke.add(event(i, PenEventType.SAMPLE));
+			}
+			stroke.add(event(numSamples + 1, PenEventType.UP));
+			return handle(stroke);
+		}
+
+		public String toString() {
+			return "BlockedHandler";
+		}
+	}
+
+	/**
+	 * Takes its time with each event, and notes how many threads were in handleEvent(...) at once.
+	 */
+	private static class SlowHandler extends EventHandler {
+		private AtomicInteger inside = new AtomicInteger();
+
+		private volatile int maxInside = 0;
+
+		private List<Long> timestamps = Collections.synchronizedList(new ArrayList<Long>());
+
+		public void handleEvent(PenEvent event) {
+			maxInside = Math.max(maxInside, inside.incrementAndGet());
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+			timestamps.add(event.getOriginalSample().timestamp);
+			inside.decrementAndGet();
+		}
+
+		public String toString() {
+			return "SlowHandler";
+		}
+	}
+
+	/**
+	 * @return an event at (10 * timestamp)% across the region
+	 */
+	private static PenEvent event(long timestamp, PenEventType type) {
+		final PenEvent event = new PenEvent("0", "Pen 0", new PenSample(0, 0, 128, timestamp), type, true);
+		event.setPercentageLocation(new PercentageCoordinates(10 * timestamp, 50, new Size()));
+		return event;
+	}
+
+	/**
+	 * @return an event located by the region's converter, 10 dots further along for each millisecond
+	 */
+	private static PenEvent eventOn(PatternCoordinateConverter region, long timestamp, PenEventType type) {
+		final PenSample sample = new PenSample(100000 + 10 * timestamp, 50000, 128, timestamp);
+		final PenEvent event = new PenEvent("0", "Pen 0", sample, type, true);
+		event.setLocation(region, sample);
+		// located now, so that the region's percentages start where the pen first touches it
+		event.getPercentageLocation();
+		return event;
+	}
+
+	private static PenEvent sample(long timestamp) {
+		return new PenEvent("0", "Pen 0", new PenSample(0, 0, 128, timestamp), PenEventType.SAMPLE, true);
+	}
+
+	/**
+	 * What the dispatcher does with an event.
+	 */
+	private static void send(EventHandler handler, PenEvent event) {
+		final EventMailbox mailbox = handler.getMailbox();
+		if (mailbox == null) {
+			handler.handleEvent(event);
+		} else {
+			mailbox.post(event);
+		}
+	}
+
+	@Test
+	public void changingMailboxesKeepsOneThreadAndTheOrder() {
+		final SlowHandler handler = new SlowHandler();
+		final List<Long> expected = new ArrayList<Long>();
+		long t = 0;
+		handler.setAsynchronous(1000, EventMailbox.OverflowPolicy.BLOCK);
+		for (int round = 0; round < 3; round++) {
+			for (int i = 0; i < 20; i++) {
+				expected.add(t);
+				send(handler, sample(t++));
+			}
+			// while those are still waiting
+			handler.setAsynchronous(1000, EventMailbox.OverflowPolicy.BLOCK);
+		}
+		for (int i = 0; i < 20; i++) {
+			expected.add(t);
+			send(handler, sample(t++));
+		}
+		handler.setSynchronous();
+		for (int i = 0; i < 5; i++) {
+			expected.add(t);
+			send(handler, sample(t++));
+		}
+
+		assertEquals(1, handler.maxInside);
+		assertEquals(expected, handler.timestamps);
+	}
+
+	@Test
+	public void coalescingHandlerGetsTheLatestSampleAndItsBounds() throws InterruptedException {
+		final BlockedHandler handler = new BlockedHandler();
+		handler.setCoalescing();
+		final List<PenEvent> events = handler.stroke(4);
+
+		assertEquals(3, events.size());
+		assertEquals(PenEventType.SAMPLE, events.get(1).getType());
+		assertEquals(4L, events.get(1).getOriginalSample().timestamp);
+		assertEquals(4, events.get(1).getNumSamples());
+		final Rectangle2D bounds = events.get(1).getPercentageBounds();
+		assertEquals(10, bounds.getMinX(), 0.001);
+		assertEquals(40, bounds.getMaxX(), 0.001);
+		assertEquals(PenEventType.UP, events.get(2).getType());
+		assertEquals(3L, handler.getMailbox().getNumCoalesced());
+	}
+
+	@Test
+	public void coalescedSamplesStayOnTheirOwnRegion() throws InterruptedException {
+		final BlockedHandler handler = new BlockedHandler();
+		handler.setCoalescing();
+		final PatternCoordinateConverter regionA = new FlexiblePatternCoordinateConverter(new Region("A", 0, 0,
+				1, 1));
+		final PatternCoordinateConverter regionB = new FlexiblePatternCoordinateConverter(new Region("B", 0, 0,
+				1, 1));
+		// the pen crosses from A to B while the handler is busy
+		final List<PenEvent> stroke = new ArrayList<PenEvent>();
+		stroke.add(eventOn(regionA, 0, PenEventType.DOWN));
+		stroke.add(eventOn(regionA, 1, PenEventType.SAMPLE));
+		stroke.add(eventOn(regionA, 2, PenEventType.SAMPLE));
+		stroke.add(eventOn(regionB, 3, PenEventType.SAMPLE));
+		stroke.add(eventOn(regionB, 4, PenEventType.SAMPLE));
+		stroke.add(eventOn(regionB, 5, PenEventType.UP));
+		final List<PenEvent> events = handler.handle(stroke);
+
+		assertEquals(4, events.size());
+		assertEquals(2L, events.get(1).getOriginalSample().timestamp);
+		assertEquals(2, events.get(1).getNumSamples());
+		assertEquals(4L, events.get(2).getOriginalSample().timestamp);
+		assertEquals(2, events.get(2).getNumSamples());
+		assertEquals(0, events.get(2).getPercentageBounds().getMinX(), 0.001);
+		assertEquals(2L, handler.getMailbox().getNumCoalesced());
+	}
+
+	@Test
+	public void droppedSamplesNeverIncludeDownsAndUps() throws InterruptedException {
+		final BlockedHandler handler = new BlockedHandler();
+		handler.setAsynchronous(2, EventMailbox.OverflowPolicy.DROP);
+		final List<PenEvent> events = handler.stroke(5);
+
+		final List<Long> timestamps = new ArrayList<Long>();
+		for (PenEvent event : events) {
+			timestamps.add(event.getOriginalSample().timestamp);
+		}
+		// the up goes past the limit
+		assertEquals(Arrays.asList(0L, 1L, 2L, 6L), timestamps);
+		assertEquals(3L, handler.getMailbox().getNumDropped());
+	}
+
+	@Test
+	public void eventsPostedToTheOldMailboxArePassedOn() {
+		final SlowHandler handler = new SlowHandler();
+		handler.setAsynchronous(1000, EventMailbox.OverflowPolicy.BLOCK);
+		final EventMailbox oldMailbox = handler.getMailbox();
+		oldMailbox.post(sample(0));
+		handler.setCoalescing();
+		// the dispatcher had not seen the new mailbox yet
+		oldMailbox.post(sample(1));
+		handler.setSynchronous();
+
+		assertEquals(0L, oldMailbox.getNumDropped());
+		assertEquals(2, handler.timestamps.size());
+	}
+}
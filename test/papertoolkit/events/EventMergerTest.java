@@ -0,0 +1,87 @@
+package papertoolkit.events;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import papertoolkit.pen.PenSample;
+
+/**
+ * <p>
+ * Two pens whose clocks disagree, merged into the order they wrote in.
+ * </p>
+ * <p>
+ * <span class="BSDLicense"> This software is distributed under the <a
+ * href="http://hci.stanford.edu/research/copyright.txt">BSD License</a>. </span>
+ * </p>
+ */
+public class EventMergerTest {
+
+	/**
+	 * Pen B's clock is this far ahead of ours.
+	 */
+	private static final long B_CLOCK_AHEAD = 1000000;
+
+	private List<String> dispatched;
+
+	private EventDispatcher dispatcher;
+
+	private PenEvent event(String penID, long timestamp, PenEventType type) {
+		return new PenEvent(penID, "Pen " + penID, new PenSample(0, 0, 128, timestamp), type, true);
+	}
+
+	@Before
+	public void setUp() {
+		dispatched = Collections.synchronizedList(new ArrayList<String>());
+		dispatcher = new EventDispatcher() {
+			public void handlePenEvent(PenEvent penEvent) {
+				dispatched.add(penEvent.getPenID() + ":" + penEvent.getType());
+			}
+		};
+	}
+
+	private void waitForDispatched(int numEvents) throws InterruptedException {
+		final long giveUp = System.currentTimeMillis() + 5000;
+		while (dispatched.size() < numEvents && System.currentTimeMillis() < giveUp) {
+			Thread.sleep(5);
+		}
+	}
+
+	@Test
+	public void eventsAfterCloseGoStraightThrough() throws InterruptedException {
+		final EventMerger merger = new EventMerger(dispatcher, 60000);
+		merger.add(event("A", System.currentTimeMillis(), PenEventType.DOWN));
+		merger.close();
+		waitForDispatched(1);
+		merger.add(event("A", System.currentTimeMillis(), PenEventType.UP));
+
+		assertEquals(Arrays.asList("A:DOWN", "A:UP"), dispatched);
+		assertEquals(0, merger.getNumPending());
+	}
+
+	@Test
+	public void pensAreMergedInWrittenOrder() throws InterruptedException {
+		final EventMerger merger = new EventMerger(dispatcher, 100);
+		merger.setClockOffset("A", 0);
+		merger.setClockOffset("B", -B_CLOCK_AHEAD);
+		final long now = System.currentTimeMillis();
+
+		// each pen's events arrive in its own order, but A's arrive first
+		merger.add(event("A", now + 10, PenEventType.DOWN));
+		merger.add(event("A", now + 30, PenEventType.UP));
+		merger.add(event("B", now + B_CLOCK_AHEAD + 5, PenEventType.DOWN));
+		merger.add(event("B", now + B_CLOCK_AHEAD + 20, PenEventType.UP));
+		waitForDispatched(4);
+		merger.close();
+
+		assertEquals(Arrays.asList("B:DOWN", "A:DOWN", "B:UP", "A:UP"), dispatched);
+		assertEquals(0L, merger.getNumLate());
+		assertEquals(-B_CLOCK_AHEAD, merger.getClockOffset("B"));
+	}
+}
@@ -0,0 +1,73 @@
+package papertoolkit.events.handlers;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import papertoolkit.events.PenEvent;
+import papertoolkit.events.PenEventType;
+import papertoolkit.pen.PenSample;
+import papertoolkit.pen.handwriting.HandwritingRecognitionService;
+import papertoolkit.pen.handwriting.StubRecognitionServer;
+
+/**
+ * <p>
+ * Sends strokes to a StubRecognitionServer, which answers with how many strokes it has.
+ * </p>
+ * <p>
+ * <span class="BSDLicense"> This software is distributed under the <a
+ * href="http://hci.stanford.edu/research/copyright.txt">BSD License</a>. </span>
+ * </p>
+ */
+public class HandwritingHandlerTest {
+
+	private HandwritingHandler handler;
+
+	private StubRecognitionServer server;
+
+	private HandwritingRecognitionService service;
+
+	private void writeStroke(double x) {
+		handler.handleEvent(new PenEvent("0", "Pen", new PenSample(x, 0, 128, 0), PenEventType.DOWN, false));
+		handler.handleEvent(new PenEvent("0", "Pen", new PenSample(x + 1, 1, 128, 1), PenEventType.SAMPLE, false));
+		handler.handleEvent(new PenEvent("0", "Pen", new PenSample(0, 0, 128, 2), PenEventType.UP, false));
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		server = new StubRecognitionServer(0, 0, true);
+		service = new HandwritingRecognitionService("localhost", server.getPort(), 1);
+		handler = new HandwritingHandler(service) {
+			public void contentArrived() {
+				// we ask for the result ourselves
+			}
+		};
+	}
+
+	@After
+	public void tearDown() {
+		handler.clear();
+		service.close();
+		server.stop();
+	}
+
+	@Test
+	public void incrementalSessionGetsEachStrokeOnce() {
+		handler.setIncrementalRecognition(true);
+		writeStroke(10);
+		assertEquals("1 strokes", handler.recognizeHandwriting());
+		writeStroke(20);
+		assertEquals("2 strokes", handler.recognizeHandwriting());
+	}
+
+	@Test
+	public void wholeFieldIsSentWhenNotIncremental() {
+		writeStroke(10);
+		writeStroke(20);
+		assertEquals("2 strokes", handler.recognizeHandwriting());
+	}
+}
@@ -0,0 +1,85 @@
+package papertoolkit.events.handlers;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import papertoolkit.events.PenEvent;
+import papertoolkit.events.PenEventType;
+import papertoolkit.pen.PenSample;
+import papertoolkit.pen.ink.InkStroke;
+
+/**
+ * <p>
+ * Strokes from two pens writing at once on the same region.
+ * </p>
+ * <p>
+ * <span class="BSDLicense"> This software is distributed under the <a
+ * href="http://hci.stanford.edu/research/copyright.txt">BSD License</a>. </span>
+ * </p>
+ */
+public class StrokeHandlerTest {
+
+	private static PenEvent event(String penID, double x, PenEventType type) {
+		return new PenEvent(penID, "Pen " + penID, new PenSample(x, 0, 128, 0), type, false);
+	}
+
+	@Test
+	public void batchedAndStreamedStrokesEndWithTheLastSample() {
+		final List<PenEvent> lastSamples = new ArrayList<PenEvent>();
+		final StrokeHandler handler = new StrokeHandler() {
+			public void strokeArrived(PenEvent lastSample, InkStroke stroke) {
+				lastSamples.add(lastSample);
+			}
+		};
+
+		handler.handleEvent(event("0", 1, PenEventType.DOWN));
+		handler.handleEvent(event("0", 2, PenEventType.SAMPLE));
+		handler.handleEvent(event("0", 3, PenEventType.SAMPLE));
+		handler.handleEvent(event("0", 0, PenEventType.UP));
+
+		final List<PenSample> samples = new ArrayList<PenSample>();
+		for (int x = 1; x <= 3; x++) {
+			samples.add(new PenSample(x, 0, 128, 0));
+		}
+		final PenEvent penUp = new PenEvent("0", "Pen 0", samples.get(2), PenEventType.UP, false);
+		handler.handleStroke(penUp, new InkStroke(samples));
+
+		assertEquals(2, lastSamples.size());
+		for (PenEvent lastSample : lastSamples) {
+			assertEquals(PenEventType.SAMPLE, lastSample.getType());
+			assertEquals(3, lastSample.getOriginalSample().x, 0);
+		}
+		assertEquals(PenEventType.UP, penUp.getType());
+	}
+
+	@Test
+	public void eachPenGetsItsOwnStroke() {
+		final List<String> strokes = new ArrayList<String>();
+		final StrokeHandler handler = new StrokeHandler() {
+			public void strokeArrived(PenEvent lastSample, InkStroke stroke) {
+				final StringBuilder xs = new StringBuilder(lastSample.getPenID() + ":");
+				for (double x : stroke.getXSamples()) {
+					xs.append((int) x).append(" ");
+				}
+				strokes.add(xs.toString().trim());
+			}
+		};
+
+		handler.handleEvent(event("0", 1, PenEventType.DOWN));
+		handler.handleEvent(event("1", 100, PenEventType.DOWN));
+		handler.handleEvent(event("0", 2, PenEventType.SAMPLE));
+		handler.handleEvent(event("1", 101, PenEventType.SAMPLE));
+		handler.handleEvent(event("0", 3, PenEventType.SAMPLE));
+		handler.handleEvent(event("1", 0, PenEventType.UP));
+		handler.handleEvent(event("0", 4, PenEventType.SAMPLE));
+		handler.handleEvent(event("0", 0, PenEventType.UP));
+
+		assertEquals(2, strokes.size());
+		assertEquals("1:101", strokes.get(0));
+		assertEquals("0:2 3 4", strokes.get(1));
+	}
+}
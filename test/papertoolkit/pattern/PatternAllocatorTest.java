@@ -0,0 +1,138 @@
+package papertoolkit.pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import papertoolkit.PaperToolkit;
+import papertoolkit.pattern.PatternAllocator.Reservation;
+import papertoolkit.units.PatternDots;
+
+/**
+ * <p>
+ * Reserving pattern from the default package, with a ledger of our own.
+ * </p>
+ * <p>
+ * <span class="BSDLicense"> This software is distributed under the <a
+ * href="http://hci.stanford.edu/research/copyright.txt">BSD License</a>. </span>
+ * </p>
+ */
+public class PatternAllocatorTest {
+
+	private File ledger;
+
+	private PatternPackage pkg;
+
+	@Before
+	public void createLedger() throws IOException {
+		pkg = new PatternPackage(PaperToolkit.getToolkitFile("data/pattern/default"));
+		ledger = File.createTempFile("patternAllocatorTest", ".ledger");
+		ledger.delete();
+	}
+
+	@After
+	public void deleteLedger() {
+		ledger.delete();
+	}
+
+	@Test
+	public void largeReservationTakesAFreeRunOfFiles() {
+		final PatternAllocator allocator = new PatternAllocator(pkg, ledger);
+		final int cols = pkg.getNumPatternColsPerFile();
+		final int rows = pkg.getNumPatternRowsPerFile();
+
+		assertEquals(0, allocator.allocate(100, 100, "small").getFirstPatternFile());
+		// three files across
+		final Reservation large = allocator.allocate(cols * 2 + 1, rows, "large");
+		assertEquals(1, large.getFirstPatternFile());
+		// the first file still has room
+		assertEquals(0, allocator.allocate(100, 100, "small").getFirstPatternFile());
+		assertEquals(4, allocator.allocate(cols * 2 + 1, rows, "large").getFirstPatternFile());
+
+		allocator.release(large);
+		assertEquals(1, allocator.allocate(cols * 3, rows, "large").getFirstPatternFile());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void generatorFailsWhenThePackageIsFull() {
+		final TiledPatternGenerator generator = new TiledPatternGenerator();
+		generator.setAllocator(new PatternAllocator(pkg, ledger), "full");
+		final int numCols = pkg.getNumPatternColsPerFile() * (pkg.getNumPatternFiles() + 1);
+		generator.getPattern(new PatternDots(numCols), new PatternDots(100));
+	}
+
+	@Test
+	public void releasedSpaceIsReused() {
+		final PatternAllocator allocator = new PatternAllocator(pkg, ledger);
+		final Reservation first = allocator.allocate(300, 300, "first");
+		final Reservation second = allocator.allocate(300, 300, "second");
+		assertFalse(first.equals(second));
+
+		allocator.release(first);
+		final Reservation third = allocator.allocate(300, 300, "third");
+		assertEquals(first.getFirstPatternFile(), third.getFirstPatternFile());
+		assertEquals(first.getX(), third.getX());
+		assertEquals(first.getY(), third.getY());
+		assertEquals(2, new PatternAllocator(pkg, ledger).getReservations().size());
+	}
+
+	@Test
+	public void twoAllocatorsInOneJVMShareALedger() throws InterruptedException {
+		final int numEach = 15;
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+		final List<Reservation> allocated = Collections.synchronizedList(new ArrayList<Reservation>());
+		final Thread[] threads = new Thread[2];
+		for (int t = 0; t < threads.length; t++) {
+			final PatternAllocator allocator = new PatternAllocator(pkg, ledger);
+			threads[t] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						for (int i = 0; i < numEach; i++) {
+							allocated.add(allocator.allocate(200, 200, Thread.currentThread().getName()));
+						}
+					} catch (Throwable e) {
+						errors.add(e);
+					}
+				}
+			}, "allocator" + t);
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue(errors.toString(), errors.isEmpty());
+
+		final List<Reservation> all = new PatternAllocator(pkg, ledger).getReservations();
+		assertEquals(numEach * threads.length, all.size());
+		final int cols = pkg.getNumPatternColsPerFile();
+		final int rows = pkg.getNumPatternRowsPerFile();
+		for (int i = 0; i < all.size(); i++) {
+			assertNotNull(allocated.get(i));
+			assertTrue(all.contains(allocated.get(i)));
+			for (int j = i + 1; j < all.size(); j++) {
+				final Map<Integer, Rectangle> a = all.get(i).getRectangles(cols, rows);
+				final Map<Integer, Rectangle> b = all.get(j).getRectangles(cols, rows);
+				for (Integer file : a.keySet()) {
+					if (b.containsKey(file)) {
+						assertFalse(all.get(i) + " overlaps " + all.get(j), a.get(file).intersects(b.get(file)));
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package papertoolkit.pen.gesture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * <p>
+ * Long strings and damaged files in the binary gesture model format.
+ * </p>
+ * <p>
+ * <span class="BSDLicense"> This software is distributed under the <a
+ * href="http://hci.stanford.edu/research/copyright.txt">BSD License</a>. </span>
+ * </p>
+ */
+public class GestureModelTest {
+
+	private static String repeat(char c, int n) {
+		final StringBuilder s = new StringBuilder(n);
+		for (int i = 0; i < n; i++) {
+			s.append(c);
+		}
+		return s.toString();
+	}
+
+	private File modelFile;
+
+	private File truncatedFile;
+
+	@Before
+	public void createFiles() throws IOException {
+		modelFile = File.createTempFile("gestureModelTest", ".model");
+		truncatedFile = File.createTempFile("gestureModelTest", ".truncated");
+	}
+
+	@After
+	public void deleteFiles() {
+		modelFile.delete();
+		truncatedFile.delete();
+	}
+
+	/**
+	 * Copies the first numBytes of the model file to the truncated file, and opens that.
+	 */
+	private void openTruncated(long numBytes) throws IOException {
+		final FileInputStream in = new FileInputStream(modelFile);
+		final FileOutputStream out = new FileOutputStream(truncatedFile);
+		try {
+			in.getChannel().transferTo(0, numBytes, out.getChannel());
+		} finally {
+			in.close();
+			out.close();
+		}
+		GestureModel.open(truncatedFile);
+	}
+
+	@Test
+	public void namesLongerThanAShortRoundTrip() throws IOException {
+		final String name = repeat('n', 40000);
+		final GestureModel.Writer writer = new GestureModel.Writer(64);
+		writer.addShapeContext(name, "author", 0, new double[] { 1, 2, 3 });
+		writer.write(modelFile);
+
+		final GestureModel model = GestureModel.open(modelFile);
+		assertEquals(name, model.getName(0));
+		assertEquals("author", model.getAuthor(0));
+		assertEquals(3, model.getData(0)[2], 0);
+	}
+
+	@Test(expected = IOException.class)
+	public void namesThatDoNotFitAreRejected() throws IOException {
+		final GestureModel.Writer writer = new GestureModel.Writer(64);
+		writer.addDollarTemplate(repeat('n', 70000), new double[] { 1, 2 });
+		writer.write(modelFile);
+	}
+
+	@Test
+	public void truncatedFilesAreRejected() throws IOException {
+		final GestureModel.Writer writer = new GestureModel.Writer(64);
+		writer.addShapeContext("circle", "author", 0, new double[] { 1, 2, 3, 4, 5, 6 });
+		writer.write(modelFile);
+
+		// in the index, and in the point data
+		for (long numBytes : new long[] { 30, modelFile.length() - 8 }) {
+			try {
+				openTruncated(numBytes);
+				fail("Opened a model cut at " + numBytes + " bytes");
+			} catch (IOException e) {
+				// expected
+			}
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package papertoolkit.render.ink;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Shape;
+import java.awt.geom.PathIterator;
+
+import org.junit.Test;
+
+import papertoolkit.pen.ink.InkStroke;
+
+/**
+ * <p>
+ * The shapes that rendering techniques cache on a stroke.
+ * </p>
+ * <p>
+ * <span class="BSDLicense"> This software is distributed under the <a
+ * href="http://hci.stanford.edu/research/copyright.txt">BSD License</a>. </span>
+ * </p>
+ */
+public class RenderingTechniqueTest {
+
+	private static boolean isCurved(Shape shape) {
+		final double[] coords = new double[6];
+		for (PathIterator it = shape.getPathIterator(null); !it.isDone(); it.next()) {
+			if (it.currentSegment(coords) == PathIterator.SEG_CUBICTO) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return a stroke with samples 40 units apart
+	 */
+	private static InkStroke stroke() {
+		final InkStroke stroke = new InkStroke();
+		for (int i = 0; i < 5; i++) {
+			stroke.addSample(i * 40, (i % 2) * 40, 128, i);
+		}
+		return stroke;
+	}
+
+	@Test
+	public void hybridTechniquesWithDifferentThresholdsDoNotShareShapes() {
+		final RenderingTechniqueHybrid curving = new RenderingTechniqueHybrid();
+		final RenderingTechniqueHybrid straight = new RenderingTechniqueHybrid();
+		straight.largeStrokeThreshold = 100;
+		final InkStroke stroke = stroke();
+
+		assertTrue(isCurved(curving.getShape(stroke)));
+		assertFalse(isCurved(straight.getShape(stroke)));
+		assertTrue(isCurved(curving.getShape(stroke)));
+	}
+
+	@Test
+	public void techniquesWithTheSameSettingsShareShapes() {
+		final InkStroke stroke = stroke();
+		final Shape shape = new RenderingTechniqueHybrid().getShape(stroke);
+
+		assertSame(shape, new RenderingTechniqueHybrid().getShape(stroke));
+		stroke.addSample(200, 0, 128, 5);
+		assertNotSame(shape, new RenderingTechniqueHybrid().getShape(stroke));
+	}
+}